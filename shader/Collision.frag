@@ -0,0 +1,13 @@
+#version 330
+
+in vec3 normal;
+out vec4 frag_color;
+
+//translucent, so the terrain stays visible underneath
+uniform vec4 color;
+
+void main(){
+	//two sided, the faces have no consistent winding
+	float light = 0.45 + 0.55 * abs(dot(normalize(normal), normalize(vec3(0.4, 1.0, 0.3))));
+	frag_color = vec4(color.rgb * light, color.a);
+}
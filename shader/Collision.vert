@@ -0,0 +1,18 @@
+#version 330
+
+layout(location = 0) in vec3 vertex_position;
+layout(location = 1) in vec3 vertex_normal;
+
+//camera state shared by every program, see CameraUniformBuffer
+layout(std140) uniform Camera {
+	mat4 view;
+	mat4 proj;
+	vec4 camera_position;
+};
+
+out vec3 normal;
+
+void main(){
+	normal = vertex_normal;
+	gl_Position = proj * view * vec4(vertex_position, 1);
+}
@@ -0,0 +1,51 @@
+//color ramps of the terrain shaders, pulled into ColorSpectrum.vert and TerrainDisplacement.vert
+//by ProgramManager.  Heights are in sample space, the world height / unit_distance.
+
+//single channel heights and movability, texel (z, x)
+uniform sampler2D heightmap;
+uniform sampler2D movability;
+uniform float min_height, max_height;
+//0 = height, 1 = slope, 2 = movability, see ColorRamp
+uniform int color_ramp;
+
+//blue (low) to green to red (high)
+vec3 heightColor(float y){
+	float x = (y - min_height) / (max_height - min_height);
+	float red = abs(1.7143*x*x - 0.7143*x + 0.0143);
+	float green = abs(-3.4286*x*x + 3.4286*x - 0.0286);
+	float blue = abs(1.7143*x*x - 2.7143*x + 1.0143);
+	return min(vec3(red, green, blue), vec3(1));
+}
+
+float heightAt(ivec2 cell){
+	ivec2 last = textureSize(heightmap, 0) - 1;
+	cell = clamp(cell, ivec2(0), last);
+	return texelFetch(heightmap, ivec2(cell.y, cell.x), 0).r;
+}
+
+//green (flat) to yellow to red (60 degrees and steeper)
+vec3 slopeColor(ivec2 cell){
+	//central differences, samples are one unit apart and heights are scaled by the unit as well
+	vec2 gradient = vec2(heightAt(cell + ivec2(1, 0)) - heightAt(cell - ivec2(1, 0)),
+			heightAt(cell + ivec2(0, 1)) - heightAt(cell - ivec2(0, 1))) * 0.5;
+	float t = clamp(atan(length(gradient)) / radians(60.0), 0.0, 1.0);
+	return t < 0.5 ? mix(vec3(0.1, 0.7, 0.2), vec3(0.9, 0.8, 0.1), t * 2.0)
+			: mix(vec3(0.9, 0.8, 0.1), vec3(0.8, 0.1, 0.1), t * 2.0 - 1.0);
+}
+
+vec3 movabilityColor(ivec2 cell, float y){
+	float movable = texelFetch(movability, ivec2(cell.y, cell.x), 0).r;
+	//shade by height so the terrain shape stays readable
+	float shade = 0.6 + 0.4 * clamp((y - min_height) / (max_height - min_height), 0.0, 1.0);
+	return mix(vec3(0.8, 0.15, 0.15), vec3(0.2, 0.7, 0.3), movable) * shade;
+}
+
+//color of the sample at cell with height y, by color_ramp
+vec3 rampColor(ivec2 cell, float y){
+	if(color_ramp == 1){
+		return slopeColor(cell);
+	} else if(color_ramp == 2){
+		return movabilityColor(cell, y);
+	}
+	return heightColor(y);
+}
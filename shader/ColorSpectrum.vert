@@ -1,13 +1,23 @@
 #version 330
 
 layout(location = 0) in vec3 vertex_position;
-layout(location = 1) in vec3 vertex_color;
 
-uniform mat4 view, proj;
+//camera state shared by every program, see CameraUniformBuffer
+layout(std140) uniform Camera {
+	mat4 view;
+	mat4 proj;
+	vec4 camera_position;
+};
+uniform float unit_distance;
 
 out vec3 color;
 
+#include "ColorRamp.glsl"
+
 void main(){
-	color = vertex_color;
-	gl_Position =   proj * view * vec4(vertex_position, 1);
-}
\ No newline at end of file
+	//vertices sit exactly on the samples
+	ivec2 cell = ivec2(round(vertex_position.xz / unit_distance));
+	float y = vertex_position.y / unit_distance;
+	color = rampColor(cell, y);
+	gl_Position = proj * view * vec4(vertex_position, 1);
+}
@@ -0,0 +1,7 @@
+#version 330
+uniform sampler2D text;
+in vec2 uv;
+out vec4 frag_color;
+void main(){
+	frag_color = texture(text, uv);
+}
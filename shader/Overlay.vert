@@ -0,0 +1,14 @@
+#version 330
+
+//box in normalized device coordinates: left, bottom, right, top
+uniform vec4 rect;
+
+out vec2 uv;
+
+void main(){
+	//triangle strip of 4 vertices, no vertex buffer
+	vec2 corner = vec2(gl_VertexID & 1, gl_VertexID >> 1);
+	//image rows are stored top down
+	uv = vec2(corner.x, 1.0 - corner.y);
+	gl_Position = vec4(mix(rect.xy, rect.zw, corner), 0, 1);
+}
@@ -0,0 +1,6 @@
+#version 330
+in vec3 color;
+out vec4 frag_color;
+void main(){
+	frag_color = vec4(color, .66);
+}
\ No newline at end of file
@@ -0,0 +1,27 @@
+#version 330
+
+//cell offset inside of the patch (x, z)
+layout(location = 0) in vec2 grid_position;
+//first cell of the patch, one per instance
+layout(location = 2) in vec2 patch_origin;
+
+//camera state shared by every program, see CameraUniformBuffer
+layout(std140) uniform Camera {
+	mat4 view;
+	mat4 proj;
+	vec4 camera_position;
+};
+uniform float unit_distance;
+//patches on the map border are clamped to the last sample
+uniform int last_sample;
+
+out vec3 color;
+
+#include "ColorRamp.glsl"
+
+void main(){
+	ivec2 cell = min(ivec2(patch_origin + grid_position), ivec2(last_sample));
+	float y = heightAt(cell);
+	color = rampColor(cell, y);
+	gl_Position = proj * view * vec4(cell.x * unit_distance, y * unit_distance, cell.y * unit_distance, 1);
+}
@@ -11,6 +11,16 @@ import kenner.ko.tools.SmdViewer;
  * Left/Right - Rotate left/right
  * Up/Down - Rotate over pitch.  Buggy at the moment, wouldn't recommend doing much.
  * X - Toggle X-ray mode
+ * C - Toggle collision overlay
+ * R - Cycle color ramp (height, slope, movability)
+ * B - Cycle height brush (raise, lower, flatten, off)
+ * Ctrl+Z - Undo the last brush stroke
+ * Ctrl+Y/Ctrl+Shift+Z - Redo
+ * Ctrl+S - Save the edited heights
+ * O - Open another map
+ * Tab/Shift+Tab - Next/previous open map
+ * Delete - Close the current map
+ * F3 - Toggle frame statistics
  * ESC - Exit SMD Viewer
  */
 public class BasicKeyboardMovement {
@@ -38,6 +48,51 @@ public class BasicKeyboardMovement {
 		if(key == GLFW_KEY_X && action != GLFW_RELEASE){
 			application.getXray().set(!application.getXray().get());
 		}
+		
+		if(key == GLFW_KEY_C && action == GLFW_PRESS){
+			application.toggleCollision();
+		}
+		
+		if(key == GLFW_KEY_R && action == GLFW_PRESS){
+			application.cycleColorRamp();
+		}
+		
+		//height editing
+		if(key == GLFW_KEY_B && action == GLFW_PRESS){
+			application.cycleBrush();
+		}
+		if(key == GLFW_KEY_Z && action != GLFW_RELEASE && (mods & GLFW_MOD_CONTROL) != 0){
+			if((mods & GLFW_MOD_SHIFT) != 0){
+				application.redo();
+			} else {
+				application.undo();
+			}
+		}
+		if(key == GLFW_KEY_Y && action != GLFW_RELEASE && (mods & GLFW_MOD_CONTROL) != 0){
+			application.redo();
+		}
+		if(key == GLFW_KEY_S && action == GLFW_PRESS && (mods & GLFW_MOD_CONTROL) != 0){
+			application.save();
+		}
+		
+		//map workspace
+		if(key == GLFW_KEY_O && action == GLFW_PRESS){
+			application.openMap();
+		}
+		if(key == GLFW_KEY_TAB && action == GLFW_PRESS){
+			if((mods & GLFW_MOD_SHIFT) != 0){
+				application.getWorkspace().previous();
+			} else {
+				application.getWorkspace().next();
+			}
+		}
+		if(key == GLFW_KEY_DELETE && action == GLFW_PRESS){
+			application.getWorkspace().close();
+		}
+		
+		if(key == GLFW_KEY_F3 && action == GLFW_PRESS){
+			application.toggleStats();
+		}
 	}
 	
 	/**
@@ -48,9 +103,12 @@ public class BasicKeyboardMovement {
 		boolean left = glfwGetKey(application.getWindowPtr(), GLFW_KEY_A) == GLFW_PRESS;
 		boolean right = glfwGetKey(application.getWindowPtr(), GLFW_KEY_D) == GLFW_PRESS;
 		boolean forward = glfwGetKey(application.getWindowPtr(), GLFW_KEY_W) == GLFW_PRESS;
-		boolean backwards = glfwGetKey(application.getWindowPtr(), GLFW_KEY_S) == GLFW_PRESS;
+		//not while saving with Ctrl+S or redoing with Ctrl+Shift+Z
+		boolean control = glfwGetKey(application.getWindowPtr(), GLFW_KEY_LEFT_CONTROL) == GLFW_PRESS
+				|| glfwGetKey(application.getWindowPtr(), GLFW_KEY_RIGHT_CONTROL) == GLFW_PRESS;
+		boolean backwards = !control && glfwGetKey(application.getWindowPtr(), GLFW_KEY_S) == GLFW_PRESS;
 		boolean up = glfwGetKey(application.getWindowPtr(), GLFW_KEY_SPACE) == GLFW_PRESS;
-		boolean down = glfwGetKey(application.getWindowPtr(), GLFW_KEY_LEFT_SHIFT) == GLFW_PRESS;
+		boolean down = !control && glfwGetKey(application.getWindowPtr(), GLFW_KEY_LEFT_SHIFT) == GLFW_PRESS;
 		boolean yawRight = glfwGetKey(application.getWindowPtr(), GLFW_KEY_RIGHT) == GLFW_PRESS;
 		boolean yawLeft = glfwGetKey(application.getWindowPtr(), GLFW_KEY_LEFT) == GLFW_PRESS;
 		boolean pitchUp = glfwGetKey(application.getWindowPtr(), GLFW_KEY_UP) == GLFW_PRESS;
@@ -0,0 +1,409 @@
+package kenner.ko.map;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import kenner.ko.n3base.CellMain;
+import kenner.ko.n3base.CellSub;
+import kenner.ko.n3base.N3ShapeMgr;
+import kenner.ko.n3base.Vector3d;
+import kenner.ko.util.Logger;
+
+/**
+ * Segment queries against the collision faces of a map, packed into primitive arrays.
+ *
+ * N3ShapeMgr keeps an ArrayList of Vector3d and a CellMain[][] of CellSub[][] objects, and its
+ * checkCollision() is a stub that always returns false.  This index answers the query the game
+ * server's CN3ShapeMgr::CheckCollision answers: the sub cells (CELL_SUB_SIZE world units) under the
+ * segment's bounding rectangle are visited z major, at most MAX_SUB_CELLS of them, and the segment
+ * hits if any of their polygons is hit by the ray from both ends (two sided).
+ *
+ * The polygons of every sub cell are stored contiguously (compressed rows), with the first vertex
+ * and both edges of each polygon in separate float arrays, so a query walks a few flat arrays
+ * instead of chasing objects.  A polygon listed in several sub cells is stored once per sub cell,
+ * like the file does.  Queries don't allocate and the index is immutable, so any number of
+ * threads can query it; intersects(float[], boolean[]) splits a batch across a ForkJoinPool.
+ *
+ * Nothing in the viewer queries it yet, ServerMap.objectIntersect() still goes to the stub.  The
+ * SmdBenchmark checks it against known answers and the reference walk.
+ * @author kenner
+ */
+public class CollisionIndex {
+	//sub cells visited per query at most, same as the game server
+	public static final int MAX_SUB_CELLS = 128;
+	//world units per sub cell
+	public static final int SUB_CELL_SIZE = N3ShapeMgr.CELL_SUB_SIZE;
+	//determinants below are parallel to the triangle
+	private static final float EPSILON = 0.0001f;
+	//segments per ForkJoin task
+	private static final int BATCH = 1024;
+
+	//main cells per side
+	private int cellsX, cellsZ;
+	//sub cells per side, CELL_MAIN_DIVIDE per main cell
+	private int subX, subZ;
+	//main cells that exist in the file, the others have no sub cells at all
+	private boolean[] cellExists;
+	//polygons of sub cell (x * subZ + z) are [first[s], first[s+1])
+	private int[] first;
+	//first vertex, edge v1-v0 and edge v2-v0 of every polygon
+	private float[] v0x, v0y, v0z;
+	private float[] e1x, e1y, e1z;
+	private float[] e2x, e2y, e2z;
+	private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+	private CollisionIndex(float width, float length){
+		cellsX = Math.max(0, (int) Math.ceil(width / N3ShapeMgr.CELL_MAIN_SIZE));
+		cellsZ = Math.max(0, (int) Math.ceil(length / N3ShapeMgr.CELL_MAIN_SIZE));
+		subX = cellsX * N3ShapeMgr.CELL_MAIN_DIVIDE;
+		subZ = cellsZ * N3ShapeMgr.CELL_MAIN_DIVIDE;
+		cellExists = new boolean[cellsX * cellsZ];
+		first = new int[subX * subZ + 1];
+	}
+
+	/**
+	 * Builds the index from the collision section of a mapped SMD, without parsing it into
+	 * N3ShapeMgr (the section is only read, loaded or not).
+	 * @throws IllegalStateException if the loader was closed
+	 */
+	public static CollisionIndex build(MappedSmdLoader loader){
+		if(!loader.isOpen()){
+			throw new IllegalStateException(loader.getFile().getName() + " is closed.");
+		}
+		long start = System.nanoTime();
+		ByteBuffer b = loader.slice(MappedSmdLoader.Section.COLLISION);
+		if(b.remaining() < 12){
+			return new CollisionIndex(0, 0).allocate(0);
+		}
+		float width = b.getFloat();
+		float length = b.getFloat();
+		int vertexCount = b.getInt() * 3;
+		int vertices = b.position();
+		int cells = vertices + vertexCount * 3 * 4;
+		CollisionIndex index = new CollisionIndex(width, length);
+
+		//count the polygons of every sub cell, then copy them in a second pass
+		for(int pass = 0; pass < 2; pass++){
+			int[] next = pass == 1 ? index.first.clone() : null;
+			b.position(cells);
+			for(float z = 0, cz = 0; z < length; z += N3ShapeMgr.CELL_MAIN_SIZE, cz++){
+				for(float x = 0, cx = 0; x < width; x += N3ShapeMgr.CELL_MAIN_SIZE, cx++){
+					if(b.getInt() == 0){
+						continue;
+					}
+					index.cellExists[(int) cx * index.cellsZ + (int) cz] = true;
+					int shapeCount = b.getInt();
+					b.position(b.position() + shapeCount * 2);
+					//sub cells are stored z major, like the main cells
+					for(int sz = 0; sz < N3ShapeMgr.CELL_MAIN_DIVIDE; sz++){
+						for(int sx = 0; sx < N3ShapeMgr.CELL_MAIN_DIVIDE; sx++){
+							int s = index.subCell((int) cx * N3ShapeMgr.CELL_MAIN_DIVIDE + sx, (int) cz * N3ShapeMgr.CELL_MAIN_DIVIDE + sz);
+							int polyCount = b.getInt();
+							if(next == null){
+								index.first[s + 1] = polyCount;
+								b.position(b.position() + polyCount * 3 * 4);
+								continue;
+							}
+							for(int p = 0; p < polyCount; p++){
+								int i0 = b.getInt(), i1 = b.getInt(), i2 = b.getInt();
+								index.put(next[s]++, b, vertices, vertexCount, i0, i1, i2);
+							}
+						}
+					}
+				}
+			}
+			if(pass == 0){
+				index.allocate(index.toOffsets());
+			}
+		}
+		index.log(start);
+		return index;
+	}
+
+	/**
+	 * Builds the index from a map that was parsed into N3ShapeMgr, e.g. an .xml map.
+	 */
+	public static CollisionIndex build(N3ShapeMgr shapes){
+		long start = System.nanoTime();
+		CollisionIndex index = new CollisionIndex(shapes.getWidth(), shapes.getLength());
+		CellMain[][] cells = shapes.getCells();
+		List<Vector3d> vertices = shapes.getCollisions();
+		for(int pass = 0; pass < 2; pass++){
+			int[] next = pass == 1 ? index.first.clone() : null;
+			for(int cx = 0; cx < index.cellsX; cx++){
+				for(int cz = 0; cz < index.cellsZ; cz++){
+					CellMain cell = cells != null && cx < cells.length && cz < cells[cx].length ? cells[cx][cz] : null;
+					if(cell == null || cell.getExist() == 0){
+						continue;
+					}
+					index.cellExists[cx * index.cellsZ + cz] = true;
+					for(int sx = 0; sx < N3ShapeMgr.CELL_MAIN_DIVIDE; sx++){
+						for(int sz = 0; sz < N3ShapeMgr.CELL_MAIN_DIVIDE; sz++){
+							int s = index.subCell(cx * N3ShapeMgr.CELL_MAIN_DIVIDE + sx, cz * N3ShapeMgr.CELL_MAIN_DIVIDE + sz);
+							CellSub sub = cell.getSubCells()[sx][sz];
+							Vector3d[] polys = sub != null && sub.getVertIndices() != null ? sub.getVertIndices() : new Vector3d[0];
+							if(next == null){
+								index.first[s + 1] = polys.length;
+								continue;
+							}
+							for(Vector3d poly : polys){
+								//CellSub.load() reads the int vertex indices as floats, the bits are intact
+								index.put(next[s]++, vertices, Float.floatToRawIntBits(poly.getX()),
+										Float.floatToRawIntBits(poly.getY()), Float.floatToRawIntBits(poly.getZ()));
+							}
+						}
+					}
+				}
+			}
+			if(pass == 0){
+				index.allocate(index.toOffsets());
+			}
+		}
+		index.log(start);
+		return index;
+	}
+
+	/**
+	 * Turns the polygon counts in first[s+1] into offsets.
+	 * @return polygon count
+	 */
+	private int toOffsets(){
+		for(int s = 0; s < subX * subZ; s++){
+			first[s + 1] += first[s];
+		}
+		return first[subX * subZ];
+	}
+
+	private CollisionIndex allocate(int polyCount){
+		v0x = new float[polyCount];
+		v0y = new float[polyCount];
+		v0z = new float[polyCount];
+		e1x = new float[polyCount];
+		e1y = new float[polyCount];
+		e1z = new float[polyCount];
+		e2x = new float[polyCount];
+		e2y = new float[polyCount];
+		e2z = new float[polyCount];
+		return this;
+	}
+
+	/**
+	 * Stores a polygon from the mapped vertices.
+	 */
+	private void put(int p, ByteBuffer b, int vertices, int vertexCount, int i0, int i1, int i2){
+		if(!valid(i0, vertexCount) || !valid(i1, vertexCount) || !valid(i2, vertexCount)){
+			degenerate(p, i0, i1, i2);
+			return;
+		}
+		put(p, b.getFloat(vertices + i0 * 12), b.getFloat(vertices + i0 * 12 + 4), b.getFloat(vertices + i0 * 12 + 8),
+				b.getFloat(vertices + i1 * 12), b.getFloat(vertices + i1 * 12 + 4), b.getFloat(vertices + i1 * 12 + 8),
+				b.getFloat(vertices + i2 * 12), b.getFloat(vertices + i2 * 12 + 4), b.getFloat(vertices + i2 * 12 + 8));
+	}
+
+	/**
+	 * Stores a polygon from the parsed vertices.
+	 */
+	private void put(int p, List<Vector3d> vertices, int i0, int i1, int i2){
+		if(!valid(i0, vertices.size()) || !valid(i1, vertices.size()) || !valid(i2, vertices.size())){
+			degenerate(p, i0, i1, i2);
+			return;
+		}
+		Vector3d a = vertices.get(i0), b = vertices.get(i1), c = vertices.get(i2);
+		put(p, a.getX(), a.getY(), a.getZ(), b.getX(), b.getY(), b.getZ(), c.getX(), c.getY(), c.getZ());
+	}
+
+	private void put(int p, float ax, float ay, float az, float bx, float by, float bz, float cx, float cy, float cz){
+		v0x[p] = ax;
+		v0y[p] = ay;
+		v0z[p] = az;
+		e1x[p] = bx - ax;
+		e1y[p] = by - ay;
+		e1z[p] = bz - az;
+		e2x[p] = cx - ax;
+		e2y[p] = cy - ay;
+		e2z[p] = cz - az;
+	}
+
+	private static boolean valid(int index, int vertexCount){
+		return index >= 0 && index < vertexCount;
+	}
+
+	/**
+	 * A polygon with a vertex index outside of the face list, stored with zero edges so it's never hit.
+	 */
+	private void degenerate(int p, int i0, int i1, int i2){
+		Logger.error("Collision polygon with invalid vertex indices " + i0 + ", " + i1 + ", " + i2 + " ignored");
+		put(p, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+	}
+
+	private void log(long start){
+		Logger.info(String.format("Collision index: %d polygons in %dx%d sub cells, built in %.1f ms", getPolyCount(),
+				subX, subZ, (System.nanoTime() - start) / 1e6));
+	}
+
+	private int subCell(int x, int z){
+		return x * subZ + z;
+	}
+
+	/**
+	 * @return true if the segment from (x1, y1, z1) to (x2, y2, z2) hits a collision polygon.
+	 * Note the argument order differs from ServerMap.objectIntersect(x1, z1, y1, x2, z2, y2).
+	 */
+	public boolean intersects(float x1, float y1, float z1, float x2, float y2, float z2){
+		float dx = x2 - x1, dy = y2 - y1, dz = z2 - z1;
+		float distance = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+		if(!(distance > 0f)){
+			return false;
+		}
+		dx /= distance;
+		dy /= distance;
+		dz /= distance;
+		//the end point as the server calculates it, from the normalized direction
+		float nx = x1 + dx * distance, ny = y1 + dy * distance, nz = z1 + dz * distance;
+
+		int xx1 = (int) (Math.min(x1, nx) / SUB_CELL_SIZE), xx2 = (int) (Math.max(x1, nx) / SUB_CELL_SIZE);
+		int zz1 = (int) (Math.min(z1, nz) / SUB_CELL_SIZE), zz2 = (int) (Math.max(z1, nz) / SUB_CELL_SIZE);
+		int visited = 0;
+		for(int zz = zz1; zz <= zz2; zz++){
+			for(int xx = xx1; xx <= xx2; xx++){
+				if(!exists(xx, zz)){
+					continue;
+				}
+				int s = subCell(xx, zz);
+				for(int p = first[s], end = first[s + 1]; p < end; p++){
+					if(hit(p, x1, y1, z1, dx, dy, dz) && hit(p, nx, ny, nz, -dx, -dy, -dz)){
+						return true;
+					}
+				}
+				if(++visited >= MAX_SUB_CELLS){
+					return false;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if the sub cell belongs to a main cell of the file, negative cells never do
+	 */
+	private boolean exists(int xx, int zz){
+		if(xx < 0 || zz < 0 || xx >= subX || zz >= subZ){
+			return false;
+		}
+		return cellExists[(xx / N3ShapeMgr.CELL_MAIN_DIVIDE) * cellsZ + zz / N3ShapeMgr.CELL_MAIN_DIVIDE];
+	}
+
+	/**
+	 * Two sided ray / triangle test (Moller-Trumbore), the hit has to be in front of the origin.
+	 */
+	private boolean hit(int p, float ox, float oy, float oz, float dx, float dy, float dz){
+		float ax = e1x[p], ay = e1y[p], az = e1z[p];
+		float bx = e2x[p], by = e2y[p], bz = e2z[p];
+		//p = dir x edge2
+		float px = dy * bz - dz * by, py = dz * bx - dx * bz, pz = dx * by - dy * bx;
+		float det = ax * px + ay * py + az * pz;
+		float tx, ty, tz;
+		if(det > 0f){
+			tx = ox - v0x[p];
+			ty = oy - v0y[p];
+			tz = oz - v0z[p];
+		} else {
+			tx = v0x[p] - ox;
+			ty = v0y[p] - oy;
+			tz = v0z[p] - oz;
+			det = -det;
+		}
+		if(det < EPSILON){
+			return false;
+		}
+		float u = tx * px + ty * py + tz * pz;
+		if(u < 0f || u > det){
+			return false;
+		}
+		//q = t x edge1
+		float qx = ty * az - tz * ay, qy = tz * ax - tx * az, qz = tx * ay - ty * ax;
+		float v = dx * qx + dy * qy + dz * qz;
+		if(v < 0f || u + v > det){
+			return false;
+		}
+		float t = (bx * qx + by * qy + bz * qz) * (1f / det);
+		return !(t < 0f);
+	}
+
+	/**
+	 * Answers a batch of segments on the calling thread.
+	 * @param segments x1, y1, z1, x2, y2, z2 per segment
+	 * @param hits result per segment
+	 * @param from first segment
+	 * @param to after the last segment
+	 * @return segments that hit
+	 */
+	public int intersects(float[] segments, boolean[] hits, int from, int to){
+		int count = 0;
+		for(int i = from; i < to; i++){
+			int o = i * 6;
+			boolean hit = intersects(segments[o], segments[o + 1], segments[o + 2], segments[o + 3], segments[o + 4], segments[o + 5]);
+			hits[i] = hit;
+			if(hit){
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Answers a batch of segments on every core of the ForkJoinPool.
+	 * @param segments x1, y1, z1, x2, y2, z2 per segment
+	 * @param hits result per segment, at least segments.length / 6
+	 * @return segments that hit
+	 */
+	public int intersects(float[] segments, boolean[] hits){
+		return pool.invoke(new BatchTask(segments, hits, 0, segments.length / 6));
+	}
+
+	/**
+	 * Splits a range of segments until BATCH or less are left.
+	 */
+	private class BatchTask extends RecursiveTask<Integer> {
+		private static final long serialVersionUID = 1L;
+		private float[] segments;
+		private boolean[] hits;
+		private int from, to;
+
+		BatchTask(float[] segments, boolean[] hits, int from, int to){
+			this.segments = segments;
+			this.hits = hits;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected Integer compute(){
+			if(to - from <= BATCH){
+				return intersects(segments, hits, from, to);
+			}
+			int middle = (from + to) >>> 1;
+			BatchTask left = new BatchTask(segments, hits, from, middle);
+			left.fork();
+			int right = new BatchTask(segments, hits, middle, to).compute();
+			return left.join() + right;
+		}
+	}
+
+	/*
+	 * Getters
+	 */
+	public int getPolyCount() {
+		return first[subX * subZ];
+	}
+
+	public int getSubCellsX() {
+		return subX;
+	}
+
+	public int getSubCellsZ() {
+		return subZ;
+	}
+}
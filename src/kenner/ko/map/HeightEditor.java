@@ -0,0 +1,388 @@
+package kenner.ko.map;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+
+/**
+ * Raise, lower and flatten brushes on the heights of a map, with undo and redo.
+ *
+ * A stroke (mouse press to release) remembers the old height of a sample the first time it
+ * changes it.  When the stroke ends, the changed samples with their old and new heights become
+ * one Edit on the undo stack, so the history costs 12 bytes per changed sample instead of a copy
+ * of the map.  Undo and redo write the stored heights back.
+ *
+ * Every change grows a dirty rectangle that the render thread takes once per frame with
+ * takeDirty(), so only that rectangle is uploaded again.  The height stats are kept per x row:
+ * takeDirty() recalculates the rows that changed and the totals come from the row values.
+ *
+ * Writes the Heightfield and ServerMap.getHeight() if the map has one.  Not thread safe, the
+ * viewer edits on the render thread.
+ * @author kenner
+ */
+public class HeightEditor {
+	/**
+	 * What a brush does to the samples under it.
+	 */
+	public enum Brush {
+		RAISE,
+		LOWER,
+		//towards the height under the brush when the stroke started
+		FLATTEN;
+
+		/**
+		 * @return the next brush, null after the last one
+		 */
+		public Brush next(){
+			return ordinal() + 1 < values().length ? values()[ordinal() + 1] : null;
+		}
+	}
+
+	/**
+	 * The samples changed by one stroke.
+	 */
+	private static class Edit {
+		private int[] indices;
+		private float[] before;
+		private float[] after;
+		//changed rectangle, inclusive
+		private int x0, z0, x1, z1;
+
+		private long getBytes(){
+			return indices.length * 12L;
+		}
+	}
+
+	private ServerMap map;
+	private Heightfield heightfield;
+	private int size;
+	//memory of the undo stack before the oldest edits are dropped
+	private long undoLimit;
+	private Deque<Edit> undo = new ArrayDeque<Edit>();
+	private Deque<Edit> redo = new ArrayDeque<Edit>();
+	private long undoBytes;
+
+	//current stroke, brush is null between strokes
+	private Brush brush;
+	private float flattenHeight;
+	//samples changed by the stroke, created on the first stroke
+	private BitSet touched;
+	private int[] strokeIndices = new int[1024];
+	private float[] strokeBefore = new float[1024];
+	private int strokeCount;
+	private int strokeX0, strokeZ0, strokeX1, strokeZ1;
+
+	//changed since the last takeDirty(), inclusive.  dirtyX0 > dirtyX1 if nothing changed
+	private int dirtyX0, dirtyZ0, dirtyX1 = -1, dirtyZ1 = -1;
+
+	//min, max and sum of every row, same samples as Terrain.analyzeHeights()
+	private int statsSize;
+	private float[] rowMin, rowMax;
+	private double[] rowSum;
+	private float[] heightStats = new float[3];
+
+	/**
+	 * Calculates the row stats, one pass over the map.
+	 * @param map written as well if it has ServerMap.getHeight()
+	 * @param heightfield heights of the map
+	 * @param undoLimit bytes of history kept
+	 */
+	public HeightEditor(ServerMap map, Heightfield heightfield, long undoLimit){
+		this.map = map;
+		this.heightfield = heightfield;
+		this.undoLimit = undoLimit;
+		size = heightfield.getSize();
+		statsSize = Math.max(1, size - 1);
+		rowMin = new float[statsSize];
+		rowMax = new float[statsSize];
+		rowSum = new double[statsSize];
+		updateRows(0, statsSize - 1);
+	}
+
+	/**
+	 * Starts a stroke.  A stroke that wasn't ended is ended first.
+	 * @param brush
+	 * @param x brush center, samples
+	 * @param z brush center, samples
+	 */
+	public void beginStroke(Brush brush, float x, float z){
+		endStroke();
+		this.brush = brush;
+		flattenHeight = heightfield.getClamped(Math.round(x), Math.round(z));
+		if(touched == null){
+			touched = new BitSet(size * size);
+		}
+		strokeCount = 0;
+		strokeX0 = strokeZ0 = Integer.MAX_VALUE;
+		strokeX1 = strokeZ1 = -1;
+	}
+
+	/**
+	 * Applies the brush of the stroke once.  Samples are moved by amount at the center, falling off
+	 * smoothly to 0 at the radius.
+	 * @param x brush center, samples
+	 * @param z brush center, samples
+	 * @param radius samples
+	 * @param amount height units at the center, > 0
+	 * @return true if a sample changed
+	 */
+	public boolean apply(float x, float z, float radius, float amount){
+		if(brush == null){
+			return false;
+		}
+		int x0 = Math.max(0, (int) Math.ceil(x - radius)), x1 = Math.min(size - 1, (int) Math.floor(x + radius));
+		int z0 = Math.max(0, (int) Math.ceil(z - radius)), z1 = Math.min(size - 1, (int) Math.floor(z + radius));
+		float r2 = radius * radius;
+		float[][] height = map != null ? map.getHeight() : null;
+		boolean changed = false;
+		for(int sx = x0; sx <= x1; sx++){
+			float dx = sx - x;
+			for(int sz = z0; sz <= z1; sz++){
+				float dz = sz - z;
+				float d2 = dx * dx + dz * dz;
+				if(d2 >= r2){
+					continue;
+				}
+				float falloff = 1f - d2 / r2;
+				float step = amount * falloff * falloff;
+				float old = heightfield.get(sx, sz), h;
+				switch(brush){
+				case RAISE:
+					h = old + step;
+					break;
+				case LOWER:
+					h = old - step;
+					break;
+				default:
+					h = old + Math.max(-step, Math.min(step, flattenHeight - old));
+				}
+				if(h == old){
+					continue;
+				}
+				int index = heightfield.index(sx, sz);
+				if(!touched.get(index)){
+					touched.set(index);
+					record(index, old);
+				}
+				heightfield.set(sx, sz, h);
+				if(height != null){
+					height[sx][sz] = h;
+				}
+				strokeX0 = Math.min(strokeX0, sx);
+				strokeZ0 = Math.min(strokeZ0, sz);
+				strokeX1 = Math.max(strokeX1, sx);
+				strokeZ1 = Math.max(strokeZ1, sz);
+				changed = true;
+			}
+		}
+		if(changed){
+			markDirty(x0, z0, x1, z1);
+		}
+		return changed;
+	}
+
+	/**
+	 * Remembers the height of a sample before the stroke changed it.
+	 */
+	private void record(int index, float before){
+		if(strokeCount == strokeIndices.length){
+			strokeIndices = Arrays.copyOf(strokeIndices, strokeCount * 2);
+			strokeBefore = Arrays.copyOf(strokeBefore, strokeCount * 2);
+		}
+		strokeIndices[strokeCount] = index;
+		strokeBefore[strokeCount++] = before;
+	}
+
+	/**
+	 * Ends the stroke and puts its changes on the undo stack.  Clears the redo stack if anything changed.
+	 * @return true if the stroke changed a sample
+	 */
+	public boolean endStroke(){
+		if(brush == null){
+			return false;
+		}
+		brush = null;
+		if(strokeCount == 0){
+			return false;
+		}
+		Edit edit = new Edit();
+		edit.indices = Arrays.copyOf(strokeIndices, strokeCount);
+		edit.before = Arrays.copyOf(strokeBefore, strokeCount);
+		edit.after = new float[strokeCount];
+		for(int i = 0; i < strokeCount; i++){
+			int index = strokeIndices[i];
+			edit.after[i] = heightfield.get(index / size, index % size);
+			touched.clear(index);
+		}
+		edit.x0 = strokeX0;
+		edit.z0 = strokeZ0;
+		edit.x1 = strokeX1;
+		edit.z1 = strokeZ1;
+		strokeCount = 0;
+		//shrink the scratch arrays after a huge stroke
+		if(strokeIndices.length > 1 << 20){
+			strokeIndices = new int[1024];
+			strokeBefore = new float[1024];
+		}
+		redo.clear();
+		push(edit);
+		return true;
+	}
+
+	/**
+	 * Puts an edit on the undo stack, drops the oldest edits above the limit.
+	 */
+	private void push(Edit edit){
+		undo.push(edit);
+		undoBytes += edit.getBytes();
+		while(undoBytes > undoLimit && undo.size() > 1){
+			undoBytes -= undo.removeLast().getBytes();
+		}
+	}
+
+	/**
+	 * Reverts the last stroke.
+	 * @return false if there is nothing to undo
+	 */
+	public boolean undo(){
+		endStroke();
+		if(undo.isEmpty()){
+			return false;
+		}
+		Edit edit = undo.pop();
+		undoBytes -= edit.getBytes();
+		write(edit, edit.before);
+		redo.push(edit);
+		return true;
+	}
+
+	/**
+	 * Applies the last undone stroke again.
+	 * @return false if there is nothing to redo
+	 */
+	public boolean redo(){
+		endStroke();
+		if(redo.isEmpty()){
+			return false;
+		}
+		Edit edit = redo.pop();
+		write(edit, edit.after);
+		push(edit);
+		return true;
+	}
+
+	/**
+	 * Writes the before or after heights of an edit.
+	 */
+	private void write(Edit edit, float[] heights){
+		float[][] height = map != null ? map.getHeight() : null;
+		for(int i = 0; i < edit.indices.length; i++){
+			int x = edit.indices[i] / size, z = edit.indices[i] % size;
+			heightfield.set(x, z, heights[i]);
+			if(height != null){
+				height[x][z] = heights[i];
+			}
+		}
+		markDirty(edit.x0, edit.z0, edit.x1, edit.z1);
+	}
+
+	private void markDirty(int x0, int z0, int x1, int z1){
+		if(dirtyX0 > dirtyX1){
+			dirtyX0 = x0;
+			dirtyZ0 = z0;
+			dirtyX1 = x1;
+			dirtyZ1 = z1;
+		} else {
+			dirtyX0 = Math.min(dirtyX0, x0);
+			dirtyZ0 = Math.min(dirtyZ0, z0);
+			dirtyX1 = Math.max(dirtyX1, x1);
+			dirtyZ1 = Math.max(dirtyZ1, z1);
+		}
+	}
+
+	/**
+	 * Takes the rectangle changed since the last call and updates the height stats of its rows.
+	 * @param rect receives the first x, z and last x, z sample, inclusive
+	 * @return false if nothing changed
+	 */
+	public boolean takeDirty(int[] rect){
+		if(dirtyX0 > dirtyX1){
+			return false;
+		}
+		rect[0] = dirtyX0;
+		rect[1] = dirtyZ0;
+		rect[2] = dirtyX1;
+		rect[3] = dirtyZ1;
+		updateRows(dirtyX0, Math.min(dirtyX1, statsSize - 1));
+		dirtyX0 = 0;
+		dirtyX1 = -1;
+		return true;
+	}
+
+	/**
+	 * Recalculates the stats of rows x0..x1 and the totals.
+	 */
+	private void updateRows(int x0, int x1){
+		float[] row = new float[statsSize];
+		for(int x = x0; x <= x1; x++){
+			heightfield.getRow(x, 0, row, 0, statsSize);
+			float min = row[0], max = row[0];
+			double sum = 0;
+			for(int z = 0; z < statsSize; z++){
+				min = Math.min(min, row[z]);
+				max = Math.max(max, row[z]);
+				sum += row[z];
+			}
+			rowMin[x] = min;
+			rowMax[x] = max;
+			rowSum[x] = sum;
+		}
+		float min = rowMin[0], max = rowMax[0];
+		double sum = 0;
+		for(int x = 0; x < statsSize; x++){
+			min = Math.min(min, rowMin[x]);
+			max = Math.max(max, rowMax[x]);
+			sum += rowSum[x];
+		}
+		heightStats[0] = min;
+		heightStats[1] = (float) (sum / ((double) statsSize * statsSize));
+		heightStats[2] = max;
+	}
+
+	/*
+	 * Getters
+	 */
+	public Heightfield getHeightfield() {
+		return heightfield;
+	}
+
+	/**
+	 * @return {min, avg, max} as of the last takeDirty(), same samples as Terrain.analyzeHeights()
+	 */
+	public float[] getHeightStats() {
+		return heightStats.clone();
+	}
+
+	/**
+	 * @return the brush of the current stroke, null between strokes
+	 */
+	public Brush getStrokeBrush() {
+		return brush;
+	}
+
+	public int getUndoCount() {
+		return undo.size();
+	}
+
+	public int getRedoCount() {
+		return redo.size();
+	}
+
+	/**
+	 * @return memory of the undo stack
+	 */
+	public long getUndoBytes() {
+		return undoBytes;
+	}
+}
@@ -0,0 +1,307 @@
+package kenner.ko.map;
+
+import java.util.stream.IntStream;
+
+/**
+ * Ray casts against the terrain with a min/max height quadtree (a maximum mipmap).
+ *
+ * Level 0 holds the lowest and highest corner of every cell, level n the range of 2^n x 2^n
+ * cells.  A ray descends only into the nodes whose box it enters, nearest child first, and
+ * stops at the first triangle it hits, so a pick touches a few hundred nodes instead of every
+ * cell of the map.  The cells are split into the two triangles the terrain mesh draws,
+ * (x, z) (x+1, z) (x+1, z+1) and (x+1, z+1) (x, z+1) (x, z).
+ *
+ * Works in sample space: x and z are sample indices and y is the stored height, the world
+ * position is that times ServerMap.getUnitDistance().  build() fills the levels in parallel.
+ * @author kenner
+ */
+public class HeightPicker {
+	private Heightfield heightfield;
+	private float unit;
+	//cells per side, the terrain draws size-2 of them
+	private int cells;
+	//cells (nodes) per side of every level
+	private int[] sides;
+	//lowest and highest height of every node, [level][x * side + z]
+	private float[][] min, max;
+
+	private HeightPicker(Heightfield heightfield, float unit, int cells){
+		this.heightfield = heightfield;
+		this.unit = unit;
+		this.cells = cells;
+		int levels = 1;
+		while((1 << (levels - 1)) < cells){
+			levels++;
+		}
+		sides = new int[levels];
+		min = new float[levels][];
+		max = new float[levels][];
+		for(int level = 0, side = cells; level < levels; level++, side = (side + 1) / 2){
+			sides[level] = side;
+			min[level] = new float[side * side];
+			max[level] = new float[side * side];
+		}
+	}
+
+	/**
+	 * Builds the quadtree over the cells the terrain draws.
+	 * @param heightfield terrain heights, kept for the triangle tests
+	 * @param unit ServerMap.getUnitDistance()
+	 */
+	public static HeightPicker build(Heightfield heightfield, float unit){
+		HeightPicker picker = new HeightPicker(heightfield, unit, Math.max(0, heightfield.getSize() - 2));
+		if(picker.cells > 0){
+			IntStream.range(0, picker.cells).parallel().forEach(picker::buildCells);
+			for(int level = 1; level < picker.sides.length; level++){
+				final int l = level;
+				IntStream.range(0, picker.sides[level]).parallel().forEach(x -> picker.buildNodes(l, x));
+			}
+		}
+		return picker;
+	}
+
+	/**
+	 * Level 0 of row x from the samples.
+	 */
+	private void buildCells(int x){
+		float[] lo = min[0], hi = max[0];
+		for(int z = 0; z < cells; z++){
+			float a = heightfield.get(x, z), b = heightfield.get(x + 1, z);
+			float c = heightfield.get(x + 1, z + 1), d = heightfield.get(x, z + 1);
+			lo[x * cells + z] = Math.min(Math.min(a, b), Math.min(c, d));
+			hi[x * cells + z] = Math.max(Math.max(a, b), Math.max(c, d));
+		}
+	}
+
+	/**
+	 * Row x of a level from the (up to) 4 children of every node.
+	 */
+	private void buildNodes(int level, int x){
+		int side = sides[level], childSide = sides[level - 1];
+		float[] lo = min[level - 1], hi = max[level - 1];
+		for(int z = 0; z < side; z++){
+			float nodeMin = Float.MAX_VALUE, nodeMax = -Float.MAX_VALUE;
+			for(int cx = x * 2; cx < Math.min(x * 2 + 2, childSide); cx++){
+				for(int cz = z * 2; cz < Math.min(z * 2 + 2, childSide); cz++){
+					nodeMin = Math.min(nodeMin, lo[cx * childSide + cz]);
+					nodeMax = Math.max(nodeMax, hi[cx * childSide + cz]);
+				}
+			}
+			min[level][x * side + z] = nodeMin;
+			max[level][x * side + z] = nodeMax;
+		}
+	}
+
+	/**
+	 * Recalculates the nodes above a changed rectangle of samples, e.g. after an edit.
+	 * @param x0 first changed sample
+	 * @param z0 first changed sample
+	 * @param x1 last changed sample
+	 * @param z1 last changed sample
+	 */
+	public void update(int x0, int z0, int x1, int z1){
+		//a sample is a corner of the cells left and below it as well
+		int cx0 = Math.max(0, x0 - 1), cz0 = Math.max(0, z0 - 1);
+		int cx1 = Math.min(cells - 1, x1), cz1 = Math.min(cells - 1, z1);
+		if(cx0 > cx1 || cz0 > cz1){
+			return;
+		}
+		for(int x = cx0; x <= cx1; x++){
+			for(int z = cz0; z <= cz1; z++){
+				float a = heightfield.get(x, z), b = heightfield.get(x + 1, z);
+				float c = heightfield.get(x + 1, z + 1), d = heightfield.get(x, z + 1);
+				min[0][x * cells + z] = Math.min(Math.min(a, b), Math.min(c, d));
+				max[0][x * cells + z] = Math.max(Math.max(a, b), Math.max(c, d));
+			}
+		}
+		for(int level = 1; level < sides.length; level++){
+			cx0 >>= 1;
+			cz0 >>= 1;
+			cx1 >>= 1;
+			cz1 >>= 1;
+			int side = sides[level], childSide = sides[level - 1];
+			for(int x = cx0; x <= cx1; x++){
+				for(int z = cz0; z <= cz1; z++){
+					float nodeMin = Float.MAX_VALUE, nodeMax = -Float.MAX_VALUE;
+					for(int cx = x * 2; cx < Math.min(x * 2 + 2, childSide); cx++){
+						for(int cz = z * 2; cz < Math.min(z * 2 + 2, childSide); cz++){
+							nodeMin = Math.min(nodeMin, min[level - 1][cx * childSide + cz]);
+							nodeMax = Math.max(nodeMax, max[level - 1][cx * childSide + cz]);
+						}
+					}
+					min[level][x * side + z] = nodeMin;
+					max[level][x * side + z] = nodeMax;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Finds the first terrain point along a ray.  Doesn't allocate, any number of threads can pick.
+	 * @param ox ray origin, world units
+	 * @param oy
+	 * @param oz
+	 * @param dx ray direction, any length
+	 * @param dy
+	 * @param dz
+	 * @param hit receives x, y, z of the point in world units
+	 * @return true if the ray hits the terrain
+	 */
+	public boolean pick(float ox, float oy, float oz, float dx, float dy, float dz, float[] hit){
+		if(cells == 0){
+			return false;
+		}
+		//in sample space the ray parameter is the same, the direction is only scaled
+		ox /= unit;
+		oy /= unit;
+		oz /= unit;
+		dx /= unit;
+		dy /= unit;
+		dz /= unit;
+		//an axis parallel ray on a node border would give 0 * infinity in the slab test
+		dx = dx != 0f ? dx : Float.MIN_NORMAL;
+		dy = dy != 0f ? dy : Float.MIN_NORMAL;
+		dz = dz != 0f ? dz : Float.MIN_NORMAL;
+		int top = sides.length - 1;
+		float t = intersect(top, 0, 0, ox, oy, oz, dx, dy, dz, 1f / dx, 1f / dy, 1f / dz);
+		if(t == Float.POSITIVE_INFINITY){
+			return false;
+		}
+		hit[0] = (ox + dx * t) * unit;
+		hit[1] = (oy + dy * t) * unit;
+		hit[2] = (oz + dz * t) * unit;
+		return true;
+	}
+
+	/**
+	 * @return ray parameter of the first hit inside node (x, z) of a level, infinity if none
+	 */
+	private float intersect(int level, int x, int z, float ox, float oy, float oz, float dx, float dy, float dz,
+			float ix, float iy, float iz){
+		if(level == 0){
+			return intersectCell(x, z, ox, oy, oz, dx, dy, dz);
+		}
+		int childLevel = level - 1, childSide = sides[childLevel];
+		//entry parameter of the up to 4 children, visited nearest first
+		float t0 = Float.POSITIVE_INFINITY, t1 = t0, t2 = t0, t3 = t0;
+		int c0 = -1, c1 = -1, c2 = -1, c3 = -1;
+		for(int cx = x * 2; cx < Math.min(x * 2 + 2, childSide); cx++){
+			for(int cz = z * 2; cz < Math.min(z * 2 + 2, childSide); cz++){
+				float t = enter(childLevel, cx, cz, ox, oy, oz, ix, iy, iz);
+				if(t == Float.POSITIVE_INFINITY){
+					continue;
+				}
+				int c = cx * childSide + cz;
+				//insertion into the sorted 4
+				if(t < t0){
+					t3 = t2; c3 = c2; t2 = t1; c2 = c1; t1 = t0; c1 = c0; t0 = t; c0 = c;
+				} else if(t < t1){
+					t3 = t2; c3 = c2; t2 = t1; c2 = c1; t1 = t; c1 = c;
+				} else if(t < t2){
+					t3 = t2; c3 = c2; t2 = t; c2 = c;
+				} else {
+					t3 = t; c3 = c;
+				}
+			}
+		}
+		//the children are disjoint columns, the first hit is the nearest
+		float hit = Float.POSITIVE_INFINITY;
+		if(c0 >= 0){
+			hit = intersect(childLevel, c0 / childSide, c0 % childSide, ox, oy, oz, dx, dy, dz, ix, iy, iz);
+		}
+		if(hit == Float.POSITIVE_INFINITY && c1 >= 0){
+			hit = intersect(childLevel, c1 / childSide, c1 % childSide, ox, oy, oz, dx, dy, dz, ix, iy, iz);
+		}
+		if(hit == Float.POSITIVE_INFINITY && c2 >= 0){
+			hit = intersect(childLevel, c2 / childSide, c2 % childSide, ox, oy, oz, dx, dy, dz, ix, iy, iz);
+		}
+		if(hit == Float.POSITIVE_INFINITY && c3 >= 0){
+			hit = intersect(childLevel, c3 / childSide, c3 % childSide, ox, oy, oz, dx, dy, dz, ix, iy, iz);
+		}
+		return hit;
+	}
+
+	/**
+	 * Slab test against the box of a node, clipped to the map.
+	 * @return ray parameter where the ray enters the box (0 if it starts inside), infinity if it misses
+	 */
+	private float enter(int level, int x, int z, float ox, float oy, float oz, float ix, float iy, float iz){
+		int side = sides[level];
+		float x0 = x << level, z0 = z << level;
+		float x1 = Math.min(cells, (x + 1) << level), z1 = Math.min(cells, (z + 1) << level);
+		float y0 = min[level][x * side + z], y1 = max[level][x * side + z];
+		float near = 0f, far = Float.POSITIVE_INFINITY;
+		float a = (x0 - ox) * ix, b = (x1 - ox) * ix;
+		near = Math.max(near, Math.min(a, b));
+		far = Math.min(far, Math.max(a, b));
+		a = (y0 - oy) * iy;
+		b = (y1 - oy) * iy;
+		near = Math.max(near, Math.min(a, b));
+		far = Math.min(far, Math.max(a, b));
+		a = (z0 - oz) * iz;
+		b = (z1 - oz) * iz;
+		near = Math.max(near, Math.min(a, b));
+		far = Math.min(far, Math.max(a, b));
+		return near <= far ? near : Float.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * @return ray parameter of the nearest hit of the two triangles of a cell, infinity if none
+	 */
+	private float intersectCell(int x, int z, float ox, float oy, float oz, float dx, float dy, float dz){
+		float h0 = heightfield.get(x, z), h1 = heightfield.get(x + 1, z);
+		float h2 = heightfield.get(x + 1, z + 1), h3 = heightfield.get(x, z + 1);
+		float a = intersectTriangle(ox, oy, oz, dx, dy, dz, x, h0, z, x + 1, h1, z, x + 1, h2, z + 1);
+		float b = intersectTriangle(ox, oy, oz, dx, dy, dz, x + 1, h2, z + 1, x, h3, z + 1, x, h0, z);
+		return Math.min(a, b);
+	}
+
+	/**
+	 * Two sided ray / triangle test (Moller-Trumbore).
+	 * @return ray parameter of the hit, infinity if none or behind the origin
+	 */
+	public static float intersectTriangle(float ox, float oy, float oz, float dx, float dy, float dz,
+			float ax, float ay, float az, float bx, float by, float bz, float cx, float cy, float cz){
+		float e1x = bx - ax, e1y = by - ay, e1z = bz - az;
+		float e2x = cx - ax, e2y = cy - ay, e2z = cz - az;
+		float px = dy * e2z - dz * e2y, py = dz * e2x - dx * e2z, pz = dx * e2y - dy * e2x;
+		float det = e1x * px + e1y * py + e1z * pz;
+		if(det == 0f){
+			return Float.POSITIVE_INFINITY;
+		}
+		float inverse = 1f / det;
+		float tx = ox - ax, ty = oy - ay, tz = oz - az;
+		float u = (tx * px + ty * py + tz * pz) * inverse;
+		if(u < 0f || u > 1f){
+			return Float.POSITIVE_INFINITY;
+		}
+		float qx = ty * e1z - tz * e1y, qy = tz * e1x - tx * e1z, qz = tx * e1y - ty * e1x;
+		float v = (dx * qx + dy * qy + dz * qz) * inverse;
+		if(v < 0f || u + v > 1f){
+			return Float.POSITIVE_INFINITY;
+		}
+		float t = (e2x * qx + e2y * qy + e2z * qz) * inverse;
+		return t >= 0f ? t : Float.POSITIVE_INFINITY;
+	}
+
+	/*
+	 * Getters
+	 */
+	public Heightfield getHeightfield() {
+		return heightfield;
+	}
+
+	/**
+	 * @return cells per side
+	 */
+	public int getCells() {
+		return cells;
+	}
+
+	/**
+	 * @return levels of the quadtree, 1 + log2 of the cells per side rounded up
+	 */
+	public int getLevelCount() {
+		return sides.length;
+	}
+}
@@ -0,0 +1,117 @@
+package kenner.ko.map;
+
+import java.nio.FloatBuffer;
+
+import org.lwjgl.BufferUtils;
+
+/**
+ * Terrain heights in one contiguous direct buffer.
+ *
+ * Samples are stored x major with a stride of size, sample (x, z) is at x * size + z.  That is
+ * the order of ServerMap.getHeight()[x][z] and of the terrain section of an SMD file, and the
+ * buffer can be handed to OpenGL as it is.
+ * @author kenner
+ */
+public class Heightfield {
+	//samples per side
+	private int size;
+	private FloatBuffer data;
+
+	/**
+	 * Creates a flat heightfield.
+	 * @param size samples per side
+	 */
+	public Heightfield(int size){
+		this(size, BufferUtils.createFloatBuffer(size * size));
+	}
+
+	/**
+	 * Wraps existing samples, x major.
+	 * @param size samples per side
+	 * @param data size * size samples, from position 0
+	 */
+	public Heightfield(int size, FloatBuffer data){
+		if(data.capacity() < size * size){
+			throw new IllegalArgumentException("Heightfield of size " + size + " needs " + (size * size) + " samples, got " + data.capacity());
+		}
+		this.size = size;
+		this.data = data;
+	}
+
+	/**
+	 * Copies a ServerMap.getHeight() style array.
+	 * @param height square array, [x][z]
+	 */
+	public static Heightfield fromArray(float[][] height){
+		Heightfield heightfield = new Heightfield(height.length);
+		FloatBuffer b = heightfield.data.duplicate();
+		for(int x = 0; x < height.length; x++){
+			b.put(height[x], 0, height.length);
+		}
+		return heightfield;
+	}
+
+	/**
+	 * Copies the samples into a ServerMap.setHeight() style array.
+	 * @return [x][z]
+	 */
+	public float[][] toArray(){
+		float[][] height = new float[size][size];
+		FloatBuffer b = data.duplicate();
+		b.clear();
+		for(int x = 0; x < size; x++){
+			b.get(height[x]);
+		}
+		return height;
+	}
+
+	/**
+	 * @return index of sample (x, z) in the buffer
+	 */
+	public int index(int x, int z){
+		return x * size + z;
+	}
+
+	public float get(int x, int z){
+		return data.get(x * size + z);
+	}
+
+	public void set(int x, int z, float height){
+		data.put(x * size + z, height);
+	}
+
+	/**
+	 * Copies count samples of row x, starting at z, into dest.
+	 */
+	public void getRow(int x, int z, float[] dest, int offset, int count){
+		FloatBuffer b = data.duplicate();
+		b.position(x * size + z);
+		b.get(dest, offset, count);
+	}
+
+	/**
+	 * Height at a sample position, clamped to the map.
+	 */
+	public float getClamped(int x, int z){
+		x = Math.max(0, Math.min(size - 1, x));
+		z = Math.max(0, Math.min(size - 1, z));
+		return get(x, z);
+	}
+
+	/**
+	 * @return samples per side
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * @return view of all samples, positioned at 0.  Shares the data with this heightfield.
+	 */
+	public FloatBuffer getBuffer() {
+		FloatBuffer b = data.duplicate();
+		b.clear();
+		b.limit(size * size);
+		return b;
+	}
+}
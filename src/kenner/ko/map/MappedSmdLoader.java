@@ -0,0 +1,500 @@
+package kenner.ko.map;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.EnumSet;
+
+import kenner.ko.n3base.N3ShapeMgr;
+import kenner.ko.structs.OBJECT_EVENT;
+import kenner.ko.structs.REGENE_EVENT;
+import kenner.ko.structs.WARP_INFO;
+import kenner.ko.util.Logger;
+import kenner.ko.zone.Region;
+
+/**
+ * Loads a binary SMD file into a ServerMap straight from a memory mapped buffer.
+ *
+ * ServerMap.loadMap() reads the whole file onto the heap and parses every section.  This loader
+ * maps the file instead, indexes the section offsets and only parses terrain and map tiles up
+ * front.  Collision, object event, regene event and warp sections are parsed on first use by
+ * load(Section), until then the ServerMap holds empty collections for them.
+ *
+ * Terrain goes into a Heightfield, ServerMap.getHeight() stays null until loadAll().  The heightfield
+ * is a copy, it stays valid after close().
+ * @author kenner
+ */
+public class MappedSmdLoader implements Closeable {
+	/**
+	 * SMD sections in file order.
+	 */
+	public enum Section {
+		TERRAIN,
+		//collision faces and cells
+		COLLISION,
+		OBJECT_EVENTS,
+		MAP_TILES,
+		REGENE_EVENTS,
+		WARPS
+	}
+
+	//sizes of the fixed size records
+	private static final int OBJECT_EVENT_SIZE = 24;
+	private static final int REGENE_EVENT_SIZE = 20;
+	private static final int WARP_SIZE = 320;
+	private static final int WARP_NAME_SIZE = 32;
+	private static final int WARP_ANNOUNCE_SIZE = 256;
+	//world units covered by a CellMain
+	private static final float CELL_SIZE = 16f;
+	//world units covered by a Region
+	private static final int REGION_SIZE = 48;
+
+	private File file;
+	private MappedByteBuffer buffer;
+	//file size when it was mapped
+	private long length;
+	//start and end of each section, end == start if the section is missing
+	private int[] start = new int[Section.values().length];
+	private int[] end = new int[Section.values().length];
+	private EnumSet<Section> loaded = EnumSet.noneOf(Section.class);
+	private ServerMap map;
+	private Heightfield heightfield;
+
+	/**
+	 * Maps the file, indexes its sections and loads terrain and map tiles.
+	 * @param file
+	 * @throws IOException if the file can't be read or is not a valid SMD
+	 */
+	public MappedSmdLoader(File file) throws IOException {
+		this.file = file;
+		Logger.info("Reading map file: " + file.getName());
+		buffer = map(file);
+		length = buffer.capacity();
+
+		map = new ServerMap();
+		map.setName(file.getName().replace(".smd", ""));
+		indexSections();
+		load(Section.TERRAIN);
+		load(Section.MAP_TILES);
+		Logger.info("Map file " + file.getName() + " mapped. (" + buffer.capacity() + " bytes)");
+	}
+
+	/**
+	 * Maps the whole file read only, little endian.  The mapping stays valid after the channel is closed.
+	 */
+	private static MappedByteBuffer map(File file) throws IOException {
+		try(RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()){
+			MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			mapped.order(ByteOrder.LITTLE_ENDIAN);
+			return mapped;
+		}
+	}
+
+	/**
+	 * Walks the file and records where each section starts and ends.  Only the counts are read.
+	 */
+	private void indexSections() throws IOException {
+		int length = buffer.capacity();
+		ByteBuffer b = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+
+		//terrain
+		int mapSize = b.getInt();
+		b.getFloat();
+		if(mapSize <= 0 || 8L + 4L * mapSize * mapSize > length){
+			throw new IOException("Invalid map size " + mapSize + " in " + file.getName());
+		}
+		mark(Section.TERRAIN, 0, 8 + 4 * mapSize * mapSize);
+		b.position(end(Section.TERRAIN));
+
+		//collision faces followed by the cells, see N3ShapeMgr.loadCollisionData()
+		int collision = b.position();
+		float width = b.getFloat();
+		float depth = b.getFloat();
+		int faceCount = b.getInt();
+		b.position(b.position() + faceCount * 3 * 3 * 4);
+		for(float z = 0; z < depth; z += CELL_SIZE){
+			for(float x = 0; x < width; x += CELL_SIZE){
+				if(b.getInt() != 0){
+					skipCellMain(b);
+				}
+			}
+		}
+		mark(Section.COLLISION, collision, b.position());
+
+		//the remaining sections are optional, ServerMap.loadMap() stops at the end of the file
+		int position = b.position();
+		position = markCounted(Section.OBJECT_EVENTS, b, position, OBJECT_EVENT_SIZE);
+		int tiles = position < length ? 2 * mapSize * mapSize : 0;
+		mark(Section.MAP_TILES, position, position + tiles);
+		position += tiles;
+		position = markCounted(Section.REGENE_EVENTS, b, position, REGENE_EVENT_SIZE);
+		position = markCounted(Section.WARPS, b, position, WARP_SIZE);
+		if(position > length){
+			throw new IOException("Truncated map file " + file.getName() + " (" + length + "/" + position + " bytes)");
+		}
+	}
+
+	/**
+	 * CellMain: shape count, shape indices, then CELL_SUB_SIZE^2 CellSubs of poly count + 3 indices per poly.
+	 */
+	private void skipCellMain(ByteBuffer b){
+		int shapeCount = b.getInt();
+		b.position(b.position() + shapeCount * 2);
+		for(int i = 0; i < N3ShapeMgr.CELL_SUB_SIZE * N3ShapeMgr.CELL_SUB_SIZE; i++){
+			int polyCount = b.getInt();
+			b.position(b.position() + polyCount * 3 * 4);
+		}
+	}
+
+	/**
+	 * Marks a section made of an int count and fixed size records.
+	 * @return end of the section
+	 */
+	private int markCounted(Section section, ByteBuffer b, int position, int recordSize){
+		if(position >= b.capacity()){
+			mark(section, position, position);
+			return position;
+		}
+		int count = b.getInt(position);
+		int sectionEnd = position + 4 + count * recordSize;
+		mark(section, position, sectionEnd);
+		return sectionEnd;
+	}
+
+	private void mark(Section section, int from, int to){
+		start[section.ordinal()] = from;
+		end[section.ordinal()] = to;
+	}
+
+	/**
+	 * Parses a section into the ServerMap if it hasn't been parsed yet.
+	 * @param section
+	 */
+	public synchronized void load(Section section){
+		if(loaded.contains(section)){
+			return;
+		}
+		if(buffer == null){
+			Logger.error("Can't load " + section + ", " + file.getName() + " is closed.");
+			return;
+		}
+		ByteBuffer b = slice(section);
+		if(b.hasRemaining()){
+			switch(section){
+			case TERRAIN:
+				loadTerrain(b);
+				break;
+			case COLLISION:
+				loadCollision(b);
+				break;
+			case OBJECT_EVENTS:
+				loadObjectEvents(b);
+				break;
+			case MAP_TILES:
+				loadMapTiles(b);
+				break;
+			case REGENE_EVENTS:
+				loadRegeneEvents(b);
+				break;
+			case WARPS:
+				loadWarps(b);
+				break;
+			}
+		}
+		loaded.add(section);
+		Logger.debug(section + " loaded (" + b.capacity() + " bytes)");
+	}
+
+	/**
+	 * Parses every section that hasn't been parsed yet and fills ServerMap.getHeight(), the
+	 * result equals ServerMap.loadMap().
+	 */
+	public void loadAll(){
+		for(Section section : Section.values()){
+			load(section);
+		}
+		if(map.getHeight() == null && heightfield != null){
+			map.setHeight(heightfield.toArray());
+		}
+	}
+
+	private void loadTerrain(ByteBuffer b){
+		int mapSize = b.getInt();
+		float unitDistance = b.getFloat();
+		map.setMapSize(mapSize);
+		map.setUnitDistance(unitDistance);
+		//one bulk copy, the file and the heightfield share the same layout
+		FloatBuffer floats = b.asFloatBuffer();
+		floats.limit(mapSize * mapSize);
+		heightfield = new Heightfield(mapSize);
+		heightfield.getBuffer().put(floats);
+
+		map.getSize().setX(mapSize);
+		map.getSize().setY(mapSize);
+		map.getSize().setWidth(mapSize);
+		map.getSize().setHeight(mapSize);
+		//region grid, same as ServerMap.loadMap()
+		int regions = (int)((mapSize - 1) * unitDistance) / REGION_SIZE + 1;
+		map.getRegionSize().setX(regions);
+		map.getRegionSize().setY(regions);
+		map.getRegionSize().setWidth(regions);
+		map.getRegionSize().setHeight(regions);
+		Region[][] regionGrid = new Region[regions][regions];
+		for(int x = 0; x < regions; x++){
+			for(int z = 0; z < regions; z++){
+				regionGrid[x][z] = new Region();
+				regionGrid[x][z].setMoving((byte)0);
+			}
+		}
+		map.setRegions(regionGrid);
+	}
+
+	private void loadCollision(ByteBuffer b){
+		float width = (map.getMapSize() - 1) * map.getUnitDistance();
+		N3ShapeMgr shapeManager = map.getShapeManager();
+		shapeManager.create(width, width);
+		shapeManager.loadCollisionData(b);
+		if(width != shapeManager.getWidth()){
+			Logger.error("Map boundary error", "MappedSmdLoader", "loadCollision");
+		}
+	}
+
+	private void loadObjectEvents(ByteBuffer b){
+		int count = b.getInt();
+		for(int i = 0; i < count; i++){
+			OBJECT_EVENT event = new OBJECT_EVENT();
+			event.setBelong(b.getInt());
+			event.setIndex(b.getShort());
+			event.setType(b.getShort());
+			event.setControlNpcId(b.getShort());
+			event.setStatus(b.getShort());
+			event.setPosX(b.getFloat());
+			event.setPosY(b.getFloat());
+			event.setPosZ(b.getFloat());
+			//ServerMap.loadMap() drops events without an index
+			if(event.getIndex() > 0){
+				map.getObjectEvents().put((int)event.getIndex(), event);
+			}
+		}
+	}
+
+	private void loadMapTiles(ByteBuffer b){
+		int mapSize = map.getMapSize();
+		MapInfo[][] mapInfo = new MapInfo[mapSize][mapSize];
+		for(int i = 0; i < mapSize; i++){
+			for(int j = 0; j < mapSize; j++){
+				MapInfo info = new MapInfo();
+				info.setEvent(b.getShort());
+				//the file is stored z major
+				mapInfo[j][i] = info;
+			}
+		}
+		map.setMapInfo(mapInfo);
+	}
+
+	private void loadRegeneEvents(ByteBuffer b){
+		int count = b.getInt();
+		for(int i = 0; i < count; i++){
+			REGENE_EVENT event = new REGENE_EVENT();
+			event.setRegenePoint(i);
+			event.setRegenePosX(b.getFloat());
+			event.setRegenePosY(b.getFloat());
+			event.setRegenePosZ(b.getFloat());
+			event.setRegionAreaZ(b.getFloat());
+			event.setRegionAreaX(b.getFloat());
+			map.getRegeneEvents().put(i, event);
+		}
+	}
+
+	private void loadWarps(ByteBuffer b){
+		int count = b.getInt();
+		for(int i = 0; i < count; i++){
+			WARP_INFO warp = new WARP_INFO();
+			warp.setWarpId(b.getShort());
+			warp.setWarpName(readString(b, WARP_NAME_SIZE));
+			warp.setAnnounce(readString(b, WARP_ANNOUNCE_SIZE));
+			warp.setPay(b.getInt());
+			b.position(b.position() + 2);
+			warp.setZone(b.getShort());
+			b.position(b.position() + 2);
+			warp.setX(b.getFloat());
+			warp.setY(b.getFloat());
+			warp.setZ(b.getFloat());
+			warp.setR(b.getFloat());
+			warp.setNation(b.getShort());
+			b.position(b.position() + 2);
+			map.getWarps().put((int)warp.getWarpId(), warp);
+		}
+	}
+
+	/**
+	 * Fixed length string, one char per byte like ServerMap.loadMap().
+	 */
+	private static String readString(ByteBuffer b, int length){
+		StringBuilder sb = new StringBuilder(length);
+		for(int i = 0; i < length; i++){
+			sb.append((char)b.get());
+		}
+		return sb.toString().trim();
+	}
+
+	/**
+	 * The collision faces straight from the file, without parsing the section into N3ShapeMgr
+	 * (which creates a Vector3d per vertex).
+	 * @return x, y, z of 3 vertices per face, little endian view of the mapping.  Empty if the file
+	 * has no collision faces.
+	 */
+	public FloatBuffer getCollisionVertices(){
+		if(buffer == null){
+			throw new IllegalStateException(file.getName() + " is closed.");
+		}
+		ByteBuffer b = slice(Section.COLLISION);
+		if(b.remaining() < 12){
+			return FloatBuffer.allocate(0);
+		}
+		//width, length, face count
+		int faceCount = b.getInt(8);
+		b.position(12);
+		FloatBuffer vertices = b.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+		vertices.limit(faceCount * 9);
+		return vertices;
+	}
+
+	/**
+	 * Read only view of a section, positioned at 0 and little endian.
+	 * @param section
+	 */
+	public ByteBuffer slice(Section section){
+		ByteBuffer b = buffer.duplicate();
+		b.position(start(section));
+		b.limit(end(section));
+		return b.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Unmaps the file right away, e.g. so it can be replaced (Windows doesn't replace or delete a
+	 * mapped file).  Loaded sections stay in the ServerMap, unloaded sections can't be loaded until
+	 * remap().  Views from slice() and getCollisionVertices() must not be used anymore, the memory
+	 * behind them is gone.
+	 */
+	@Override
+	public synchronized void close(){
+		if(buffer != null){
+			unmap(buffer);
+			buffer = null;
+		}
+	}
+
+	/**
+	 * Maps the file again after close(), e.g. after SmdWriter saved it.  The sections have to be
+	 * where they were, parsed sections aren't parsed again.
+	 * @throws IOException if the file can't be mapped or its layout changed, the loader stays closed
+	 */
+	public synchronized void remap() throws IOException {
+		if(buffer != null){
+			return;
+		}
+		int[] oldStart = start.clone(), oldEnd = end.clone();
+		buffer = map(file);
+		try {
+			if(buffer.capacity() != length){
+				throw new IOException(file.getName() + " changed size from " + length + " to " + buffer.capacity() + " bytes");
+			}
+			indexSections();
+			if(!Arrays.equals(start, oldStart) || !Arrays.equals(end, oldEnd)){
+				throw new IOException("The sections of " + file.getName() + " moved");
+			}
+		} catch (IOException | RuntimeException e) {
+			close();
+			System.arraycopy(oldStart, 0, start, 0, start.length);
+			System.arraycopy(oldEnd, 0, end, 0, end.length);
+			throw e;
+		}
+		Logger.debug("Map file " + file.getName() + " mapped again.");
+	}
+
+	/**
+	 * Releases a mapping without waiting for the garbage collector.  There is no public API for it:
+	 * Unsafe.invokeCleaner() on Java 9 and later, the buffer's Cleaner on Java 8.
+	 * @return false if neither worked, the garbage collector releases the mapping then
+	 */
+	private static boolean unmap(MappedByteBuffer mapped){
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Method invokeCleaner;
+			try {
+				invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			} catch (NoSuchMethodException e) {
+				//Java 8
+				Method cleaner = mapped.getClass().getMethod("cleaner");
+				cleaner.setAccessible(true);
+				Object c = cleaner.invoke(mapped);
+				c.getClass().getMethod("clean").invoke(c);
+				return true;
+			}
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			invokeCleaner.invoke(theUnsafe.get(null), mapped);
+			return true;
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			Logger.error("Failed to unmap a map file, it stays mapped until it's garbage collected: " + e);
+			return false;
+		}
+	}
+
+	/*
+	 * Getters
+	 */
+	public ServerMap getMap() {
+		return map;
+	}
+
+	public Heightfield getHeightfield() {
+		return heightfield;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return size of the file when it was mapped, including bytes after the last section
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * @return false after close(), unloaded sections can't be read anymore
+	 */
+	public boolean isOpen() {
+		return buffer != null;
+	}
+
+	public boolean isLoaded(Section section) {
+		return loaded.contains(section);
+	}
+
+	/**
+	 * @return file offset of the first byte of the section
+	 */
+	public int start(Section section) {
+		return start[section.ordinal()];
+	}
+
+	/**
+	 * @return file offset after the last byte of the section
+	 */
+	public int end(Section section) {
+		return end[section.ordinal()];
+	}
+}
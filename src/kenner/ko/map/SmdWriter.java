@@ -0,0 +1,177 @@
+package kenner.ko.map;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import kenner.ko.map.MappedSmdLoader.Section;
+
+/**
+ * Writes an SMD file section by section to a channel, e.g. to save edited heights.
+ *
+ * ServerMap.toSmd() serializes every section into one byte[] of the whole file.  This writer
+ * streams the terrain from a Heightfield in blocks of BLOCK_SIZE bytes and copies every other
+ * section from the source file with FileChannel.transferTo(), so unchanged sections are neither
+ * parsed nor held on the heap and the layout of the file stays the same.  The section offsets
+ * come from the MappedSmdLoader that read the source.
+ *
+ * save() writes a temp file next to the target, forces it to disk and moves it over the target,
+ * so a reader (or a crash) sees either the old or the new file.  The source may be the target, the
+ * source is read through a channel, so a MappedSmdLoader of it can be closed while it's saved.  It
+ * has to be: Windows doesn't replace a mapped file.
+ * @author kenner
+ */
+public class SmdWriter {
+	//bytes of terrain per write
+	private static final int BLOCK_SIZE = 1 << 20;
+	private static final String TEMP_EXTENSION = ".tmp";
+
+	private File source;
+	private long length;
+	private int[] start = new int[Section.values().length];
+	private int[] end = new int[Section.values().length];
+
+	/**
+	 * @param source indexed source file.  Only its offsets are used, it may be closed.
+	 */
+	public SmdWriter(MappedSmdLoader source){
+		this.source = source.getFile();
+		this.length = source.getLength();
+		for(Section section : Section.values()){
+			start[section.ordinal()] = source.start(section);
+			end[section.ordinal()] = source.end(section);
+		}
+	}
+
+	/**
+	 * Writes the map through a temp file that replaces target once it's complete.
+	 * @param heightfield terrain heights, same size as in the source
+	 * @param unitDistance ServerMap.getUnitDistance()
+	 * @param target may be the source file, it must not be mapped (see MappedSmdLoader.close())
+	 * @throws IOException if the source changed on disk or a write failed.  The target is untouched,
+	 * unless only the final move failed, then the map is in the temp file named in the message.
+	 */
+	public void save(Heightfield heightfield, float unitDistance, File target) throws IOException {
+		File temp = new File(target.getAbsoluteFile().getParentFile(), target.getName() + TEMP_EXTENSION);
+		try(FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)){
+			write(heightfield, unitDistance, out);
+			//on disk before the move replaces the old file
+			out.force(true);
+		} catch (IOException | RuntimeException e) {
+			temp.delete();
+			throw e;
+		}
+		try {
+			Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			//e.g. the target is still mapped or open in another program on Windows, the temp file is kept
+			throw new IOException("Failed to replace " + target.getName() + ", the map was written to "
+					+ temp.getPath() + ": " + e, e);
+		}
+	}
+
+	/**
+	 * Writes the map in file order: the terrain from the heightfield, every other section and
+	 * any bytes after the last one copied from the source.
+	 * @param heightfield terrain heights, same size as in the source
+	 * @param unitDistance ServerMap.getUnitDistance()
+	 * @param out written from its current position, not closed
+	 * @throws IOException if the source changed on disk or a write failed
+	 */
+	public void write(Heightfield heightfield, float unitDistance, WritableByteChannel out) throws IOException {
+		int size = heightfield.getSize();
+		if(8L + 4L * size * size != end(Section.TERRAIN) - start(Section.TERRAIN)){
+			throw new IOException("Heightfield of size " + size + " doesn't match the terrain of " + source.getName());
+		}
+		try(FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ)){
+			//the offsets are only valid for the file that was indexed
+			if(in.size() != length){
+				throw new IOException(source.getName() + " changed on disk since it was loaded");
+			}
+			for(Section section : Section.values()){
+				if(section == Section.TERRAIN){
+					writeTerrain(heightfield, unitDistance, out);
+				} else {
+					copy(in, start(section), end(section) - start(section), out);
+				}
+			}
+			//bytes ServerMap.loadMap() ignores, kept as they are
+			copy(in, end(Section.WARPS), length - end(Section.WARPS), out);
+		}
+	}
+
+	/**
+	 * Map size, unit distance and the heights, x major like the heightfield.
+	 */
+	private void writeTerrain(Heightfield heightfield, float unitDistance, WritableByteChannel out) throws IOException {
+		ByteBuffer block = ByteBuffer.allocateDirect(BLOCK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		block.putInt(heightfield.getSize());
+		block.putFloat(unitDistance);
+		FloatBuffer heights = heightfield.getBuffer();
+		while(true){
+			//the float view converts to little endian
+			FloatBuffer floats = block.asFloatBuffer();
+			int count = Math.min(floats.remaining(), heights.remaining());
+			int limit = heights.limit();
+			heights.limit(heights.position() + count);
+			floats.put(heights);
+			heights.limit(limit);
+			block.position(block.position() + count * 4);
+			block.flip();
+			writeFully(block, out);
+			if(!heights.hasRemaining()){
+				return;
+			}
+			block.clear();
+		}
+	}
+
+	/**
+	 * Copies count bytes of the source, transferTo() may copy less per call.
+	 */
+	private static void copy(FileChannel in, long position, long count, WritableByteChannel out) throws IOException {
+		while(count > 0){
+			long copied = in.transferTo(position, count, out);
+			if(copied <= 0){
+				throw new IOException("Unexpected end of the source file at " + position);
+			}
+			position += copied;
+			count -= copied;
+		}
+	}
+
+	private static void writeFully(ByteBuffer b, WritableByteChannel out) throws IOException {
+		while(b.hasRemaining()){
+			out.write(b);
+		}
+	}
+
+	/*
+	 * Getters
+	 */
+	public File getSource() {
+		return source;
+	}
+
+	/**
+	 * @return file offset of the first byte of the section in the source
+	 */
+	public int start(Section section) {
+		return start[section.ordinal()];
+	}
+
+	/**
+	 * @return file offset after the last byte of the section in the source
+	 */
+	public int end(Section section) {
+		return end[section.ordinal()];
+	}
+}
@@ -0,0 +1,317 @@
+package kenner.ko.renderable;
+
+import java.nio.FloatBuffer;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import org.lwjgl.BufferUtils;
+
+import kenner.ko.n3base.N3ShapeMgr;
+import kenner.ko.n3base.Vector3d;
+import kenner.ko.util.Logger;
+import kenner.opengl.camera.BasicCamera;
+import kenner.opengl.camera.Frustum;
+import kenner.opengl.shader.ProgramManager;
+
+//lwjgl static imports
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL30.*;
+
+/**
+ * The collision faces of a map (N3ShapeMgr), drawn translucent on top of the terrain.
+ *
+ * Faces are binned into the CellMain grid by their centroid, every non-empty cell gets one
+ * interleaved VBO (position, face normal) and a bounding box, so cells outside the frustum are
+ * skipped.  Binning by centroid keeps every face in exactly one cell, the cell lists of the file
+ * repeat a face in every sub cell it touches.
+ *
+ * build() runs on any thread: it reads the faces from a FloatBuffer (a view of the mapped SMD, see
+ * MappedSmdLoader.getCollisionVertices()), counting sorts them by cell and packs the cells in
+ * parallel, without an object per face or vertex.  upload() then creates the buffers on the GL thread.
+ * @author kenner
+ */
+public class CollisionOverlay {
+	public static final String PROGRAM = "Collision";
+	//x, y, z, nx, ny, nz
+	private static final int STRIDE = 6;
+	//red, translucent
+	private static final float[] COLOR = {1f, 0.25f, 0.2f, 0.45f};
+
+	//non-empty cells, CellMain coordinates
+	private int cellCount;
+	private int[] cellX, cellZ;
+	//min x, y, z, max x, y, z per cell (world units)
+	private float[] bounds;
+	private int[] vertexCounts;
+	//CPU side vertex data, released after upload
+	private FloatBuffer[] data;
+	private int[] vaoIds, vboIds;
+	private int faceCount;
+	private boolean uploaded;
+
+	private int program;
+	//ProgramManager.getVersion() the program was looked up at
+	private int programVersion = -1;
+	private int colorLocation;
+
+	//drawn on the last draw
+	private int visibleCellCount;
+	private int triangleCount;
+
+	private CollisionOverlay(int cellCount){
+		this.cellCount = cellCount;
+		cellX = new int[cellCount];
+		cellZ = new int[cellCount];
+		bounds = new float[cellCount * 6];
+		vertexCounts = new int[cellCount];
+		data = new FloatBuffer[cellCount];
+		vaoIds = new int[cellCount];
+		vboIds = new int[cellCount];
+	}
+
+	/**
+	 * Packs the faces into cells, doesn't touch OpenGL.
+	 * @param vertices x, y, z of 3 vertices per face.  Only read with absolute gets, so a shared view is fine.
+	 * @param width of the map in world units, the grid has CELL_MAIN_SIZE cells
+	 */
+	public static CollisionOverlay build(FloatBuffer vertices, float width){
+		long start = System.nanoTime();
+		int faceCount = vertices.limit() / 9;
+		int cells = Math.max(1, (int) Math.ceil(width / N3ShapeMgr.CELL_MAIN_SIZE));
+
+		//cell of every face, then a counting sort by cell
+		int[] cellOf = new int[faceCount];
+		IntStream.range(0, faceCount).parallel().forEach(f -> cellOf[f] = cellIndex(vertices, f, cells));
+		int[] first = new int[cells * cells + 1];
+		for(int f = 0; f < faceCount; f++){
+			first[cellOf[f] + 1]++;
+		}
+		int used = 0;
+		for(int c = 0; c < cells * cells; c++){
+			if(first[c + 1] > 0){
+				used++;
+			}
+			first[c + 1] += first[c];
+		}
+		int[] order = new int[faceCount];
+		int[] next = first.clone();
+		for(int f = 0; f < faceCount; f++){
+			order[next[cellOf[f]]++] = f;
+		}
+
+		CollisionOverlay overlay = new CollisionOverlay(used);
+		overlay.faceCount = faceCount;
+		//face range of every non-empty cell in order
+		int[] from = new int[used], to = new int[used];
+		for(int c = 0, i = 0; c < cells * cells; c++){
+			if(first[c + 1] > first[c]){
+				overlay.cellX[i] = c / cells;
+				overlay.cellZ[i] = c % cells;
+				from[i] = first[c];
+				to[i++] = first[c + 1];
+			}
+		}
+		IntStream.range(0, used).parallel().forEach(i -> overlay.pack(i, vertices, order, from[i], to[i]));
+		Logger.info(String.format("Collision overlay: %d faces in %d cells, packed in %.1f ms", faceCount, used,
+				(System.nanoTime() - start) / 1e6));
+		return overlay;
+	}
+
+	/**
+	 * The faces of a map that was parsed into N3ShapeMgr, e.g. an .xml map.
+	 * @return x, y, z of 3 vertices per face
+	 */
+	public static FloatBuffer toBuffer(List<Vector3d> collisions){
+		FloatBuffer vertices = FloatBuffer.allocate(collisions.size() / 3 * 9);
+		for(int i = 0; i < vertices.capacity() / 3; i++){
+			Vector3d v = collisions.get(i);
+			vertices.put(v.getX()).put(v.getY()).put(v.getZ());
+		}
+		vertices.flip();
+		return vertices;
+	}
+
+	/**
+	 * Cell of the face's centroid, faces off the map go to the border cells.
+	 */
+	private static int cellIndex(FloatBuffer vertices, int face, int cells){
+		int v = face * 9;
+		float x = (vertices.get(v) + vertices.get(v + 3) + vertices.get(v + 6)) / 3f;
+		float z = (vertices.get(v + 2) + vertices.get(v + 5) + vertices.get(v + 8)) / 3f;
+		int cx = Math.max(0, Math.min(cells - 1, (int) (x / N3ShapeMgr.CELL_MAIN_SIZE)));
+		int cz = Math.max(0, Math.min(cells - 1, (int) (z / N3ShapeMgr.CELL_MAIN_SIZE)));
+		return cx * cells + cz;
+	}
+
+	/**
+	 * Writes the faces order[from, to) of cell i with their normals and sets the cell bounds.
+	 */
+	private void pack(int i, FloatBuffer vertices, int[] order, int from, int to){
+		FloatBuffer buffer = BufferUtils.createFloatBuffer((to - from) * 3 * STRIDE);
+		float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, minZ = Float.MAX_VALUE;
+		float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE, maxZ = -Float.MAX_VALUE;
+		for(int o = from; o < to; o++){
+			int v = order[o] * 9;
+			float x0 = vertices.get(v), y0 = vertices.get(v + 1), z0 = vertices.get(v + 2);
+			float ax = vertices.get(v + 3) - x0, ay = vertices.get(v + 4) - y0, az = vertices.get(v + 5) - z0;
+			float bx = vertices.get(v + 6) - x0, by = vertices.get(v + 7) - y0, bz = vertices.get(v + 8) - z0;
+			float nx = ay * bz - az * by, ny = az * bx - ax * bz, nz = ax * by - ay * bx;
+			float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+			if(length > 0f){
+				nx /= length;
+				ny /= length;
+				nz /= length;
+			} else {
+				//degenerate face, shaded as if flat
+				nx = 0f;
+				ny = 1f;
+				nz = 0f;
+			}
+			for(int k = 0; k < 9; k += 3){
+				float x = vertices.get(v + k), y = vertices.get(v + k + 1), z = vertices.get(v + k + 2);
+				buffer.put(x).put(y).put(z).put(nx).put(ny).put(nz);
+				minX = Math.min(minX, x);
+				minY = Math.min(minY, y);
+				minZ = Math.min(minZ, z);
+				maxX = Math.max(maxX, x);
+				maxY = Math.max(maxY, y);
+				maxZ = Math.max(maxZ, z);
+			}
+		}
+		buffer.flip();
+		data[i] = buffer;
+		vertexCounts[i] = (to - from) * 3;
+		int b = i * 6;
+		bounds[b] = minX;
+		bounds[b + 1] = minY;
+		bounds[b + 2] = minZ;
+		bounds[b + 3] = maxX;
+		bounds[b + 4] = maxY;
+		bounds[b + 5] = maxZ;
+	}
+
+	/**
+	 * Creates the buffers of every cell and releases the CPU side data, needs a current GL context.
+	 */
+	public void upload(){
+		for(int i = 0; i < cellCount; i++){
+			vboIds[i] = glGenBuffers();
+			glBindBuffer(GL_ARRAY_BUFFER, vboIds[i]);
+			glBufferData(GL_ARRAY_BUFFER, data[i], GL_STATIC_DRAW);
+			vaoIds[i] = glGenVertexArrays();
+			glBindVertexArray(vaoIds[i]);
+			glVertexAttribPointer(0, 3, GL_FLOAT, false, STRIDE * 4, 0);
+			glEnableVertexAttribArray(0);
+			glVertexAttribPointer(1, 3, GL_FLOAT, false, STRIDE * 4, 3 * 4);
+			glEnableVertexAttribArray(1);
+			data[i] = null;
+		}
+		glBindVertexArray(0);
+		glBindBuffer(GL_ARRAY_BUFFER, 0);
+		uploaded = true;
+	}
+
+	/**
+	 * Draws the cells inside the frustum blended over the terrain, the CameraUniformBuffer has to
+	 * be up to date.  Keeps the polygon mode, so X-ray shows the collision wireframe.
+	 * @param camera
+	 */
+	public void draw(BasicCamera camera){
+		if(programVersion != ProgramManager.getVersion()){
+			programVersion = ProgramManager.getVersion();
+			program = ProgramManager.getShaderId(PROGRAM);
+			colorLocation = glGetUniformLocation(program, "color");
+		}
+		glUseProgram(program);
+		glUniform4f(colorLocation, COLOR[0], COLOR[1], COLOR[2], COLOR[3]);
+		glEnable(GL_BLEND);
+		glBlendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
+		//tested against the terrain, but drawn in front of faces lying on it
+		glDepthMask(false);
+		glEnable(GL_POLYGON_OFFSET_FILL);
+		glEnable(GL_POLYGON_OFFSET_LINE);
+		glPolygonOffset(-1f, -1f);
+
+		Frustum frustum = camera.getFrustum();
+		visibleCellCount = 0;
+		triangleCount = 0;
+		for(int i = 0; i < cellCount; i++){
+			int b = i * 6;
+			if(!frustum.intersects(bounds[b], bounds[b + 1], bounds[b + 2], bounds[b + 3], bounds[b + 4], bounds[b + 5])){
+				continue;
+			}
+			glBindVertexArray(vaoIds[i]);
+			glDrawArrays(GL_TRIANGLES, 0, vertexCounts[i]);
+			visibleCellCount++;
+			triangleCount += vertexCounts[i] / 3;
+		}
+		glBindVertexArray(0);
+
+		glDisable(GL_POLYGON_OFFSET_FILL);
+		glDisable(GL_POLYGON_OFFSET_LINE);
+		glDepthMask(true);
+		glDisable(GL_BLEND);
+	}
+
+	/**
+	 * @return GPU memory of the cell buffers
+	 */
+	public long getGpuBytes(){
+		long bytes = 0;
+		for(int i = 0; i < cellCount; i++){
+			bytes += (long) vertexCounts[i] * STRIDE * 4;
+		}
+		return bytes;
+	}
+
+	/**
+	 * OpenGL Cleanup
+	 */
+	public void dispose(){
+		if(!uploaded){
+			return;
+		}
+		for(int i = 0; i < cellCount; i++){
+			glDeleteBuffers(vboIds[i]);
+			glDeleteVertexArrays(vaoIds[i]);
+		}
+		uploaded = false;
+	}
+
+	/*
+	 * Getters
+	 */
+	public int getCellCount() {
+		return cellCount;
+	}
+
+	public int getFaceCount() {
+		return faceCount;
+	}
+
+	public int getVisibleCellCount() {
+		return visibleCellCount;
+	}
+
+	public int getTriangleCount() {
+		return triangleCount;
+	}
+
+	/**
+	 * @return min x, y, z, max x, y, z of cell i
+	 */
+	public float[] getBounds(int i) {
+		float[] b = new float[6];
+		System.arraycopy(bounds, i * 6, b, 0, 6);
+		return b;
+	}
+
+	/**
+	 * @return vertex data of cell i, null after upload()
+	 */
+	public FloatBuffer getData(int i) {
+		return data[i];
+	}
+}
@@ -0,0 +1,22 @@
+package kenner.ko.renderable;
+
+/**
+ * Terrain coloring modes of the terrain shaders.  The ordinal is passed to the shader as the
+ * color_ramp uniform, so switching only changes a uniform.
+ * @author kenner
+ */
+public enum ColorRamp {
+	//blue (low) to green to red (high), relative to the min/max height of the map
+	HEIGHT,
+	//green (flat) to red (steep)
+	SLOPE,
+	//green where ServerMap.isMovable(), red where it isn't
+	MOVABILITY;
+
+	/**
+	 * @return the ramp after this one, wraps around.
+	 */
+	public ColorRamp next(){
+		return values()[(ordinal() + 1) % values().length];
+	}
+}
@@ -0,0 +1,301 @@
+package kenner.ko.renderable;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import org.lwjgl.BufferUtils;
+
+import kenner.ko.map.Heightfield;
+import kenner.ko.map.ServerMap;
+import kenner.ko.util.Logger;
+import kenner.opengl.camera.BasicCamera;
+import kenner.opengl.camera.Frustum;
+
+//lwjgl static imports
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL31.*;
+import static org.lwjgl.opengl.GL33.*;
+
+/**
+ * Terrain displaced on the GPU.
+ *
+ * The heights live in a HeightTexture and one flat grid patch is drawn instanced, once per
+ * visible patch of the map.  The TerrainDisplacement shader fetches the height and colors the
+ * vertex, so nothing but the patch origins is built on the CPU.
+ * @author kenner
+ */
+public class DisplacedTerrain {
+	public static final String PROGRAM = "TerrainDisplacement";
+
+	private TerrainShading shading;
+	private Heightfield heightfield;
+	private float unit;
+	//cells per patch side
+	private int patchSize;
+	//patch grid size, patches are stored x-major
+	private int patchesX, patchesZ;
+	//height range of each patch (height units), used for culling
+	private float[] patchMin, patchMax;
+	private float minHeight, maxHeight;
+	//last sample covered, same cell range as Terrain: (mapSize-2)^2 quads
+	private int lastSample;
+
+	private int vaoId;
+	private int gridBufferId;
+	private int indexBufferId;
+	private int instanceBufferId;
+	private int indexCount;
+	//origins of the visible patches, refilled every draw
+	private FloatBuffer instances;
+
+	//patches drawn on the last draw
+	private int visiblePatchCount;
+
+	/**
+	 * Uploads the heights and the patch mesh, needs a current GL context.
+	 * @param map for the unit distance and the movability ramp
+	 * @param heightfield
+	 * @param patchSize cells per patch side
+	 * @param minHeight lowest sample, used for the color ramp
+	 * @param maxHeight highest sample, used for the color ramp
+	 */
+	public DisplacedTerrain(ServerMap map, Heightfield heightfield, int patchSize, float minHeight, float maxHeight){
+		this.heightfield = heightfield;
+		this.unit = map.getUnitDistance();
+		this.patchSize = patchSize;
+		this.minHeight = minHeight;
+		this.maxHeight = maxHeight;
+		lastSample = heightfield.getSize() - 2;
+		int cells = lastSample;
+		patchesX = patchesZ = (cells + patchSize - 1) / patchSize;
+
+		calculatePatchBounds(heightfield);
+		createPatchMesh();
+
+		shading = new TerrainShading(PROGRAM, map, heightfield, minHeight, maxHeight);
+		setLastSample();
+		glUseProgram(0);
+
+		Logger.info("Displaced terrain: " + (patchesX * patchesZ) + " patches (" + patchSize + "x" + patchSize + " cells), "
+				+ (heightfield.getSize() * heightfield.getSize() * 4 / 1024) + " KB height texture");
+	}
+
+	/**
+	 * Sets the last_sample uniform, the shading program has to be current.
+	 */
+	private void setLastSample(){
+		glUniform1i(glGetUniformLocation(shading.getProgram(), "last_sample"), lastSample);
+	}
+
+	/**
+	 * Min/max height of every patch, so patches can be frustum culled without reading back the texture.
+	 */
+	private void calculatePatchBounds(Heightfield heightfield){
+		patchMin = new float[patchesX * patchesZ];
+		patchMax = new float[patchesX * patchesZ];
+		float[] row = new float[lastSample + 1];
+		for(int p = 0; p < patchMin.length; p++){
+			patchMin[p] = Float.MAX_VALUE;
+			patchMax[p] = -Float.MAX_VALUE;
+		}
+		for(int x = 0; x <= lastSample; x++){
+			heightfield.getRow(x, 0, row, 0, row.length);
+			//a sample on a patch border belongs to both patches
+			int px0 = Math.min(x / patchSize, patchesX - 1);
+			int px1 = x > 0 && x % patchSize == 0 ? x / patchSize - 1 : px0;
+			for(int z = 0; z <= lastSample; z++){
+				int pz0 = Math.min(z / patchSize, patchesZ - 1);
+				int pz1 = z > 0 && z % patchSize == 0 ? z / patchSize - 1 : pz0;
+				float y = row[z];
+				for(int px = px1; px <= px0; px++){
+					for(int pz = pz1; pz <= pz0; pz++){
+						int p = px * patchesZ + pz;
+						patchMin[p] = Math.min(patchMin[p], y);
+						patchMax[p] = Math.max(patchMax[p], y);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Uploads a changed rectangle of heights, e.g. after a HeightEditor stroke: the rectangle of the
+	 * height texture plus the bounds of the patches touching it.  Needs a current GL context.
+	 * @param x0 first changed sample along x
+	 * @param z0 first changed sample along z
+	 * @param x1 last changed sample along x, inclusive
+	 * @param z1 last changed sample along z, inclusive
+	 * @param heightStats {min, avg, max} after the change
+	 */
+	public void updateHeights(int x0, int z0, int x1, int z1, float[] heightStats){
+		int last = heightfield.getSize() - 1;
+		x0 = Math.max(0, x0);
+		z0 = Math.max(0, z0);
+		x1 = Math.min(last, x1);
+		z1 = Math.min(last, z1);
+		shading.getHeightTexture().update(x0, z0, x1 - x0 + 1, z1 - z0 + 1);
+		//a sample on a patch border belongs to both patches
+		int px0 = Math.max(0, Math.min((x0 - 1) / patchSize, patchesX - 1)), px1 = Math.min(x1 / patchSize, patchesX - 1);
+		int pz0 = Math.max(0, Math.min((z0 - 1) / patchSize, patchesZ - 1)), pz1 = Math.min(z1 / patchSize, patchesZ - 1);
+		float[] row = new float[patchSize + 1];
+		for(int px = px0; px <= px1; px++){
+			for(int pz = pz0; pz <= pz1; pz++){
+				int sx0 = px * patchSize, sz0 = pz * patchSize;
+				int sx1 = px == patchesX - 1 ? lastSample : Math.min(sx0 + patchSize, lastSample);
+				int sz1 = pz == patchesZ - 1 ? lastSample : Math.min(sz0 + patchSize, lastSample);
+				if(row.length < sz1 - sz0 + 1){
+					row = new float[sz1 - sz0 + 1];
+				}
+				float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+				for(int x = sx0; x <= sx1; x++){
+					heightfield.getRow(x, sz0, row, 0, sz1 - sz0 + 1);
+					for(int k = 0; k <= sz1 - sz0; k++){
+						min = Math.min(min, row[k]);
+						max = Math.max(max, row[k]);
+					}
+				}
+				patchMin[px * patchesZ + pz] = min;
+				patchMax[px * patchesZ + pz] = max;
+			}
+		}
+		minHeight = heightStats[0];
+		maxHeight = heightStats[2];
+		shading.setHeightRange(minHeight, maxHeight);
+	}
+
+	/**
+	 * One (patchSize+1)^2 grid of cell offsets plus the per instance origin buffer.
+	 */
+	private void createPatchMesh(){
+		int stride = patchSize + 1;
+		FloatBuffer grid = BufferUtils.createFloatBuffer(stride * stride * 2);
+		for(int x = 0; x <= patchSize; x++){
+			for(int z = 0; z <= patchSize; z++){
+				grid.put(x).put(z);
+			}
+		}
+		grid.flip();
+		//same triangulation as the mesh terrain
+		IntBuffer indices = TerrainLod.buildIndices(patchSize, patchSize, 0, 0, 0, 0, 0);
+		indexCount = indices.remaining();
+		instances = BufferUtils.createFloatBuffer(patchesX * patchesZ * 2);
+
+		vaoId = glGenVertexArrays();
+		glBindVertexArray(vaoId);
+
+		gridBufferId = glGenBuffers();
+		glBindBuffer(GL_ARRAY_BUFFER, gridBufferId);
+		glBufferData(GL_ARRAY_BUFFER, grid, GL_STATIC_DRAW);
+		glVertexAttribPointer(0, 2, GL_FLOAT, false, 0, 0);
+		glEnableVertexAttribArray(0);
+
+		instanceBufferId = glGenBuffers();
+		glBindBuffer(GL_ARRAY_BUFFER, instanceBufferId);
+		glBufferData(GL_ARRAY_BUFFER, instances.capacity() * 4, GL_STREAM_DRAW);
+		glVertexAttribPointer(2, 2, GL_FLOAT, false, 0, 0);
+		glEnableVertexAttribArray(2);
+		//one origin per patch instead of per vertex
+		glVertexAttribDivisor(2, 1);
+
+		indexBufferId = glGenBuffers();
+		glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, indexBufferId);
+		glBufferData(GL_ELEMENT_ARRAY_BUFFER, indices, GL_STATIC_DRAW);
+
+		glBindVertexArray(0);
+		glBindBuffer(GL_ARRAY_BUFFER, 0);
+	}
+
+	/**
+	 * Draws the visible patches with the TerrainDisplacement program, the CameraUniformBuffer has to be up to date.
+	 * The program stays in use afterwards.
+	 * @param camera
+	 */
+	public void draw(BasicCamera camera){
+		Frustum frustum = camera.getFrustum();
+		instances.clear();
+		visiblePatchCount = 0;
+		for(int x = 0; x < patchesX; x++){
+			for(int z = 0; z < patchesZ; z++){
+				int p = x * patchesZ + z;
+				int x0 = x * patchSize, z0 = z * patchSize;
+				int x1 = Math.min(x0 + patchSize, lastSample), z1 = Math.min(z0 + patchSize, lastSample);
+				if(!frustum.intersects(x0 * unit, patchMin[p] * unit, z0 * unit, x1 * unit, patchMax[p] * unit, z1 * unit)){
+					continue;
+				}
+				instances.put(x0).put(z0);
+				visiblePatchCount++;
+			}
+		}
+		instances.flip();
+
+		if(shading.bind()){
+			//reloaded program
+			setLastSample();
+		}
+
+		if(visiblePatchCount > 0){
+			glBindBuffer(GL_ARRAY_BUFFER, instanceBufferId);
+			glBufferSubData(GL_ARRAY_BUFFER, 0, instances);
+			glBindBuffer(GL_ARRAY_BUFFER, 0);
+			glBindVertexArray(vaoId);
+			glDrawElementsInstanced(GL_TRIANGLES, indexCount, GL_UNSIGNED_INT, 0, visiblePatchCount);
+			glBindVertexArray(0);
+		}
+	}
+
+	/**
+	 * @return estimated GPU memory of the patch mesh, instance buffer and textures
+	 */
+	public long getGpuBytes(){
+		long grid = (long) (patchSize + 1) * (patchSize + 1) * 2 * 4;
+		return grid + (long) indexCount * 4 + (long) instances.capacity() * 4 + shading.getGpuBytes();
+	}
+
+	/**
+	 * OpenGL Cleanup
+	 */
+	public void dispose(){
+		glDeleteBuffers(gridBufferId);
+		glDeleteBuffers(instanceBufferId);
+		glDeleteBuffers(indexBufferId);
+		glDeleteVertexArrays(vaoId);
+		shading.dispose();
+	}
+
+	/*
+	 * Getters
+	 */
+	public HeightTexture getHeightTexture() {
+		return shading.getHeightTexture();
+	}
+
+	public TerrainShading getShading() {
+		return shading;
+	}
+
+	public int getPatchSize() {
+		return patchSize;
+	}
+
+	public int getVisiblePatchCount() {
+		return visiblePatchCount;
+	}
+
+	/**
+	 * @return triangles submitted on the last draw
+	 */
+	public int getTriangleCount() {
+		return visiblePatchCount * indexCount / 3;
+	}
+
+	public float getMinHeight() {
+		return minHeight;
+	}
+
+	public float getMaxHeight() {
+		return maxHeight;
+	}
+}
@@ -0,0 +1,89 @@
+package kenner.ko.renderable;
+
+import java.nio.FloatBuffer;
+
+import kenner.ko.map.Heightfield;
+
+//lwjgl static imports
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL12.*;
+import static org.lwjgl.opengl.GL13.*;
+import static org.lwjgl.opengl.GL30.*;
+
+/**
+ * A Heightfield uploaded as a single channel GL_R32F texture, 4 bytes per sample.
+ *
+ * Texel (s, t) holds sample (x = t, z = s), so the heightfield buffer is uploaded without
+ * reordering.  Shaders read it with texelFetch(heightmap, ivec2(z, x), 0).
+ * @author kenner
+ */
+public class HeightTexture {
+	private Heightfield heightfield;
+	private int textureId;
+
+	/**
+	 * Uploads the heightfield, needs a current GL context.
+	 * @param heightfield
+	 */
+	public HeightTexture(Heightfield heightfield){
+		this.heightfield = heightfield;
+		int size = heightfield.getSize();
+		textureId = glGenTextures();
+		glBindTexture(GL_TEXTURE_2D, textureId);
+		//rows of floats are always 4 byte aligned, but don't depend on the default
+		glPixelStorei(GL_UNPACK_ALIGNMENT, 4);
+		glTexImage2D(GL_TEXTURE_2D, 0, GL_R32F, size, size, 0, GL_RED, GL_FLOAT, heightfield.getBuffer());
+		//samples are fetched exactly, no filtering or mipmaps
+		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
+		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+		glBindTexture(GL_TEXTURE_2D, 0);
+	}
+
+	/**
+	 * Uploads a rectangle of samples again after the heightfield changed.
+	 * @param x first sample along x
+	 * @param z first sample along z
+	 * @param sizeX samples along x
+	 * @param sizeZ samples along z
+	 */
+	public void update(int x, int z, int sizeX, int sizeZ){
+		int size = heightfield.getSize();
+		FloatBuffer data = heightfield.getBuffer();
+		data.position(heightfield.index(x, z));
+		glBindTexture(GL_TEXTURE_2D, textureId);
+		//skip to the rectangle inside of the full rows
+		glPixelStorei(GL_UNPACK_ROW_LENGTH, size);
+		glTexSubImage2D(GL_TEXTURE_2D, 0, z, x, sizeZ, sizeX, GL_RED, GL_FLOAT, data);
+		glPixelStorei(GL_UNPACK_ROW_LENGTH, 0);
+		glBindTexture(GL_TEXTURE_2D, 0);
+	}
+
+	/**
+	 * Binds the texture to a texture unit.
+	 * @param unit 0 for GL_TEXTURE0 etc.
+	 */
+	public void bind(int unit){
+		glActiveTexture(GL_TEXTURE0 + unit);
+		glBindTexture(GL_TEXTURE_2D, textureId);
+	}
+
+	/**
+	 * OpenGL Cleanup
+	 */
+	public void dispose(){
+		glDeleteTextures(textureId);
+	}
+
+	/*
+	 * Getters
+	 */
+	public int getTextureId() {
+		return textureId;
+	}
+
+	public Heightfield getHeightfield() {
+		return heightfield;
+	}
+}
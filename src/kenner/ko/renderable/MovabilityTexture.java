@@ -0,0 +1,73 @@
+package kenner.ko.renderable;
+
+import java.nio.ByteBuffer;
+
+import org.lwjgl.BufferUtils;
+
+import kenner.ko.map.MapInfo;
+import kenner.ko.map.ServerMap;
+
+//lwjgl static imports
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL12.*;
+import static org.lwjgl.opengl.GL13.*;
+import static org.lwjgl.opengl.GL30.*;
+
+/**
+ * ServerMap.isMovable() of every tile as a single channel GL_R8 texture, 1 byte per tile.
+ * Laid out like HeightTexture, texel (s, t) holds tile (x = t, z = s).
+ * @author kenner
+ */
+public class MovabilityTexture {
+	private int textureId;
+
+	/**
+	 * Uploads the tiles, needs a current GL context.  Maps without tiles count as not movable,
+	 * the same as ServerMap.isMovable().
+	 * @param map
+	 */
+	public MovabilityTexture(ServerMap map){
+		int size = map.getMapSize();
+		MapInfo[][] mapInfo = map.getMapInfo();
+		ByteBuffer data = BufferUtils.createByteBuffer(size * size);
+		for(int x = 0; x < size; x++){
+			for(int z = 0; z < size; z++){
+				boolean movable = mapInfo != null && mapInfo[x][z].getEvent() == 0;
+				data.put(movable ? (byte)0xFF : 0);
+			}
+		}
+		data.flip();
+
+		textureId = glGenTextures();
+		glBindTexture(GL_TEXTURE_2D, textureId);
+		//rows of bytes aren't 4 byte aligned for odd map sizes
+		glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
+		glTexImage2D(GL_TEXTURE_2D, 0, GL_R8, size, size, 0, GL_RED, GL_UNSIGNED_BYTE, data);
+		glPixelStorei(GL_UNPACK_ALIGNMENT, 4);
+		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
+		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+		glBindTexture(GL_TEXTURE_2D, 0);
+	}
+
+	/**
+	 * Binds the texture to a texture unit.
+	 * @param unit 0 for GL_TEXTURE0 etc.
+	 */
+	public void bind(int unit){
+		glActiveTexture(GL_TEXTURE0 + unit);
+		glBindTexture(GL_TEXTURE_2D, textureId);
+	}
+
+	/**
+	 * OpenGL Cleanup
+	 */
+	public void dispose(){
+		glDeleteTextures(textureId);
+	}
+
+	public int getTextureId() {
+		return textureId;
+	}
+}
@@ -1,170 +1,357 @@
 package kenner.ko.renderable;
 
 import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import org.lwjgl.BufferUtils;
-import org.lwjgl.opengl.GL15;
 
+import kenner.ko.map.Heightfield;
 import kenner.ko.map.ServerMap;
 import kenner.ko.util.Logger;
-//lwjgl static imports
-import static org.lwjgl.opengl.GL11.*;
-import static org.lwjgl.opengl.GL15.*;
-import static org.lwjgl.opengl.GL20.*;
-import static org.lwjgl.opengl.GL30.*;
+import kenner.opengl.camera.BasicCamera;
+import kenner.opengl.camera.Frustum;
 
 public class Terrain {
+	public static final String PROGRAM = "ColorSpectrum";
+
 	private ServerMap map;
-	private int vboId;
-	private int vaoId;
-	private int colorBufferId;
-	//private int indexBufferId;
+	//heights, ServerMap.getHeight() is not used after construction
+	private Heightfield heightfield;
+	private List<TerrainChunk> chunks = new ArrayList<TerrainChunk>();
+	//cells per chunk side
+	private int chunkSize;
+	//chunk grid size, chunks are stored x-major
+	private int chunksX, chunksZ;
+	//level of detail, null if disabled
+	private TerrainLod lod;
+	//chunks added so far, the terrain is complete at chunksX * chunksZ
+	private int chunkCount;
 	private int shapeCount;
-	private FloatBuffer vertexBuffer;
-	private FloatBuffer colorBuffer;
-	//private IntBuffer indexBuffer;
 	private int pointCount;
+	private int vertexCount;
+	private int indexCount;
+	//true = one shared vertex per height sample drawn with glDrawElements
+	private boolean indexed;
+	//chunks that passed the frustum test on the last draw
+	private int visibleChunkCount;
+	//triangles submitted on the last draw
+	private int triangleCount;
+	//height/movability textures and color ramp of the ColorSpectrum program, null without a map
+	private TerrainShading shading;
 	private Float maxHeight = 0f, minHeight = 0f, avgHeight = 0f;
+	//rewrites edited vertex rows, created on the first edit
+	private TerrainMeshBuilder editBuilder;
+	private FloatBuffer editBuffer;
 	
 	public Terrain(ServerMap map){
+		this(map, false, 64, 0);
+	}
+	
+	/**
+	 * @param map
+	 * @param indexed if true, builds one vertex per height sample and an element array
+	 * instead of 6 unshared vertices per quad.
+	 * @param chunkSize number of cells per chunk side.
+	 * @param lodThreshold maximum screen space error (pixels) of the level of detail.
+	 * 0 disables level of detail.  Requires indexed.
+	 */
+	public Terrain(ServerMap map, boolean indexed, int chunkSize, float lodThreshold){
+		this(map, map != null ? Heightfield.fromArray(map.getHeight()) : null, indexed, chunkSize, lodThreshold);
+	}
+	
+	/**
+	 * Builds and uploads the whole terrain on the calling thread.
+	 * @param map
+	 * @param heightfield heights of the map, e.g. MappedSmdLoader.getHeightfield()
+	 * @param indexed if true, builds one vertex per height sample and an element array
+	 * instead of 6 unshared vertices per quad.
+	 * @param chunkSize number of cells per chunk side.
+	 * @param lodThreshold maximum screen space error (pixels) of the level of detail.
+	 * 0 disables level of detail.  Requires indexed.
+	 */
+	public Terrain(ServerMap map, Heightfield heightfield, boolean indexed, int chunkSize, float lodThreshold){
 		this.map = map;
-		analyzeHeights();
+		this.heightfield = heightfield;
+		this.indexed = indexed;
+		this.chunkSize = chunkSize;
 		if(map != null){
-			vboId = GL15.glGenBuffers();
-			colorBufferId = GL15.glGenBuffers();
-			
-			loadBuffers();
-			//vertices
-			GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, vboId);
-			GL15.glBufferData(GL15.GL_ARRAY_BUFFER, vertexBuffer, GL15.GL_STATIC_DRAW);
-			//colors
-			GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, colorBufferId);
-			GL15.glBufferData(GL15.GL_ARRAY_BUFFER, colorBuffer, GL15.GL_STATIC_DRAW);
-			
-			//set up the vertex attribute object (vao)
-			vaoId = glGenVertexArrays();
-			glBindVertexArray(vaoId);
-			//bind buffers
-			glBindBuffer(GL_ARRAY_BUFFER, vboId);
-			glVertexAttribPointer(0, 3, GL_FLOAT, false, 0, 0);
-			glBindBuffer(GL_ARRAY_BUFFER, colorBufferId);
-			glVertexAttribPointer(1, 3, GL_FLOAT, false, 0, 0);
-			//enable attributes
-			glEnableVertexAttribArray(0);
-			glEnableVertexAttribArray(1);
-			//unbind current vao
-			glBindVertexArray(0);
-			//glDrawElements(GL_QUADS, quadCount, GL_FLOAT, 0);
+			lod = createLod(map.getMapSize(), indexed, chunkSize, lodThreshold);
+			analyzeHeights();
+			List<TerrainChunk> built = createChunks(map.getMapSize(), chunkSize);
+			//generate on all cores, then upload on the GL thread
+			new TerrainMeshBuilder(heightfield, map.getUnitDistance(), indexed, lod).build(built);
+			createSlots();
+			for(TerrainChunk chunk : built){
+				addChunk(chunk);
+			}
 		}
 	}
 	
 	/**
-	 * Loads vertex and color buffers.
+	 * Creates an empty terrain that is filled by addChunk(), see TerrainLoader.
+	 * @param map
+	 * @param heightfield heights of the map
+	 * @param heightStats {min, avg, max} from analyzeHeights()
+	 * @param indexed the chunks are built with
+	 * @param chunkSize the chunks are built with
+	 * @param lod the chunks are built with, may be null
+	 */
+	public Terrain(ServerMap map, Heightfield heightfield, float[] heightStats, boolean indexed, int chunkSize, TerrainLod lod){
+		this.map = map;
+		this.heightfield = heightfield;
+		this.indexed = indexed;
+		this.chunkSize = chunkSize;
+		this.lod = lod;
+		setHeightStats(heightStats);
+		createSlots();
+	}
+	
+	/**
+	 * Sets up the chunk grid with empty slots and the shading.
 	 */
-	private void loadBuffers(){
-		//map.setUnitDistance(1f);
-		//we need to load to a vertex array to load later
-		//((3 floats) * ((mapSize-1)^2)) * 3(points)
-		shapeCount = (int) Math.pow(map.getMapSize()-2, 2)*2;
-		//pointCount = shapeCount * 3 (points) 
-		pointCount = shapeCount * 3 * 3;
-		float[] vertices = new float[pointCount];
-		//should be same-size arrays, each point has a (x,y,z) and a (r,g,b)
-		float[] colors = new float[pointCount];
+	private void createSlots(){
+		//same cell range as always: (mapSize-2)^2 quads
+		chunksX = chunksZ = chunkBounds(map.getMapSize()-2, chunkSize).length-1;
+		chunks = new ArrayList<TerrainChunk>(Collections.<TerrainChunk>nCopies(chunksX * chunksZ, null));
+		//colors are calculated in the shader from the heights
+		shading = new TerrainShading(PROGRAM, map, heightfield, minHeight, maxHeight);
+	}
+	
+	/**
+	 * Uploads a built chunk and puts it into its slot of the grid, chunks can be added in any order.
+	 * Needs a current GL context.
+	 * @param chunk
+	 */
+	public void addChunk(TerrainChunk chunk){
+		//the remainder is merged into the last chunk, so the first cell gives the slot
+		int x = Math.min(chunk.getCellX() / chunkSize, chunksX-1);
+		int z = Math.min(chunk.getCellZ() / chunkSize, chunksZ-1);
+		chunk.upload();
+		chunks.set(x * chunksZ + z, chunk);
+		shapeCount += (chunk.isIndexed() ? chunk.getIndexCount() : chunk.getVertexCount()) / 3;
+		vertexCount += chunk.getVertexCount();
+		indexCount += chunk.getIndexCount();
+		pointCount = vertexCount * 3;
+		if(++chunkCount == chunks.size()){
+			Logger.info("Terrain chunks: " + chunks.size() + " (" + chunkSize + "x" + chunkSize + " cells)");
+		}
+	}
+	
+	/**
+	 * Empty chunks covering the map, x-major.
+	 * @param mapSize ServerMap.getMapSize()
+	 * @param chunkSize cells per chunk side
+	 */
+	public static List<TerrainChunk> createChunks(int mapSize, int chunkSize){
+		//same cell range as always: (mapSize-2)^2 quads
+		int[] bounds = chunkBounds(mapSize-2, chunkSize);
+		List<TerrainChunk> chunks = new ArrayList<TerrainChunk>();
+		for(int x = 0; x < bounds.length-1; x++){
+			for(int z = 0; z < bounds.length-1; z++){
+				chunks.add(new TerrainChunk(bounds[x], bounds[z], bounds[x+1] - bounds[x], bounds[z+1] - bounds[z]));
+			}
+		}
+		return chunks;
+	}
+	
+	/**
+	 * @return the level of detail for the chunks of a map, null if disabled
+	 */
+	public static TerrainLod createLod(int mapSize, boolean indexed, int chunkSize, float lodThreshold){
+		if(!indexed || lodThreshold <= 0){
+			return null;
+		}
+		int[] bounds = chunkBounds(mapSize-2, chunkSize);
+		int minCells = chunkSize;
+		for(int i = 0; i < bounds.length-1; i++){
+			minCells = Math.min(minCells, bounds[i+1] - bounds[i]);
+		}
+		TerrainLod lod = new TerrainLod(minCells, lodThreshold);
+		Logger.info("Terrain LOD levels: " + lod.getLevelCount() + ", threshold: " + lodThreshold + "px");
+		return lod;
+	}
+	
+	/**
+	 * Splits the cells into chunks.  A remainder smaller than half a chunk is merged into
+	 * the last chunk, so no chunk gets too small for the coarser levels of detail.
+	 * @return chunk borders, from 0 to cells
+	 */
+	public static int[] chunkBounds(int cells, int chunkSize){
+		int count = cells / chunkSize;
+		if(count == 0 || cells % chunkSize >= chunkSize / 2){
+			count++;
+		}
+		int[] bounds = new int[count+1];
+		for(int i = 0; i < count; i++){
+			bounds[i] = i * chunkSize;
+		}
+		bounds[count] = cells;
+		return bounds;
+	}
+	
+	/**
+	 * Draws the terrain with the ColorSpectrum program, the CameraUniformBuffer has to be up to date.
+	 * Chunks outside of the camera frustum are skipped.
+	 * @param camera
+	 */
+	public void draw(BasicCamera camera){
+		if(shading != null){
+			shading.bind();
+		}
+		Frustum frustum = camera.getFrustum();
+		if(lod != null){
+			selectLevels(camera);
+		}
 		
-		int vi = 0, ci = 0;
-		for(float i = 0; i < map.getMapSize()-2; i++){
-			for(float j = 0; j < map.getMapSize()-2; j++){
-				//Mesh will be made of triangles merged into quads
-				
-				float y = map.getHeight()[(int)i][(int)j];
-				//(x,z)
-				float[] v0 = {(i * map.getUnitDistance()), (y * map.getUnitDistance()),(j * map.getUnitDistance())};
-				float[] c0 = getVertexColor(y);
-				//(x,z+1)
-				y = map.getHeight()[(int)i+1][(int)j];
-				float[] v1 = {((i+1) * map.getUnitDistance()), (y * map.getUnitDistance()),(j * map.getUnitDistance())};
-				float[] c1 = getVertexColor(y);
-				//(x+1,z)
-				y = map.getHeight()[(int)i+1][(int)j+1];
-				float[] v2 = {((i+1) * map.getUnitDistance()), (y * map.getUnitDistance()),((j+1) * map.getUnitDistance())};
-				float[] c2 = getVertexColor(y);
-				//(x+1, z+1)
-				y = map.getHeight()[(int)i][(int)j+1];
-				float[] v3 = {(i * map.getUnitDistance()), (y * map.getUnitDistance()),((j+1) * map.getUnitDistance())};
-				float[] c3 = getVertexColor(y);
-
-				//set up vertex buffers
-				//Triangle 1:  v0 + v1 + v2
-				vertices[vi++] = v0[0];
-				vertices[vi++] = v0[1];
-				vertices[vi++] = v0[2];
-				vertices[vi++] = v1[0];
-				vertices[vi++] = v1[1];
-				vertices[vi++] = v1[2];
-				vertices[vi++] = v2[0];
-				vertices[vi++] = v2[1];
-				vertices[vi++] = v2[2];
-				colors[ci++] = c0[0];
-				colors[ci++] = c0[1];
-				colors[ci++] = c0[2];
-				colors[ci++] = c1[0];
-				colors[ci++] = c1[1];
-				colors[ci++] = c1[2];
-				colors[ci++] = c2[0];
-				colors[ci++] = c2[1];
-				colors[ci++] = c2[2];
-				
-				//Triangle 2:  v2 + v3 + v0
-				vertices[vi++] = v2[0];
-				vertices[vi++] = v2[1];
-				vertices[vi++] = v2[2];
-				vertices[vi++] = v3[0];
-				vertices[vi++] = v3[1];
-				vertices[vi++] = v3[2];
-				vertices[vi++] = v0[0];
-				vertices[vi++] = v0[1];
-				vertices[vi++] = v0[2];
-				colors[ci++] = c2[0];
-				colors[ci++] = c2[1];
-				colors[ci++] = c2[2];
-				colors[ci++] = c3[0];
-				colors[ci++] = c3[1];
-				colors[ci++] = c3[2];
-				colors[ci++] = c0[0];
-				colors[ci++] = c0[1];
-				colors[ci++] = c0[2];
-				
+		visibleChunkCount = 0;
+		triangleCount = 0;
+		for(int x = 0; x < chunksX; x++){
+			for(int z = 0; z < chunksZ; z++){
+				TerrainChunk chunk = chunks.get(x * chunksZ + z);
+				//null while the terrain is still loading
+				if(chunk == null || !frustum.intersects(chunk.getMinX(), chunk.getMinY(), chunk.getMinZ(), chunk.getMaxX(), chunk.getMaxY(), chunk.getMaxZ())){
+					continue;
+				}
+				if(lod != null){
+					//shared edges use the coarser level of both chunks
+					int level = chunk.getLevel();
+					TerrainLod.IndexSet set = lod.getIndexSet(chunk.getCellsX(), chunk.getCellsZ(), level,
+							Math.max(level, getLevel(x, z-1, level)),
+							Math.max(level, getLevel(x+1, z, level)),
+							Math.max(level, getLevel(x, z+1, level)),
+							Math.max(level, getLevel(x-1, z, level)));
+					chunk.draw(set);
+					triangleCount += set.getCount() / 3;
+				} else {
+					chunk.draw();
+					triangleCount += (chunk.isIndexed() ? chunk.getIndexCount() : chunk.getVertexCount()) / 3;
+				}
+				visibleChunkCount++;
 			}
 		}
-		vertexBuffer = BufferUtils.createFloatBuffer(vertices.length);
-		vertexBuffer.put(vertices).flip();
-		colorBuffer = BufferUtils.createFloatBuffer(colors.length);
-		colorBuffer.put(colors).flip();
+	}
+	
+	/**
+	 * Picks a level of detail for every chunk, including the culled ones since
+	 * visible neighbours are stitched against them.
+	 */
+	private void selectLevels(BasicCamera camera){
+		//pixels covered by one unit at distance 1
+		float pixelsPerUnit = camera.getHeight() / (2f * (float) Math.tan(camera.getFov() / 2f));
+		float x = camera.getViewPosition().x, y = camera.getViewPosition().y, z = camera.getViewPosition().z;
+		//every frame, no iterator
+		for(int i = 0; i < chunks.size(); i++){
+			TerrainChunk chunk = chunks.get(i);
+			if(chunk == null){
+				continue;
+			}
+			chunk.setLevel(lod.selectLevel(chunk.getLodErrors(), chunk.distance(x, y, z), pixelsPerUnit));
+		}
+	}
+	
+	/**
+	 * @return level of the chunk at (x,z) of the chunk grid, or fallback if it's outside of the map.
+	 */
+	private int getLevel(int x, int z, int fallback){
+		if(x < 0 || z < 0 || x >= chunksX || z >= chunksZ || chunks.get(x * chunksZ + z) == null){
+			return fallback;
+		}
+		return chunks.get(x * chunksZ + z).getLevel();
+	}
+	
+	/**
+	 * Uploads a changed rectangle of heights, e.g. after a HeightEditor stroke.  The chunks touching
+	 * it get the changed vertex rows written with glBufferSubData, a new bounding box and new level
+	 * of detail errors, the height texture gets the rectangle.  Needs a current GL context.
+	 * @param x0 first changed sample along x
+	 * @param z0 first changed sample along z
+	 * @param x1 last changed sample along x, inclusive
+	 * @param z1 last changed sample along z, inclusive
+	 * @param heightStats {min, avg, max} after the change
+	 */
+	public void updateHeights(int x0, int z0, int x1, int z1, float[] heightStats){
+		if(editBuilder == null){
+			editBuilder = new TerrainMeshBuilder(heightfield, map.getUnitDistance(), indexed, lod);
+		}
+		for(TerrainChunk chunk : chunks){
+			//a chunk has the samples of its cells plus the far edge
+			if(chunk == null || x0 > chunk.getCellX() + chunk.getCellsX() || x1 < chunk.getCellX()
+					|| z0 > chunk.getCellZ() + chunk.getCellsZ() || z1 < chunk.getCellZ()){
+				continue;
+			}
+			if(editBuffer == null || editBuffer.capacity() < chunk.getVertexCount() * 3){
+				editBuffer = BufferUtils.createFloatBuffer(chunk.getVertexCount() * 3);
+			}
+			int offset = editBuilder.rebuildRows(chunk, x0, x1, editBuffer);
+			if(offset >= 0){
+				chunk.updateVertices(editBuffer, offset);
+			}
+			editBuilder.updateBounds(chunk);
+			if(lod != null){
+				chunk.setLodErrors(lod.calculateErrors(heightfield, map.getUnitDistance(), chunk));
+			}
+		}
+		int last = heightfield.getSize() - 1;
+		x0 = Math.max(0, x0);
+		z0 = Math.max(0, z0);
+		x1 = Math.min(last, x1);
+		z1 = Math.min(last, z1);
+		shading.getHeightTexture().update(x0, z0, x1 - x0 + 1, z1 - z0 + 1);
+		minHeight = heightStats[0];
+		avgHeight = heightStats[1];
+		maxHeight = heightStats[2];
+		shading.setHeightRange(minHeight, maxHeight);
 	}
 	
 	/**
 	 * Generate stats on terrain heights
 	 */
 	public void analyzeHeights(){
+		setHeightStats(analyzeHeights(heightfield, map.getMapSize()));
+	}
+	
+	/**
+	 * Sets and logs the height stats.
+	 * @param stats {min, avg, max}
+	 */
+	private void setHeightStats(float[] stats){
+		minHeight = stats[0];
+		avgHeight = stats[1];
+		maxHeight = stats[2];
+		Logger.info("Terrain info:");
+		Logger.info("Min. Height: " + minHeight);
+		Logger.info("Avg. Height: " + avgHeight);
+		Logger.info("Max. Height: " + maxHeight);
+	}
+	
+	/**
+	 * Height stats without a Terrain instance (no OpenGL needed).
+	 * @param heightfield terrain heights
+	 * @param mapSize ServerMap.getMapSize()
+	 * @return {min, avg, max}
+	 */
+	public static float[] analyzeHeights(Heightfield heightfield, int mapSize){
+		float max = 0, min = 0;
 		float sum = 0;
 		float count = 0;
-		for(int i = 0; i < map.getMapSize()-1; i++){
-			for(int j = 0; j < map.getMapSize()-1; j++){
-				float y = map.getHeight()[i][j];
+		for(int i = 0; i < mapSize-1; i++){
+			for(int j = 0; j < mapSize-1; j++){
+				float y = heightfield.get(i, j);
 				
 				//on first iteration of loop, initialize max/min heights
 				if(i+j == 0){
-					maxHeight = minHeight = y;
+					max = min = y;
 				}
 				
 				//max height set
-				if(y > maxHeight){
-					maxHeight = y;
+				if(y > max){
+					max = y;
 				}
 				//min height set
-				if(y < minHeight){
-					minHeight = y;
+				if(y < min){
+					min = y;
 				}
 				
 				sum += y;
@@ -173,48 +360,33 @@ public class Terrain {
 		}
 		
 		//calculate average
-		avgHeight = sum / count;
-		Logger.info("Terrain info:");
-		Logger.info("Min. Height: " + minHeight);
-		Logger.info("Avg. Height: " + avgHeight);
-		Logger.info("Max. Height: " + maxHeight);
+		return new float[] {min, sum / count, max};
 	}
 	
 	/**
-	 * Calculates the vertex color
-	 * @param y
-	 * @return
+	 * @return estimated GPU memory of the chunk buffers and textures, shared level of detail index sets not included
 	 */
-	public float[] getVertexColor(float y){
-		//we basically need to create a scale of colors between max and min
-		//where max = red
-		//		half = green
-		//		min = blue
-		
-		//calculate colors
-		//x = where y falls percentage wise on range min to max
-		float x = (y - minHeight) / (maxHeight - minHeight);
-		//quadradic functions to find color percentages
-		float red = Math.abs(1.7143f*x*x-0.7143f*x+0.0143f);
-		float green = Math.abs(-3.4286f*x*x+3.4286f*x-0.0286f);
-		float blue = Math.abs(1.7143f*x*x-2.7143f*x+1.0143f);
-		//range check
-		if(red > 1f) red = 1f;
-		if(green > 1f) green = 1f;
-		if(blue > 1f) blue = 1f;
-		
-		return new float[] {red, green, blue};
+	public long getGpuBytes(){
+		long bytes = (long) vertexCount * 3 * 4 + (long) indexCount * 4;
+		return shading != null ? bytes + shading.getGpuBytes() : bytes;
 	}
-
-	
 	
 	/**
 	 * OpenGL Cleanup
 	 */
 	public void dispose(){
-		glDeleteBuffers(vboId);
-		glDeleteBuffers(colorBufferId);
-		glDeleteVertexArrays(vaoId);
+		for(TerrainChunk chunk : chunks){
+			if(chunk != null){
+				chunk.dispose();
+			}
+		}
+		chunks.clear();
+		if(lod != null){
+			lod.dispose();
+		}
+		if(shading != null){
+			shading.dispose();
+		}
 	}
 
 	/*
@@ -228,12 +400,49 @@ public class Terrain {
 		this.map = map;
 	}
 
-	public int getVaoId() {
-		return vaoId;
+	public Heightfield getHeightfield() {
+		return heightfield;
+	}
+	
+	/**
+	 * @return chunks x-major, slots are null until the chunk is added
+	 */
+	public List<TerrainChunk> getChunks() {
+		return chunks;
+	}
+
+	/**
+	 * @return chunks added so far
+	 */
+	public int getChunkCount() {
+		return chunkCount;
+	}
+
+	/**
+	 * @return true once every chunk was added
+	 */
+	public boolean isComplete() {
+		return chunkCount == chunks.size();
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	public int getVisibleChunkCount() {
+		return visibleChunkCount;
+	}
+
+	public int getTriangleCount() {
+		return triangleCount;
 	}
 
-	public void setVaoId(int vaoId) {
-		this.vaoId = vaoId;
+	public TerrainLod getLod() {
+		return lod;
+	}
+
+	public TerrainShading getShading() {
+		return shading;
 	}
 
 	public int getShapeCount() {
@@ -252,6 +461,18 @@ public class Terrain {
 		this.pointCount = pointCount;
 	}
 
+	public int getVertexCount() {
+		return vertexCount;
+	}
+
+	public int getIndexCount() {
+		return indexCount;
+	}
+
+	public boolean isIndexed() {
+		return indexed;
+	}
+
 	public Float getMaxHeight() {
 		return maxHeight;
 	}
@@ -0,0 +1,246 @@
+package kenner.ko.renderable;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+//lwjgl static imports
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL30.*;
+
+/**
+ * A fixed-size square of terrain cells with its own buffers and bounding box.
+ * Cells are addressed the same way as ServerMap.getHeight()[x][z].
+ * @author kenner
+ */
+public class TerrainChunk {
+	//first cell covered by this chunk
+	private int cellX, cellZ;
+	//number of cells covered, edge chunks may be smaller than the chunk size
+	private int cellsX, cellsZ;
+	
+	private int vaoId;
+	private int vboId;
+	private int indexBufferId;
+	private int vertexCount;
+	private int indexCount;
+	private boolean indexed;
+	
+	//axis aligned bounding box (world units)
+	private float minX, minY, minZ, maxX, maxY, maxZ;
+	
+	//CPU side mesh data, released after upload
+	private FloatBuffer vertexData;
+	private IntBuffer indexData;
+	
+	//level of detail, only used when the terrain has a TerrainLod
+	private float[] lodErrors;
+	private int level;
+	
+	public TerrainChunk(int cellX, int cellZ, int cellsX, int cellsZ){
+		this.cellX = cellX;
+		this.cellZ = cellZ;
+		this.cellsX = cellsX;
+		this.cellsZ = cellsZ;
+	}
+	
+	/**
+	 * Sets the CPU side mesh data, see TerrainMeshBuilder.
+	 * @param vertexData
+	 * @param indexData null to draw with glDrawArrays (or shared level of detail index sets)
+	 */
+	public void setMeshData(FloatBuffer vertexData, IntBuffer indexData){
+		this.vertexData = vertexData;
+		this.indexData = indexData;
+	}
+	
+	/**
+	 * Uploads the mesh data set by setMeshData() and releases it.
+	 */
+	public void upload(){
+		upload(vertexData, indexData);
+		vertexData = null;
+		indexData = null;
+	}
+	
+	/**
+	 * Uploads the chunk's buffers and sets up its vao.
+	 * Colors are calculated by the shader, the only attribute is the position.
+	 * @param vertexBuffer
+	 * @param indexBuffer null to draw with glDrawArrays
+	 */
+	public void upload(FloatBuffer vertexBuffer, IntBuffer indexBuffer){
+		indexed = indexBuffer != null;
+		vertexCount = vertexBuffer.remaining() / 3;
+		
+		vboId = glGenBuffers();
+		glBindBuffer(GL_ARRAY_BUFFER, vboId);
+		glBufferData(GL_ARRAY_BUFFER, vertexBuffer, GL_STATIC_DRAW);
+		
+		vaoId = glGenVertexArrays();
+		glBindVertexArray(vaoId);
+		glBindBuffer(GL_ARRAY_BUFFER, vboId);
+		glVertexAttribPointer(0, 3, GL_FLOAT, false, 0, 0);
+		glEnableVertexAttribArray(0);
+		//element array binding is part of the vao state, so it has to be bound while the vao is
+		if(indexed){
+			indexCount = indexBuffer.remaining();
+			indexBufferId = glGenBuffers();
+			glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, indexBufferId);
+			glBufferData(GL_ELEMENT_ARRAY_BUFFER, indexBuffer, GL_STATIC_DRAW);
+		}
+		glBindVertexArray(0);
+	}
+	
+	/**
+	 * Overwrites part of the uploaded vertex buffer, e.g. after the heights were edited.
+	 * @param vertexBuffer positions, from its position to its limit
+	 * @param offset first float overwritten
+	 */
+	public void updateVertices(FloatBuffer vertexBuffer, int offset){
+		glBindBuffer(GL_ARRAY_BUFFER, vboId);
+		glBufferSubData(GL_ARRAY_BUFFER, offset * 4L, vertexBuffer);
+		glBindBuffer(GL_ARRAY_BUFFER, 0);
+	}
+
+	/**
+	 * Draws the chunk with the currently in-use shader program.
+	 */
+	public void draw(){
+		glBindVertexArray(vaoId);
+		if(indexed){
+			glDrawElements(GL_TRIANGLES, indexCount, GL_UNSIGNED_INT, 0);
+		} else {
+			glDrawArrays(GL_TRIANGLES, 0, vertexCount);
+		}
+		glBindVertexArray(0);
+	}
+	
+	/**
+	 * Draws the chunk with a shared level of detail index set.
+	 * @param indexSet
+	 */
+	public void draw(TerrainLod.IndexSet indexSet){
+		glBindVertexArray(vaoId);
+		glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, indexSet.getBufferId());
+		glDrawElements(GL_TRIANGLES, indexSet.getCount(), GL_UNSIGNED_INT, 0);
+		glBindVertexArray(0);
+	}
+	
+	/**
+	 * Distance from a point to the closest point of the bounding box.
+	 */
+	public float distance(float x, float y, float z){
+		float dx = Math.max(Math.max(minX - x, 0), x - maxX);
+		float dy = Math.max(Math.max(minY - y, 0), y - maxY);
+		float dz = Math.max(Math.max(minZ - z, 0), z - maxZ);
+		return (float) Math.sqrt(dx*dx + dy*dy + dz*dz);
+	}
+	
+	/**
+	 * Sets the bounding box of the chunk.
+	 */
+	public void setBounds(float minX, float minY, float minZ, float maxX, float maxY, float maxZ){
+		this.minX = minX;
+		this.minY = minY;
+		this.minZ = minZ;
+		this.maxX = maxX;
+		this.maxY = maxY;
+		this.maxZ = maxZ;
+	}
+	
+	/**
+	 * OpenGL Cleanup
+	 */
+	public void dispose(){
+		glDeleteBuffers(vboId);
+		if(indexed){
+			glDeleteBuffers(indexBufferId);
+		}
+		glDeleteVertexArrays(vaoId);
+	}
+
+	/*
+	 * Getters
+	 */
+	public int getCellX() {
+		return cellX;
+	}
+
+	public int getCellZ() {
+		return cellZ;
+	}
+
+	public int getCellsX() {
+		return cellsX;
+	}
+
+	public int getCellsZ() {
+		return cellsZ;
+	}
+
+	public int getVaoId() {
+		return vaoId;
+	}
+
+	public int getVertexCount() {
+		return vertexCount;
+	}
+
+	public int getIndexCount() {
+		return indexCount;
+	}
+
+	public boolean isIndexed() {
+		return indexed;
+	}
+
+	public float getMinX() {
+		return minX;
+	}
+
+	public float getMinY() {
+		return minY;
+	}
+
+	public float getMinZ() {
+		return minZ;
+	}
+
+	public float getMaxX() {
+		return maxX;
+	}
+
+	public float getMaxY() {
+		return maxY;
+	}
+
+	public float getMaxZ() {
+		return maxZ;
+	}
+
+	public FloatBuffer getVertexData() {
+		return vertexData;
+	}
+
+	public IntBuffer getIndexData() {
+		return indexData;
+	}
+
+	public float[] getLodErrors() {
+		return lodErrors;
+	}
+
+	public void setLodErrors(float[] lodErrors) {
+		this.lodErrors = lodErrors;
+	}
+
+	public int getLevel() {
+		return level;
+	}
+
+	public void setLevel(int level) {
+		this.level = level;
+	}
+}
@@ -0,0 +1,380 @@
+package kenner.ko.renderable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import kenner.ko.map.Heightfield;
+import kenner.ko.map.MappedSmdLoader;
+import kenner.ko.map.ServerMap;
+import kenner.ko.util.Logger;
+
+/**
+ * Loads a map file and builds its terrain mesh on a worker thread, so the window keeps rendering.
+ *
+ * The worker parses the map, calculates the height stats and then builds the chunks in small
+ * parallel batches (or reads them from the TerrainMeshCache).  Built chunks go through a bounded
+ * queue, the render thread takes a few per frame with upload() and the terrain fills in as they
+ * arrive.  The queue blocks the worker if the render thread falls behind, so at most queueSize
+ * built chunks wait on the heap.
+ *
+ * Nothing up to upload() touches OpenGL.
+ * @author kenner
+ */
+public class TerrainLoader implements Runnable {
+	/**
+	 * Loading stages, in order.
+	 */
+	public enum State {
+		QUEUED,
+		LOADING_MAP,
+		BUILDING_MESH,
+		DONE,
+		FAILED
+	}
+
+	private File file;
+	//false = only the map and height stats, e.g. for DisplacedTerrain
+	private boolean buildMesh;
+	private boolean indexed;
+	private int chunkSize;
+	private float lodThreshold;
+	//may be null
+	private TerrainMeshCache cache;
+	private int queueSize;
+	//cache key of the map file, kept for reload()
+	private TerrainMeshCache.Key key;
+
+	private ExecutorService executor;
+	private BlockingQueue<TerrainChunk> queue;
+	private volatile State state = State.QUEUED;
+	private volatile Exception failure;
+	private long startTime;
+
+	//published by the worker once the map is loaded, read after isMapLoaded() returns true
+	private volatile boolean mapLoaded;
+	private ServerMap map;
+	private MappedSmdLoader mapLoader;
+	private Heightfield heightfield;
+	private float[] heightStats;
+	private TerrainLod lod;
+	private int totalChunks;
+	private AtomicInteger builtChunks = new AtomicInteger();
+	//render thread only
+	private int uploadedChunks;
+
+	/**
+	 * @param file .smd or .xml map
+	 * @param buildMesh false to only load the map and its height stats
+	 * @param indexed see Terrain
+	 * @param chunkSize see Terrain
+	 * @param lodThreshold see Terrain
+	 * @param cache mesh cache, may be null
+	 * @param queueSize built chunks that may wait for the render thread
+	 */
+	public TerrainLoader(File file, boolean buildMesh, boolean indexed, int chunkSize, float lodThreshold,
+			TerrainMeshCache cache, int queueSize){
+		this.file = file;
+		this.buildMesh = buildMesh;
+		this.indexed = indexed;
+		this.chunkSize = chunkSize;
+		this.lodThreshold = lodThreshold;
+		this.cache = cache;
+		this.queueSize = queueSize;
+		this.queue = new ArrayBlockingQueue<TerrainChunk>(Math.max(1, queueSize));
+	}
+
+	/**
+	 * A loader that builds the terrain again from the map already in memory, e.g. after its GPU
+	 * buffers were evicted.  With a mesh cache hit this only maps the cache file.
+	 * @return a new loader, not started
+	 */
+	public TerrainLoader reload(){
+		TerrainLoader loader = new TerrainLoader(file, buildMesh, indexed, chunkSize, lodThreshold, cache, queueSize);
+		loader.map = map;
+		loader.mapLoader = mapLoader;
+		loader.heightfield = heightfield;
+		loader.heightStats = heightStats;
+		loader.key = key;
+		return loader;
+	}
+
+	/**
+	 * A loader that builds the terrain again from edited heights in memory.  The mesh cache
+	 * holds the mesh of the file, so it's neither read nor written.
+	 * @param heightStats {min, avg, max} of the edited heights
+	 * @return a new loader, not started
+	 */
+	public TerrainLoader reload(float[] heightStats){
+		TerrainLoader loader = reload();
+		loader.cache = null;
+		loader.heightStats = heightStats;
+		return loader;
+	}
+
+	/**
+	 * Starts loading on a daemon worker thread.
+	 */
+	public void start(){
+		startTime = System.nanoTime();
+		executor = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "TerrainLoader " + file.getName());
+			t.setDaemon(true);
+			return t;
+		});
+		executor.execute(this);
+	}
+
+	/**
+	 * Worker side.  Can run on the calling thread as well if queueSize covers all chunks,
+	 * otherwise another thread has to poll() the queue.
+	 */
+	@Override
+	public void run(){
+		TerrainMeshCache.Writer writer = null;
+		try {
+			state = State.LOADING_MAP;
+			//already set by reload()
+			if(map == null){
+				map = loadMap(file);
+				heightfield = mapLoader != null ? mapLoader.getHeightfield() : Heightfield.fromArray(map.getHeight());
+			}
+			List<TerrainChunk> chunks = null;
+			TerrainMeshCache.Entry cached = null;
+			if(buildMesh){
+				lod = Terrain.createLod(map.getMapSize(), indexed, chunkSize, lodThreshold);
+				if(cache != null){
+					try {
+						if(key == null){
+							key = new TerrainMeshCache.Key(file, indexed, chunkSize, lodThreshold, map.getUnitDistance());
+						}
+						cached = cache.load(key);
+					} catch (IOException e) {
+						Logger.error("Failed to read " + file.getName() + " for the terrain mesh cache: " + e.getMessage());
+					}
+				}
+				chunks = cached != null ? cached.getChunks() : Terrain.createChunks(map.getMapSize(), chunkSize);
+				totalChunks = chunks.size();
+			}
+			if(cached != null){
+				heightStats = cached.getHeightStats();
+			} else if(heightStats == null){
+				heightStats = Terrain.analyzeHeights(heightfield, map.getMapSize());
+			}
+			mapLoaded = true;
+			Logger.info(String.format("Map %s loaded in %.1f ms", file.getName(), (System.nanoTime() - startTime) / 1e6));
+			if(!buildMesh){
+				state = State.DONE;
+				return;
+			}
+
+			state = State.BUILDING_MESH;
+			if(cached != null){
+				for(TerrainChunk chunk : chunks){
+					put(chunk);
+				}
+			} else {
+				if(key != null && cache != null){
+					writer = cache.begin(key, heightStats, chunks.size());
+				}
+				TerrainMeshBuilder builder = new TerrainMeshBuilder(heightfield, map.getUnitDistance(), indexed, lod);
+				//small batches keep every core busy while the first chunks are already uploaded
+				int batch = Runtime.getRuntime().availableProcessors();
+				for(int i = 0; i < chunks.size(); i += batch){
+					List<TerrainChunk> built = chunks.subList(i, Math.min(i + batch, chunks.size()));
+					builder.build(built);
+					for(TerrainChunk chunk : built){
+						//written before it is queued, the upload releases the mesh data
+						if(writer != null){
+							writer.write(chunk);
+						}
+						put(chunk);
+					}
+				}
+				if(writer != null){
+					writer.commit();
+					writer = null;
+				}
+			}
+			state = State.DONE;
+			Logger.info(String.format("Terrain mesh of %s ready in %.1f ms", file.getName(), (System.nanoTime() - startTime) / 1e6));
+		} catch (InterruptedException e) {
+			//cancelled by dispose()
+			state = State.FAILED;
+		} catch (Exception e) {
+			failure = e;
+			state = State.FAILED;
+			Logger.error("Failed to load " + file.getName() + ": " + e);
+			e.printStackTrace();
+		} finally {
+			if(writer != null){
+				writer.abort();
+			}
+		}
+	}
+
+	private void put(TerrainChunk chunk) throws InterruptedException {
+		queue.put(chunk);
+		builtChunks.incrementAndGet();
+	}
+
+	/**
+	 * Loads a map, .xml files through ServerMap.loadFromXML() and .smd files memory mapped.
+	 * Collision and event sections of .smd files are parsed on demand through getMapLoader().
+	 */
+	private ServerMap loadMap(File f) throws Exception {
+		if(f.getName().endsWith(".xml")){
+			ServerMap m = new ServerMap();
+			if(!m.loadFromXML(f)){
+				throw new IOException("Failed to load " + f.getName());
+			}
+			return m;
+		}
+		try {
+			mapLoader = new MappedSmdLoader(f);
+			return mapLoader.getMap();
+		} catch (IOException e) {
+			Logger.error("Failed to map " + f.getName() + ", falling back to ServerMap.loadMap(): " + e.getMessage());
+			ServerMap m = new ServerMap();
+			if(!m.loadMap(f)){
+				throw new IOException("Failed to load " + f.getName());
+			}
+			return m;
+		}
+	}
+
+	/**
+	 * Takes the next built chunk without uploading it.
+	 * @return null if no chunk is waiting
+	 */
+	public TerrainChunk poll(){
+		TerrainChunk chunk = queue.poll();
+		if(chunk != null){
+			uploadedChunks++;
+		}
+		return chunk;
+	}
+
+	/**
+	 * Adds up to maxChunks built chunks to the terrain, on the render thread.
+	 * @return chunks added
+	 */
+	public int upload(Terrain terrain, int maxChunks){
+		int count = 0;
+		TerrainChunk chunk;
+		while(count < maxChunks && (chunk = poll()) != null){
+			terrain.addChunk(chunk);
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Stops the worker, e.g. if the window is closed while loading.
+	 */
+	public void dispose(){
+		if(executor != null){
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * @return true once getMap(), getHeightfield(), getHeightStats() and getLod() are set
+	 */
+	public boolean isMapLoaded() {
+		return mapLoaded;
+	}
+
+	/**
+	 * @return true once the worker finished and every chunk was taken
+	 */
+	public boolean isDone() {
+		return state == State.DONE && (!buildMesh || uploadedChunks == totalChunks);
+	}
+
+	public boolean isFailed() {
+		return state == State.FAILED;
+	}
+
+	/**
+	 * @return 0 to 1, the map counts as the first half if the mesh is built
+	 */
+	public float getProgress() {
+		if(!mapLoaded){
+			return 0f;
+		}
+		if(!buildMesh || totalChunks == 0){
+			return state == State.DONE ? 1f : 0.5f;
+		}
+		return 0.5f * (1f + (builtChunks.get() + uploadedChunks) / (2f * totalChunks));
+	}
+
+	/*
+	 * Getters
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	public Exception getFailure() {
+		return failure;
+	}
+
+	public ServerMap getMap() {
+		return map;
+	}
+
+	/**
+	 * @return section index of a .smd file, null for .xml files or if mapping failed
+	 */
+	public MappedSmdLoader getMapLoader() {
+		return mapLoader;
+	}
+
+	public Heightfield getHeightfield() {
+		return heightfield;
+	}
+
+	/**
+	 * @return {min, avg, max}
+	 */
+	public float[] getHeightStats() {
+		return heightStats;
+	}
+
+	public TerrainLod getLod() {
+		return lod;
+	}
+
+	public int getTotalChunks() {
+		return totalChunks;
+	}
+
+	/**
+	 * @return chunks the worker put in the queue so far
+	 */
+	public int getBuiltChunks() {
+		return builtChunks.get();
+	}
+
+	public int getUploadedChunks() {
+		return uploadedChunks;
+	}
+
+	public boolean isIndexed() {
+		return indexed;
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+}
@@ -0,0 +1,305 @@
+package kenner.ko.renderable;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+import org.lwjgl.BufferUtils;
+
+import kenner.ko.map.Heightfield;
+
+//lwjgl static imports
+import static org.lwjgl.opengl.GL15.*;
+
+/**
+ * Geo-mipmapping level of detail for indexed terrain chunks.
+ *
+ * Level n samples every 2^n-th vertex of a chunk.  All chunks of the same size share their
+ * index buffers, so a level switch is only a different element array for the same vertices.
+ * Edges bordering a coarser neighbour are stitched to the neighbour's vertices, which keeps
+ * the mesh free of cracks.
+ * @author kenner
+ */
+public class TerrainLod {
+	//index sets by layout key, created on first use.  Open addressing, a Map<Long, IndexSet> would
+	//box the key on every chunk drawn
+	private long[] setKeys = new long[64];
+	private IndexSet[] sets = new IndexSet[64];
+	private int setCount;
+	//number of levels, level 0 = full resolution
+	private int levelCount;
+	//maximum allowed screen space error in pixels
+	private float threshold;
+
+	/**
+	 * Element array for one chunk layout.
+	 */
+	public static class IndexSet {
+		private int bufferId;
+		private int count;
+
+		public int getBufferId() {
+			return bufferId;
+		}
+
+		public int getCount() {
+			return count;
+		}
+	}
+
+	/**
+	 * @param minChunkCells cells per side of the smallest chunk, limits the coarsest level.
+	 * @param threshold maximum screen space error in pixels.
+	 */
+	public TerrainLod(int minChunkCells, float threshold){
+		this.threshold = threshold;
+		//the coarsest level still needs a vertex between the two chunk borders
+		levelCount = 1;
+		while((1 << levelCount) * 2 <= minChunkCells){
+			levelCount++;
+		}
+	}
+
+	/**
+	 * Picks the coarsest level whose projected geometric error stays below the threshold.
+	 * @param errors geometric error per level (world units)
+	 * @param distance distance between camera and chunk
+	 * @param pixelsPerUnit screen pixels covered by one world unit at distance 1
+	 */
+	public int selectLevel(float[] errors, float distance, float pixelsPerUnit){
+		distance = Math.max(distance, 1f);
+		int level = 0;
+		for(int i = 1; i < levelCount; i++){
+			if(errors[i] * pixelsPerUnit / distance <= threshold){
+				level = i;
+			} else {
+				break;
+			}
+		}
+		return level;
+	}
+
+	/**
+	 * Calculates the maximum height difference between the full resolution chunk and each level.
+	 * @param heightfield terrain heights
+	 * @param unit ServerMap.getUnitDistance()
+	 */
+	public float[] calculateErrors(Heightfield heightfield, float unit, TerrainChunk chunk){
+		float[] errors = new float[levelCount];
+		for(int level = 1; level < levelCount; level++){
+			int[] px = positions(chunk.getCellsX(), 1 << level);
+			int[] pz = positions(chunk.getCellsZ(), 1 << level);
+			float error = 0;
+			for(int a = 0; a < px.length-1; a++){
+				for(int b = 0; b < pz.length-1; b++){
+					int x0 = chunk.getCellX() + px[a], x1 = chunk.getCellX() + px[a+1];
+					int z0 = chunk.getCellZ() + pz[b], z1 = chunk.getCellZ() + pz[b+1];
+					float h00 = heightfield.get(x0, z0), h10 = heightfield.get(x1, z0);
+					float h01 = heightfield.get(x0, z1), h11 = heightfield.get(x1, z1);
+					//compare every skipped sample against the bilinear surface of the coarse cell
+					for(int x = x0; x <= x1; x++){
+						float tx = (float)(x - x0) / (x1 - x0);
+						for(int z = z0; z <= z1; z++){
+							float tz = (float)(z - z0) / (z1 - z0);
+							float approx = (h00 * (1-tx) + h10 * tx) * (1-tz) + (h01 * (1-tx) + h11 * tx) * tz;
+							error = Math.max(error, Math.abs(heightfield.get(x, z) - approx));
+						}
+					}
+				}
+			}
+			//a level can never be more accurate than the finer ones
+			errors[level] = Math.max(error * unit, errors[level-1]);
+		}
+		return errors;
+	}
+
+	/**
+	 * Returns the index set for a chunk layout, generating and uploading it on first use.
+	 * @param cellsX chunk cells along x
+	 * @param cellsZ chunk cells along z
+	 * @param level level of the chunk
+	 * @param north level used on the z = 0 edge
+	 * @param east level used on the x = cellsX edge
+	 * @param south level used on the z = cellsZ edge
+	 * @param west level used on the x = 0 edge
+	 */
+	public IndexSet getIndexSet(int cellsX, int cellsZ, int level, int north, int east, int south, int west){
+		long key = ((long)cellsX << 36) | ((long)cellsZ << 24) | (level << 16) | (north << 12) | (east << 8) | (south << 4) | west;
+		int slot = slot(key);
+		IndexSet set = sets[slot];
+		if(set == null){
+			IntBuffer indices = buildIndices(cellsX, cellsZ, level, north, east, south, west);
+			set = new IndexSet();
+			set.count = indices.remaining();
+			set.bufferId = upload(indices);
+			setKeys[slot] = key;
+			sets[slot] = set;
+			//at most half full
+			if(++setCount * 2 > sets.length){
+				grow();
+			}
+		}
+		return set;
+	}
+
+	/**
+	 * Uploads the indices of a new index set, needs a current GL context.  Overridden to look index
+	 * sets up without one, e.g. by the SmdBenchmark allocation check.
+	 * @return the buffer id
+	 */
+	protected int upload(IntBuffer indices){
+		int bufferId = glGenBuffers();
+		//buffers are typeless, upload through GL_ARRAY_BUFFER so no vao state is touched
+		glBindBuffer(GL_ARRAY_BUFFER, bufferId);
+		glBufferData(GL_ARRAY_BUFFER, indices, GL_STATIC_DRAW);
+		glBindBuffer(GL_ARRAY_BUFFER, 0);
+		return bufferId;
+	}
+
+	/**
+	 * @return slot of the key, or the empty slot it goes into
+	 */
+	private int slot(long key){
+		int mask = sets.length - 1;
+		int h = (int) (key ^ (key >>> 32)) * 0x9E3779B9;
+		int i = (h ^ (h >>> 16)) & mask;
+		while(sets[i] != null && setKeys[i] != key){
+			i = (i + 1) & mask;
+		}
+		return i;
+	}
+
+	private void grow(){
+		long[] oldKeys = setKeys;
+		IndexSet[] oldSets = sets;
+		setKeys = new long[oldSets.length * 2];
+		sets = new IndexSet[oldSets.length * 2];
+		for(int i = 0; i < oldSets.length; i++){
+			if(oldSets[i] != null){
+				int slot = slot(oldKeys[i]);
+				setKeys[slot] = oldKeys[i];
+				sets[slot] = oldSets[i];
+			}
+		}
+	}
+
+	/**
+	 * Builds the triangles for a chunk layout.  Vertex (x, z) of the chunk has index x * (cellsZ+1) + z.
+	 */
+	public static IntBuffer buildIndices(int cellsX, int cellsZ, int level, int north, int east, int south, int west){
+		int stride = cellsZ + 1;
+		int step = 1 << level;
+		int[] px = positions(cellsX, step);
+		int[] pz = positions(cellsZ, step);
+		//upper bound: every quad of the level + 4 stitched edges of at most 2 triangles per position
+		IntBuffer indices = BufferUtils.createIntBuffer((px.length * pz.length * 2 + 8 * Math.max(px.length, pz.length)) * 3);
+
+		if(north == level && east == level && south == level && west == level){
+			//no stitching needed, plain grid
+			for(int a = 0; a < px.length-1; a++){
+				for(int b = 0; b < pz.length-1; b++){
+					quad(indices, stride, px[a], pz[b], px[a+1], pz[b+1]);
+				}
+			}
+		} else {
+			//inner grid, one coarse cell away from each border
+			for(int a = 1; a < px.length-2; a++){
+				for(int b = 1; b < pz.length-2; b++){
+					quad(indices, stride, px[a], pz[b], px[a+1], pz[b+1]);
+				}
+			}
+			int xlo = px[1], xhi = px[px.length-2];
+			int zlo = pz[1], zhi = pz[pz.length-2];
+			int[] innerX = slice(px, 1, px.length-1);
+			int[] innerZ = slice(pz, 1, pz.length-1);
+			//the border ring is made of 4 trapezoids, outer edge at the edge level and inner edge at the chunk level
+			stitch(indices, stride, positions(cellsX, 1 << north), innerX, 0, zlo, true);
+			stitch(indices, stride, positions(cellsX, 1 << south), innerX, cellsZ, zhi, true);
+			stitch(indices, stride, positions(cellsZ, 1 << west), innerZ, 0, xlo, false);
+			stitch(indices, stride, positions(cellsZ, 1 << east), innerZ, cellsX, xhi, false);
+		}
+		indices.flip();
+		return indices;
+	}
+
+	/**
+	 * Sample positions along one chunk side for the given step.  The last sample is always the border.
+	 */
+	public static int[] positions(int cells, int step){
+		int[] p = new int[(cells + step - 1) / step + 1];
+		for(int i = 0; i < p.length-1; i++){
+			p[i] = i * step;
+		}
+		p[p.length-1] = cells;
+		return p;
+	}
+
+	private static int[] slice(int[] a, int from, int to){
+		int[] s = new int[to - from];
+		System.arraycopy(a, from, s, 0, s.length);
+		return s;
+	}
+
+	private static void quad(IntBuffer indices, int stride, int x0, int z0, int x1, int z1){
+		int v0 = x0 * stride + z0;	//(x,z)
+		int v1 = x1 * stride + z0;	//(x+1,z)
+		int v2 = x1 * stride + z1;	//(x+1,z+1)
+		int v3 = x0 * stride + z1;	//(x,z+1)
+		indices.put(v0).put(v1).put(v2);
+		indices.put(v2).put(v3).put(v0);
+	}
+
+	/**
+	 * Triangulates the trapezoid between an outer border line and the inner line parallel to it
+	 * by zipping both rows of vertices together.
+	 * @param outer positions along the border
+	 * @param inner positions along the inner line
+	 * @param outerLine fixed coordinate of the border
+	 * @param innerLine fixed coordinate of the inner line
+	 * @param alongX true if the border runs along x (north/south), false if it runs along z
+	 */
+	private static void stitch(IntBuffer indices, int stride, int[] outer, int[] inner, int outerLine, int innerLine, boolean alongX){
+		int i = 0, j = 0;
+		while(i < outer.length-1 || j < inner.length-1){
+			boolean advanceOuter = j == inner.length-1 || (i < outer.length-1 && outer[i+1] <= inner[j+1]);
+			if(advanceOuter){
+				indices.put(index(stride, outer[i], outerLine, alongX));
+				indices.put(index(stride, outer[i+1], outerLine, alongX));
+				indices.put(index(stride, inner[j], innerLine, alongX));
+				i++;
+			} else {
+				indices.put(index(stride, outer[i], outerLine, alongX));
+				indices.put(index(stride, inner[j+1], innerLine, alongX));
+				indices.put(index(stride, inner[j], innerLine, alongX));
+				j++;
+			}
+		}
+	}
+
+	private static int index(int stride, int position, int line, boolean alongX){
+		return alongX ? position * stride + line : line * stride + position;
+	}
+
+	/**
+	 * OpenGL Cleanup
+	 */
+	public void dispose(){
+		for(IndexSet set : sets){
+			if(set != null){
+				glDeleteBuffers(set.bufferId);
+			}
+		}
+		Arrays.fill(sets, null);
+		setCount = 0;
+	}
+
+	/*
+	 * Getters
+	 */
+	public int getLevelCount() {
+		return levelCount;
+	}
+
+	public float getThreshold() {
+		return threshold;
+	}
+}
@@ -0,0 +1,268 @@
+package kenner.ko.renderable;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.lwjgl.BufferUtils;
+
+import kenner.ko.map.Heightfield;
+
+/**
+ * Generates the vertex and index data of terrain chunks on the CPU.  Colors are calculated by the shader.
+ *
+ * Chunks are split across a ForkJoinPool and every chunk writes its rows straight into its own
+ * direct buffers, so there are no per-vertex allocations and no full size float[] copy.
+ * Does not touch OpenGL, the buffers are uploaded later by TerrainChunk.upload().
+ * @author kenner
+ */
+public class TerrainMeshBuilder {
+	private Heightfield heightfield;
+	private float unit;
+	private boolean indexed;
+	//null if level of detail is disabled
+	private TerrainLod lod;
+	private ForkJoinPool pool;
+
+	/**
+	 * @param heightfield terrain heights
+	 * @param unit ServerMap.getUnitDistance()
+	 * @param indexed one shared vertex per sample + index buffer, or 6 unshared vertices per quad
+	 * @param lod level of detail, chunks get their errors calculated instead of an index buffer.  May be null.
+	 */
+	public TerrainMeshBuilder(Heightfield heightfield, float unit, boolean indexed, TerrainLod lod){
+		this.heightfield = heightfield;
+		this.unit = unit;
+		this.indexed = indexed;
+		this.lod = lod;
+		this.pool = ForkJoinPool.commonPool();
+	}
+
+	/**
+	 * Fills the CPU side data of every chunk, in parallel.
+	 * @param chunks
+	 */
+	public void build(List<TerrainChunk> chunks){
+		pool.invoke(new ChunkTask(chunks, 0, chunks.size()));
+	}
+
+	/**
+	 * Splits a range of chunks until a single chunk is left.
+	 */
+	private class ChunkTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private List<TerrainChunk> chunks;
+		private int from, to;
+
+		ChunkTask(List<TerrainChunk> chunks, int from, int to){
+			this.chunks = chunks;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute(){
+			if(to - from <= 1){
+				for(int i = from; i < to; i++){
+					build(chunks.get(i));
+				}
+			} else {
+				int middle = (from + to) >>> 1;
+				invokeAll(new ChunkTask(chunks, from, middle), new ChunkTask(chunks, middle, to));
+			}
+		}
+	}
+
+	/**
+	 * Fills the CPU side data of a single chunk.
+	 * @param chunk
+	 */
+	public void build(TerrainChunk chunk){
+		if(indexed){
+			buildIndexed(chunk);
+		} else {
+			buildUnindexed(chunk);
+		}
+	}
+
+	/**
+	 * 6 vertices per quad, same layout as the original glDrawArrays terrain.
+	 */
+	private void buildUnindexed(TerrainChunk chunk){
+		int floats = chunk.getCellsX() * chunk.getCellsZ() * 2 * 3 * 3;
+		FloatBuffer vertices = BufferUtils.createFloatBuffer(floats);
+		//one row is assembled on the heap and bulk copied, direct buffer puts are bounds checked per float
+		float[] vertexRow = new float[chunk.getCellsZ() * 2 * 3 * 3];
+		//height samples of the current and the next row, index 0 = chunk.getCellZ()
+		float[] row = new float[chunk.getCellsZ() + 1];
+		float[] nextRow = new float[row.length];
+		float minY = Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+
+		heightfield.getRow(chunk.getCellX(), chunk.getCellZ(), nextRow, 0, nextRow.length);
+		for(int i = chunk.getCellX(); i < chunk.getCellX() + chunk.getCellsX(); i++){
+			float[] swap = row;
+			row = nextRow;
+			nextRow = swap;
+			heightfield.getRow(i+1, chunk.getCellZ(), nextRow, 0, nextRow.length);
+			for(int k = 0; k <= chunk.getCellsZ(); k++){
+				minY = Math.min(minY, Math.min(row[k], nextRow[k]));
+				maxY = Math.max(maxY, Math.max(row[k], nextRow[k]));
+			}
+			vertices.put(vertexRow, 0, putCellRow(vertexRow, i, chunk.getCellZ(), chunk.getCellsZ(), row, nextRow));
+		}
+		vertices.flip();
+		chunk.setMeshData(vertices, null);
+		setBounds(chunk, minY, maxY);
+	}
+
+	/**
+	 * One vertex per height sample.
+	 */
+	private void buildIndexed(TerrainChunk chunk){
+		int sizeX = chunk.getCellsX() + 1;
+		int sizeZ = chunk.getCellsZ() + 1;
+		FloatBuffer vertices = BufferUtils.createFloatBuffer(sizeX * sizeZ * 3);
+		float[] vertexRow = new float[sizeZ * 3];
+		float[] row = new float[sizeZ];
+		float minY = Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+
+		for(int i = chunk.getCellX(); i < chunk.getCellX() + sizeX; i++){
+			heightfield.getRow(i, chunk.getCellZ(), row, 0, sizeZ);
+			for(int k = 0; k < sizeZ; k++){
+				minY = Math.min(minY, row[k]);
+				maxY = Math.max(maxY, row[k]);
+			}
+			vertices.put(vertexRow, 0, putSampleRow(vertexRow, i, chunk.getCellZ(), row, sizeZ));
+		}
+		vertices.flip();
+
+		if(lod != null){
+			//level of detail index sets are shared between chunks
+			chunk.setMeshData(vertices, null);
+			chunk.setLodErrors(lod.calculateErrors(heightfield, unit, chunk));
+		} else {
+			//level 0 without stitching is the plain full resolution grid
+			IntBuffer indices = TerrainLod.buildIndices(chunk.getCellsX(), chunk.getCellsZ(), 0, 0, 0, 0, 0);
+			chunk.setMeshData(vertices, indices);
+		}
+		setBounds(chunk, minY, maxY);
+	}
+
+	/**
+	 * Writes the vertices of a built chunk again for the samples x0..x1 that changed, e.g. after an
+	 * edit.  Whole rows are written, so they are one contiguous range of the chunk's vertex buffer.
+	 * @param chunk
+	 * @param x0 first changed sample along x
+	 * @param x1 last changed sample along x
+	 * @param dest receives the rows, flipped.  Cleared first, needs room for the whole chunk.
+	 * @return offset of the first row in the vertex buffer (floats), -1 if no vertex of the chunk changed
+	 */
+	public int rebuildRows(TerrainChunk chunk, int x0, int x1, FloatBuffer dest){
+		dest.clear();
+		int first, last, offset;
+		if(indexed){
+			//one row per sample
+			int sizeZ = chunk.getCellsZ() + 1;
+			first = Math.max(x0, chunk.getCellX());
+			last = Math.min(x1, chunk.getCellX() + chunk.getCellsX());
+			float[] vertexRow = new float[sizeZ * 3];
+			float[] row = new float[sizeZ];
+			for(int i = first; i <= last; i++){
+				heightfield.getRow(i, chunk.getCellZ(), row, 0, sizeZ);
+				dest.put(vertexRow, 0, putSampleRow(vertexRow, i, chunk.getCellZ(), row, sizeZ));
+			}
+			offset = (first - chunk.getCellX()) * sizeZ * 3;
+		} else {
+			//one row per cell, a sample is a corner of the cells before it as well
+			int sizeZ = chunk.getCellsZ() + 1;
+			first = Math.max(x0 - 1, chunk.getCellX());
+			last = Math.min(x1, chunk.getCellX() + chunk.getCellsX() - 1);
+			float[] vertexRow = new float[chunk.getCellsZ() * 2 * 3 * 3];
+			float[] row = new float[sizeZ];
+			float[] nextRow = new float[sizeZ];
+			for(int i = first; i <= last; i++){
+				heightfield.getRow(i, chunk.getCellZ(), row, 0, sizeZ);
+				heightfield.getRow(i+1, chunk.getCellZ(), nextRow, 0, sizeZ);
+				dest.put(vertexRow, 0, putCellRow(vertexRow, i, chunk.getCellZ(), chunk.getCellsZ(), row, nextRow));
+			}
+			offset = (first - chunk.getCellX()) * vertexRow.length;
+		}
+		dest.flip();
+		return first <= last ? offset : -1;
+	}
+
+	/**
+	 * Sets the bounding box of a chunk from the current heights, e.g. after an edit.
+	 * @param chunk
+	 */
+	public void updateBounds(TerrainChunk chunk){
+		float[] row = new float[chunk.getCellsZ() + 1];
+		float minY = Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+		for(int i = chunk.getCellX(); i <= chunk.getCellX() + chunk.getCellsX(); i++){
+			heightfield.getRow(i, chunk.getCellZ(), row, 0, row.length);
+			for(float y : row){
+				minY = Math.min(minY, y);
+				maxY = Math.max(maxY, y);
+			}
+		}
+		setBounds(chunk, minY, maxY);
+	}
+
+	/**
+	 * Writes one vertex per sample of row i.
+	 * @param row heights of the row, index 0 = z
+	 * @return floats written
+	 */
+	private int putSampleRow(float[] vertexRow, int i, int z, float[] row, int count){
+		int n = 0;
+		for(int k = 0; k < count; k++){
+			n = putVertex(vertexRow, n, i, row[k], z + k);
+		}
+		return n;
+	}
+
+	/**
+	 * Writes the 2 triangles of every cell of row i.
+	 * @param row heights of row i, index 0 = z
+	 * @param nextRow heights of row i+1
+	 * @return floats written
+	 */
+	private int putCellRow(float[] vertexRow, int i, int z, int cells, float[] row, float[] nextRow){
+		int n = 0;
+		for(int k = 0; k < cells; k++){
+			int j = z + k;
+			float y0 = row[k];			//(x,z)
+			float y1 = nextRow[k];		//(x+1,z)
+			float y2 = nextRow[k+1];	//(x+1,z+1)
+			float y3 = row[k+1];		//(x,z+1)
+
+			//Triangle 1:  v0 + v1 + v2
+			n = putVertex(vertexRow, n, i, y0, j);
+			n = putVertex(vertexRow, n, i+1, y1, j);
+			n = putVertex(vertexRow, n, i+1, y2, j+1);
+			//Triangle 2:  v2 + v3 + v0
+			n = putVertex(vertexRow, n, i+1, y2, j+1);
+			n = putVertex(vertexRow, n, i, y3, j+1);
+			n = putVertex(vertexRow, n, i, y0, j);
+		}
+		return n;
+	}
+
+	/**
+	 * Writes the position of a vertex at index n of the row array.
+	 * @return index of the next vertex
+	 */
+	private int putVertex(float[] vertexRow, int n, int x, float y, int z){
+		vertexRow[n] = x * unit;
+		vertexRow[n+1] = y * unit;
+		vertexRow[n+2] = z * unit;
+		return n + 3;
+	}
+
+	private void setBounds(TerrainChunk chunk, float minY, float maxY){
+		chunk.setBounds(chunk.getCellX() * unit, minY * unit, chunk.getCellZ() * unit,
+				(chunk.getCellX() + chunk.getCellsX()) * unit, maxY * unit, (chunk.getCellZ() + chunk.getCellsZ()) * unit);
+	}
+}
@@ -0,0 +1,446 @@
+package kenner.ko.renderable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import kenner.ko.util.Logger;
+
+/**
+ * On-disk cache of generated terrain meshes, so a map that was viewed before doesn't have to be
+ * built again.
+ *
+ * A cache file is keyed by the path, size, modification time and CRC32 of the map file plus the
+ * terrain settings that change the mesh.  It holds the analyzeHeights() stats and, per chunk, the
+ * bounds, vertex data, index data and level of detail errors.  Everything is little endian and 4
+ * byte aligned, so a hit maps the file and hands views of it to glBufferData without copying.
+ *
+ * The directory is capped at maxBytes, least recently used files (by modification time, which is
+ * touched on every hit) are deleted first.
+ * @author kenner
+ */
+public class TerrainMeshCache {
+	private static final int MAGIC = 0x434D544B; //"KTMC"
+	private static final int VERSION = 1;
+	private static final String EXTENSION = ".mesh";
+	//bytes of the map file per read for the key's CRC
+	private static final int CHECKSUM_BLOCK = 1 << 20;
+
+	private File directory;
+	private long maxBytes;
+
+	/**
+	 * @param directory created if it doesn't exist
+	 * @param maxBytes size cap of all cache files together
+	 */
+	public TerrainMeshCache(File directory, long maxBytes){
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Source map file and terrain settings a mesh was built from.
+	 */
+	public static class Key {
+		private String path;
+		private long size;
+		private long lastModified;
+		private int crc;
+		private boolean indexed;
+		private int chunkSize;
+		private float lodThreshold;
+		private float unit;
+
+		/**
+		 * Reads the map file to calculate its CRC32.
+		 * @throws IOException
+		 */
+		public Key(File source, boolean indexed, int chunkSize, float lodThreshold, float unit) throws IOException {
+			this.path = source.getCanonicalPath();
+			this.size = source.length();
+			this.lastModified = source.lastModified();
+			this.crc = checksum(source);
+			this.indexed = indexed;
+			this.chunkSize = chunkSize;
+			this.lodThreshold = lodThreshold;
+			this.unit = unit;
+		}
+
+		private Key(){
+		}
+
+		/**
+		 * @return cache file name, readable map name plus a hash of the whole key
+		 */
+		String getFileName(){
+			long hash = path.hashCode();
+			hash = hash * 31 + Long.hashCode(size);
+			hash = hash * 31 + Long.hashCode(lastModified);
+			hash = hash * 31 + crc;
+			hash = hash * 31 + (indexed ? 1 : 0);
+			hash = hash * 31 + chunkSize;
+			hash = hash * 31 + Float.floatToIntBits(lodThreshold);
+			hash = hash * 31 + Float.floatToIntBits(unit);
+			String name = new File(path).getName().replaceAll("[^A-Za-z0-9_.-]", "_");
+			return name + "-" + Long.toHexString(hash) + EXTENSION;
+		}
+
+		@Override
+		public boolean equals(Object o){
+			if(!(o instanceof Key)){
+				return false;
+			}
+			Key k = (Key) o;
+			return path.equals(k.path) && size == k.size && lastModified == k.lastModified && crc == k.crc
+					&& indexed == k.indexed && chunkSize == k.chunkSize
+					&& Float.compare(lodThreshold, k.lodThreshold) == 0 && Float.compare(unit, k.unit) == 0;
+		}
+
+		@Override
+		public int hashCode(){
+			return getFileName().hashCode();
+		}
+	}
+
+	/**
+	 * A cached mesh, the chunk buffers are views of the mapped cache file.
+	 */
+	public static class Entry {
+		private float minHeight, avgHeight, maxHeight;
+		private List<TerrainChunk> chunks;
+
+		/**
+		 * @return {min, avg, max}, same as Terrain.analyzeHeights()
+		 */
+		public float[] getHeightStats() {
+			return new float[] {minHeight, avgHeight, maxHeight};
+		}
+
+		/**
+		 * @return chunks with their bounds, mesh data and level of detail errors set, not uploaded yet
+		 */
+		public List<TerrainChunk> getChunks() {
+			return chunks;
+		}
+	}
+
+	/**
+	 * Maps the cache file of a key.
+	 * @return the cached mesh, null on a miss
+	 */
+	public Entry load(Key key){
+		long start = System.nanoTime();
+		File file = new File(directory, key.getFileName());
+		if(!file.isFile()){
+			Logger.info("Terrain mesh cache miss: " + file.getName());
+			return null;
+		}
+		try(RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()){
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			Entry entry = read(buffer, key);
+			if(entry == null){
+				Logger.info("Terrain mesh cache miss (stale): " + file.getName());
+				return null;
+			}
+			//most recently used
+			file.setLastModified(System.currentTimeMillis());
+			Logger.info(String.format("Terrain mesh cache hit: %s (%d chunks, %d KB) in %.1f ms", file.getName(),
+					entry.chunks.size(), file.length() / 1024, (System.nanoTime() - start) / 1e6));
+			return entry;
+		} catch (IOException | RuntimeException e) {
+			Logger.error("Failed to read terrain mesh cache " + file.getName() + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * @return the entry, or null if the header doesn't match the key
+	 */
+	private Entry read(ByteBuffer buffer, Key key){
+		if(buffer.getInt() != MAGIC || buffer.getInt() != VERSION){
+			return null;
+		}
+		Key stored = readKey(buffer);
+		if(!stored.equals(key)){
+			return null;
+		}
+		Entry entry = new Entry();
+		entry.minHeight = buffer.getFloat();
+		entry.avgHeight = buffer.getFloat();
+		entry.maxHeight = buffer.getFloat();
+		int count = buffer.getInt();
+		entry.chunks = new ArrayList<TerrainChunk>(count);
+		for(int i = 0; i < count; i++){
+			TerrainChunk chunk = new TerrainChunk(buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getInt());
+			chunk.setBounds(buffer.getFloat(), buffer.getFloat(), buffer.getFloat(),
+					buffer.getFloat(), buffer.getFloat(), buffer.getFloat());
+			int vertexFloats = buffer.getInt();
+			int indexCount = buffer.getInt();
+			int errorCount = buffer.getInt();
+			FloatBuffer vertices = slice(buffer, vertexFloats * 4).asFloatBuffer();
+			//-1 = no index buffer
+			IntBuffer indices = indexCount >= 0 ? slice(buffer, indexCount * 4).asIntBuffer() : null;
+			chunk.setMeshData(vertices, indices);
+			if(errorCount >= 0){
+				float[] errors = new float[errorCount];
+				slice(buffer, errorCount * 4).asFloatBuffer().get(errors);
+				chunk.setLodErrors(errors);
+			}
+			entry.chunks.add(chunk);
+		}
+		return entry;
+	}
+
+	/**
+	 * @return the next length bytes as a little endian buffer, advances the position past them
+	 */
+	private static ByteBuffer slice(ByteBuffer buffer, int length){
+		ByteBuffer slice = buffer.slice();
+		slice.limit(length);
+		buffer.position(buffer.position() + length);
+		return slice.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Writes the built chunks to the cache, must be called before they are uploaded.
+	 * Failures are logged, the terrain works without the cache.
+	 * @param key
+	 * @param heightStats {min, avg, max}
+	 * @param chunks
+	 */
+	public void store(Key key, float[] heightStats, List<TerrainChunk> chunks){
+		Writer writer = begin(key, heightStats, chunks.size());
+		if(writer != null){
+			for(TerrainChunk chunk : chunks){
+				writer.write(chunk);
+			}
+			writer.commit();
+		}
+	}
+
+	/**
+	 * Starts writing a cache file chunk by chunk, so chunks can be uploaded while the rest is built.
+	 * @param key
+	 * @param heightStats {min, avg, max}
+	 * @param chunkCount chunks that will be written
+	 * @return the writer, null if the file can't be created
+	 */
+	public Writer begin(Key key, float[] heightStats, int chunkCount){
+		try {
+			return new Writer(key, heightStats, chunkCount);
+		} catch (IOException e) {
+			Logger.error("Failed to write terrain mesh cache " + key.getFileName() + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Writes a cache file to a temp file, which is moved into place by commit().
+	 * Chunks have to be written in the order they are read back, before they are uploaded.
+	 * Failures are logged and abort the file.
+	 */
+	public class Writer {
+		private File file;
+		private File temp;
+		private RandomAccessFile raf;
+		private FileChannel channel;
+		private long start = System.nanoTime();
+
+		private Writer(Key key, float[] heightStats, int chunkCount) throws IOException {
+			file = new File(directory, key.getFileName());
+			temp = new File(directory, file.getName() + ".tmp");
+			Files.createDirectories(directory.toPath());
+			raf = new RandomAccessFile(temp, "rw");
+			channel = raf.getChannel();
+			try {
+				raf.setLength(0);
+				byte[] path = key.path.getBytes(StandardCharsets.UTF_8);
+				ByteBuffer header = ByteBuffer.allocate(64 + align(path.length)).order(ByteOrder.LITTLE_ENDIAN);
+				header.putInt(MAGIC).putInt(VERSION);
+				writeKey(header, key, path);
+				header.putFloat(heightStats[0]).putFloat(heightStats[1]).putFloat(heightStats[2]);
+				header.putInt(chunkCount);
+				header.flip();
+				TerrainMeshCache.write(channel, header);
+			} catch (IOException e) {
+				abort();
+				throw e;
+			}
+		}
+
+		/**
+		 * Appends a built chunk.
+		 */
+		public void write(TerrainChunk chunk){
+			if(channel == null){
+				return;
+			}
+			try {
+				writeChunk(channel, chunk);
+			} catch (IOException e) {
+				Logger.error("Failed to write terrain mesh cache " + file.getName() + ": " + e.getMessage());
+				abort();
+			}
+		}
+
+		/**
+		 * Moves the finished file into place, readers never see a half written file.
+		 */
+		public void commit(){
+			if(channel == null){
+				return;
+			}
+			try {
+				raf.close();
+				channel = null;
+				Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				Logger.info(String.format("Terrain mesh cached: %s (%d KB) in %.1f ms", file.getName(),
+						file.length() / 1024, (System.nanoTime() - start) / 1e6));
+				evict(file);
+			} catch (IOException e) {
+				Logger.error("Failed to write terrain mesh cache " + file.getName() + ": " + e.getMessage());
+				temp.delete();
+			}
+		}
+
+		/**
+		 * Deletes the temp file, e.g. if loading was cancelled.
+		 */
+		public void abort(){
+			try {
+				raf.close();
+			} catch (IOException e) {
+				//deleted anyway
+			}
+			channel = null;
+			temp.delete();
+		}
+	}
+
+	private void writeChunk(FileChannel channel, TerrainChunk chunk) throws IOException {
+		FloatBuffer vertices = chunk.getVertexData().duplicate();
+		IntBuffer indices = chunk.getIndexData() != null ? chunk.getIndexData().duplicate() : null;
+		float[] errors = chunk.getLodErrors();
+		ByteBuffer b = ByteBuffer.allocateDirect(4 * (4 + 6 + 3 + vertices.remaining()
+				+ (indices != null ? indices.remaining() : 0) + (errors != null ? errors.length : 0)))
+				.order(ByteOrder.LITTLE_ENDIAN);
+		b.putInt(chunk.getCellX()).putInt(chunk.getCellZ()).putInt(chunk.getCellsX()).putInt(chunk.getCellsZ());
+		b.putFloat(chunk.getMinX()).putFloat(chunk.getMinY()).putFloat(chunk.getMinZ());
+		b.putFloat(chunk.getMaxX()).putFloat(chunk.getMaxY()).putFloat(chunk.getMaxZ());
+		b.putInt(vertices.remaining());
+		b.putInt(indices != null ? indices.remaining() : -1);
+		b.putInt(errors != null ? errors.length : -1);
+		b.asFloatBuffer().put(vertices);
+		b.position(b.position() + chunk.getVertexData().remaining() * 4);
+		if(indices != null){
+			b.asIntBuffer().put(indices);
+			b.position(b.position() + chunk.getIndexData().remaining() * 4);
+		}
+		if(errors != null){
+			b.asFloatBuffer().put(errors);
+			b.position(b.position() + errors.length * 4);
+		}
+		b.flip();
+		write(channel, b);
+	}
+
+	private static void write(FileChannel channel, ByteBuffer b) throws IOException {
+		while(b.hasRemaining()){
+			channel.write(b);
+		}
+	}
+
+	private static void writeKey(ByteBuffer b, Key key, byte[] path){
+		b.putLong(key.size).putLong(key.lastModified).putInt(key.crc);
+		b.putInt(key.indexed ? 1 : 0).putInt(key.chunkSize).putFloat(key.lodThreshold).putFloat(key.unit);
+		b.putInt(path.length);
+		b.put(path);
+		//keep the chunk data 4 byte aligned
+		b.position(b.position() + align(path.length) - path.length);
+	}
+
+	private static Key readKey(ByteBuffer b){
+		Key key = new Key();
+		key.size = b.getLong();
+		key.lastModified = b.getLong();
+		key.crc = b.getInt();
+		key.indexed = b.getInt() != 0;
+		key.chunkSize = b.getInt();
+		key.lodThreshold = b.getFloat();
+		key.unit = b.getFloat();
+		byte[] path = new byte[b.getInt()];
+		b.get(path);
+		b.position(b.position() + align(path.length) - path.length);
+		key.path = new String(path, StandardCharsets.UTF_8);
+		return key;
+	}
+
+	private static int align(int length){
+		return (length + 3) & ~3;
+	}
+
+	/**
+	 * Deletes the least recently used cache files until the directory fits into maxBytes.
+	 * @param keep the file just written, never deleted
+	 */
+	private void evict(File keep){
+		File[] files = directory.listFiles((dir, name) -> name.endsWith(EXTENSION));
+		if(files == null){
+			return;
+		}
+		//newest first
+		Arrays.sort(files, (a, b) -> Long.compare(b.lastModified(), a.lastModified()));
+		long total = 0;
+		for(File f : files){
+			total += f.length();
+			if(total > maxBytes && !f.equals(keep)){
+				Logger.info("Terrain mesh cache evicted: " + f.getName());
+				total -= f.length();
+				f.delete();
+			}
+		}
+	}
+
+	/**
+	 * CRC32 of a whole file, read in blocks of CHECKSUM_BLOCK bytes.  Not mapped: a mapping stays
+	 * until the GC collects it, and Windows can't replace a mapped map file when it's saved.
+	 */
+	static int checksum(File file) throws IOException {
+		CRC32 crc = new CRC32();
+		ByteBuffer block = ByteBuffer.allocateDirect(CHECKSUM_BLOCK);
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)){
+			while(channel.read(block) >= 0){
+				block.flip();
+				crc.update(block);
+				block.clear();
+			}
+		}
+		return (int) crc.getValue();
+	}
+
+	/*
+	 * Getters
+	 */
+	public File getDirectory() {
+		return directory;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+}
@@ -0,0 +1,137 @@
+package kenner.ko.renderable;
+
+import kenner.ko.map.Heightfield;
+import kenner.ko.map.ServerMap;
+import kenner.opengl.shader.ProgramManager;
+
+//lwjgl static imports
+import static org.lwjgl.opengl.GL20.*;
+
+/**
+ * Textures and color ramp uniforms of a terrain shader program (ColorSpectrum or TerrainDisplacement).
+ *
+ * The height and movability textures are bound to fixed texture units, so switching the ramp
+ * only changes the color_ramp uniform and never touches the geometry.  If ProgramManager reloads the
+ * program, bind() switches to the new one and sets the uniforms again.
+ * @author kenner
+ */
+public class TerrainShading {
+	public static final int HEIGHTMAP_UNIT = 0;
+	public static final int MOVABILITY_UNIT = 1;
+
+	private String programName;
+	private int program;
+	//ProgramManager.getVersion() the program was looked up at
+	private int programVersion;
+	private float unitDistance;
+	private float minHeight, maxHeight;
+	private HeightTexture heightTexture;
+	private MovabilityTexture movabilityTexture;
+	private ColorRamp colorRamp = ColorRamp.HEIGHT;
+	private int colorRampLocation;
+	private int minHeightLocation, maxHeightLocation;
+	//the height range changed since it was set on the program
+	private boolean rangeChanged;
+
+	/**
+	 * Uploads the textures and sets the uniforms that don't change, needs a current GL context.
+	 * @param programName ProgramManager name of the shader program
+	 * @param map for the unit distance and the tiles
+	 * @param heightfield
+	 * @param minHeight lowest sample
+	 * @param maxHeight highest sample
+	 */
+	public TerrainShading(String programName, ServerMap map, Heightfield heightfield, float minHeight, float maxHeight){
+		this.programName = programName;
+		this.unitDistance = map.getUnitDistance();
+		this.minHeight = minHeight;
+		this.maxHeight = maxHeight;
+		heightTexture = new HeightTexture(heightfield);
+		movabilityTexture = new MovabilityTexture(map);
+		setupProgram();
+		glUseProgram(0);
+	}
+
+	/**
+	 * Looks the program up and sets the uniforms that don't change, leaves the program current.
+	 */
+	private void setupProgram(){
+		programVersion = ProgramManager.getVersion();
+		program = ProgramManager.getShaderId(programName);
+		colorRampLocation = glGetUniformLocation(program, "color_ramp");
+		minHeightLocation = glGetUniformLocation(program, "min_height");
+		maxHeightLocation = glGetUniformLocation(program, "max_height");
+
+		glUseProgram(program);
+		glUniform1i(glGetUniformLocation(program, "heightmap"), HEIGHTMAP_UNIT);
+		glUniform1i(glGetUniformLocation(program, "movability"), MOVABILITY_UNIT);
+		glUniform1f(glGetUniformLocation(program, "unit_distance"), unitDistance);
+		rangeChanged = true;
+	}
+
+	/**
+	 * Makes the program current, binds the textures and sets the color ramp.
+	 * @return true if the program was reloaded, uniforms set by the caller have to be set again
+	 */
+	public boolean bind(){
+		boolean reloaded = programVersion != ProgramManager.getVersion();
+		if(reloaded){
+			setupProgram();
+		} else {
+			glUseProgram(program);
+		}
+		glUniform1i(colorRampLocation, colorRamp.ordinal());
+		if(rangeChanged){
+			glUniform1f(minHeightLocation, minHeight);
+			glUniform1f(maxHeightLocation, maxHeight);
+			rangeChanged = false;
+		}
+		heightTexture.bind(HEIGHTMAP_UNIT);
+		movabilityTexture.bind(MOVABILITY_UNIT);
+		return reloaded;
+	}
+
+	/**
+	 * Sets the range of the height ramp, the program gets it on the next bind().
+	 */
+	public void setHeightRange(float minHeight, float maxHeight){
+		this.minHeight = minHeight;
+		this.maxHeight = maxHeight;
+		rangeChanged = true;
+	}
+
+	/**
+	 * @return texture memory, R32F heights plus R8 movability
+	 */
+	public long getGpuBytes(){
+		long samples = (long) heightTexture.getHeightfield().getSize() * heightTexture.getHeightfield().getSize();
+		return samples * 4 + samples;
+	}
+
+	/**
+	 * OpenGL Cleanup
+	 */
+	public void dispose(){
+		heightTexture.dispose();
+		movabilityTexture.dispose();
+	}
+
+	/*
+	 * Getters/Setters
+	 */
+	public int getProgram() {
+		return program;
+	}
+
+	public HeightTexture getHeightTexture() {
+		return heightTexture;
+	}
+
+	public ColorRamp getColorRamp() {
+		return colorRamp;
+	}
+
+	public void setColorRamp(ColorRamp colorRamp) {
+		this.colorRamp = colorRamp;
+	}
+}
@@ -0,0 +1,226 @@
+package kenner.ko.tools;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.glfw.GLFW.*;
+import static org.lwjgl.system.MemoryUtil.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import org.lwjgl.opengl.GLContext;
+
+import kenner.ko.map.ServerMap;
+import kenner.ko.util.Logger;
+import kenner.opengl.camera.BasicCamera;
+import kenner.opengl.camera.CameraPath;
+import kenner.opengl.camera.CameraUniformBuffer;
+import kenner.opengl.shader.ProgramManager;
+import kenner.opengl.stats.FrameStats;
+import kenner.opengl.stats.TextOverlay;
+import silvertiger.tutorial.lwjgl.math.Vector3f;
+
+/**
+ * Checks that a steady state frame allocates nothing on the heap.  A frame is what the SmdViewer
+ * render loop does: a camera tick and the interpolated view, the camera uniforms,
+ * MapWorkspace.update() and draw() with the collision overlay shown, the frame statistics and the
+ * stats overlay.  The overlay text is only drawn again a few times per second (Java2D), like the
+ * viewer does, so it's set once between warm up and measurement.
+ *
+ * Runs on a generated map in a hidden window, once with the mesh terrain and once with the
+ * DisplacedTerrain.  The camera flies one orbit to warm up (level of detail index sets are created
+ * on first use), then the same orbit is measured with the per thread allocation counter.  Runs
+ * without a GPU like the SmdViewer benchmark, see the README.
+ *
+ * Exit code 0 if no frame allocated, 1 if one did or the map failed to load, 2 if the check can't
+ * run (no OpenGL 3.3 context or no allocation counter).
+ *
+ * Usage: FrameAllocationCheck [mapSize] [frames]
+ * @author kenner
+ */
+public class FrameAllocationCheck {
+	private static final int WIDTH = 1280, HEIGHT = 720;
+	//exit codes
+	private static final int PASSED = 0, FAILED = 1, SKIPPED = 2;
+
+	private int mapSize;
+	//frames per orbit
+	private int frames;
+	private long window;
+	private com.sun.management.ThreadMXBean threads;
+
+	public FrameAllocationCheck(int mapSize, int frames){
+		this.mapSize = mapSize;
+		this.frames = frames;
+	}
+
+	public static void main(String[] args){
+		System.setProperty("org.lwjgl.librarypath", new File("native").getAbsolutePath());
+		int mapSize = args.length > 0 ? Integer.parseInt(args[0]) : 513;
+		int frames = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		System.exit(new FrameAllocationCheck(mapSize, frames).run());
+	}
+
+	/**
+	 * Runs the check with both terrains.
+	 * @return exit code
+	 */
+	public int run(){
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if(!(bean instanceof com.sun.management.ThreadMXBean)){
+			Logger.error("alloc: no thread allocation counter on this JVM, nothing checked");
+			return SKIPPED;
+		}
+		threads = (com.sun.management.ThreadMXBean) bean;
+		if(!createWindow()){
+			return SKIPPED;
+		}
+		File smd = null;
+		try {
+			//N3ShapeMgr limits the map width
+			float unit = Math.min(4f, SyntheticMap.MAX_WIDTH / (mapSize - 1));
+			smd = File.createTempFile("allocations", ".smd");
+			SyntheticMap.writeSmd(mapSize, unit, 10000, smd);
+			new ProgramManager("shader/");
+			int result = Math.max(check(smd, false), check(smd, true));
+			ProgramManager.dispose();
+			return result;
+		} catch (IOException e) {
+			Logger.error("alloc: failed to write the map: " + e.getMessage());
+			return FAILED;
+		} finally {
+			if(smd != null){
+				smd.delete();
+			}
+			glfwDestroyWindow(window);
+			glfwTerminate();
+		}
+	}
+
+	/**
+	 * A hidden window with the SmdViewer's OpenGL 3.3 core context.
+	 * @return false if there is no display or no OpenGL 3.3
+	 */
+	private boolean createWindow(){
+		try {
+			if(glfwInit() != GL_TRUE){
+				Logger.error("alloc: GLFW failed to start, nothing checked");
+				return false;
+			}
+		} catch (LinkageError e) {
+			//the natives or the system's OpenGL library are missing
+			Logger.error("alloc: LWJGL failed to load, nothing checked: " + e.getMessage());
+			return false;
+		}
+		glfwWindowHint(GLFW_CONTEXT_VERSION_MAJOR, 3);
+		glfwWindowHint(GLFW_CONTEXT_VERSION_MINOR, 3);
+		glfwWindowHint(GLFW_OPENGL_FORWARD_COMPAT, GL_TRUE);
+		glfwWindowHint(GLFW_OPENGL_PROFILE, GLFW_OPENGL_CORE_PROFILE);
+		glfwWindowHint(GLFW_RESIZABLE, GL_FALSE);
+		glfwWindowHint(GLFW_VISIBLE, GL_FALSE);
+		window = glfwCreateWindow(WIDTH, HEIGHT, "FrameAllocationCheck", NULL, NULL);
+		if(window == NULL){
+			Logger.error("alloc: no OpenGL 3.3 window, nothing checked");
+			glfwTerminate();
+			return false;
+		}
+		glfwMakeContextCurrent(window);
+		GLContext.createFromCurrent();
+		glfwSwapInterval(0);
+		glEnable(GL_DEPTH_TEST);
+		glDepthFunc(GL_LESS);
+		Logger.info("alloc: " + glGetString(GL_RENDERER) + ", OpenGL " + glGetString(GL_VERSION));
+		return true;
+	}
+
+	/**
+	 * Loads the map, flies the orbit twice and measures the second one.
+	 * @return exit code
+	 */
+	private int check(File smd, boolean gpuTerrain){
+		String name = gpuTerrain ? "displaced terrain" : "mesh terrain";
+		BasicCamera camera = new BasicCamera(WIDTH, HEIGHT);
+		CameraUniformBuffer cameraBuffer = new CameraUniformBuffer();
+		FrameStats stats = new FrameStats(240);
+		StringBuilder text = new StringBuilder(512);
+		TextOverlay overlay = new TextOverlay(540, 84, WIDTH, HEIGHT);
+		//level of detail on, no mesh cache
+		MapWorkspace workspace = new MapWorkspace(camera, Long.MAX_VALUE, gpuTerrain, true, 32, 2f, null, 64, 256);
+		workspace.setShowCollision(true);
+		workspace.open(smd);
+		try {
+			//until the terrain is uploaded and the collision overlay packed
+			while(workspace.getActive() != null && (workspace.isLoading() || workspace.getActive().getCollision() == null)){
+				workspace.update();
+				Thread.yield();
+			}
+			if(workspace.getActive() == null){
+				Logger.error("alloc: " + name + ", the map failed to load");
+				return FAILED;
+			}
+			CameraPath orbit = orbit(workspace.getActive());
+			for(int i = 0; i < frames; i++){
+				frame(i, orbit, camera, cameraBuffer, workspace, stats, text, overlay);
+			}
+			overlay.setText(text);
+			long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+			for(int i = 0; i < frames; i++){
+				frame(i, orbit, camera, cameraBuffer, workspace, stats, text, overlay);
+			}
+			long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+			String result = String.format("%-50s %d bytes over %d frames, %d triangles in the last", "alloc: frame, " + name,
+					allocated, frames, stats.getTriangles());
+			if(allocated > 0){
+				Logger.error(result + ", expected 0");
+				return FAILED;
+			}
+			Logger.info(result);
+			return PASSED;
+		} finally {
+			workspace.close();
+			workspace.dispose();
+			overlay.dispose();
+			cameraBuffer.dispose();
+		}
+	}
+
+	/**
+	 * One frame of the render loop at a point of the orbit.
+	 */
+	private void frame(int i, CameraPath orbit, BasicCamera camera, CameraUniformBuffer cameraBuffer, MapWorkspace workspace,
+			FrameStats stats, StringBuilder text, TextOverlay overlay){
+		stats.beginFrame();
+		glfwPollEvents();
+		stats.mark(FrameStats.Stage.INPUT);
+		orbit.apply(camera, i / (float) frames);
+		//a simulation tick, then the view between the last two ticks
+		camera.saveState();
+		camera.moveForward(0.01f);
+		camera.update();
+		stats.mark(FrameStats.Stage.UPDATE);
+		camera.interpolate(0.5f);
+		stats.mark(FrameStats.Stage.CAMERA);
+
+		glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
+		cameraBuffer.update(camera);
+		workspace.update();
+		workspace.draw(camera);
+		stats.addDraws(workspace.getDrawCalls(), workspace.getTriangleCount());
+		stats.appendSummary(text);
+		overlay.draw();
+		stats.mark(FrameStats.Stage.DRAW);
+		glfwSwapBuffers(window);
+		stats.mark(FrameStats.Stage.SWAP);
+	}
+
+	/**
+	 * The SmdViewer benchmark orbit, around the map center from above the highest point.
+	 */
+	private static CameraPath orbit(MapWorkspace.Entry entry){
+		ServerMap m = entry.getMap();
+		float[] stats = entry.getHeightStats();
+		float extent = m.getMapSize() * m.getUnitDistance();
+		Vector3f center = new Vector3f(extent / 2f, stats[1], extent / 2f);
+		return CameraPath.orbit(center, extent * 0.35f, stats[2] - stats[1] + extent * 0.1f, 16);
+	}
+}
@@ -0,0 +1,717 @@
+package kenner.ko.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+import silvertiger.tutorial.lwjgl.math.Vector3f;
+import kenner.ko.map.HeightEditor;
+import kenner.ko.map.HeightPicker;
+import kenner.ko.map.Heightfield;
+import kenner.ko.map.MappedSmdLoader;
+import kenner.ko.map.ServerMap;
+import kenner.ko.map.SmdWriter;
+import kenner.ko.renderable.CollisionOverlay;
+import kenner.ko.renderable.ColorRamp;
+import kenner.ko.renderable.DisplacedTerrain;
+import kenner.ko.renderable.Terrain;
+import kenner.ko.renderable.TerrainLoader;
+import kenner.ko.renderable.TerrainMeshCache;
+import kenner.ko.renderable.TerrainShading;
+import kenner.ko.util.Logger;
+import kenner.opengl.camera.BasicCamera;
+
+/**
+ * Maps open in the SmdViewer.  One map is active and drawn, the others stay resident so
+ * switching back is instant.
+ *
+ * Every map keeps its ServerMap and Heightfield in memory.  Once the GPU memory of all
+ * terrains exceeds the VRAM budget, the terrains of the least recently used maps are disposed.
+ * Switching back to an evicted map rebuilds its terrain from the heights in memory, or from the
+ * TerrainMeshCache if it's enabled.
+ *
+ * The collision overlay of a map is built the first time it's shown, on a worker, and evicted
+ * together with the terrain.  The HeightPicker of a map is built on a worker once the map is
+ * loaded and stays with the CPU side.
+ *
+ * Heights are edited through the HeightEditor of the active map, update() uploads the changed
+ * rectangle once per frame.  An edited map is rebuilt from its heights in memory after an
+ * eviction, the TerrainMeshCache only has the mesh of the file it was loaded from.  save() writes
+ * the heights back with SmdWriter.
+ * @author kenner
+ */
+public class MapWorkspace {
+	/**
+	 * A map of the workspace.  The CPU side stays loaded, the terrain may be evicted.
+	 */
+	public static class Entry {
+		private File file;
+		//loads or rebuilds the terrain, null when idle
+		private TerrainLoader loader;
+		//kept for reload() after an eviction
+		private TerrainLoader lastLoader;
+		private ServerMap map;
+		private MappedSmdLoader mapLoader;
+		private Heightfield heightfield;
+		private float[] heightStats;
+		private Terrain terrain;
+		private DisplacedTerrain displacedTerrain;
+		//null until shown, see setShowCollision()
+		private CollisionOverlay collision;
+		//packs the collision overlay, null when idle
+		private CompletableFuture<CollisionOverlay> collisionBuild;
+		//the last worker that read views of the mapped file, see releaseMapping()
+		private CompletableFuture<?> mappingRead;
+		//ray casts against the heights, built once the map is loaded and never evicted
+		private CompletableFuture<HeightPicker> pickerBuild;
+		//created on the first edit
+		private HeightEditor editor;
+		//the heights were edited since the map was loaded
+		private boolean edited;
+		//edited since the last save
+		private boolean modified;
+		//camera position when the map was left, null before it was shown
+		private Vector3f cameraPosition;
+		private long lastUsed;
+
+		private Entry(File file){
+			this.file = file;
+		}
+
+		/**
+		 * @return true if the terrain has GPU buffers
+		 */
+		public boolean isResident() {
+			return terrain != null || displacedTerrain != null;
+		}
+
+		public boolean isLoading() {
+			return loader != null;
+		}
+
+		/**
+		 * @return estimated GPU memory of the terrain, 0 if evicted
+		 */
+		public long getGpuBytes() {
+			long bytes = collision != null ? collision.getGpuBytes() : 0;
+			if(terrain != null){
+				return bytes + terrain.getGpuBytes();
+			}
+			return displacedTerrain != null ? bytes + displacedTerrain.getGpuBytes() : bytes;
+		}
+
+		/**
+		 * @return the shading of the terrain, null if evicted
+		 */
+		public TerrainShading getShading() {
+			if(terrain != null){
+				return terrain.getShading();
+			}
+			return displacedTerrain != null ? displacedTerrain.getShading() : null;
+		}
+
+		/*
+		 * Getters
+		 */
+		public File getFile() {
+			return file;
+		}
+
+		public TerrainLoader getLoader() {
+			return loader;
+		}
+
+		public ServerMap getMap() {
+			return map;
+		}
+
+		public MappedSmdLoader getMapLoader() {
+			return mapLoader;
+		}
+
+		public Heightfield getHeightfield() {
+			return heightfield;
+		}
+
+		/**
+		 * @return {min, avg, max}, null until the map is loaded
+		 */
+		public float[] getHeightStats() {
+			return heightStats;
+		}
+
+		public Terrain getTerrain() {
+			return terrain;
+		}
+
+		public DisplacedTerrain getDisplacedTerrain() {
+			return displacedTerrain;
+		}
+
+		/**
+		 * @return the collision overlay, null until it was shown or after an eviction
+		 */
+		public CollisionOverlay getCollision() {
+			return collision;
+		}
+
+		/**
+		 * @return the picker, null while it's built
+		 */
+		public HeightPicker getPicker() {
+			return pickerBuild != null && pickerBuild.isDone() && !pickerBuild.isCompletedExceptionally() ? pickerBuild.join() : null;
+		}
+
+		/**
+		 * @return the editor, null until it was created with MapWorkspace.edit()
+		 */
+		public HeightEditor getEditor() {
+			return editor;
+		}
+
+		/**
+		 * @return true if the heights were edited since the map was loaded
+		 */
+		public boolean isEdited() {
+			return edited;
+		}
+
+		/**
+		 * @return true if the heights were edited since the map was loaded or saved
+		 */
+		public boolean isModified() {
+			return modified;
+		}
+	}
+
+	private BasicCamera camera;
+	private List<Entry> entries = new ArrayList<Entry>();
+	private Entry active;
+	//GPU memory of all terrains before the least recently used ones are evicted
+	private long vramBudget;
+	private ColorRamp colorRamp = ColorRamp.HEIGHT;
+	private boolean showCollision;
+	//memory of the undo history of every editor
+	private long undoLimit = 64L * 1024 * 1024;
+	//changed rectangle taken from an editor
+	private int[] dirty = new int[4];
+
+	//terrain settings
+	private boolean gpuTerrain;
+	private boolean indexed;
+	private int chunkSize;
+	private float lodThreshold;
+	private TerrainMeshCache cache;
+	private int queueSize;
+	private int chunksPerFrame;
+
+	/**
+	 * @param camera placed on a map when it's shown for the first time
+	 * @param vramBudget bytes
+	 * @param gpuTerrain DisplacedTerrain instead of Terrain
+	 * @param indexed see Terrain
+	 * @param chunkSize see Terrain
+	 * @param lodThreshold see Terrain
+	 * @param cache mesh cache, may be null
+	 * @param queueSize see TerrainLoader
+	 * @param chunksPerFrame terrain chunks uploaded per frame while loading
+	 */
+	public MapWorkspace(BasicCamera camera, long vramBudget, boolean gpuTerrain, boolean indexed, int chunkSize,
+			float lodThreshold, TerrainMeshCache cache, int queueSize, int chunksPerFrame){
+		this.camera = camera;
+		this.vramBudget = vramBudget;
+		this.gpuTerrain = gpuTerrain;
+		this.indexed = indexed;
+		this.chunkSize = chunkSize;
+		this.lodThreshold = lodThreshold;
+		this.cache = cache;
+		this.queueSize = queueSize;
+		this.chunksPerFrame = chunksPerFrame;
+	}
+
+	/**
+	 * Starts loading a map in the background and makes it active.  A map that is already open
+	 * is only activated.
+	 * @param file .smd or .xml
+	 * @return the entry of the map
+	 */
+	public Entry open(File file){
+		for(Entry entry : entries){
+			if(entry.file.getAbsoluteFile().equals(file.getAbsoluteFile())){
+				activate(entry);
+				return entry;
+			}
+		}
+		Entry entry = new Entry(file);
+		entry.loader = new TerrainLoader(file, !gpuTerrain, indexed, chunkSize, lodThreshold, cache, queueSize);
+		entry.loader.start();
+		entries.add(entry);
+		activate(entry);
+		return entry;
+	}
+
+	/**
+	 * Makes the next map active, wraps around.
+	 */
+	public void next(){
+		if(active != null && entries.size() > 1){
+			activate(entries.get((entries.indexOf(active) + 1) % entries.size()));
+		}
+	}
+
+	/**
+	 * Makes the previous map active, wraps around.
+	 */
+	public void previous(){
+		if(active != null && entries.size() > 1){
+			activate(entries.get((entries.indexOf(active) + entries.size() - 1) % entries.size()));
+		}
+	}
+
+	/**
+	 * Closes the active map and activates the next one.
+	 */
+	public void close(){
+		if(active == null){
+			return;
+		}
+		Entry closed = active;
+		int index = entries.indexOf(closed);
+		entries.remove(index);
+		active = null;
+		dispose(closed);
+		if(closed.mapLoader != null){
+			releaseMapping(closed);
+		}
+		Logger.info("Closed map " + closed.file.getName());
+		if(!entries.isEmpty()){
+			activate(entries.get(index % entries.size()));
+		}
+	}
+
+	/**
+	 * Switches to a map, the camera position of the current map is kept for switching back.
+	 */
+	private void activate(Entry entry){
+		if(entry == active){
+			return;
+		}
+		if(active != null){
+			active.cameraPosition = copy(camera.getPosition());
+		}
+		active = entry;
+		entry.lastUsed = System.nanoTime();
+		if(!entry.isResident() && entry.loader == null){
+			//evicted, rebuild from the map in memory
+			Logger.info("Rebuilding evicted terrain of " + entry.file.getName());
+			entry.loader = entry.edited ? entry.lastLoader.reload(entry.heightStats) : entry.lastLoader.reload();
+			entry.loader.start();
+		}
+		if(entry.cameraPosition != null){
+			camera.setPosition(copy(entry.cameraPosition));
+			camera.calculateView();
+		}
+		Logger.info("Active map: " + entry.file.getName() + " (" + (entries.indexOf(entry) + 1) + "/" + entries.size() + ")");
+	}
+
+	/**
+	 * Creates terrains of loaded maps and uploads their chunks, on the render thread every frame.
+	 */
+	public void update(){
+		for(int i = 0; i < entries.size(); i++){
+			Entry entry = entries.get(i);
+			TerrainLoader loader = entry.loader;
+			if(loader == null){
+				continue;
+			}
+			if(loader.isFailed()){
+				Logger.error("Closing " + entry.file.getName() + ", it failed to load.");
+				loader.dispose();
+				entry.loader = null;
+				if(entry == active){
+					close();
+				} else {
+					entries.remove(i);
+				}
+				i--;
+				continue;
+			}
+			if(!loader.isMapLoaded()){
+				continue;
+			}
+			if(!entry.isResident()){
+				createTerrain(entry);
+			}
+			if(entry.terrain != null){
+				loader.upload(entry.terrain, chunksPerFrame);
+			}
+			if(loader.isDone()){
+				loader.dispose();
+				entry.lastLoader = loader;
+				entry.loader = null;
+				evict();
+			}
+		}
+		updateEdits();
+		updateCollision();
+	}
+
+	/**
+	 * @return the editor of the active map, created on first use.  Null while the map loads or its
+	 * picker is built, both read the heights on a worker.
+	 */
+	public HeightEditor edit(){
+		if(active == null || active.isLoading() || !active.isResident() || active.getPicker() == null){
+			return null;
+		}
+		if(active.editor == null){
+			active.editor = new HeightEditor(active.map, active.heightfield, undoLimit);
+		}
+		return active.editor;
+	}
+
+	/**
+	 * Writes the heights of the active map back to its .smd file.  Only the terrain is written,
+	 * the other sections are copied from the file, see SmdWriter.
+	 * @return false if the map can't be saved, the error is logged
+	 */
+	public boolean save(){
+		if(active == null || active.isLoading() || active.map == null){
+			return false;
+		}
+		if(active.mapLoader == null){
+			Logger.error("Can't save " + active.file.getName() + ", only memory mapped .smd maps can be saved.");
+			return false;
+		}
+		if(active.editor != null){
+			active.editor.endStroke();
+		}
+		long start = System.nanoTime();
+		SmdWriter writer = new SmdWriter(active.mapLoader);
+		//Windows doesn't replace a mapped file, the writer reads the sections through a channel
+		releaseMapping(active);
+		try {
+			writer.save(active.heightfield, active.map.getUnitDistance(), active.file);
+		} catch (IOException e) {
+			Logger.error("Failed to save " + active.file.getName() + ": " + e.getMessage());
+			return false;
+		} finally {
+			try {
+				active.mapLoader.remap();
+			} catch (IOException e) {
+				Logger.error("Failed to map " + active.file.getName() + " again, its collision can't be shown until it's reopened: "
+						+ e.getMessage());
+			}
+		}
+		active.modified = false;
+		Logger.info(String.format("Saved %s in %.1f ms", active.file.getName(), (System.nanoTime() - start) / 1e6));
+		return true;
+	}
+
+	/**
+	 * Unmaps the file of a map.  Workers that read views of the mapping are waited for first,
+	 * unmapping the memory under them would crash the VM.
+	 */
+	private static void releaseMapping(Entry entry){
+		if(entry.mappingRead != null){
+			try {
+				//not interruptible, the worker has to be done
+				entry.mappingRead.join();
+			} catch (CompletionException e) {
+				//reported by updateCollision()
+			}
+			entry.mappingRead = null;
+		}
+		entry.mapLoader.close();
+	}
+
+	/**
+	 * Uploads the heights the editors changed since the last frame.
+	 */
+	private void updateEdits(){
+		for(int i = 0; i < entries.size(); i++){
+			Entry entry = entries.get(i);
+			if(entry.editor == null || !entry.editor.takeDirty(dirty)){
+				continue;
+			}
+			entry.edited = true;
+			entry.modified = true;
+			entry.heightStats = entry.editor.getHeightStats();
+			entry.getPicker().update(dirty[0], dirty[1], dirty[2], dirty[3]);
+			//an evicted terrain is rebuilt from the heights
+			if(entry.terrain != null){
+				entry.terrain.updateHeights(dirty[0], dirty[1], dirty[2], dirty[3], entry.heightStats);
+			} else if(entry.displacedTerrain != null){
+				entry.displacedTerrain.updateHeights(dirty[0], dirty[1], dirty[2], dirty[3], entry.heightStats);
+			}
+		}
+	}
+
+	/**
+	 * Starts packing the collision overlay of the active map when it's shown, uploads it once it's packed.
+	 */
+	private void updateCollision(){
+		if(active == null || active.map == null){
+			return;
+		}
+		Entry entry = active;
+		if(showCollision && entry.collision == null && entry.collisionBuild == null){
+			ServerMap map = entry.map;
+			float width = width(entry);
+			//a view of the mapped file, .xml maps and the ServerMap.loadMap() fallback have parsed faces
+			FloatBuffer mapped = entry.mapLoader != null && entry.mapLoader.isOpen() ? entry.mapLoader.getCollisionVertices() : null;
+			entry.collisionBuild = CompletableFuture.supplyAsync(() -> CollisionOverlay.build(
+					mapped != null ? mapped : CollisionOverlay.toBuffer(map.getShapeManager().getCollisions()), width));
+			if(mapped != null){
+				entry.mappingRead = entry.collisionBuild;
+			}
+		}
+		if(entry.collisionBuild != null && entry.collisionBuild.isDone()){
+			try {
+				entry.collision = entry.collisionBuild.get();
+				entry.collision.upload();
+				evict();
+			} catch (InterruptedException | ExecutionException e) {
+				Logger.error("Failed to build the collision overlay of " + entry.file.getName() + ": " + e.getMessage());
+				//not retried, the overlay stays empty
+				entry.collision = CollisionOverlay.build(FloatBuffer.allocate(0), width(entry));
+			}
+			entry.collisionBuild = null;
+		}
+	}
+
+	/**
+	 * @return map width in world units, the collision grid covers it
+	 */
+	private static float width(Entry entry){
+		return (entry.map.getMapSize() - 1) * entry.map.getUnitDistance();
+	}
+
+	/**
+	 * Creates the (empty) terrain of a loaded map, places the camera if it's shown the first time.
+	 */
+	private void createTerrain(Entry entry){
+		TerrainLoader loader = entry.loader;
+		entry.map = loader.getMap();
+		entry.mapLoader = loader.getMapLoader();
+		entry.heightfield = loader.getHeightfield();
+		entry.heightStats = loader.getHeightStats();
+		float[] stats = entry.heightStats;
+		if(entry.pickerBuild == null){
+			Heightfield heightfield = entry.heightfield;
+			float unit = entry.map.getUnitDistance();
+			entry.pickerBuild = CompletableFuture.supplyAsync(() -> HeightPicker.build(heightfield, unit));
+		}
+		if(gpuTerrain){
+			entry.displacedTerrain = new DisplacedTerrain(entry.map, entry.heightfield, chunkSize, stats[0], stats[2]);
+		} else {
+			entry.terrain = new Terrain(entry.map, entry.heightfield, stats, indexed, chunkSize, loader.getLod());
+		}
+		entry.getShading().setColorRamp(colorRamp);
+
+		if(entry == active && entry.cameraPosition == null){
+			//place camera at a position relative to the terrain, above the closest edge sample
+			ServerMap m = entry.map;
+			float x = (m.getMapSize()*m.getUnitDistance())/2f;
+			float z = x*2f + 15f;
+			float edge = entry.heightfield.getClamped(entry.heightfield.getSize()/2, entry.heightfield.getSize()-1);
+			float y = Math.max(stats[1], edge * m.getUnitDistance());
+			camera.setPosition(new Vector3f(x, y, z));
+			camera.calculateView();
+			entry.cameraPosition = copy(camera.getPosition());
+		}
+	}
+
+	/**
+	 * Disposes the terrains of the least recently used maps until the workspace fits into the budget.
+	 * The active map and maps that are still loading are never evicted.
+	 */
+	private void evict(){
+		long total = getGpuBytes();
+		while(total > vramBudget){
+			Entry lru = null;
+			for(Entry entry : entries){
+				if(entry != active && entry.isResident() && entry.loader == null
+						&& (lru == null || entry.lastUsed < lru.lastUsed)){
+					lru = entry;
+				}
+			}
+			if(lru == null){
+				return;
+			}
+			total -= lru.getGpuBytes();
+			Logger.info(String.format("Evicted terrain of %s, %d/%d MB in use", lru.file.getName(),
+					total / (1024 * 1024), vramBudget / (1024 * 1024)));
+			dispose(lru);
+		}
+	}
+
+	/**
+	 * Draws the active map, the view and projection uniforms have to be set for the mesh terrain.
+	 */
+	public void draw(BasicCamera camera){
+		if(active == null){
+			return;
+		}
+		if(active.displacedTerrain != null){
+			active.displacedTerrain.draw(camera);
+		} else if(active.terrain != null){
+			active.terrain.draw(camera);
+		}
+		//on top of the terrain
+		if(showCollision && active.collision != null){
+			active.collision.draw(camera);
+		}
+	}
+
+	/**
+	 * @return draw calls of the last draw()
+	 */
+	public int getDrawCalls(){
+		if(active == null){
+			return 0;
+		}
+		int collision = showCollision && active.collision != null ? active.collision.getVisibleCellCount() : 0;
+		if(active.displacedTerrain != null){
+			//all patches in one instanced draw
+			return collision + (active.displacedTerrain.getVisiblePatchCount() > 0 ? 1 : 0);
+		}
+		return collision + (active.terrain != null ? active.terrain.getVisibleChunkCount() : 0);
+	}
+
+	/**
+	 * @return triangles of the last draw()
+	 */
+	public int getTriangleCount(){
+		if(active == null){
+			return 0;
+		}
+		int collision = showCollision && active.collision != null ? active.collision.getTriangleCount() : 0;
+		if(active.displacedTerrain != null){
+			return collision + active.displacedTerrain.getTriangleCount();
+		}
+		return collision + (active.terrain != null ? active.terrain.getTriangleCount() : 0);
+	}
+
+	/**
+	 * Sets the color ramp of every terrain, including the ones created later.
+	 */
+	public void setColorRamp(ColorRamp colorRamp){
+		this.colorRamp = colorRamp;
+		for(Entry entry : entries){
+			if(entry.getShading() != null){
+				entry.getShading().setColorRamp(colorRamp);
+			}
+		}
+	}
+
+	/**
+	 * Shows or hides the collision overlay of every map, it's built when a map is shown with it
+	 * for the first time.
+	 */
+	public void setShowCollision(boolean showCollision){
+		this.showCollision = showCollision;
+	}
+
+	public boolean isShowCollision(){
+		return showCollision;
+	}
+
+	/**
+	 * @param undoLimit bytes of undo history per map, used by editors created later
+	 */
+	public void setUndoLimit(long undoLimit){
+		this.undoLimit = undoLimit;
+	}
+
+	/**
+	 * @return GPU memory of all resident terrains and collision overlays
+	 */
+	public long getGpuBytes(){
+		long total = 0;
+		//called every frame, no iterator
+		for(int i = 0; i < entries.size(); i++){
+			total += entries.get(i).getGpuBytes();
+		}
+		return total;
+	}
+
+	/**
+	 * Disposes the terrain of a map, the CPU side is kept.
+	 */
+	private void dispose(Entry entry){
+		if(entry.loader != null){
+			entry.loader.dispose();
+			entry.loader = null;
+		}
+		if(entry.terrain != null){
+			entry.terrain.dispose();
+			entry.terrain = null;
+		}
+		if(entry.displacedTerrain != null){
+			entry.displacedTerrain.dispose();
+			entry.displacedTerrain = null;
+		}
+		if(entry.collisionBuild != null){
+			//the packed overlay is dropped, nothing was uploaded yet.  Not cancelled, cancel() doesn't
+			//stop the worker but would let releaseMapping() unmap under it
+			entry.collisionBuild = null;
+		}
+		if(entry.collision != null){
+			entry.collision.dispose();
+			entry.collision = null;
+		}
+	}
+
+	/**
+	 * @return true while any map is loaded, its terrain uploaded or its collision overlay built,
+	 * update() has work to do
+	 */
+	public boolean isLoading(){
+		for(int i = 0; i < entries.size(); i++){
+			if(entries.get(i).isLoading() || entries.get(i).collisionBuild != null){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * OpenGL Cleanup
+	 */
+	public void dispose(){
+		for(Entry entry : entries){
+			dispose(entry);
+		}
+		entries.clear();
+		active = null;
+	}
+
+	private static Vector3f copy(Vector3f v){
+		return new Vector3f(v.x, v.y, v.z);
+	}
+
+	/*
+	 * Getters
+	 */
+	public Entry getActive() {
+		return active;
+	}
+
+	public List<Entry> getEntries() {
+		return entries;
+	}
+
+	public long getVramBudget() {
+		return vramBudget;
+	}
+
+	public ColorRamp getColorRamp() {
+		return colorRamp;
+	}
+}
@@ -0,0 +1,1399 @@
+package kenner.ko.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.BooleanSupplier;
+
+import org.lwjgl.BufferUtils;
+
+import kenner.ko.map.CollisionIndex;
+import kenner.ko.map.HeightEditor;
+import kenner.ko.map.HeightPicker;
+import kenner.ko.map.Heightfield;
+import kenner.ko.map.MappedSmdLoader;
+import kenner.ko.map.ServerMap;
+import kenner.ko.map.SmdWriter;
+import kenner.ko.n3base.CellMain;
+import kenner.ko.n3base.CellSub;
+import kenner.ko.n3base.N3ShapeMgr;
+import kenner.ko.n3base.Vector3d;
+import kenner.ko.renderable.Terrain;
+import kenner.ko.renderable.TerrainChunk;
+import kenner.ko.renderable.TerrainLoader;
+import kenner.ko.renderable.TerrainLod;
+import kenner.ko.renderable.TerrainMeshBuilder;
+import kenner.ko.renderable.TerrainMeshCache;
+import kenner.ko.util.Logger;
+import kenner.math.Versor;
+import kenner.opengl.camera.BasicCamera;
+import kenner.opengl.stats.FrameStats;
+import silvertiger.tutorial.lwjgl.math.Matrix4f;
+import silvertiger.tutorial.lwjgl.math.Vector3f;
+
+/**
+ * Headless micro benchmarks for the CPU side hot paths.  Does not need an OpenGL context or map
+ * files, the maps are generated by SyntheticMap.
+ *
+ * Usage: SmdBenchmark [mapSize] [iterations]
+ * @author kenner
+ */
+public class SmdBenchmark {
+	//results are summed here so the JIT can't drop the benchmarked work
+	private static volatile double sink;
+	private static volatile Object objectSink;
+
+	private int mapSize = 1025;
+	private int iterations = 10;
+	private int warmup = 5;
+	//operations per iteration for the nanosecond scale math benchmarks
+	private int operations = 100000;
+	//the xml files are about 130 bytes per sample, bigger maps take minutes to parse
+	private int maxXmlMapSize = 257;
+	//collision walls per map and segments per collision batch
+	private int walls = 100000;
+	private int segments = 200000;
+	//rays per pick batch, the brute force check uses the first ones
+	private int rays = 1000;
+	private int checkedRays = 50;
+	//brush applications per edit stroke and their radius in samples
+	private int dabs = 100;
+	private float brushRadius = 32f;
+
+	public SmdBenchmark(int mapSize, int iterations){
+		this.mapSize = mapSize;
+		this.iterations = iterations;
+	}
+
+	public static void main(String[] args){
+		int mapSize = args.length > 0 ? Integer.parseInt(args[0]) : 1025;
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		new SmdBenchmark(mapSize, iterations).run();
+	}
+
+	/**
+	 * Runs every benchmark.
+	 */
+	public void run(){
+		Logger.info("Benchmarking map size " + mapSize + ", " + iterations + " iterations (" + warmup + " warmup)");
+		//ServerMap logs every section it reads
+		Logger.isDebug = false;
+		try {
+			benchLoad();
+			checkLoader();
+		} catch(IOException e){
+			Logger.error("Map load benchmark failed: " + e.getMessage());
+		}
+		checkIndexed();
+		checkCulling();
+		benchTerrain();
+		benchPicking();
+		checkPicking();
+		benchEditing();
+		try {
+			benchSaving();
+		} catch(IOException e){
+			Logger.error("Save benchmark failed: " + e.getMessage());
+		}
+		try {
+			checkCollisionAnswers();
+			benchCollision();
+		} catch(IOException e){
+			Logger.error("Collision benchmark failed: " + e.getMessage());
+		}
+		benchMath();
+		try {
+			checkFrameAllocations();
+		} catch(IOException e){
+			Logger.error("Frame allocation check failed: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * ServerMap.loadMap() and loadFromXML() on generated files.
+	 */
+	private void benchLoad() throws IOException {
+		//N3ShapeMgr limits the map width
+		final float unit = Math.min(4f, SyntheticMap.MAX_WIDTH / (mapSize - 1));
+		final int xmlSize = Math.min(mapSize, maxXmlMapSize);
+		final File smd = File.createTempFile("benchmark", ".smd");
+		final File xml = File.createTempFile("benchmark", ".xml");
+		try {
+			SyntheticMap.writeSmd(mapSize, unit, smd);
+			SyntheticMap.writeXml(xmlSize, unit, xml);
+			bench("load: ServerMap.loadMap() " + mapSize, () -> {
+				ServerMap map = new ServerMap();
+				if(!map.loadMap(smd)){
+					throw new IllegalStateException("loadMap failed");
+				}
+				sink += map.getHeight()[1][1];
+			});
+			bench("load: MappedSmdLoader " + mapSize, () -> {
+				try {
+					sink += new MappedSmdLoader(smd).getHeightfield().get(1, 1);
+				} catch(IOException e){
+					throw new IllegalStateException(e);
+				}
+			});
+			bench("load: MappedSmdLoader + all sections " + mapSize, () -> {
+				try {
+					MappedSmdLoader loader = new MappedSmdLoader(smd);
+					loader.loadAll();
+					sink += loader.getMap().getHeight()[1][1];
+				} catch(IOException e){
+					throw new IllegalStateException(e);
+				}
+			});
+			bench("load: ServerMap.loadFromXML() " + xmlSize, () -> {
+				try {
+					ServerMap map = new ServerMap();
+					if(!map.loadFromXML(xml)){
+						throw new IllegalStateException("loadFromXML failed");
+					}
+					sink += map.getHeight()[1][1];
+				} catch(Exception e){
+					throw new IllegalStateException(e);
+				}
+			});
+		} finally {
+			smd.delete();
+			xml.delete();
+		}
+	}
+
+	/**
+	 * Terrain mesh generation and height stats.
+	 */
+	private void benchTerrain(){
+		final ServerMap map = SyntheticMap.create(mapSize, 4f);
+		final Heightfield heightfield = Heightfield.fromArray(map.getHeight());
+		final float min = -50f, max = 150f;
+
+		bench("terrain: Terrain.analyzeHeights()", () -> sink += Terrain.analyzeHeights(heightfield, map.getMapSize())[1]);
+		bench("terrain: legacy single-threaded loop", () -> legacyBuild(map, min, max));
+		bench("terrain: TerrainMeshBuilder unindexed", () -> build(map, heightfield, false, null));
+		bench("terrain: TerrainMeshBuilder indexed", () -> build(map, heightfield, true, null));
+		bench("terrain: TerrainMeshBuilder indexed + lod errors", () -> build(map, heightfield, true, new TerrainLod(64, 2f)));
+	}
+
+	/**
+	 * The indexed mesh draws the same triangles as the unindexed one: the index buffer of level 0
+	 * expanded into triangles, compared vertex for vertex with the 6 vertices per quad of the same
+	 * chunk.  Logs an error for every triangle that differs.
+	 */
+	private void checkIndexed(){
+		ServerMap map = SyntheticMap.create(Math.min(mapSize, 257), 4f);
+		Heightfield heightfield = Heightfield.fromArray(map.getHeight());
+		List<TerrainChunk> unindexed = build(map, heightfield, false, null);
+		List<TerrainChunk> indexed = build(map, heightfield, true, null);
+		int triangles = 0, mismatches = 0;
+		for(int c = 0; c < unindexed.size(); c++){
+			TerrainChunk flat = unindexed.get(c), chunk = indexed.get(c);
+			FloatBuffer expected = flat.getVertexData(), vertices = chunk.getVertexData();
+			IntBuffer indices = TerrainLod.buildIndices(chunk.getCellsX(), chunk.getCellsZ(), 0, 0, 0, 0, 0);
+			if(indices.limit() * 3 != expected.limit()){
+				Logger.error("indexed: chunk " + chunk.getCellX() + ", " + chunk.getCellZ() + " has " + indices.limit() / 3
+						+ " indexed triangles, " + expected.limit() / 9 + " unindexed");
+				mismatches++;
+				continue;
+			}
+			for(int t = 0; t < indices.limit(); t += 3, triangles++){
+				boolean same = true;
+				for(int v = 0; v < 3; v++){
+					int vertex = indices.get(t + v) * 3, o = (t + v) * 3;
+					same &= vertices.get(vertex) == expected.get(o) && vertices.get(vertex + 1) == expected.get(o + 1)
+							&& vertices.get(vertex + 2) == expected.get(o + 2);
+				}
+				if(!same){
+					if(mismatches < 10){
+						Logger.error(String.format("indexed: triangle %d of chunk %d, %d differs from the unindexed mesh", t / 3,
+								chunk.getCellX(), chunk.getCellZ()));
+					}
+					mismatches++;
+				}
+			}
+		}
+		String result = String.format("%-50s %d triangles, %d mismatches", "indexed: level 0 vs unindexed", triangles, mismatches);
+		if(mismatches == 0){
+			Logger.info(result);
+		} else {
+			Logger.error(result);
+		}
+	}
+
+	/**
+	 * Frustum culling: every vertex of a built chunk lies in the chunk's bounds, and for random
+	 * cameras and boxes Frustum.intersects() keeps every box with a point in the clip volume of
+	 * projection * view and culls every box that is completely outside one of its planes.  Logs an
+	 * error for every wrong answer.
+	 */
+	private void checkCulling(){
+		ServerMap map = SyntheticMap.create(Math.min(mapSize, 257), 4f);
+		Heightfield heightfield = Heightfield.fromArray(map.getHeight());
+		int errors = 0, vertices = 0;
+		for(boolean indexed : new boolean[]{false, true}){
+			for(TerrainChunk chunk : build(map, heightfield, indexed, null)){
+				FloatBuffer data = chunk.getVertexData();
+				for(int i = 0; i < data.limit(); i += 3, vertices++){
+					float x = data.get(i), y = data.get(i + 1), z = data.get(i + 2);
+					if(x < chunk.getMinX() || y < chunk.getMinY() || z < chunk.getMinZ()
+							|| x > chunk.getMaxX() || y > chunk.getMaxY() || z > chunk.getMaxZ()){
+						errors++;
+					}
+				}
+			}
+		}
+		if(errors > 0){
+			Logger.error("culling: " + errors + " of " + vertices + " chunk vertices are outside of the chunk bounds");
+		}
+
+		Random random = new Random(5);
+		BasicCamera camera = new BasicCamera(1280, 720);
+		Matrix4f viewProjection = new Matrix4f();
+		float[] m = new float[16];
+		float[] clip = new float[4];
+		int boxes = 0, kept = 0, culled = 0;
+		for(int c = 0; c < 50; c++){
+			camera.setPosition(new Vector3f(random.nextFloat() * 1000f, random.nextFloat() * 200f, random.nextFloat() * 1000f));
+			camera.setOrientation(random.nextFloat() * 360f, random.nextFloat() * 160f - 80f);
+			camera.calculateView();
+			camera.getProjectionMatrix().mulInto(camera.getViewMatrix(), viewProjection).get(m);
+			Vector3f eye = camera.getPosition();
+			for(int b = 0; b < 1000; b++, boxes++){
+				float[] box = new float[6];
+				for(int axis = 0; axis < 3; axis++){
+					float center = (axis == 0 ? eye.x : axis == 1 ? eye.y : eye.z) + (random.nextFloat() * 2f - 1f) * 1100f;
+					float half = 0.5f + random.nextFloat() * random.nextFloat() * 100f;
+					box[axis] = center - half;
+					box[axis + 3] = center + half;
+				}
+				boolean visible = false, outside = false;
+				//a 5 x 5 x 5 grid of the box, corners included, in the clip volume
+				for(int i = 0; i < 125 && !visible; i++){
+					clip(m, lerp(box[0], box[3], i % 5 / 4f), lerp(box[1], box[4], i / 5 % 5 / 4f), lerp(box[2], box[5], i / 25 / 4f), clip);
+					float w = clip[3] * 0.999f;
+					visible = Math.abs(clip[0]) <= w && Math.abs(clip[1]) <= w && Math.abs(clip[2]) <= w;
+				}
+				//all 8 corners behind the same clip plane, w + x, w - x, w + y, ...
+				for(int plane = 0; plane < 6 && !outside; plane++){
+					outside = true;
+					for(int corner = 0; corner < 8 && outside; corner++){
+						clip(m, box[(corner & 1) * 3], box[1 + (corner >> 1 & 1) * 3], box[2 + (corner >> 2) * 3], clip);
+						outside = clip[3] + (plane % 2 == 0 ? clip[plane / 2] : -clip[plane / 2]) < -0.01f;
+					}
+				}
+				boolean intersects = camera.getFrustum().intersects(box[0], box[1], box[2], box[3], box[4], box[5]);
+				if(intersects ? outside : visible){
+					if(errors++ < 10){
+						Logger.error(String.format("culling: box %s was %s, expected %s", Arrays.toString(box),
+								intersects ? "kept" : "culled", intersects ? "culled" : "kept"));
+					}
+				}
+				kept += intersects ? 1 : 0;
+				culled += intersects ? 0 : 1;
+			}
+		}
+		String result = String.format("%-50s %d vertices, %d boxes, %d kept, %d culled, %d errors", "culling: chunk bounds + Frustum",
+				vertices, boxes, kept, culled, errors);
+		if(errors == 0){
+			Logger.info(result);
+		} else {
+			Logger.error(result);
+		}
+	}
+
+	/**
+	 * @param m column major projection * view
+	 * @param clip receives x, y, z, w in clip space
+	 */
+	private static void clip(float[] m, float x, float y, float z, float[] clip){
+		for(int r = 0; r < 4; r++){
+			clip[r] = m[r] * x + m[4 + r] * y + m[8 + r] * z + m[12 + r];
+		}
+	}
+
+	private static float lerp(float a, float b, float t){
+		return a + (b - a) * t;
+	}
+
+	/**
+	 * The background load pipeline on a generated map: with nobody polling the worker stops after
+	 * queueSize built chunks, polled like the render thread does every chunk arrives once and the
+	 * loader finishes, and dispose() cancels a worker blocked on the full queue.  Logs an error for
+	 * every failed check.
+	 */
+	private void checkLoader() throws IOException {
+		final int size = 257, chunkSize = 32, queueSize = 4;
+		File smd = File.createTempFile("loader", ".smd");
+		try {
+			SyntheticMap.writeSmd(size, 4f, 100, smd);
+			int errors = 0;
+			final TerrainLoader loader = new TerrainLoader(smd, true, true, chunkSize, 2f, null, queueSize);
+			loader.start();
+			//the worker fills the queue and blocks
+			await(() -> loader.getBuiltChunks() >= queueSize || loader.isFailed());
+			Thread.sleep(100);
+			if(loader.getState() != TerrainLoader.State.BUILDING_MESH || loader.getBuiltChunks() != queueSize){
+				Logger.error("loader: " + loader.getBuiltChunks() + " chunks built with nobody polling, expected "
+						+ queueSize + " in " + TerrainLoader.State.BUILDING_MESH + ", state " + loader.getState());
+				errors++;
+			}
+			//a few chunks per poll, the queue never holds more than queueSize
+			boolean[] seen = new boolean[size * size];
+			int chunks = 0, cells = 0, waiting = 0;
+			long end = System.currentTimeMillis() + 10000;
+			while(!loader.isDone() && !loader.isFailed() && System.currentTimeMillis() < end){
+				waiting = Math.max(waiting, loader.getBuiltChunks() - loader.getUploadedChunks());
+				TerrainChunk chunk;
+				for(int i = 0; i < 2 && (chunk = loader.poll()) != null; i++){
+					int cell = chunk.getCellX() * size + chunk.getCellZ();
+					if(seen[cell] || chunk.getVertexData() == null){
+						Logger.error("loader: chunk " + chunk.getCellX() + ", " + chunk.getCellZ() + " arrived twice or without a mesh");
+						errors++;
+					}
+					seen[cell] = true;
+					chunks++;
+					cells += chunk.getCellsX() * chunk.getCellsZ();
+				}
+				Thread.yield();
+			}
+			if(waiting > queueSize){
+				Logger.error("loader: up to " + waiting + " chunks waited for the render thread, queue size " + queueSize);
+				errors++;
+			}
+			List<TerrainChunk> expected = Terrain.createChunks(size, chunkSize);
+			if(!loader.isDone() || chunks != expected.size() || chunks != loader.getTotalChunks() || cells != (size - 2) * (size - 2)
+					|| loader.getProgress() != 1f){
+				Logger.error(String.format("loader: %s with %d of %d chunks, %d of %d cells, progress %.2f", loader.getState(), chunks,
+						expected.size(), cells, (size - 2) * (size - 2), loader.getProgress()));
+				errors++;
+			}
+			loader.dispose();
+			loader.getMapLoader().close();
+
+			//cancelled while the worker waits on the full queue
+			final TerrainLoader cancelled = new TerrainLoader(smd, true, true, chunkSize, 2f, null, 1);
+			cancelled.start();
+			await(() -> cancelled.getBuiltChunks() >= 1 || cancelled.isFailed());
+			cancelled.dispose();
+			await(() -> cancelled.isFailed() && !isAlive("TerrainLoader " + smd.getName()));
+			if(!cancelled.isFailed() || cancelled.getFailure() != null || isAlive("TerrainLoader " + smd.getName())){
+				Logger.error("loader: dispose() left the worker " + cancelled.getState()
+						+ (isAlive("TerrainLoader " + smd.getName()) ? ", thread alive" : "") + ", failure " + cancelled.getFailure());
+				errors++;
+			}
+			if(cancelled.getMapLoader() != null){
+				cancelled.getMapLoader().close();
+			}
+			//a file neither the mapping nor the ServerMap.loadMap() fallback can read fails with the cause,
+			//not later on the missing heights
+			TerrainLoader failed = new TerrainLoader(new File(smd.getPath() + ".missing"), true, true, chunkSize, 2f, null, queueSize);
+			failed.run();
+			if(!failed.isFailed() || !(failed.getFailure() instanceof IOException)){
+				Logger.error("loader: a missing map ended " + failed.getState() + " with " + failed.getFailure());
+				errors++;
+			}
+			String result = String.format("%-50s %d chunks through a queue of %d, cancelled at %d, %d errors", "loader: TerrainLoader",
+					chunks, queueSize, cancelled.getBuiltChunks(), errors);
+			if(errors == 0){
+				Logger.info(result);
+			} else {
+				Logger.error(result);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			smd.delete();
+		}
+	}
+
+	/**
+	 * Waits up to 10 seconds for the condition.
+	 */
+	private static void await(BooleanSupplier condition) throws InterruptedException {
+		long end = System.currentTimeMillis() + 10000;
+		while(!condition.getAsBoolean() && System.currentTimeMillis() < end){
+			Thread.sleep(1);
+		}
+	}
+
+	private static boolean isAlive(String threadName){
+		for(Thread t : Thread.getAllStackTraces().keySet()){
+			if(t.getName().equals(threadName) && t.isAlive()){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Ray casts against the terrain: building the HeightPicker and picking, checked against
+	 * testing every triangle.  Logs an error if a pick differs.
+	 */
+	private void benchPicking(){
+		final ServerMap map = SyntheticMap.create(mapSize, 4f);
+		final Heightfield heightfield = Heightfield.fromArray(map.getHeight());
+		final float unit = map.getUnitDistance();
+		bench("pick: HeightPicker.build()", () -> objectSink = HeightPicker.build(heightfield, unit));
+		final HeightPicker picker = HeightPicker.build(heightfield, unit);
+
+		//cameras above the map looking down at it, like the viewer
+		Random random = new Random(5);
+		float width = (mapSize - 1) * unit;
+		final float[] ray = new float[rays * 6];
+		for(int i = 0; i < rays; i++){
+			int o = i * 6;
+			ray[o] = random.nextFloat() * width;
+			ray[o + 1] = 200f + random.nextFloat() * 800f;
+			ray[o + 2] = random.nextFloat() * width;
+			ray[o + 3] = random.nextFloat() * 2f - 1f;
+			ray[o + 4] = -0.05f - random.nextFloat();
+			ray[o + 5] = random.nextFloat() * 2f - 1f;
+		}
+		float[] hit = new float[3], expected = new float[3];
+		int hits = 0, mismatches = 0;
+		for(int i = 0; i < checkedRays; i++){
+			int o = i * 6;
+			boolean picked = picker.pick(ray[o], ray[o + 1], ray[o + 2], ray[o + 3], ray[o + 4], ray[o + 5], hit);
+			boolean found = legacyPick(heightfield, unit, ray, o, expected);
+			hits += found ? 1 : 0;
+			if(picked != found || (found && Math.abs(hit[0] - expected[0]) + Math.abs(hit[1] - expected[1])
+					+ Math.abs(hit[2] - expected[2]) > 0.01f)){
+				mismatches++;
+			}
+		}
+		String result = String.format("%-50s %d of %d rays hit, %d mismatches", "pick: HeightPicker vs every triangle",
+				hits, checkedRays, mismatches);
+		if(mismatches == 0){
+			Logger.info(result);
+		} else {
+			Logger.error(result);
+		}
+
+		bench("pick: every triangle, 1 ray", () -> sink += legacyPick(heightfield, unit, ray, 0, expected) ? expected[1] : 0);
+		bench("pick: HeightPicker, " + rays + " rays", () -> {
+			float sum = 0;
+			for(int i = 0; i < rays; i++){
+				int o = i * 6;
+				if(picker.pick(ray[o], ray[o + 1], ray[o + 2], ray[o + 3], ray[o + 4], ray[o + 5], hit)){
+					sum += hit[1];
+				}
+			}
+			sink += sum;
+		});
+	}
+
+	/**
+	 * HeightPicker against testing every triangle for the rays the downward check above leaves out:
+	 * grazing rays just above the ground, rays from outside the map and from below the ground, rays
+	 * through random window positions of a camera above the map (BasicCamera.unproject()), and the
+	 * same rays again after edits that update() the quadtree, against a picker built from scratch as
+	 * well.  A 129 map, so every triangle can be tested.  Logs an error if a pick differs.
+	 */
+	private void checkPicking(){
+		final int size = 129, count = 500;
+		ServerMap map = SyntheticMap.create(size, 4f);
+		Heightfield heightfield = Heightfield.fromArray(map.getHeight());
+		float unit = map.getUnitDistance();
+		float width = (size - 1) * unit;
+		float[] stats = Terrain.analyzeHeights(heightfield, size);
+		float low = stats[0] * unit, high = stats[2] * unit;
+		HeightPicker picker = HeightPicker.build(heightfield, unit);
+
+		Random random = new Random(7);
+		//grazing, from outside, from below, 6 floats per ray
+		float[] ray = new float[count * 3 * 6];
+		for(int i = 0; i < count; i++){
+			int o = i * 6;
+			ray[o] = random.nextFloat() * width;
+			ray[o + 1] = low + random.nextFloat() * (high - low);
+			ray[o + 2] = random.nextFloat() * width;
+			ray[o + 3] = random.nextFloat() * 2f - 1f;
+			ray[o + 4] = (random.nextFloat() * 2f - 1f) * 0.05f;
+			ray[o + 5] = random.nextFloat() * 2f - 1f;
+		}
+		for(int i = count; i < count * 2; i++){
+			int o = i * 6;
+			//on one of the 4 sides, aimed at a random point of the map
+			float along = random.nextFloat() * width, out = -10f - random.nextFloat() * width;
+			boolean xSide = random.nextBoolean(), far = random.nextBoolean();
+			ray[o] = xSide ? (far ? width - out : out) : along;
+			ray[o + 1] = low + random.nextFloat() * (high - low) * 2f;
+			ray[o + 2] = xSide ? along : (far ? width - out : out);
+			ray[o + 3] = random.nextFloat() * width - ray[o];
+			ray[o + 4] = low + random.nextFloat() * (high - low) - ray[o + 1];
+			ray[o + 5] = random.nextFloat() * width - ray[o + 2];
+		}
+		for(int i = count * 2; i < count * 3; i++){
+			int o = i * 6;
+			ray[o] = random.nextFloat() * width;
+			ray[o + 1] = low - 1f - random.nextFloat() * 100f;
+			ray[o + 2] = random.nextFloat() * width;
+			ray[o + 3] = random.nextFloat() * 2f - 1f;
+			ray[o + 4] = random.nextFloat();
+			ray[o + 5] = random.nextFloat() * 2f - 1f;
+		}
+		BasicCamera camera = new BasicCamera(1280, 720);
+		Vector3f origin = new Vector3f(), direction = new Vector3f();
+		float[] window = new float[count * 6];
+		for(int i = 0; i < count; i++){
+			if(i % 50 == 0){
+				camera.setPosition(new Vector3f(random.nextFloat() * width, high + 10f + random.nextFloat() * 150f, random.nextFloat() * width));
+				camera.setOrientation(random.nextFloat() * 360f, -30f - random.nextFloat() * 50f);
+				camera.calculateView();
+			}
+			camera.unproject(random.nextFloat() * camera.getWidth(), random.nextFloat() * camera.getHeight(), origin, direction);
+			int o = i * 6;
+			window[o] = origin.x;
+			window[o + 1] = origin.y;
+			window[o + 2] = origin.z;
+			window[o + 3] = direction.x;
+			window[o + 4] = direction.y;
+			window[o + 5] = direction.z;
+		}
+
+		int hits = 0, mismatches = 0;
+		float[] hit = new float[3], expected = new float[3];
+		for(int pass = 0; pass < 2; pass++){
+			if(pass == 1){
+				//raise and lower a few rectangles, then update only those nodes
+				for(int e = 0; e < 20; e++){
+					int x0 = random.nextInt(size), z0 = random.nextInt(size);
+					int x1 = Math.min(size - 1, x0 + random.nextInt(20)), z1 = Math.min(size - 1, z0 + random.nextInt(20));
+					float delta = (random.nextFloat() * 2f - 1f) * 30f;
+					for(int x = x0; x <= x1; x++){
+						for(int z = z0; z <= z1; z++){
+							heightfield.set(x, z, heightfield.get(x, z) + delta);
+						}
+					}
+					picker.update(x0, z0, x1, z1);
+				}
+			}
+			HeightPicker rebuilt = HeightPicker.build(heightfield, unit);
+			for(float[] rays : new float[][]{ray, window}){
+				for(int o = 0; o < rays.length; o += 6){
+					boolean found = legacyPick(heightfield, unit, rays, o, expected);
+					hits += found ? 1 : 0;
+					if(!samePick(picker, rays, o, hit, found, expected) || !samePick(rebuilt, rays, o, hit, found, expected)){
+						mismatches++;
+					}
+				}
+			}
+		}
+		String result = String.format("%-50s %d of %d rays hit, %d mismatches", "pick: grazing, outside, below, window, edited",
+				hits, (ray.length + window.length) / 3, mismatches);
+		if(mismatches == 0){
+			Logger.info(result);
+		} else {
+			Logger.error(result);
+		}
+	}
+
+	/**
+	 * @return true if the picker finds the expected point, or misses like expected
+	 */
+	private static boolean samePick(HeightPicker picker, float[] ray, int o, float[] hit, boolean found, float[] expected){
+		boolean picked = picker.pick(ray[o], ray[o + 1], ray[o + 2], ray[o + 3], ray[o + 4], ray[o + 5], hit);
+		return picked == found && (!found || Math.abs(hit[0] - expected[0]) + Math.abs(hit[1] - expected[1])
+				+ Math.abs(hit[2] - expected[2]) <= 0.01f);
+	}
+
+	/**
+	 * Height editing: brush strokes with their stats, and rewriting only the changed vertex rows
+	 * against building every chunk again.  Checks that the partly rewritten meshes equal freshly built
+	 * ones, that the stats equal Terrain.analyzeHeights() and that undo/redo restore the heights
+	 * exactly.  Logs an error on a difference.
+	 */
+	private void benchEditing(){
+		final ServerMap map = SyntheticMap.create(mapSize, 4f);
+		final Heightfield heightfield = Heightfield.fromArray(map.getHeight());
+		final float unit = map.getUnitDistance();
+		final float[] original = new float[mapSize * mapSize];
+		heightfield.getBuffer().get(original);
+		int errors = 0;
+
+		//meshes before the edit, their rows are rewritten below
+		List<TerrainChunk> indexed = Terrain.createChunks(mapSize, 64), unindexed = Terrain.createChunks(mapSize, 64);
+		TerrainLod lod = new TerrainLod(64, 2f);
+		TerrainMeshBuilder indexedBuilder = new TerrainMeshBuilder(heightfield, unit, true, lod);
+		TerrainMeshBuilder unindexedBuilder = new TerrainMeshBuilder(heightfield, unit, false, null);
+		indexedBuilder.build(indexed);
+		unindexedBuilder.build(unindexed);
+
+		HeightEditor editor = new HeightEditor(map, heightfield, Long.MAX_VALUE);
+		final int[] dirty = new int[4];
+		stroke(editor, HeightEditor.Brush.RAISE, 0.3f);
+		stroke(editor, HeightEditor.Brush.FLATTEN, 0.5f);
+		editor.takeDirty(dirty);
+		float[] edited = new float[original.length];
+		heightfield.getBuffer().get(edited);
+
+		//rewrite the changed rows the way Terrain.updateHeights() does, then compare with a fresh build
+		FloatBuffer rows = BufferUtils.createFloatBuffer(96 * 96 * 18);
+		List<TerrainChunk> fresh = Terrain.createChunks(mapSize, 64);
+		for(int pass = 0; pass < 2; pass++){
+			List<TerrainChunk> chunks = pass == 0 ? indexed : unindexed;
+			TerrainMeshBuilder builder = pass == 0 ? indexedBuilder : unindexedBuilder;
+			for(TerrainChunk chunk : chunks){
+				int offset = builder.rebuildRows(chunk, dirty[0], dirty[2], rows);
+				if(offset >= 0){
+					FloatBuffer data = chunk.getVertexData().duplicate();
+					data.position(offset);
+					data.put(rows);
+				}
+				builder.updateBounds(chunk);
+			}
+			builder.build(fresh);
+			for(int i = 0; i < chunks.size(); i++){
+				if(!chunks.get(i).getVertexData().equals(fresh.get(i).getVertexData())
+						|| chunks.get(i).getMaxY() != fresh.get(i).getMaxY() || chunks.get(i).getMinY() != fresh.get(i).getMinY()){
+					errors++;
+				}
+			}
+		}
+		float[] stats = editor.getHeightStats(), expected = Terrain.analyzeHeights(heightfield, mapSize);
+		if(stats[0] != expected[0] || stats[2] != expected[2] || Math.abs(stats[1] - expected[1]) > 1e-3f * Math.max(1f, Math.abs(expected[1]))){
+			errors++;
+		}
+		float[] heights = new float[original.length];
+		editor.undo();
+		editor.undo();
+		heightfield.getBuffer().get(heights);
+		errors += Arrays.equals(heights, original) ? 0 : 1;
+		editor.redo();
+		editor.redo();
+		heightfield.getBuffer().get(heights);
+		errors += Arrays.equals(heights, edited) ? 0 : 1;
+		for(int x = 0; x < mapSize; x++){
+			for(int z = 0; z < mapSize; z++){
+				if(map.getHeight()[x][z] != heights[x * mapSize + z]){
+					errors++;
+				}
+			}
+		}
+		String result = String.format("%-50s %d samples (%d KB undo), %d errors", "edit: partial rows vs full build, undo/redo",
+				editor.getUndoBytes() / 12, editor.getUndoBytes() / 1024, errors);
+		if(errors == 0){
+			Logger.info(result);
+		} else {
+			Logger.error(result);
+		}
+
+		bench("edit: stroke of " + dabs + " dabs, radius " + (int) brushRadius, () -> {
+			stroke(editor, HeightEditor.Brush.RAISE, 0.3f);
+			sink += editor.takeDirty(dirty) ? dirty[2] : 0;
+			editor.undo();
+			sink += editor.takeDirty(dirty) ? dirty[2] : 0;
+		});
+		//one frame of painting: a dab, its stats and rows, like MapWorkspace.updateEdits()
+		final float center = mapSize / 2f;
+		bench("edit: 1 dab + stats + rows + lod errors", () -> {
+			editor.beginStroke(HeightEditor.Brush.RAISE, center, center);
+			editor.apply(center, center, brushRadius, 0.1f);
+			editor.endStroke();
+			editor.takeDirty(dirty);
+			for(TerrainChunk chunk : indexed){
+				if(dirty[0] <= chunk.getCellX() + chunk.getCellsX() && dirty[2] >= chunk.getCellX()
+						&& dirty[1] <= chunk.getCellZ() + chunk.getCellsZ() && dirty[3] >= chunk.getCellZ()){
+					sink += indexedBuilder.rebuildRows(chunk, dirty[0], dirty[2], rows);
+					indexedBuilder.updateBounds(chunk);
+					chunk.setLodErrors(lod.calculateErrors(heightfield, unit, chunk));
+				}
+			}
+			editor.undo();
+			editor.takeDirty(dirty);
+		});
+		bench("edit: rebuild every chunk, indexed + lod errors", () -> indexedBuilder.build(fresh));
+	}
+
+	/**
+	 * Saving edited heights: SmdWriter against ServerMap.toSmd().  Checks that the saved file has
+	 * the edited heights, the other sections unchanged, and that ServerMap.loadMap() reads it.
+	 * Logs an error on a difference.
+	 */
+	private void benchSaving() throws IOException {
+		final float unit = Math.min(4f, SyntheticMap.MAX_WIDTH / (mapSize - 1));
+		final File smd = File.createTempFile("benchmark", ".smd");
+		final File saved = File.createTempFile("benchmark", ".smd");
+		try {
+			SyntheticMap.writeSmd(mapSize, unit, walls, smd);
+			final MappedSmdLoader loader = new MappedSmdLoader(smd);
+			final Heightfield heightfield = loader.getHeightfield();
+			HeightEditor editor = new HeightEditor(loader.getMap(), heightfield, Long.MAX_VALUE);
+			stroke(editor, HeightEditor.Brush.RAISE, 0.3f);
+			final SmdWriter writer = new SmdWriter(loader);
+			writer.save(heightfield, unit, saved);
+
+			int errors = 0;
+			MappedSmdLoader reloaded = new MappedSmdLoader(saved);
+			errors += reloaded.getHeightfield().getBuffer().equals(heightfield.getBuffer()) ? 0 : 1;
+			errors += reloaded.getLength() == loader.getLength() ? 0 : 1;
+			for(MappedSmdLoader.Section section : MappedSmdLoader.Section.values()){
+				if(section != MappedSmdLoader.Section.TERRAIN && !reloaded.slice(section).equals(loader.slice(section))){
+					errors++;
+				}
+			}
+			ServerMap map = new ServerMap();
+			errors += map.loadMap(saved) && map.getHeight()[mapSize / 2][mapSize / 2] == heightfield.get(mapSize / 2, mapSize / 2) ? 0 : 1;
+
+			//in place like the viewer: unmapped before the move (Windows refuses to replace a mapped file), mapped again after
+			SmdWriter inPlace = new SmdWriter(reloaded);
+			reloaded.getCollisionVertices();
+			reloaded.close();
+			errors += isMapped(saved) ? 1 : 0;
+			inPlace.save(reloaded.getHeightfield(), unit, saved);
+			reloaded.remap();
+			errors += reloaded.isOpen() && !isMapped(new File(saved.getPath() + ".tmp")) ? 0 : 1;
+			errors += reloaded.slice(MappedSmdLoader.Section.COLLISION).equals(loader.slice(MappedSmdLoader.Section.COLLISION)) ? 0 : 1;
+			reloaded.close();
+			errors += isMapped(saved) ? 1 : 0;
+			errors += checkSavingLoaded(saved, unit);
+			String result = String.format("%-50s %d KB, %d errors", "save: SmdWriter, sections vs source", saved.length() / 1024, errors);
+			if(errors == 0){
+				Logger.info(result);
+			} else {
+				Logger.error(result);
+			}
+
+			bench("save: SmdWriter " + mapSize, () -> {
+				try {
+					writer.save(heightfield, unit, saved);
+				} catch(IOException e){
+					throw new IllegalStateException(e);
+				}
+			});
+			loader.loadAll();
+			final ServerMap full = loader.getMap();
+			bench("save: ServerMap.toSmd() + write " + mapSize, () -> {
+				try {
+					Files.write(saved.toPath(), full.toSmd((int) loader.getLength()));
+				} catch(IOException e){
+					throw new IllegalStateException(e);
+				}
+			});
+			loader.close();
+		} finally {
+			smd.delete();
+			saved.delete();
+		}
+	}
+
+	/**
+	 * Saves in place a map opened like the viewer opens it, through a TerrainLoader with the mesh
+	 * cache on: nothing the loader or the cache key read may keep the file mapped once the
+	 * MappedSmdLoader is closed.
+	 * @return errors
+	 */
+	private int checkSavingLoaded(File smd, float unit) throws IOException {
+		File directory = Files.createTempDirectory("benchmark").toFile();
+		try {
+			TerrainMeshCache cache = new TerrainMeshCache(directory, Long.MAX_VALUE);
+			//the whole mesh fits in the queue, so the loader runs on this thread
+			TerrainLoader loader = new TerrainLoader(smd, true, true, 64, 2f, cache, Terrain.createChunks(mapSize, 64).size());
+			loader.run();
+			if(loader.getState() != TerrainLoader.State.DONE || loader.getMapLoader() == null){
+				return 1;
+			}
+			int errors = 0;
+			MappedSmdLoader mapLoader = loader.getMapLoader();
+			SmdWriter writer = new SmdWriter(mapLoader);
+			mapLoader.close();
+			errors += isMapped(smd) ? 1 : 0;
+			writer.save(loader.getHeightfield(), unit, smd);
+			errors += new File(smd.getPath() + ".tmp").exists() ? 1 : 0;
+			mapLoader.remap();
+			mapLoader.close();
+			errors += isMapped(smd) ? 1 : 0;
+			return errors;
+		} finally {
+			File[] files = directory.listFiles();
+			if(files != null){
+				for(File f : files){
+					f.delete();
+				}
+			}
+			directory.delete();
+		}
+	}
+
+	/**
+	 * @return true if the process still maps the file, false if it doesn't or the platform has no /proc/self/maps
+	 */
+	private static boolean isMapped(File file) throws IOException {
+		File maps = new File("/proc/self/maps");
+		if(!maps.exists()){
+			return false;
+		}
+		String path = file.getCanonicalPath();
+		for(String line : Files.readAllLines(maps.toPath())){
+			if(line.endsWith(path)){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * One stroke of dabs along the diagonal, ended.
+	 * @param position fraction of the map the stroke starts at
+	 */
+	private void stroke(HeightEditor editor, HeightEditor.Brush brush, float position){
+		float start = position * mapSize, length = mapSize * 0.2f;
+		editor.beginStroke(brush, start, start);
+		for(int i = 0; i < dabs; i++){
+			float t = start + length * i / dabs;
+			editor.apply(t, t, brushRadius, 0.5f);
+		}
+		editor.endStroke();
+	}
+
+	/**
+	 * Nearest hit of a ray with every triangle the terrain draws.
+	 * @param ray origin and direction at offset o, world units
+	 * @param hit receives x, y, z in world units
+	 */
+	private static boolean legacyPick(Heightfield heightfield, float unit, float[] ray, int o, float[] hit){
+		float ox = ray[o] / unit, oy = ray[o + 1] / unit, oz = ray[o + 2] / unit;
+		float dx = ray[o + 3] / unit, dy = ray[o + 4] / unit, dz = ray[o + 5] / unit;
+		float best = Float.POSITIVE_INFINITY;
+		int cells = heightfield.getSize() - 2;
+		for(int x = 0; x < cells; x++){
+			for(int z = 0; z < cells; z++){
+				float h0 = heightfield.get(x, z), h1 = heightfield.get(x + 1, z);
+				float h2 = heightfield.get(x + 1, z + 1), h3 = heightfield.get(x, z + 1);
+				best = Math.min(best, HeightPicker.intersectTriangle(ox, oy, oz, dx, dy, dz, x, h0, z, x + 1, h1, z, x + 1, h2, z + 1));
+				best = Math.min(best, HeightPicker.intersectTriangle(ox, oy, oz, dx, dy, dz, x + 1, h2, z + 1, x, h3, z + 1, x, h0, z));
+			}
+		}
+		if(best == Float.POSITIVE_INFINITY){
+			return false;
+		}
+		hit[0] = (ox + dx * best) * unit;
+		hit[1] = (oy + dy * best) * unit;
+		hit[2] = (oz + dz * best) * unit;
+		return true;
+	}
+
+	/**
+	 * Known answers of CollisionIndex on a hand built collision section, for the index built from the
+	 * mapped file and from the parsed N3ShapeMgr.  Three walls on a 256 unit map: a 4 x 20 quad in the
+	 * plane x = 10, one in the plane z = 100 and one across the whole map at z = 206 that is only
+	 * reached after MAX_SUB_CELLS sub cells.  Logs an error for every wrong answer.
+	 */
+	private void checkCollisionAnswers() throws IOException {
+		float[] faces = {
+				10, 0, 8,		10, 0, 12,		10, 20, 12,
+				10, 20, 12,		10, 20, 8,		10, 0, 8,
+				96, 0, 100,		104, 0, 100,	104, 20, 100,
+				104, 20, 100,	96, 20, 100,	96, 0, 100,
+				0, 0, 206,		256, 0, 206,	256, 20, 206,
+				256, 20, 206,	0, 20, 206,		0, 0, 206};
+		//x1, y1, z1, x2, y2, z2, 1 if it hits
+		float[][] answers = {
+				{8, 5, 10,		12, 5, 10,		1},	//through the quad
+				{12, 5, 10,		8, 5, 10,		1},	//through its other face
+				{8, 25, 10,		12, 25, 10,		0},	//above it
+				{8, 5, 10,		9.5f, 5, 10,	0},	//ends in front of it
+				{10.5f, 5, 10,	12, 5, 10,		0},	//starts behind it
+				{10, 5, 9,		10, 5, 11,		0},	//in its plane
+				{9, 5, 10,		9, 5, 10,		0},	//no length
+				{90, 5, 90,		110, 5, 110,	1},	//over 6 x 6 sub cells of 2 x 2 main cells
+				{250, 5, 205,	252, 5, 207,	1},	//the long wall near the start
+				{2, 5, 194,		254, 5, 206.5f,	0}};//the long wall after 2 rows of 64 sub cells
+		File smd = File.createTempFile("collision", ".smd");
+		try {
+			SyntheticMap.writeSmd(65, 4f, faces, smd);
+			try(MappedSmdLoader loader = new MappedSmdLoader(smd)){
+				CollisionIndex mapped = CollisionIndex.build(loader);
+				loader.load(MappedSmdLoader.Section.COLLISION);
+				CollisionIndex parsed = CollisionIndex.build(loader.getMap().getShapeManager());
+				int errors = 0;
+				for(float[] a : answers){
+					boolean expected = a[6] != 0;
+					if(mapped.intersects(a[0], a[1], a[2], a[3], a[4], a[5]) != expected
+							|| parsed.intersects(a[0], a[1], a[2], a[3], a[4], a[5]) != expected){
+						Logger.error(String.format("collision: (%.1f %.1f %.1f) to (%.1f %.1f %.1f) should %s", a[0], a[1], a[2],
+								a[3], a[4], a[5], expected ? "hit" : "miss"));
+						errors++;
+					}
+				}
+				String result = String.format("%-50s %d segments, %d errors", "collision: known answers", answers.length, errors);
+				if(errors == 0){
+					Logger.info(result);
+				} else {
+					Logger.error(result);
+				}
+			}
+		} finally {
+			smd.delete();
+		}
+	}
+
+	/**
+	 * Segment queries against the collision faces: the reference walk over the N3ShapeMgr objects
+	 * against CollisionIndex, one segment at a time and in batches.  Logs an error if any answer differs.
+	 */
+	private void benchCollision() throws IOException {
+		final float unit = Math.min(4f, SyntheticMap.MAX_WIDTH / (mapSize - 1));
+		final File smd = File.createTempFile("benchmark", ".smd");
+		try {
+			SyntheticMap.writeSmd(mapSize, unit, walls, smd);
+			try(MappedSmdLoader loader = new MappedSmdLoader(smd)){
+				loader.load(MappedSmdLoader.Section.COLLISION);
+				final N3ShapeMgr shapes = loader.getMap().getShapeManager();
+				final float[] segment = createSegments(loader.getHeightfield(), unit, (mapSize - 1) * unit);
+				final int count = segment.length / 6;
+
+				bench("collision: CollisionIndex.build(MappedSmdLoader)", () -> objectSink = CollisionIndex.build(loader));
+				bench("collision: CollisionIndex.build(N3ShapeMgr)", () -> objectSink = CollisionIndex.build(shapes));
+				final CollisionIndex index = CollisionIndex.build(loader);
+
+				boolean[] expected = new boolean[count];
+				boolean[] single = new boolean[count];
+				boolean[] batch = new boolean[count];
+				boolean[] parsed = new boolean[count];
+				int hits = 0;
+				for(int i = 0; i < count; i++){
+					int o = i * 6;
+					expected[i] = legacyIntersects(shapes, segment[o], segment[o + 1], segment[o + 2], segment[o + 3], segment[o + 4], segment[o + 5]);
+					single[i] = index.intersects(segment[o], segment[o + 1], segment[o + 2], segment[o + 3], segment[o + 4], segment[o + 5]);
+					hits += expected[i] ? 1 : 0;
+				}
+				index.intersects(segment, batch);
+				CollisionIndex.build(shapes).intersects(segment, parsed, 0, count);
+				int mismatches = 0;
+				for(int i = 0; i < count; i++){
+					if(single[i] != expected[i] || batch[i] != expected[i] || parsed[i] != expected[i]){
+						mismatches++;
+					}
+				}
+				String result = String.format("%-50s %d of %d segments hit, %d mismatches", "collision: CollisionIndex vs N3ShapeMgr walk",
+						hits, count, mismatches);
+				if(mismatches == 0){
+					Logger.info(result);
+				} else {
+					Logger.error(result);
+				}
+
+				bench("collision: N3ShapeMgr walk, " + count + " segments", () -> {
+					int n = 0;
+					for(int i = 0; i < count; i++){
+						int o = i * 6;
+						n += legacyIntersects(shapes, segment[o], segment[o + 1], segment[o + 2], segment[o + 3], segment[o + 4], segment[o + 5]) ? 1 : 0;
+					}
+					sink += n;
+				});
+				bench("collision: CollisionIndex single, " + count + " segments", () -> {
+					int n = 0;
+					for(int i = 0; i < count; i++){
+						int o = i * 6;
+						n += index.intersects(segment[o], segment[o + 1], segment[o + 2], segment[o + 3], segment[o + 4], segment[o + 5]) ? 1 : 0;
+					}
+					sink += n;
+				});
+				bench("collision: CollisionIndex batch 1 thread, " + count + " segments", () -> sink += index.intersects(segment, batch, 0, count));
+				bench("collision: CollisionIndex batch parallel, " + count + " segments", () -> sink += index.intersects(segment, batch));
+			}
+		} finally {
+			smd.delete();
+		}
+	}
+
+	/**
+	 * Random segments a few units above the ground, 1 to 40 units long, like line of sight and
+	 * movement checks.  Same seed every time.
+	 * @return x1, y1, z1, x2, y2, z2 per segment
+	 */
+	private float[] createSegments(Heightfield heightfield, float unit, float width){
+		Random random = new Random(11);
+		float[] segment = new float[segments * 6];
+		for(int i = 0; i < segments; i++){
+			float x1 = random.nextFloat() * width, z1 = random.nextFloat() * width;
+			double angle = random.nextDouble() * Math.PI * 2;
+			float length = 1f + random.nextFloat() * 39f;
+			float x2 = Math.max(0f, Math.min(width, x1 + length * (float)Math.cos(angle)));
+			float z2 = Math.max(0f, Math.min(width, z1 + length * (float)Math.sin(angle)));
+			int o = i * 6;
+			segment[o] = x1;
+			segment[o + 1] = heightfield.getClamped(Math.round(x1 / unit), Math.round(z1 / unit)) * unit + 0.5f + random.nextFloat() * 4f;
+			segment[o + 2] = z1;
+			segment[o + 3] = x2;
+			segment[o + 4] = heightfield.getClamped(Math.round(x2 / unit), Math.round(z2 / unit)) * unit + 0.5f + random.nextFloat() * 4f;
+			segment[o + 5] = z2;
+		}
+		return segment;
+	}
+
+	/**
+	 * The game server's collision check (CN3ShapeMgr::CheckCollision) on the objects of N3ShapeMgr,
+	 * whose own checkCollision() is a stub: a Vector3d per position and direction, the sub cells under
+	 * the segment looked up through CellMain and CellSub, the vertices through the collision list.
+	 * CollisionIndex has to give the same answer for every segment.
+	 */
+	private static boolean legacyIntersects(N3ShapeMgr shapes, float x1, float y1, float z1, float x2, float y2, float z2){
+		Vector3d pos = new Vector3d(x1, y1, z1);
+		Vector3d dir = new Vector3d(x2 - x1, y2 - y1, z2 - z1);
+		float speed = (float) Math.sqrt(dir.getX() * dir.getX() + dir.getY() * dir.getY() + dir.getZ() * dir.getZ());
+		if(!(speed > 0f)){
+			return false;
+		}
+		dir.set(dir.getX() / speed, dir.getY() / speed, dir.getZ() / speed);
+		Vector3d next = new Vector3d(x1 + dir.getX() * speed, y1 + dir.getY() * speed, z1 + dir.getZ() * speed);
+		Vector3d back = new Vector3d(-dir.getX(), -dir.getY(), -dir.getZ());
+
+		List<CellSub> cells = new ArrayList<CellSub>();
+		int xx1 = (int) (Math.min(pos.getX(), next.getX()) / N3ShapeMgr.CELL_SUB_SIZE);
+		int xx2 = (int) (Math.max(pos.getX(), next.getX()) / N3ShapeMgr.CELL_SUB_SIZE);
+		int zz1 = (int) (Math.min(pos.getZ(), next.getZ()) / N3ShapeMgr.CELL_SUB_SIZE);
+		int zz2 = (int) (Math.max(pos.getZ(), next.getZ()) / N3ShapeMgr.CELL_SUB_SIZE);
+		for(int zz = zz1; zz <= zz2 && cells.size() < CollisionIndex.MAX_SUB_CELLS; zz++){
+			for(int xx = xx1; xx <= xx2 && cells.size() < CollisionIndex.MAX_SUB_CELLS; xx++){
+				CellSub cell = legacySubCell(shapes, xx, zz);
+				if(cell != null){
+					cells.add(cell);
+				}
+			}
+		}
+		for(CellSub cell : cells){
+			if(cell.getVertIndices() == null){
+				continue;
+			}
+			for(Vector3d poly : cell.getVertIndices()){
+				Vector3d v0 = shapes.getCollisions().get(Float.floatToRawIntBits(poly.getX()));
+				Vector3d v1 = shapes.getCollisions().get(Float.floatToRawIntBits(poly.getY()));
+				Vector3d v2 = shapes.getCollisions().get(Float.floatToRawIntBits(poly.getZ()));
+				if(legacyIntersectTriangle(pos, dir, v0, v1, v2) && legacyIntersectTriangle(next, back, v0, v1, v2)){
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private static CellSub legacySubCell(N3ShapeMgr shapes, int xx, int zz){
+		if(xx < 0 || zz < 0){
+			return null;
+		}
+		int x = xx / N3ShapeMgr.CELL_MAIN_DIVIDE, z = zz / N3ShapeMgr.CELL_MAIN_DIVIDE;
+		CellMain[][] cells = shapes.getCells();
+		if(x >= Math.ceil(shapes.getWidth() / N3ShapeMgr.CELL_MAIN_SIZE) || z >= Math.ceil(shapes.getLength() / N3ShapeMgr.CELL_MAIN_SIZE)
+				|| cells[x][z] == null || cells[x][z].getExist() == 0){
+			return null;
+		}
+		return cells[x][z].getSubCells()[xx % N3ShapeMgr.CELL_MAIN_DIVIDE][zz % N3ShapeMgr.CELL_MAIN_DIVIDE];
+	}
+
+	/**
+	 * Two sided ray / triangle test, the hit has to be in front of the origin.
+	 */
+	private static boolean legacyIntersectTriangle(Vector3d orig, Vector3d dir, Vector3d v0, Vector3d v1, Vector3d v2){
+		Vector3d edge1 = new Vector3d(v1.getX() - v0.getX(), v1.getY() - v0.getY(), v1.getZ() - v0.getZ());
+		Vector3d edge2 = new Vector3d(v2.getX() - v0.getX(), v2.getY() - v0.getY(), v2.getZ() - v0.getZ());
+		Vector3d p = new Vector3d(dir.getY() * edge2.getZ() - dir.getZ() * edge2.getY(),
+				dir.getZ() * edge2.getX() - dir.getX() * edge2.getZ(), dir.getX() * edge2.getY() - dir.getY() * edge2.getX());
+		float det = edge1.getX() * p.getX() + edge1.getY() * p.getY() + edge1.getZ() * p.getZ();
+		Vector3d t;
+		if(det > 0f){
+			t = new Vector3d(orig.getX() - v0.getX(), orig.getY() - v0.getY(), orig.getZ() - v0.getZ());
+		} else {
+			t = new Vector3d(v0.getX() - orig.getX(), v0.getY() - orig.getY(), v0.getZ() - orig.getZ());
+			det = -det;
+		}
+		if(det < 0.0001f){
+			return false;
+		}
+		float u = t.getX() * p.getX() + t.getY() * p.getY() + t.getZ() * p.getZ();
+		if(u < 0f || u > det){
+			return false;
+		}
+		Vector3d q = new Vector3d(t.getY() * edge1.getZ() - t.getZ() * edge1.getY(),
+				t.getZ() * edge1.getX() - t.getX() * edge1.getZ(), t.getX() * edge1.getY() - t.getY() * edge1.getX());
+		float v = dir.getX() * q.getX() + dir.getY() * q.getY() + dir.getZ() * q.getZ();
+		if(v < 0f || u + v > det){
+			return false;
+		}
+		float fT = (edge2.getX() * q.getX() + edge2.getY() * q.getY() + edge2.getZ() * q.getZ()) * (1f / det);
+		return !(fT < 0f);
+	}
+
+	/**
+	 * Matrix, quaternion and camera math, reported per operation.
+	 */
+	private void benchMath(){
+		final Matrix4f a = Matrix4f.rotate(30f, 0f, 1f, 0f).multiply(Matrix4f.translate(1f, 2f, 3f));
+		final Matrix4f b = Matrix4f.perspective(67f, 16f / 9f, 0.1f, 1000f);
+		final Versor versor = new Versor(30f, 0f, 1f, 0f);
+		final BasicCamera camera = new BasicCamera(1280, 720);
+
+		benchOperations("math: Matrix4f.multiply()", () -> {
+			for(int i = 0; i < operations; i++){
+				objectSink = a.multiply(b);
+			}
+		});
+		final Matrix4f dest = new Matrix4f();
+		benchOperations("math: Matrix4f.mulInto()", () -> {
+			for(int i = 0; i < operations; i++){
+				a.mulInto(b, dest);
+			}
+			objectSink = dest;
+		});
+		benchOperations("math: Matrix4f.inverse()", () -> {
+			for(int i = 0; i < operations; i++){
+				objectSink = a.inverse();
+			}
+		});
+		benchOperations("math: Matrix4f.invertInto()", () -> {
+			for(int i = 0; i < operations; i++){
+				a.invertInto(dest);
+			}
+			objectSink = dest;
+		});
+		benchOperations("math: Versor.toRotationMatrix()", () -> {
+			for(int i = 0; i < operations; i++){
+				objectSink = versor.toRotationMatrix();
+			}
+		});
+		benchOperations("math: Versor.toRotationMatrix(dest)", () -> {
+			for(int i = 0; i < operations; i++){
+				versor.toRotationMatrix(dest);
+			}
+			objectSink = dest;
+		});
+		benchOperations("math: BasicCamera.calculateView()", () -> {
+			for(int i = 0; i < operations; i++){
+				camera.moveForward(0.01f);
+				camera.rotateRight(0.01f);
+				camera.calculateView();
+			}
+			sink += camera.getPosition().z;
+		});
+	}
+
+	/**
+	 * Checks that a steady state frame of the CPU side per frame path allocates nothing on the heap:
+	 * camera ticks, the interpolated and the placed view with the frustum update, the matrix upload
+	 * buffers, the level of detail selection and index set lookup of every chunk like Terrain.draw(),
+	 * and the frame statistics with their summary and CSV line.  Logs an error otherwise.  Needs a
+	 * HotSpot JVM for the per thread allocation counter.  FrameAllocationCheck covers the GL side.
+	 */
+	private void checkFrameAllocations() throws IOException {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if(!(bean instanceof com.sun.management.ThreadMXBean)){
+			Logger.info("alloc: no thread allocation counter on this JVM, skipped");
+			return;
+		}
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+		long thread = Thread.currentThread().getId();
+		ServerMap map = SyntheticMap.create(Math.min(mapSize, 513), 4f);
+		//index sets are only looked up, there is no context to upload them to
+		TerrainLod lod = new TerrainLod(64, 2f){
+			@Override
+			protected int upload(IntBuffer indices){
+				return 0;
+			}
+		};
+		List<TerrainChunk> chunks = build(map, Heightfield.fromArray(map.getHeight()), true, lod);
+		int side = (int) Math.round(Math.sqrt(chunks.size()));
+		BasicCamera camera = new BasicCamera(1280, 720);
+		camera.setPosition(new Vector3f(0f, 300f, 0f));
+		float pixelsPerUnit = camera.getHeight() / (2f * (float) Math.tan(camera.getFov() / 2f));
+		FrameStats stats = new FrameStats(240);
+		File csv = File.createTempFile("benchmark", ".csv");
+		StringBuilder text = new StringBuilder(512);
+		Runnable frame = () -> {
+			stats.beginFrame();
+			stats.mark(FrameStats.Stage.INPUT);
+			//placed like a scripted camera path, then one simulation tick and the view between the last two ticks
+			camera.calculateView();
+			camera.saveState();
+			camera.moveForward(0.01f);
+			camera.moveRight(0.01f);
+			camera.rotateLeft(0.01f);
+			camera.rotateUp(0.001f);
+			camera.update();
+			stats.mark(FrameStats.Stage.UPDATE);
+			camera.interpolate(0.5f);
+			stats.mark(FrameStats.Stage.CAMERA);
+			sink += camera.getViewMatrix().getBuffer().get(12) + camera.getProjectionMatrix().getBuffer().get(0);
+			Vector3f eye = camera.getViewPosition();
+			for(int i = 0; i < chunks.size(); i++){
+				TerrainChunk chunk = chunks.get(i);
+				chunk.setLevel(lod.selectLevel(chunk.getLodErrors(), chunk.distance(eye.x, eye.y, eye.z), pixelsPerUnit));
+			}
+			int triangles = 0;
+			for(int x = 0; x < side; x++){
+				for(int z = 0; z < side; z++){
+					TerrainChunk chunk = chunks.get(x * side + z);
+					int level = chunk.getLevel();
+					triangles += lod.getIndexSet(chunk.getCellsX(), chunk.getCellsZ(), level,
+							Math.max(level, z > 0 ? chunks.get(x * side + z - 1).getLevel() : level),
+							Math.max(level, x < side - 1 ? chunks.get((x + 1) * side + z).getLevel() : level),
+							Math.max(level, z < side - 1 ? chunks.get(x * side + z + 1).getLevel() : level),
+							Math.max(level, x > 0 ? chunks.get((x - 1) * side + z).getLevel() : level)).getCount() / 3;
+				}
+			}
+			stats.addDraws(chunks.size(), triangles);
+			stats.mark(FrameStats.Stage.DRAW);
+			stats.mark(FrameStats.Stage.SWAP);
+			text.setLength(0);
+			stats.appendSummary(text);
+		};
+		try {
+			stats.openCsv(csv);
+			int frames = 20000;
+			//warm up, so the counter sees compiled code and every index set of the path exists
+			for(int pass = 0; pass < 2; pass++){
+				camera.setPosition(new Vector3f(0f, 300f, 0f));
+				camera.setOrientation(225f, -20f);
+				for(int i = 0; i < frames; i++){
+					frame.run();
+				}
+			}
+			//a deoptimization now and then materializes objects the JIT had eliminated, so the best of a few
+			//runs counts.  A frame that allocates shows up in every run.
+			long allocated = Long.MAX_VALUE;
+			for(int run = 0; run < 5 && allocated > 0; run++){
+				camera.setPosition(new Vector3f(0f, 300f, 0f));
+				camera.setOrientation(225f, -20f);
+				long before = threads.getThreadAllocatedBytes(thread);
+				for(int i = 0; i < frames; i++){
+					frame.run();
+				}
+				allocated = Math.min(allocated, threads.getThreadAllocatedBytes(thread) - before);
+			}
+			String result = String.format("%-50s %d bytes over %d frames", "alloc: camera + lod + frame stats frame", allocated, frames);
+			if(allocated == 0){
+				Logger.info(result);
+			} else {
+				Logger.error(result + ", expected 0");
+			}
+		} finally {
+			stats.closeCsv();
+			csv.delete();
+		}
+	}
+
+	/**
+	 * Runs a benchmark and logs the average and best time of an iteration.
+	 */
+	private void bench(String name, Runnable task){
+		for(int i = 0; i < warmup; i++){
+			task.run();
+		}
+		long best = Long.MAX_VALUE, total = 0;
+		for(int i = 0; i < iterations; i++){
+			long start = System.nanoTime();
+			task.run();
+			long time = System.nanoTime() - start;
+			best = Math.min(best, time);
+			total += time;
+		}
+		Logger.info(String.format("%-50s avg %10.3f ms   best %10.3f ms", name, total / iterations / 1e6, best / 1e6));
+	}
+
+	/**
+	 * Runs a benchmark of <code>operations</code> calls per iteration and logs the time of one call.
+	 */
+	private void benchOperations(String name, Runnable task){
+		for(int i = 0; i < warmup; i++){
+			task.run();
+		}
+		long best = Long.MAX_VALUE, total = 0;
+		for(int i = 0; i < iterations; i++){
+			long start = System.nanoTime();
+			task.run();
+			long time = System.nanoTime() - start;
+			best = Math.min(best, time);
+			total += time;
+		}
+		Logger.info(String.format("%-50s avg %10.1f ns   best %10.1f ns", name,
+				(double)total / iterations / operations, (double)best / operations));
+	}
+
+	private List<TerrainChunk> build(ServerMap map, Heightfield heightfield, boolean indexed, TerrainLod lod){
+		int[] bounds = Terrain.chunkBounds(map.getMapSize()-2, 64);
+		List<TerrainChunk> chunks = new ArrayList<TerrainChunk>();
+		for(int x = 0; x < bounds.length-1; x++){
+			for(int z = 0; z < bounds.length-1; z++){
+				chunks.add(new TerrainChunk(bounds[x], bounds[z], bounds[x+1] - bounds[x], bounds[z+1] - bounds[z]));
+			}
+		}
+		new TerrainMeshBuilder(heightfield, map.getUnitDistance(), indexed, lod).build(chunks);
+		double sum = 0;
+		for(TerrainChunk chunk : chunks){
+			sum += chunk.getVertexData().get(1);
+		}
+		sink += sum;
+		return chunks;
+	}
+
+	/**
+	 * The original Terrain.loadBuffers() loop: float[3] per vertex and color, one float[] for the
+	 * whole map, copied into a FloatBuffer afterwards.
+	 */
+	private void legacyBuild(ServerMap map, float minHeight, float maxHeight){
+		int shapeCount = (int) Math.pow(map.getMapSize()-2, 2)*2;
+		int pointCount = shapeCount * 3 * 3;
+		float[] vertices = new float[pointCount];
+		float[] colors = new float[pointCount];
+
+		int vi = 0, ci = 0;
+		for(float i = 0; i < map.getMapSize()-2; i++){
+			for(float j = 0; j < map.getMapSize()-2; j++){
+				float y = map.getHeight()[(int)i][(int)j];
+				float[] v0 = {(i * map.getUnitDistance()), (y * map.getUnitDistance()),(j * map.getUnitDistance())};
+				float[] c0 = legacyColor(y, minHeight, maxHeight);
+				y = map.getHeight()[(int)i+1][(int)j];
+				float[] v1 = {((i+1) * map.getUnitDistance()), (y * map.getUnitDistance()),(j * map.getUnitDistance())};
+				float[] c1 = legacyColor(y, minHeight, maxHeight);
+				y = map.getHeight()[(int)i+1][(int)j+1];
+				float[] v2 = {((i+1) * map.getUnitDistance()), (y * map.getUnitDistance()),((j+1) * map.getUnitDistance())};
+				float[] c2 = legacyColor(y, minHeight, maxHeight);
+				y = map.getHeight()[(int)i][(int)j+1];
+				float[] v3 = {(i * map.getUnitDistance()), (y * map.getUnitDistance()),((j+1) * map.getUnitDistance())};
+				float[] c3 = legacyColor(y, minHeight, maxHeight);
+
+				//Triangle 1:  v0 + v1 + v2, Triangle 2:  v2 + v3 + v0
+				vi = put(vertices, vi, v0);
+				vi = put(vertices, vi, v1);
+				vi = put(vertices, vi, v2);
+				vi = put(vertices, vi, v2);
+				vi = put(vertices, vi, v3);
+				vi = put(vertices, vi, v0);
+				ci = put(colors, ci, c0);
+				ci = put(colors, ci, c1);
+				ci = put(colors, ci, c2);
+				ci = put(colors, ci, c2);
+				ci = put(colors, ci, c3);
+				ci = put(colors, ci, c0);
+			}
+		}
+		FloatBuffer vertexBuffer = BufferUtils.createFloatBuffer(vertices.length);
+		vertexBuffer.put(vertices).flip();
+		FloatBuffer colorBuffer = BufferUtils.createFloatBuffer(colors.length);
+		colorBuffer.put(colors).flip();
+		sink += vertexBuffer.get(1) + colorBuffer.get(1);
+	}
+
+	private static int put(float[] dest, int index, float[] v){
+		dest[index] = v[0];
+		dest[index+1] = v[1];
+		dest[index+2] = v[2];
+		return index + 3;
+	}
+
+	private static float[] legacyColor(float y, float minHeight, float maxHeight){
+		float x = (y - minHeight) / (maxHeight - minHeight);
+		float red = Math.min(Math.abs(1.7143f*x*x-0.7143f*x+0.0143f), 1f);
+		float green = Math.min(Math.abs(-3.4286f*x*x+3.4286f*x-0.0286f), 1f);
+		float blue = Math.min(Math.abs(1.7143f*x*x-2.7143f*x+1.0143f), 1f);
+		return new float[] {red, green, blue};
+	}
+}
@@ -1,7 +1,6 @@
 package kenner.ko.tools;
 
 import static org.lwjgl.opengl.GL11.*;
-import static org.lwjgl.opengl.GL20.*;
 import static org.lwjgl.opengl.GL30.*;
 import static org.lwjgl.glfw.GLFW.*;
 import static org.lwjgl.system.MemoryUtil.*;
@@ -12,6 +11,7 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.Properties;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
 import javax.swing.JFileChooser;
 import javax.swing.JPanel;
@@ -22,25 +22,49 @@ import org.lwjgl.glfw.GLFWErrorCallback;
 import org.lwjgl.glfw.GLFWKeyCallback;
 import org.lwjgl.glfw.GLFWMouseButtonCallback;
 import org.lwjgl.glfw.GLFWScrollCallback;
+import org.lwjgl.glfw.GLFWWindowRefreshCallback;
 import org.lwjgl.opengl.GLContext;
 
-import silvertiger.tutorial.lwjgl.math.Vector3f;
 import kenner.glfw.keybind.BasicKeyboardMovement;
+import kenner.ko.map.HeightEditor;
+import kenner.ko.map.HeightPicker;
+import kenner.ko.map.MapInfo;
+import kenner.ko.map.MappedSmdLoader;
 import kenner.ko.map.ServerMap;
+import kenner.ko.renderable.ColorRamp;
 import kenner.ko.renderable.Terrain;
+import kenner.ko.renderable.TerrainMeshCache;
 import kenner.ko.util.Logger;
 import kenner.ko.util.SmdXmlFileFilter;
 import kenner.opengl.camera.BasicCamera;
+import kenner.opengl.camera.CameraPath;
+import kenner.opengl.camera.CameraUniformBuffer;
+import kenner.opengl.shader.ProgramBinaryCache;
 import kenner.opengl.shader.ProgramManager;
+import kenner.opengl.stats.FrameStats;
+import kenner.opengl.stats.GpuTimer;
+import kenner.opengl.stats.TextOverlay;
+import silvertiger.tutorial.lwjgl.math.Vector3f;
 
 /**
  * Requires OpenGL 3.3+.  Compiled on Java 1.8
  * 
  * Allows you to select an xml or smd file to load, and then renders the terrain.
+ * The map is loaded in the background, the terrain fills in while it's built and the
+ * window title shows the progress.
+ * The window is only redrawn while something changes (input, camera movement, loading), the
+ * render loop sleeps otherwise.
  * You will be placed at (maxX/2, avgHeight, maxZ+15) of the map.
  * 
  * See configuration.properties for various settings.
  * 
+ * Usage: SmdViewer [map] [--benchmark frames] [--path file] [--csv file]
+ * map:  opened directly instead of picking it
+ * --benchmark:  flies the camera along a path for that many frames once the map is loaded,
+ *   prints the frame statistics and exits.  The window is hidden and vsync is off.
+ * --path:  keyframes of the benchmark flight (see CameraPath), default an orbit around the map
+ * --csv:  per frame statistics file, overrides stats.csv
+ * 
  * Controls:
  * WASD:  Movement on the X/Z plane
  * Space:  Fly Up
@@ -51,14 +75,23 @@ import kenner.opengl.shader.ProgramManager;
  * Up-Arrow:  Rotate view up.
  * Down-Arrow:  Rotate view down.
  * X:  Toggle X-Ray (Mesh-View)
+ * R:  Cycle terrain colors (height, slope, movability)
+ * O:  Open another map
+ * Tab / Shift-Tab:  Switch to the next/previous open map
+ * Delete:  Close the current map
+ * F3:  Toggle frame statistics
+ * Left click:  Show the terrain cell under the cursor (position, height, movability, event)
+ * Right click:  Hide the cell info
+ * B:  Cycle the height brush (raise, lower, flatten, off).  With a brush, holding the left button
+ *   paints the terrain under the cursor and the mouse wheel changes the brush radius.
+ * Ctrl-Z / Ctrl-Y:  Undo/redo the last brush stroke
+ * Ctrl-S:  Save the edited heights to the .smd file
  * Esc:  Exit SmdViewer
  * 
  * Future Releases
- * 1) Render Collision Data, Warp Points, etc.
+ * 1) Render Warp Points, etc.
  * 2) Render coordinate system
- * 3) Add Ray-casting for mouse point-selection
- * 4) Add manipulation of points via raycasting
- * 5) Rename SmdEditor
+ * 3) Rename SmdEditor
  * 
  * @author kenner
  */
@@ -77,6 +110,7 @@ public class SmdViewer {
 	private GLFWScrollCallback scrollCallback;
 	private GLFWCursorPosCallback cursorPosCallback;
 	private GLFWMouseButtonCallback mouseButtonCallback;
+	private GLFWWindowRefreshCallback refreshCallback;
 	
 	//configuration
 	private Properties config;
@@ -84,27 +118,148 @@ public class SmdViewer {
 	//for game loop
 	private boolean running = true;
 	
-	//terrain loaded from ServerMap's height data
-	private Terrain terrain;
+	//open maps and their terrains, the active one is drawn
+	private MapWorkspace workspace;
+	//GPU memory of all open terrains before the least recently used are evicted (bytes)
+	private long vramBudget;
+	//last title set, the title is only updated when it changes
+	private String currentTitle;
+	private StringBuilder titleText = new StringBuilder(128);
+	
+	/*
+	 * Frame statistics
+	 */
+	//overlay text refresh interval, ns
+	private static final long STATS_INTERVAL = 250000000L;
+	private FrameStats frameStats;
+	//GPU time of clearing and drawing
+	private GpuTimer gpuTimer;
+	//created when first shown
+	private TextOverlay statsOverlay;
+	private boolean showStats;
+	private StringBuilder statsText = new StringBuilder(512);
+	private long lastStatsUpdate;
+	//frames kept for the statistics
+	private int statsFrames;
+	//CSV file of per frame stats, null if disabled
+	private File statsCsv;
+	//terrain chunks uploaded per frame while loading
+	private int chunksPerFrame;
+	//built chunks that may wait for the upload
+	private int loadQueueSize;
+	//built terrain meshes of previously viewed maps, null if cache.enabled=false
+	private TerrainMeshCache meshCache;
+	//linked shader programs are cached in a subdirectory, null if shader.cache=false
+	private File programCacheDirectory;
+	//recompile shaders when their files change
+	private boolean shaderHotReload;
+	
+	/*
+	 * Picking
+	 */
+	//size of the cell info box in the bottom left corner
+	private static final int PICK_WIDTH = 300, PICK_HEIGHT = 100;
+	//last cursor position, pixels from the top left
+	private double cursorX, cursorY;
+	//created on the first pick
+	private TextOverlay pickOverlay;
+	//empty while hidden
+	private StringBuilder pickText = new StringBuilder(256);
+	//pickText changed since it was uploaded
+	private boolean pickChanged;
+	private Vector3f pickOrigin = new Vector3f(), pickDirection = new Vector3f();
+	private float[] pickHit = new float[3];
+	
+	/*
+	 * Height editing
+	 */
+	//null = the left button picks
+	private HeightEditor.Brush brush;
+	//samples
+	private float brushRadius;
+	//height units per second at the brush center
+	private float brushStrength;
+	//bytes of undo history per map
+	private long undoLimit;
+	//the left button is held with a brush
+	private boolean painting;
+	//editor of the current stroke, the active map may change during it
+	private HeightEditor strokeEditor;
+	
+	/*
+	 * Benchmark mode
+	 */
+	//frames flown along the camera path, 0 = interactive
+	private int benchmarkFrames;
+	//keyframes file, null = orbit around the map
+	private File cameraPathFile;
+	//set once the map is loaded and the timed frames start
+	private CameraPath cameraPath;
+	private int exitCode;
 	
 	/*
 	 * Timer related
 	 */
 	private double previous, current, elapsed;
 	
+	/*
+	 * Frame pacing
+	 */
+	//draw only when something changed, the loop sleeps in glfwWaitEvents() otherwise
+	private boolean onDemand;
+	private boolean vsync;
+	//frame cap while drawing, 0 = none
+	private int targetFps;
+	//set by input callbacks and requestRedraw()
+	private volatile boolean redraw = true;
+	//the camera moved in the last tick, movement keys are held
+	private boolean moving;
+	
+	/*
+	 * Fixed timestep simulation
+	 */
+	//longest frame simulated, a stall doesn't run hundreds of ticks (s)
+	private static final double MAX_FRAME_TIME = 0.25;
+	//seconds per simulation tick
+	private double tickTime;
+	//simulation time not run yet, less than one tick after simulate() (s)
+	private double accumulator;
+	//start of the current frame, ns
+	private long frameStart;
+	
 	/*
 	 * Camera Setup
 	 */
 	private BasicCamera camera;
+	private CameraUniformBuffer cameraBuffer;
 	private float rotateSpeed;
 	private float moveSpeed;
+	private boolean indexedTerrain;
+	private boolean gpuTerrain;
+	private int chunkSize;
+	private float lodThreshold;
 	private boolean cameraMoved = false;
 	private AtomicBoolean xray = new AtomicBoolean(false);
+	//terrain coloring, only a shader uniform
+	private ColorRamp colorRamp = ColorRamp.HEIGHT;
 	
 	/**
-	 * Default constructor.  Sets up window/terrain/camera/keybindings.
+	 * Default constructor.  Sets up window/terrain/camera/keybindings and lets the user pick a map.
 	 */
 	public SmdViewer(){
+		this(null, 0, null, null);
+	}
+	
+	/**
+	 * Sets up window/terrain/camera/keybindings.
+	 * @param map opened directly, null to pick one
+	 * @param benchmarkFrames frames of the scripted camera flight, 0 for interactive use
+	 * @param cameraPathFile keyframes of the flight, null to orbit the map
+	 * @param csv per frame statistics, null to use stats.csv
+	 */
+	public SmdViewer(File map, int benchmarkFrames, File cameraPathFile, File csv){
+		this.benchmarkFrames = benchmarkFrames;
+		this.cameraPathFile = cameraPathFile;
 		//load the config file
 		try {
 			loadConfig();
@@ -112,6 +267,9 @@ public class SmdViewer {
 			e.printStackTrace();
 			System.exit(-1);
 		}
+		if(csv != null){
+			statsCsv = csv;
+		}
 		//Start GL context 
 		if(glfwInit() != GL_TRUE){
 			Logger.error("Error starting context/GLFW");
@@ -131,6 +289,8 @@ public class SmdViewer {
 		//make the context current
 		glfwMakeContextCurrent(windowPtr);
 		GLContext.createFromCurrent();
+		//a benchmark measures frames, not the display refresh rate
+		glfwSwapInterval(vsync && !isBenchmark() ? 1 : 0);
 		
 		//Log OpenGL info.
 		String renderer = glGetString(GL_RENDERER);
@@ -143,22 +303,37 @@ public class SmdViewer {
 		glDepthFunc(GL_LESS);
 		
 		//Launch Shader Program Manager
-		new ProgramManager("shader/");
+		new ProgramManager("shader/", programCacheDirectory != null ? new ProgramBinaryCache(programCacheDirectory) : null);
+		if(shaderHotReload){
+			ProgramManager.watch(this::requestRedraw);
+		}
+		
+		//frame statistics, F3 shows the overlay
+		//a benchmark keeps all of its frames for the percentiles
+		frameStats = new FrameStats(Math.max(statsFrames, benchmarkFrames));
+		gpuTimer = new GpuTimer(4);
+		//the benchmark opens it when the timed frames start
+		if(!isBenchmark()){
+			openStatsCsv();
+		}
 		
 		//camera stuff
 		camera = new BasicCamera(width, height);
 		camera.setSpeed(moveSpeed);
 		camera.setRotateSpeed(rotateSpeed);
-		//set view matrix
-		camera.setViewMatrixLocation(glGetUniformLocation(ProgramManager.getShaderId("ColorSpectrum"), "view"));
-		//set projection matrix
-		camera.setProjectionMatrixLocation(glGetUniformLocation(ProgramManager.getShaderId("ColorSpectrum"), "proj"));
+		//view and projection of every program
+		cameraBuffer = new CameraUniformBuffer();
 		
 		//set error callback
 		glfwSetErrorCallback(errorCallback = GLFWErrorCallback(this::glfwErrorCallback));
 		keyboard = new BasicKeyboardMovement(this);
 		//set keyboard callback
-		glfwSetKeyCallback(windowPtr, keyboardCallback = GLFWKeyCallback(keyboard::glfwKeyCallback));
+		glfwSetKeyCallback(windowPtr, keyboardCallback = GLFWKeyCallback((window, key, scancode, action, mods) -> {
+			keyboard.glfwKeyCallback(window, key, scancode, action, mods);
+			redraw = true;
+		}));
+		//the window was uncovered or resized and has to be drawn again
+		glfwSetWindowRefreshCallback(windowPtr, refreshCallback = GLFWWindowRefreshCallback(window -> redraw = true));
 		//set mouse position callback
 		glfwSetCursorPosCallback(windowPtr, cursorPosCallback = GLFWCursorPosCallback(this::glfwCursorPosCallback));
 		//set mouse button callback
@@ -166,7 +341,32 @@ public class SmdViewer {
 		//set mouse scroll callback
 		glfwSetScrollCallback(windowPtr, scrollCallback = GLFWScrollCallback(this::glfwScrollCallback));
 		
+		workspace = new MapWorkspace(camera, vramBudget, gpuTerrain, indexedTerrain, chunkSize, lodThreshold,
+				meshCache, loadQueueSize, chunksPerFrame);
+		workspace.setColorRamp(colorRamp);
+		workspace.setUndoLimit(undoLimit);
 		//load terrain
+		if(map != null){
+			if(map.isFile()){
+				workspace.open(map);
+			} else {
+				Logger.error("Map " + map.getPath() + " not found.");
+				exitCode = 1;
+				end();
+			}
+		} else if(!openMap()){
+			end();
+		}
+		
+		previous = glfwGetTime();
+	}
+	
+	/**
+	 * Lets the user pick a map and adds it to the workspace.  It's parsed and built on a worker,
+	 * the render loop uploads the terrain as it arrives.
+	 * @return false if the dialog was cancelled
+	 */
+	public boolean openMap(){
 		JFileChooser chooser = new JFileChooser();
 		chooser.setCurrentDirectory(new File("maps"));
 		chooser.setFileSelectionMode(JFileChooser.FILES_AND_DIRECTORIES);
@@ -177,19 +377,312 @@ public class SmdViewer {
 		if (chooser.showOpenDialog(new JPanel()) == JFileChooser.APPROVE_OPTION) {
 		     f = chooser.getSelectedFile();
 		}
-		ServerMap m = new ServerMap();
-		m.loadMap(f);
-		terrain = new Terrain(m);
-		
-		//place camera at a position relative to the terrain.
-		float x = (m.getMapSize()*m.getUnitDistance())/2f;
-		float y = terrain.getAvgHeight();
-		float z = x*2f + 15f;
-		
-		camera.setPosition(new Vector3f(x, y, z));
-		camera.calculateView();
-		
-		previous = glfwGetTime();
+		if(f == null){
+			return false;
+		}
+		workspace.open(f);
+		return true;
+	}
+	
+	/**
+	 * Window title with the active map, the number of open maps and the load progress.
+	 */
+	private void updateTitle(){
+		MapWorkspace.Entry active = workspace.getActive();
+		//built in place and compared, so an unchanged title allocates nothing
+		titleText.setLength(0);
+		titleText.append(windowTitle);
+		if(active != null){
+			titleText.append(" - ").append(active.getFile().getName()).append(active.isModified() ? "*" : "")
+					.append(" (").append(workspace.getEntries().indexOf(active) + 1)
+					.append('/').append(workspace.getEntries().size())
+					.append(", ").append(workspace.getGpuBytes() / (1024 * 1024)).append(" MB)");
+			if(active.isLoading()){
+				titleText.append(" loading ").append((int) (active.getLoader().getProgress() * 100)).append('%');
+			}
+		}
+		if(brush != null){
+			titleText.append(" - brush ").append(brush.name().toLowerCase()).append(", radius ").append((int) brushRadius);
+		}
+		if(currentTitle == null || !currentTitle.contentEquals(titleText)){
+			currentTitle = titleText.toString();
+			glfwSetWindowTitle(windowPtr, currentTitle);
+		}
+	}
+	
+	/**
+	 * Draws the statistics overlay if it's shown, the text is refreshed a few times per second.
+	 */
+	private void drawStats(){
+		if(!showStats){
+			return;
+		}
+		if(statsOverlay == null){
+			statsOverlay = new TextOverlay(540, 84, width, height);
+		}
+		long now = System.nanoTime();
+		if(now - lastStatsUpdate > STATS_INTERVAL){
+			frameStats.appendSummary(statsText);
+			statsOverlay.setText(statsText);
+			lastStatsUpdate = now;
+		}
+		statsOverlay.draw();
+	}
+	
+	/**
+	 * Draws the cell info of the last pick, if there is one.
+	 */
+	private void drawPick(){
+		if(pickText.length() == 0){
+			return;
+		}
+		if(pickOverlay == null){
+			pickOverlay = new TextOverlay(PICK_WIDTH, PICK_HEIGHT, width, height);
+			pickOverlay.setPosition(0, height - PICK_HEIGHT);
+		}
+		if(pickChanged){
+			pickOverlay.setText(pickText);
+			pickChanged = false;
+		}
+		pickOverlay.draw();
+	}
+	
+	/**
+	 * Casts a ray through the cursor at the terrain of the active map and shows the cell it hits.
+	 */
+	public void pick(){
+		MapWorkspace.Entry active = workspace.getActive();
+		HeightPicker picker = active != null ? active.getPicker() : null;
+		pickText.setLength(0);
+		pickChanged = true;
+		if(picker == null){
+			pickText.append(active != null ? "Map is still loading" : "No map open");
+			return;
+		}
+		long start = System.nanoTime();
+		camera.unproject((float) cursorX, (float) cursorY, pickOrigin, pickDirection);
+		boolean hit = picker.pick(pickOrigin.x, pickOrigin.y, pickOrigin.z, pickDirection.x, pickDirection.y, pickDirection.z, pickHit);
+		Logger.debug(String.format("Pick took %.1f us", (System.nanoTime() - start) / 1e3));
+		if(!hit){
+			pickText.append("No terrain under the cursor");
+			return;
+		}
+		ServerMap map = active.getMap();
+		float unit = map.getUnitDistance();
+		int x = Math.max(0, Math.min(picker.getCells() - 1, (int) (pickHit[0] / unit)));
+		int z = Math.max(0, Math.min(picker.getCells() - 1, (int) (pickHit[2] / unit)));
+		MapInfo[][] mapInfo = map.getMapInfo();
+		pickText.append(String.format("Cell %d, %d%nWorld %.2f, %.2f, %.2f%nHeight %.2f%nMovable %s%nEvent %s",
+				x, z, pickHit[0], pickHit[1], pickHit[2], active.getHeightfield().get(x, z),
+				map.isMovable(x, z) ? "yes" : "no", mapInfo != null ? String.valueOf(mapInfo[x][z].getEvent()) : "none"));
+		Logger.info("Picked cell " + x + ", " + z);
+	}
+	
+	/**
+	 * Applies the brush to the terrain under the cursor, once per simulation tick while the left
+	 * button is held.  The first tick that hits the terrain starts the stroke.
+	 */
+	private void paint(){
+		HeightEditor editor = workspace.edit();
+		if(editor == null){
+			return;
+		}
+		MapWorkspace.Entry active = workspace.getActive();
+		camera.unproject((float) cursorX, (float) cursorY, pickOrigin, pickDirection);
+		if(!active.getPicker().pick(pickOrigin.x, pickOrigin.y, pickOrigin.z, pickDirection.x, pickDirection.y, pickDirection.z, pickHit)){
+			return;
+		}
+		float unit = active.getMap().getUnitDistance();
+		float x = pickHit[0] / unit, z = pickHit[2] / unit;
+		//undo ends the stroke as well
+		if(strokeEditor != editor || editor.getStrokeBrush() == null){
+			endStroke();
+			editor.beginStroke(brush, x, z);
+			strokeEditor = editor;
+		}
+		editor.apply(x, z, brushRadius, (float) (brushStrength * tickTime));
+	}
+	
+	/**
+	 * Puts the current stroke on the undo stack of its map.
+	 */
+	private void endStroke(){
+		if(strokeEditor != null){
+			strokeEditor.endStroke();
+			strokeEditor = null;
+		}
+	}
+	
+	/* Switches to the next height brush, after the last one the left button picks again */
+	public void cycleBrush(){
+		endStroke();
+		brush = brush == null ? HeightEditor.Brush.RAISE : brush.next();
+		Logger.info("Height brush: " + (brush != null ? brush.name().toLowerCase() : "off"));
+	}
+	
+	/* Writes the heights of the active map back to its file */
+	public void save(){
+		endStroke();
+		workspace.save();
+	}
+	
+	/* Reverts the last brush stroke of the active map */
+	public void undo(){
+		endStroke();
+		HeightEditor editor = workspace.edit();
+		if(editor != null && editor.undo()){
+			Logger.info("Undo, " + editor.getUndoCount() + " strokes left (" + editor.getUndoBytes() / 1024 + " KB)");
+		}
+	}
+	
+	/* Applies the last undone brush stroke of the active map again */
+	public void redo(){
+		endStroke();
+		HeightEditor editor = workspace.edit();
+		if(editor != null && editor.redo()){
+			Logger.info("Redo, " + editor.getRedoCount() + " strokes left");
+		}
+	}
+	
+	private void openStatsCsv(){
+		if(statsCsv != null){
+			try {
+				frameStats.openCsv(statsCsv);
+			} catch (IOException e) {
+				Logger.error("Failed to open " + statsCsv.getPath() + ": " + e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Moves the camera along the benchmark path, once per frame before the camera is updated.
+	 * Frames while the map loads are not timed, the flight starts when the terrain is complete.
+	 * The camera position depends only on the frame number, so every run draws the same frames.
+	 */
+	private void updateBenchmark(){
+		MapWorkspace.Entry active = workspace.getActive();
+		if(active == null){
+			Logger.error("Benchmark aborted, the map failed to load.");
+			exitCode = 1;
+			end();
+			return;
+		}
+		if(cameraPath == null){
+			if(active.isLoading() || !active.isResident()){
+				return;
+			}
+			try {
+				cameraPath = cameraPathFile != null ? CameraPath.load(cameraPathFile) : createOrbit(active);
+			} catch (IOException e) {
+				Logger.error("Failed to read camera path " + cameraPathFile.getPath() + ": " + e.getMessage());
+				exitCode = 1;
+				end();
+				return;
+			}
+			Logger.info("Benchmark: " + benchmarkFrames + " frames, " + cameraPath.getKeyframeCount() + " keyframes");
+			frameStats.reset();
+			openStatsCsv();
+		}
+		long frame = frameStats.getFrames();
+		if(frame >= benchmarkFrames){
+			printBenchmark(active);
+			end();
+			return;
+		}
+		cameraPath.apply(camera, frame / (float) Math.max(1, benchmarkFrames - 1));
+		cameraMoved = true;
+	}
+	
+	/**
+	 * Default benchmark flight, one circle around the map center looking at it from above the highest point.
+	 */
+	private CameraPath createOrbit(MapWorkspace.Entry entry){
+		ServerMap m = entry.getMap();
+		float[] stats = entry.getHeightStats();
+		float extent = m.getMapSize() * m.getUnitDistance();
+		Vector3f center = new Vector3f(extent / 2f, stats[1], extent / 2f);
+		return CameraPath.orbit(center, extent * 0.35f, stats[2] - stats[1] + extent * 0.1f, 16);
+	}
+	
+	private void printBenchmark(MapWorkspace.Entry entry){
+		frameStats.appendSummary(statsText);
+		System.out.println("Benchmark " + entry.getFile().getName() + ", " + frameStats.getCount() + " frames, "
+				+ width + "x" + height + ", " + glGetString(GL_RENDERER));
+		System.out.println(statsText);
+	}
+	
+	/**
+	 * Runs the simulation ticks of the elapsed time.  Movement keys are read once per tick and move
+	 * the camera by a fixed step, so the movement doesn't depend on the frame rate.
+	 * @return ticks run
+	 */
+	private int simulate(){
+		accumulator += Math.min(elapsed, MAX_FRAME_TIME);
+		float distance = (float) (camera.getSpeed() * tickTime);
+		float angle = (float) (camera.getRotateSpeed() * tickTime);
+		int ticks = 0;
+		boolean moved = false;
+		while(accumulator >= tickTime){
+			camera.saveState();
+			cameraMoved = false;
+			keyboard.move(distance, angle);
+			if(cameraMoved){
+				camera.update();
+				moved = true;
+			}
+			if(painting){
+				paint();
+			}
+			accumulator -= tickTime;
+			ticks++;
+		}
+		//without a tick the camera state didn't change
+		if(ticks > 0){
+			moving = moved;
+		}
+		return ticks;
+	}
+	
+	/**
+	 * @return true if the next frame has to be drawn: input arrived, the camera moves, a map loads
+	 * or the loop doesn't draw on demand
+	 */
+	private boolean needsFrame(){
+		return !onDemand || isBenchmark() || redraw || moving || painting || workspace.isLoading();
+	}
+	
+	/**
+	 * Waits for the rest of the frame at the target frame rate.  Parks for most of it and yields
+	 * through the last millisecond, parking alone can overshoot by a scheduler tick.
+	 */
+	private void limitFrameRate(){
+		if(targetFps <= 0 || isBenchmark()){
+			return;
+		}
+		long deadline = frameStart + 1000000000L / targetFps;
+		long remaining;
+		while((remaining = deadline - System.nanoTime()) > 0){
+			if(remaining > 1000000L){
+				LockSupport.parkNanos(remaining - 1000000L);
+			} else {
+				Thread.yield();
+			}
+		}
+	}
+	
+	/**
+	 * Draws the next frame, wakes the render loop if it waits for events.  Can be called from any thread.
+	 */
+	public void requestRedraw(){
+		redraw = true;
+		glfwPostEmptyEvent();
+	}
+	
+	/* Shows or hides the statistics overlay */
+	public void toggleStats(){
+		showStats = !showStats;
+		//refresh immediately when shown
+		lastStatsUpdate = 0;
 	}
 	
 	/**
@@ -206,6 +699,35 @@ public class SmdViewer {
 		windowTitle = config.getProperty("window.title");
 		rotateSpeed = Float.parseFloat(config.getProperty("camera.rotateSpeed"));
 		moveSpeed = Float.parseFloat(config.getProperty("camera.rotateSpeed"));
+		gpuTerrain = "gpu".equals(config.getProperty("terrain.renderer", "mesh"));
+		indexedTerrain = Boolean.parseBoolean(config.getProperty("terrain.indexed", "true"));
+		chunkSize = Integer.parseInt(config.getProperty("terrain.chunkSize", "64"));
+		if(Boolean.parseBoolean(config.getProperty("cache.enabled", "true"))){
+			long maxBytes = Long.parseLong(config.getProperty("cache.maxSize", "512")) * 1024 * 1024;
+			meshCache = new TerrainMeshCache(new File(config.getProperty("cache.directory", "cache")), maxBytes);
+		}
+		if(Boolean.parseBoolean(config.getProperty("shader.cache", "true"))){
+			programCacheDirectory = new File(config.getProperty("cache.directory", "cache"), "shaders");
+		}
+		shaderHotReload = Boolean.parseBoolean(config.getProperty("shader.hotReload", "false"));
+		chunksPerFrame = Integer.parseInt(config.getProperty("loading.chunksPerFrame", "4"));
+		loadQueueSize = Integer.parseInt(config.getProperty("loading.queueSize", "16"));
+		showStats = Boolean.parseBoolean(config.getProperty("stats.overlay", "false"));
+		statsFrames = Integer.parseInt(config.getProperty("stats.frames", "240"));
+		String csv = config.getProperty("stats.csv", "").trim();
+		statsCsv = csv.isEmpty() ? null : new File(csv);
+		onDemand = Boolean.parseBoolean(config.getProperty("display.onDemand", "true"));
+		vsync = Boolean.parseBoolean(config.getProperty("display.vsync", "true"));
+		targetFps = Integer.parseInt(config.getProperty("display.targetFps", "0"));
+		tickTime = 1.0 / Integer.parseInt(config.getProperty("simulation.tickRate", "120"));
+		vramBudget = Long.parseLong(config.getProperty("workspace.vramBudget", "1024")) * 1024 * 1024;
+		colorRamp = ColorRamp.valueOf(config.getProperty("terrain.colorRamp", "height").toUpperCase());
+		brushRadius = Float.parseFloat(config.getProperty("editor.brushRadius", "8"));
+		brushStrength = Float.parseFloat(config.getProperty("editor.brushStrength", "10"));
+		undoLimit = Long.parseLong(config.getProperty("editor.undoSize", "64")) * 1024 * 1024;
+		if(Boolean.parseBoolean(config.getProperty("terrain.lod", "true"))){
+			lodThreshold = Float.parseFloat(config.getProperty("terrain.lodThreshold", "2"));
+		}
 	}
 	
 	/**
@@ -214,47 +736,97 @@ public class SmdViewer {
 	public void run(){
 		//game loop time
 		while(running && glfwWindowShouldClose(windowPtr) != GL_TRUE){
+			if(!needsFrame()){
+				//nothing moves, sleep until input arrives
+				glfwWaitEvents();
+				if(!redraw){
+					//e.g. mouse movement, nothing to draw
+					continue;
+				}
+				//the idle time is neither a frame nor camera movement
+				frameStats.discardFrame();
+				previous = glfwGetTime();
+				//one tick right away reads the key that woke the loop, otherwise moving stays false and it sleeps again
+				accumulator = tickTime;
+			}
+			redraw = false;
+			frameStart = System.nanoTime();
+			frameStats.beginFrame();
 			//pre-render logic
 			current = glfwGetTime();
 			elapsed = current - previous;
 			previous = current;
 			
-			float distance = (float) (camera.getSpeed() * getElapsed());
-			float angle = (float) (camera.getRotateSpeed() * getElapsed());
-			keyboard.move(distance, angle);
+			//update events
+			glfwPollEvents();
+			//changed shader files, the watcher woke the loop
+			ProgramManager.update();
+			frameStats.mark(FrameStats.Stage.INPUT);
+			
+			boolean wasMoving = moving;
+			if(isBenchmark()){
+				updateBenchmark();
+			} else {
+				simulate();
+			}
+			frameStats.mark(FrameStats.Stage.UPDATE);
 			
 			//update camera view
-			if(cameraMoved){
-				camera.calculateView();
-				cameraMoved = false;
+			if(isBenchmark()){
+				//the path places the camera once per frame
+				if(cameraMoved){
+					camera.calculateView();
+				}
+			} else if(moving || wasMoving){
+				//the frame after the camera stopped still has to reach the last tick
+				camera.interpolate((float) (accumulator / tickTime));
 			}
+			cameraMoved = false;
+			frameStats.mark(FrameStats.Stage.CAMERA);
 			
+			gpuTimer.begin();
 			//wipe the drawing surface clear
 			glClearColor(0.2f, 0.2f, 0.2f, 1f);
 			glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
 			
 			
-			//draw points 0-3 from the currently bound VAO with current in-use shader
-			glUseProgram(ProgramManager.getShaderId("ColorSpectrum"));
-			glUniformMatrix4fv(camera.getViewMatrixLocation(), false, camera.getViewMatrix().getBuffer());
-			glUniformMatrix4fv(camera.getProjectionMatrixLocation(), false, camera.getProjectionMatrix().getBuffer());
+			//only written if the camera changed
+			cameraBuffer.update(camera);
 			//render terrain
-			glBindVertexArray(terrain.getVaoId());
 			if(xray.get()){
 				glPolygonMode(GL_FRONT_AND_BACK, GL_LINE);
 			} else {
 				glPolygonMode(GL_FRONT_AND_BACK, GL_FILL);
 			}
-			glDrawArrays(GL_TRIANGLES, 0, terrain.getPointCount());
-			//unbind vao
-			glBindVertexArray(0);
-			//update events and swap buffers
-			glfwPollEvents();
+			workspace.update();
+			workspace.draw(camera);
+			frameStats.addDraws(workspace.getDrawCalls(), workspace.getTriangleCount());
+			drawStats();
+			drawPick();
+			gpuTimer.end();
+			if(gpuTimer.hasResult()){
+				frameStats.addGpuTime(gpuTimer.getLastMillis());
+			}
+			updateTitle();
+			frameStats.mark(FrameStats.Stage.DRAW);
+			
+			//swap buffers
 			glfwSwapBuffers(windowPtr);
+			frameStats.mark(FrameStats.Stage.SWAP);
+			limitFrameRate();
 		}
 		
 		//de-allocate resources
-		terrain.dispose();
+		workspace.dispose();
+		cameraBuffer.dispose();
+		frameStats.closeCsv();
+		gpuTimer.dispose();
+		if(statsOverlay != null){
+			statsOverlay.dispose();
+		}
+		if(pickOverlay != null){
+			pickOverlay.dispose();
+		}
 		ProgramManager.dispose();
 		glfwDestroyWindow(windowPtr);
 		//end
@@ -263,11 +835,44 @@ public class SmdViewer {
 	
 	/**
 	 * Runs program.
-	 * @param args
+	 * @param args [map] [--benchmark frames] [--path file] [--csv file]
 	 */
 	public static void main(String[] args){
 		System.setProperty("org.lwjgl.librarypath", new File("native").getAbsolutePath());
-		new SmdViewer().run();
+		File map = null, path = null, csv = null;
+		int frames = 0;
+		try {
+			for(int i = 0; i < args.length; i++){
+				switch(args[i]){
+				case "--benchmark":
+					frames = Integer.parseInt(args[++i]);
+					break;
+				case "--path":
+					path = new File(args[++i]);
+					break;
+				case "--csv":
+					csv = new File(args[++i]);
+					break;
+				default:
+					if(args[i].startsWith("--") || map != null){
+						throw new IllegalArgumentException(args[i]);
+					}
+					map = new File(args[i]);
+				}
+			}
+			if(frames < 0 || (frames > 0 && map == null)){
+				throw new IllegalArgumentException("--benchmark needs a map and a frame count");
+			}
+		} catch (RuntimeException e) {
+			System.err.println("Invalid argument: " + e.getMessage());
+			System.err.println("Usage: SmdViewer [map] [--benchmark frames] [--path file] [--csv file]");
+			System.exit(2);
+		}
+		SmdViewer viewer = new SmdViewer(map, frames, path, csv);
+		viewer.run();
+		if(viewer.exitCode != 0){
+			System.exit(viewer.exitCode);
+		}
 	}
 	
 	/**
@@ -280,6 +885,8 @@ public class SmdViewer {
 		glfwWindowHint(GLFW_OPENGL_FORWARD_COMPAT, GL_TRUE);
 		glfwWindowHint(GLFW_OPENGL_PROFILE, GLFW_OPENGL_CORE_PROFILE);
 		glfwWindowHint(GLFW_RESIZABLE, GL_FALSE);
+		//benchmarks render into the hidden window's back buffer, e.g. under Xvfb with Mesa llvmpipe
+		glfwWindowHint(GLFW_VISIBLE, isBenchmark() ? GL_FALSE : GL_TRUE);
 		//AAx4
 		glfwWindowHint(GLFW_SAMPLES, 4);
 	}
@@ -289,18 +896,85 @@ public class SmdViewer {
 		running = false;
 	}
 	
+	/* Switches the terrain to the next color ramp */
+	public void cycleColorRamp(){
+		colorRamp = colorRamp.next();
+		workspace.setColorRamp(colorRamp);
+		Logger.info("Terrain colors: " + colorRamp.name().toLowerCase());
+	}
+	
+	/* Shows or hides the collision overlay, built on first use */
+	public void toggleCollision(){
+		workspace.setShowCollision(!workspace.isShowCollision());
+		Logger.info("Collision overlay " + (workspace.isShowCollision() ? "on" : "off"));
+	}
+	
 	/* Callbacks */
 	public void glfwErrorCallback(int error, long description){
 	    Logger.error("[GLFW ERROR] " + error + ": " + memDecodeUTF8(description));
 	}
 	
 	public void glfwCursorPosCallback(long window, double xpos, double ypos){
+		cursorX = xpos;
+		cursorY = ypos;
 	}
 
 	public void glfwMouseButtonCallback(long window, int button, int action, int mods){
+		if(button == GLFW_MOUSE_BUTTON_LEFT && action == GLFW_RELEASE && painting){
+			painting = false;
+			endStroke();
+			redraw = true;
+		}
+		if(action != GLFW_PRESS){
+			return;
+		}
+		if(button == GLFW_MOUSE_BUTTON_LEFT && brush != null){
+			painting = true;
+		} else if(button == GLFW_MOUSE_BUTTON_LEFT){
+			pick();
+			redraw = true;
+		} else if(button == GLFW_MOUSE_BUTTON_RIGHT && pickText.length() > 0){
+			pickText.setLength(0);
+			redraw = true;
+		}
 	}
 
 	public void glfwScrollCallback(long window, double xoffset, double yoffset){
+		if(brush != null){
+			brushRadius = (float) Math.max(1, Math.min(128, brushRadius + yoffset));
+			redraw = true;
+		}
+	}
+
+	/**
+	 * @return section index of the active .smd map, null for .xml files or while loading
+	 */
+	public MappedSmdLoader getMapLoader() {
+		MapWorkspace.Entry active = workspace.getActive();
+		return active != null ? active.getMapLoader() : null;
+	}
+
+	/**
+	 * @return true if the camera flies a scripted path instead of following the keyboard
+	 */
+	public boolean isBenchmark() {
+		return benchmarkFrames > 0;
+	}
+
+	public int getBenchmarkFrames() {
+		return benchmarkFrames;
+	}
+
+	public FrameStats getFrameStats() {
+		return frameStats;
+	}
+
+	public MapWorkspace getWorkspace() {
+		return workspace;
+	}
+
+	public TerrainMeshCache getMeshCache() {
+		return meshCache;
 	}
 
 	public long getWindowPtr() {
@@ -375,12 +1049,12 @@ public class SmdViewer {
 		this.running = running;
 	}
 
+	/**
+	 * @return mesh terrain of the active map, null if evicted, still loading or terrain.renderer=gpu
+	 */
 	public Terrain getTerrain() {
-		return terrain;
-	}
-
-	public void setTerrain(Terrain terrain) {
-		this.terrain = terrain;
+		MapWorkspace.Entry active = workspace.getActive();
+		return active != null ? active.getTerrain() : null;
 	}
 
 	public double getPrevious() {
@@ -423,6 +1097,10 @@ public class SmdViewer {
 		this.cameraMoved = cameraMoved;
 	}
 
+	public ColorRamp getColorRamp() {
+		return colorRamp;
+	}
+
 	public AtomicBoolean getXray() {
 		return xray;
 	}
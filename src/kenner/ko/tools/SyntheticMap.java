@@ -0,0 +1,306 @@
+package kenner.ko.tools;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+import kenner.ko.map.ServerMap;
+import kenner.ko.util.Logger;
+
+/**
+ * Generates maps with rolling hills so benchmarks and experiments don't need the original map files.
+ *
+ * The SMD files contain terrain and tiles plus a single collision face, the object, regene and
+ * warp sections are written empty in the layout ServerMap.loadMap() expects.  Optionally the
+ * collision section gets walls standing on the terrain, with cells indexing their faces like the
+ * game's exporter does.
+ * @author kenner
+ */
+public class SyntheticMap {
+	//N3ShapeMgr.create() refuses anything bigger
+	public static final float MAX_WIDTH = 4096f;
+	//N3ShapeMgr CELL_MAIN_SIZE in world units
+	private static final float CELL_SIZE = 16f;
+	private static final int SUB_CELLS = 4;
+	private static final float SUB_CELL_SIZE = CELL_SIZE / SUB_CELLS;
+
+	/**
+	 * Creates a map in memory.
+	 * @param mapSize samples per side
+	 * @param unitDistance world units between two samples
+	 */
+	public static ServerMap create(int mapSize, float unitDistance){
+		ServerMap map = new ServerMap();
+		map.setMapSize(mapSize);
+		map.setUnitDistance(unitDistance);
+		float[][] height = new float[mapSize][mapSize];
+		for(int i = 0; i < mapSize; i++){
+			for(int j = 0; j < mapSize; j++){
+				height[i][j] = 50f + 100f * (float)(Math.sin(i * 0.013) * Math.cos(j * 0.017)) + (float)Math.sin(i * j * 0.0007);
+			}
+		}
+		map.setHeight(height);
+		return map;
+	}
+
+	/**
+	 * Writes a binary SMD file that ServerMap.loadMap() can read.
+	 * @param mapSize samples per side
+	 * @param unitDistance world units between two samples, (mapSize-1) * unitDistance may not exceed MAX_WIDTH
+	 */
+	public static void writeSmd(int mapSize, float unitDistance, File file) throws IOException {
+		writeSmd(mapSize, unitDistance, 0, file);
+	}
+
+	/**
+	 * Writes a binary SMD file with collision walls that ServerMap.loadMap() can read.
+	 * @param mapSize samples per side
+	 * @param unitDistance world units between two samples, (mapSize-1) * unitDistance may not exceed MAX_WIDTH
+	 * @param walls upright quads of 2 collision faces each, placed at random (same seed every time)
+	 */
+	public static void writeSmd(int mapSize, float unitDistance, int walls, File file) throws IOException {
+		float width = (mapSize - 1) * unitDistance;
+		if(width > MAX_WIDTH){
+			throw new IllegalArgumentException("Map width " + width + " is larger than " + MAX_WIDTH);
+		}
+		float[][] height = create(mapSize, unitDistance).getHeight();
+		writeSmd(height, unitDistance, createFaces(height, unitDistance, width, walls), file);
+	}
+
+	/**
+	 * Writes a binary SMD file with the given collision faces, e.g. for known answer checks.  Every
+	 * face is listed in the sub cells its bounding box overlaps.
+	 * @param mapSize samples per side
+	 * @param unitDistance world units between two samples, (mapSize-1) * unitDistance may not exceed MAX_WIDTH
+	 * @param faces x, y, z of 3 vertices per face (world units), inside the map
+	 */
+	public static void writeSmd(int mapSize, float unitDistance, float[] faces, File file) throws IOException {
+		float width = (mapSize - 1) * unitDistance;
+		if(width > MAX_WIDTH){
+			throw new IllegalArgumentException("Map width " + width + " is larger than " + MAX_WIDTH);
+		}
+		writeSmd(create(mapSize, unitDistance).getHeight(), unitDistance, faces, file);
+	}
+
+	private static void writeSmd(float[][] height, float unitDistance, float[] faces, File file) throws IOException {
+		int mapSize = height.length;
+		float width = (mapSize - 1) * unitDistance;
+		int cells = (int)Math.ceil(width / CELL_SIZE);
+		int faceCount = faces.length / 9;
+		int[][] subCells = indexFaces(faces, cells);
+		long cellBytes = 0;
+		for(int c = 0; c < cells * cells; c++){
+			int polys = 0;
+			for(int s = 0; s < SUB_CELLS * SUB_CELLS; s++){
+				polys += subCells[c * SUB_CELLS * SUB_CELLS + s].length;
+			}
+			//exist flag, then shape count and the sub cells if the cell has faces
+			cellBytes += 4 + (polys > 0 ? 4 + SUB_CELLS * SUB_CELLS * 4 + polys * 3 * 4 : 0);
+		}
+
+		long size = 4 + 4 + 4L * mapSize * mapSize	//terrain
+				+ 4 + 4 + 4 + faceCount * 9 * 4		//collision width, length, face count, faces
+				+ cellBytes						//cells
+				+ 4								//object events
+				+ 2L * mapSize * mapSize			//tiles
+				+ 4								//regene events
+				+ 4;							//warps
+		ByteBuffer buffer = ByteBuffer.allocate((int)size).order(ByteOrder.LITTLE_ENDIAN);
+
+		//terrain
+		buffer.putInt(mapSize);
+		buffer.putFloat(unitDistance);
+		for(int i = 0; i < mapSize; i++){
+			for(int j = 0; j < mapSize; j++){
+				buffer.putFloat(height[i][j]);
+			}
+		}
+		//collision, ServerMap.toXML() leaves out the collision section without faces and
+		//loadFromXML() only sets up the map size in it, so there is one flat face in the corner
+		buffer.putFloat(width);
+		buffer.putFloat(width);
+		buffer.putInt(faceCount);
+		for(float f : faces){
+			buffer.putFloat(f);
+		}
+		//cells, z major like N3ShapeMgr.loadCollisionData()
+		for(int z = 0; z < cells; z++){
+			for(int x = 0; x < cells; x++){
+				writeCell(buffer, subCells, (x * cells + z) * SUB_CELLS * SUB_CELLS);
+			}
+		}
+		//object events
+		buffer.putInt(0);
+		//tiles, everything movable
+		for(int i = 0; i < mapSize * mapSize; i++){
+			buffer.putShort((short)0);
+		}
+		//regene events
+		buffer.putInt(0);
+		//warps
+		buffer.putInt(0);
+		buffer.flip();
+
+		try(FileChannel channel = new FileOutputStream(file).getChannel()){
+			while(buffer.hasRemaining()){
+				channel.write(buffer);
+			}
+		}
+		Logger.debug("Wrote synthetic map " + file + " (" + size + " bytes)");
+	}
+
+	/**
+	 * The flat face in the corner, then the walls.
+	 * @return x, y, z of 3 vertices per face
+	 */
+	private static float[] createFaces(float[][] height, float unitDistance, float width, int walls){
+		float[] faces = new float[(1 + walls * 2) * 9];
+		float y = height[0][0] * unitDistance;
+		int i = 0;
+		i = putVertex(faces, i, 0, y, 0);
+		i = putVertex(faces, i, unitDistance, y, 0);
+		i = putVertex(faces, i, 0, y, unitDistance);
+		Random random = new Random(7);
+		for(int w = 0; w < walls; w++){
+			float x0 = random.nextFloat() * width, z0 = random.nextFloat() * width;
+			double angle = random.nextDouble() * Math.PI * 2;
+			float length = 2f + random.nextFloat() * 10f;
+			float x1 = clamp(x0 + length * (float)Math.cos(angle), width), z1 = clamp(z0 + length * (float)Math.sin(angle), width);
+			float y0 = groundHeight(height, unitDistance, x0, z0), y1 = groundHeight(height, unitDistance, x1, z1);
+			float top = 3f + random.nextFloat() * 5f;
+			//a-b-c, c-d-a
+			i = putVertex(faces, i, x0, y0, z0);
+			i = putVertex(faces, i, x1, y1, z1);
+			i = putVertex(faces, i, x1, y1 + top, z1);
+			i = putVertex(faces, i, x1, y1 + top, z1);
+			i = putVertex(faces, i, x0, y0 + top, z0);
+			i = putVertex(faces, i, x0, y0, z0);
+		}
+		return faces;
+	}
+
+	private static int putVertex(float[] faces, int i, float x, float y, float z){
+		faces[i] = x;
+		faces[i + 1] = y;
+		faces[i + 2] = z;
+		return i + 3;
+	}
+
+	private static float clamp(float v, float width){
+		return Math.max(0f, Math.min(width, v));
+	}
+
+	/**
+	 * Height of the nearest sample in world units.
+	 */
+	private static float groundHeight(float[][] height, float unitDistance, float x, float z){
+		int last = height.length - 1;
+		return height[Math.min(last, Math.round(x / unitDistance))][Math.min(last, Math.round(z / unitDistance))] * unitDistance;
+	}
+
+	/**
+	 * Lists the faces every sub cell overlaps with its bounding box.
+	 * @return face indices per sub cell, index (cellX * cells + cellZ) * 16 + subX * 4 + subZ
+	 */
+	private static int[][] indexFaces(float[] faces, int cells){
+		int side = cells * SUB_CELLS;
+		int[] counts = new int[side * side];
+		int faceCount = faces.length / 9;
+		//count first, so every list is one array
+		for(int pass = 0; pass < 2; pass++){
+			int[][] lists = pass == 1 ? new int[side * side][] : null;
+			if(lists != null){
+				for(int s = 0; s < lists.length; s++){
+					lists[s] = new int[counts[s]];
+					counts[s] = 0;
+				}
+			}
+			for(int f = 0; f < faceCount; f++){
+				float minX = Float.MAX_VALUE, minZ = Float.MAX_VALUE, maxX = -Float.MAX_VALUE, maxZ = -Float.MAX_VALUE;
+				for(int v = 0; v < 3; v++){
+					float x = faces[f * 9 + v * 3], z = faces[f * 9 + v * 3 + 2];
+					minX = Math.min(minX, x);
+					maxX = Math.max(maxX, x);
+					minZ = Math.min(minZ, z);
+					maxZ = Math.max(maxZ, z);
+				}
+				int x0 = Math.min(side - 1, (int)(minX / SUB_CELL_SIZE)), x1 = Math.min(side - 1, (int)(maxX / SUB_CELL_SIZE));
+				int z0 = Math.min(side - 1, (int)(minZ / SUB_CELL_SIZE)), z1 = Math.min(side - 1, (int)(maxZ / SUB_CELL_SIZE));
+				for(int x = x0; x <= x1; x++){
+					for(int z = z0; z <= z1; z++){
+						int s = subCellIndex(cells, x, z);
+						if(lists != null){
+							lists[s][counts[s]] = f;
+						}
+						counts[s]++;
+					}
+				}
+			}
+			if(lists != null){
+				return lists;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param x sub cell column over the whole map
+	 * @param z sub cell row over the whole map
+	 */
+	private static int subCellIndex(int cells, int x, int z){
+		int cell = (x / SUB_CELLS) * cells + z / SUB_CELLS;
+		return cell * SUB_CELLS * SUB_CELLS + (x % SUB_CELLS) * SUB_CELLS + z % SUB_CELLS;
+	}
+
+	/**
+	 * Exist flag and CellMain, see CellMain.load(): shape count, shapes, then 4x4 CellSubs (z major)
+	 * of poly count and 3 vertex indices per poly.
+	 */
+	private static void writeCell(ByteBuffer buffer, int[][] subCells, int first){
+		int polys = 0;
+		for(int s = 0; s < SUB_CELLS * SUB_CELLS; s++){
+			polys += subCells[first + s].length;
+		}
+		buffer.putInt(polys > 0 ? 1 : 0);
+		if(polys == 0){
+			return;
+		}
+		//no shapes
+		buffer.putInt(0);
+		for(int z = 0; z < SUB_CELLS; z++){
+			for(int x = 0; x < SUB_CELLS; x++){
+				int[] faces = subCells[first + x * SUB_CELLS + z];
+				buffer.putInt(faces.length);
+				for(int f : faces){
+					buffer.putInt(f * 3).putInt(f * 3 + 1).putInt(f * 3 + 2);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes an XML file that ServerMap.loadFromXML() can read, converted from a synthetic SMD.
+	 */
+	public static void writeXml(int mapSize, float unitDistance, File file) throws IOException {
+		File smd = File.createTempFile("synthetic", ".smd");
+		try {
+			writeSmd(mapSize, unitDistance, smd);
+			ServerMap map = new ServerMap();
+			if(!map.loadMap(smd)){
+				throw new IOException("Synthetic map could not be loaded: " + smd);
+			}
+			try(Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8")){
+				//loadFromXML() skips every other child node, it expects the whitespace of an indented file
+				writer.write(map.toXML().replace("><", ">\n<"));
+			}
+		} finally {
+			smd.delete();
+		}
+	}
+}
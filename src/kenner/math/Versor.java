@@ -1,7 +1,6 @@
 package kenner.math;
 
 import silvertiger.tutorial.lwjgl.math.Matrix4f;
-import silvertiger.tutorial.lwjgl.math.Vector4f;
 
 /**
  * Rotation quaternion impl
@@ -17,10 +16,44 @@ public class Versor extends Quaternion {
 	 * @param z
 	 */
 	public Versor(float w, float x, float y, float z){
+		set(w, x, y, z);
+	}
+	
+	/**
+	 * Sets the versor to a rotation of w degrees around the given axis, like the constructor.
+	 * @param w
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @return this
+	 */
+	public Versor set(float w, float x, float y, float z){
+		float sin = (float) Math.sin(Math.toRadians(w) / 2);
 		this.w = (float) Math.cos(Math.toRadians(w) / 2);
-		this.x = (float) Math.sin(Math.toRadians(w) / 2) * x;
-		this.y = (float) Math.sin(Math.toRadians(w) / 2) * y;
-		this.z = (float) Math.sin(Math.toRadians(w) / 2) * z;
+		this.x = sin * x;
+		this.y = sin * y;
+		this.z = sin * z;
+		return this;
+	}
+	
+	/**
+	 * Quaternion multiplication without allocating, see Quaternion.multiply().
+	 * Format:  dest = Q * R, dest may be Q or R.
+	 * @param Q
+	 * @param R
+	 * @param dest
+	 * @return dest
+	 */
+	public static Versor multiplyInto(Quaternion Q, Quaternion R, Versor dest){
+		float w = R.w*Q.w - R.x*Q.x - R.y*Q.y - R.z*Q.z;
+		float x = R.w*Q.x + R.x*Q.w - R.y*Q.z + R.z*Q.y;
+		float y = R.w*Q.y + R.x*Q.z + R.y*Q.w - R.z*Q.x;
+		float z = R.w*Q.z - R.x*Q.y + R.y*Q.x + R.z*Q.w;
+		dest.w = w;
+		dest.x = x;
+		dest.y = y;
+		dest.z = z;
+		return dest;
 	}
 	
 	/**
@@ -66,17 +99,64 @@ public class Versor extends Quaternion {
 		return t1.toVersor();
 	}
 	
+	/**
+	 * Copies another versor.
+	 * @param other
+	 * @return this
+	 */
+	public Versor set(Versor other){
+		w = other.w;
+		x = other.x;
+		y = other.y;
+		z = other.z;
+		return this;
+	}
+	
+	/**
+	 * Normalised linear interpolation without allocating, along the shorter arc.
+	 * Close enough to slerp for the small angles between two simulation ticks.
+	 * @param a
+	 * @param b
+	 * @param t 0 = a, 1 = b
+	 * @param dest may be a or b
+	 * @return dest
+	 */
+	public static Versor nlerpInto(Versor a, Versor b, float t, Versor dest){
+		//q and -q are the same rotation, pick the one closer to a
+		float sign = a.w*b.w + a.x*b.x + a.y*b.y + a.z*b.z < 0 ? -1f : 1f;
+		float w = a.w + (sign*b.w - a.w) * t;
+		float x = a.x + (sign*b.x - a.x) * t;
+		float y = a.y + (sign*b.y - a.y) * t;
+		float z = a.z + (sign*b.z - a.z) * t;
+		dest.w = w;
+		dest.x = x;
+		dest.y = y;
+		dest.z = z;
+		dest.normalise();
+		return dest;
+	}
+	
 	/**
 	 * Returns a rotation matrix in column-major notation.
 	 * Transpose the result for row-major notation.
 	 * @return
 	 */
 	public Matrix4f toRotationMatrix(){
-		return new Matrix4f(
-				new Vector4f((float)(1-2*Math.pow(y, 2)-2*Math.pow(z, 2)), (2*x*y+2*w*z), (2*x*z-2*w*y),0),
-				new Vector4f((2*x*y-2*w*z), (float)(1-2*Math.pow(x, 2)-2*Math.pow(z, 2)), (2*y*z+2*w*x),0),
-				new Vector4f((2*x*z+2*w*y), (2*y*z-2*w*x), (float)(1-2*Math.pow(x, 2)-2*Math.pow(y, 2)),0),
-				new Vector4f(0,0,0,1f));
+		return toRotationMatrix(new Matrix4f());
+	}
+	
+	/**
+	 * Writes the rotation matrix into dest without allocating.
+	 * @param dest
+	 * @return dest
+	 */
+	public Matrix4f toRotationMatrix(Matrix4f dest){
+		//row by row, the columns are the ones toRotationMatrix() always had
+		return dest.set(
+				1-2*y*y-2*z*z, 2*x*y-2*w*z, 2*x*z+2*w*y, 0,
+				2*x*y+2*w*z, 1-2*x*x-2*z*z, 2*y*z-2*w*x, 0,
+				2*x*z-2*w*y, 2*y*z+2*w*x, 1-2*x*x-2*y*y, 0,
+				0, 0, 0, 1f);
 	}
 	
 	public Quaternion toQuaternion(){
@@ -6,7 +6,17 @@ import silvertiger.tutorial.lwjgl.math.Matrix4f;
 import silvertiger.tutorial.lwjgl.math.Vector3f;
 import silvertiger.tutorial.lwjgl.math.Vector4f;
 
+/**
+ * Free flying camera.  Moving and rotating works on the camera's own vectors, matrices and versors,
+ * so a frame doesn't allocate.
+ * @author kenner
+ */
 public class BasicCamera {
+	//directions of the unrotated camera
+	private static final Vector4f FORWARD = new Vector4f(0, 0, -1f, 0);
+	private static final Vector4f RIGHT = new Vector4f(1f, 0, 0, 0);
+	private static final Vector4f UP = new Vector4f(0, 1f, 0, 0);
+	
 	private float speed = 20f;  //move 1 unit per sec
 	private float rotateSpeed = 50f;  //rotate 10 degrees per sec
 	private Vector3f position = new Vector3f(0, 0, 2f);
@@ -19,18 +29,39 @@ public class BasicCamera {
 	 */
 	private Matrix4f translationMatrix = Matrix4f.translate(-position.x, -position.y, -position.z);
 	private Matrix4f rotation;
+	//inverse of the view rotation
+	private Matrix4f inverseRotation = new Matrix4f();
 	private Matrix4f viewMatrix;// = yRotationMatrix.multiply(translationMatrix);
 	private Matrix4f projectionMatrix;
 	
+	/*
+	 * Culling
+	 */
+	private Frustum frustum = new Frustum();
+	
 	/*
 	 * Quaternions / Versors 
 	 */
 	private Versor orientation;
+	//scratch versor of a single rotation
+	private Versor turn = new Versor(0, 0, 1f, 0);
+	
+	/*
+	 * Interpolation, position and orientation are the state of the last simulation tick
+	 */
+	private Vector3f previousPosition = new Vector3f(0, 0, 2f);
+	private Versor previousOrientation = new Versor(0, 0, 1f, 0);
+	//what the view matrix shows
+	private Vector3f viewPosition = new Vector3f(0, 0, 2f);
+	private Versor viewOrientation = new Versor(0, 0, 1f, 0);
 	
 	/*
 	 * directional vectors 
 	 */
-	private Vector4f forward, up, right;
+	private Vector4f forward = new Vector4f(), up = new Vector4f(), right = new Vector4f();
+	//unproject() scratch, inverse of projection * view and a clip space point
+	private Matrix4f inverseViewProjection = new Matrix4f();
+	private Vector4f clip = new Vector4f();
 	
 	//clipping
 	private float near = 0.1f;
@@ -45,6 +76,8 @@ public class BasicCamera {
 	
 	private int viewMatrixLocation;
 	private int projectionMatrixLocation;
+	//incremented whenever the view or projection matrix changes, see CameraUniformBuffer
+	private int version;
 	
 	public BasicCamera(float width, float height){
 		this.width = width;
@@ -71,40 +104,106 @@ public class BasicCamera {
 		//set up directional vectors
 		resetDirectionalVectors();
 		
+		frustum.update(projectionMatrix, viewMatrix);
+		
 		Logger.info("View Matrix: \n" + viewMatrix.toString());
 		Logger.info("Projection Matrix: \n" + projectionMatrix.toString());
 	}
 	
+	/**
+	 * Applies the movement and builds the view from the current state, without interpolation.
+	 * Use it when the camera is placed, e.g. on a map switch, so the next interpolate() doesn't
+	 * glide from the old position.
+	 */
 	public void calculateView(){
-		rotation = orientation.toRotationMatrix();
+		update();
+		saveState();
+		buildView(position, orientation);
+	}
+	
+	/**
+	 * Simulation step: applies the movement since the last step to the position.  The view is
+	 * built by interpolate() or calculateView().
+	 */
+	public void update(){
+		orientation.toRotationMatrix(rotation);
 		//recalculate posotion
-		position = new Vector3f(
+		position.set(
 					position.x + (forward.x * -move.z),
 					position.y + (forward.y * -move.z),
 					position.z + (forward.z * -move.z));
-		position = new Vector3f(
+		position.set(
 					position.x + (up.x * move.y), 
 					position.y + (up.y * move.y),
 					position.z + (up.z * move.y)
 				);
-		position = new Vector3f(
+		position.set(
 					position.x + (right.x * move.x),
 					position.y + (right.y * move.x),
 					position.z + (right.z * move.x)
 				);
 		
 		
-		//translation matrix recalculation
-		translationMatrix = Matrix4f.translate(position.x, position.y, position.z);
-		viewMatrix = rotation.inverse().multiply(translationMatrix.inverse());
-		
 		//reset move 
-		move = new Vector3f(0, 0, 0);
+		move.set(0, 0, 0);
 		
 		//reset directional vectors
 		resetDirectionalVectors();
 	}
 	
+	/**
+	 * Keeps the current position and orientation as the previous tick, call before every update().
+	 */
+	public void saveState(){
+		previousPosition.set(position.x, position.y, position.z);
+		previousOrientation.set(orientation);
+	}
+	
+	/**
+	 * Builds the view between the previous and the current tick.
+	 * @param alpha 0 = previous tick, 1 = current tick
+	 */
+	public void interpolate(float alpha){
+		viewPosition.set(
+				previousPosition.x + (position.x - previousPosition.x) * alpha,
+				previousPosition.y + (position.y - previousPosition.y) * alpha,
+				previousPosition.z + (position.z - previousPosition.z) * alpha);
+		Versor.nlerpInto(previousOrientation, orientation, alpha, viewOrientation);
+		buildView(viewPosition, viewOrientation);
+	}
+	
+	private void buildView(Vector3f position, Versor orientation){
+		if(position != viewPosition){
+			viewPosition.set(position.x, position.y, position.z);
+		}
+		//translation matrix recalculation, the inverse of the camera translation
+		translationMatrix.setTranslation(-position.x, -position.y, -position.z);
+		orientation.toRotationMatrix(inverseRotation);
+		inverseRotation.invertInto(inverseRotation);
+		inverseRotation.mulInto(translationMatrix, viewMatrix);
+		frustum.update(projectionMatrix, viewMatrix);
+		version++;
+	}
+	
+	/**
+	 * Ray from the eye through a window position, for picking.  Uses the last built view.
+	 * @param windowX pixels from the left edge
+	 * @param windowY pixels from the top edge
+	 * @param origin receives the eye position
+	 * @param direction receives the unit direction into the scene
+	 */
+	public void unproject(float windowX, float windowY, Vector3f origin, Vector3f direction){
+		projectionMatrix.mulInto(viewMatrix, inverseViewProjection);
+		inverseViewProjection.invertInto(inverseViewProjection);
+		//point on the far plane
+		clip.set(2f * windowX / width - 1f, 1f - 2f * windowY / height, 1f, 1f);
+		inverseViewProjection.mulInto(clip, clip);
+		origin.set(viewPosition.x, viewPosition.y, viewPosition.z);
+		direction.set(clip.x / clip.w - origin.x, clip.y / clip.w - origin.y, clip.z / clip.w - origin.z);
+		float length = direction.length();
+		direction.set(direction.x / length, direction.y / length, direction.z / length);
+	}
+	
 	/*
 	 * Movement functionality
 	 */
@@ -138,46 +237,61 @@ public class BasicCamera {
 	
 	public void rotateRight(float angle){
 		yaw -= angle;
-		Versor rotate = new Versor(-angle, up.x, up.y, up.z);
-		orientation = Versor.multiply(rotate, orientation);
-		rotation = orientation.toRotationMatrix();
+		turn.set(-angle, up.x, up.y, up.z);
+		Versor.multiplyInto(turn, orientation, orientation);
+		orientation.toRotationMatrix(rotation);
 		updateDirectionalVectors();
 	}
 	
 	public void rotateLeft(float angle){
 		yaw += angle;
-		Versor rotate = new Versor(angle, up.x, up.y, up.z);
-		orientation = Versor.multiply(rotate, orientation);
-		rotation = orientation.toRotationMatrix();
+		turn.set(angle, up.x, up.y, up.z);
+		Versor.multiplyInto(turn, orientation, orientation);
+		orientation.toRotationMatrix(rotation);
 		updateDirectionalVectors();
 	}
 	
 	public void rotateUp(float angle){
 		pitch += angle;
-		Versor rotate = new Versor(angle, right.x, right.y, right.z);
-		orientation = Versor.multiply(rotate, orientation);
-		rotation = orientation.toRotationMatrix();
+		turn.set(angle, right.x, right.y, right.z);
+		Versor.multiplyInto(turn, orientation, orientation);
+		orientation.toRotationMatrix(rotation);
 		updateDirectionalVectors();
 	}
 	
 	public void rotateDown(float angle){
 		pitch -= angle;
-		Versor rotate = new Versor(-angle, right.x, right.y, right.z);
-		orientation = Versor.multiply(rotate, orientation);
-		rotation = orientation.toRotationMatrix();
+		turn.set(-angle, right.x, right.y, right.z);
+		Versor.multiplyInto(turn, orientation, orientation);
+		orientation.toRotationMatrix(rotation);
 		updateDirectionalVectors();
 	}
 	
+	/**
+	 * Replaces the orientation, e.g. for a scripted camera path.
+	 * @param yaw degrees around Y, 0 looks down -Z
+	 * @param pitch degrees around the rotated X, positive looks up
+	 */
+	public void setOrientation(float yaw, float pitch){
+		this.yaw = yaw;
+		this.pitch = pitch;
+		orientation.set(yaw, 0, 1f, 0);
+		turn.set(pitch, 1f, 0, 0);
+		Versor.multiplyInto(orientation, turn, orientation);
+		orientation.toRotationMatrix(rotation);
+		updateDirectionalVectors();
+	}
+
 	public void updateDirectionalVectors(){
-		forward = rotation.multiply(new Vector4f(0, 0, -1f, 0));
-		right = rotation.multiply(new Vector4f(1f, 0, 0, 0));
-		up = rotation.multiply(new Vector4f(0, 1f, 0, 0));
+		rotation.mulInto(FORWARD, forward);
+		rotation.mulInto(RIGHT, right);
+		rotation.mulInto(UP, up);
 	}
 	
 	public void resetDirectionalVectors(){
-		forward = new Vector4f(0, 0, -1f, 0);
-		right = new Vector4f(1f, 0, 0, 0);
-		up = new Vector4f(0, 1f, 0, 0);
+		forward.set(FORWARD.x, FORWARD.y, FORWARD.z, FORWARD.w);
+		right.set(RIGHT.x, RIGHT.y, RIGHT.z, RIGHT.w);
+		up.set(UP.x, UP.y, UP.z, UP.w);
 	}
 
 	/*
@@ -203,13 +317,26 @@ public class BasicCamera {
 	}
 
 
+	/**
+	 * @return position of the last simulation tick
+	 */
 	public Vector3f getPosition() {
 		return position;
 	}
 
+	/**
+	 * @return position the view matrix was built from, interpolated between ticks
+	 */
+	public Vector3f getViewPosition() {
+		return viewPosition;
+	}
+
 
+	/**
+	 * Copies the position, the camera keeps its own vector.
+	 */
 	public void setPosition(Vector3f position) {
-		this.position = position;
+		this.position.set(position.x, position.y, position.z);
 	}
 
 
@@ -230,6 +357,7 @@ public class BasicCamera {
 
 	public void setViewMatrix(Matrix4f viewMatrix) {
 		this.viewMatrix = viewMatrix;
+		version++;
 	}
 
 
@@ -240,6 +368,12 @@ public class BasicCamera {
 
 	public void setProjectionMatrix(Matrix4f projectionMatrix) {
 		this.projectionMatrix = projectionMatrix;
+		version++;
+	}
+
+
+	public Frustum getFrustum() {
+		return frustum;
 	}
 
 
@@ -322,6 +456,13 @@ public class BasicCamera {
 		this.projectionMatrixLocation = projectionMatrixLocation;
 	}
 
+	/**
+	 * @return changes whenever the view or projection matrix changed
+	 */
+	public int getVersion() {
+		return version;
+	}
+
 	public float getPitch() {
 		return pitch;
 	}
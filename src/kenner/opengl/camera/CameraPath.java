@@ -0,0 +1,138 @@
+package kenner.opengl.camera;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import silvertiger.tutorial.lwjgl.math.Vector3f;
+
+/**
+ * A scripted camera flight through keyframed positions and orientations.
+ *
+ * The keyframes are spread evenly over the flight and interpolated with a Catmull-Rom spline,
+ * so the camera passes through every keyframe without stopping.  Yaw and pitch are interpolated
+ * like the position, keyframes should not wrap the yaw (use 370 instead of 10 after 350).
+ *
+ * Path files have one keyframe per line: x y z yaw pitch (degrees), # starts a comment.
+ * @author kenner
+ */
+public class CameraPath {
+	//x, y, z, yaw, pitch per keyframe
+	private static final int STRIDE = 5;
+	private float[] keys;
+	private int count;
+
+	private CameraPath(float[] keys){
+		this.keys = keys;
+		this.count = keys.length / STRIDE;
+	}
+
+	/**
+	 * @param keyframes x, y, z, yaw, pitch per keyframe, at least 2 keyframes
+	 */
+	public static CameraPath of(float... keyframes){
+		if(keyframes.length < 2 * STRIDE || keyframes.length % STRIDE != 0){
+			throw new IllegalArgumentException("A camera path needs at least 2 keyframes of x y z yaw pitch");
+		}
+		return new CameraPath(keyframes.clone());
+	}
+
+	/**
+	 * Reads a path file.
+	 * @param file one keyframe per line: x y z yaw pitch
+	 * @throws IOException also if a line can't be parsed
+	 */
+	public static CameraPath load(File file) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		try(BufferedReader reader = new BufferedReader(new FileReader(file))){
+			String line;
+			while((line = reader.readLine()) != null){
+				int comment = line.indexOf('#');
+				line = (comment >= 0 ? line.substring(0, comment) : line).trim();
+				if(!line.isEmpty()){
+					lines.add(line);
+				}
+			}
+		}
+		float[] keyframes = new float[lines.size() * STRIDE];
+		for(int i = 0; i < lines.size(); i++){
+			String[] values = lines.get(i).split("\\s+");
+			if(values.length != STRIDE){
+				throw new IOException(file.getName() + ": expected x y z yaw pitch, got \"" + lines.get(i) + "\"");
+			}
+			try {
+				for(int v = 0; v < STRIDE; v++){
+					keyframes[i * STRIDE + v] = Float.parseFloat(values[v]);
+				}
+			} catch (NumberFormatException e) {
+				throw new IOException(file.getName() + ": " + e.getMessage());
+			}
+		}
+		try {
+			return of(keyframes);
+		} catch (IllegalArgumentException e) {
+			throw new IOException(file.getName() + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * A circle around a point, looking at it from above.
+	 * @param center looked at
+	 * @param radius distance on the X/Z plane
+	 * @param height above the center
+	 * @param keyframes per circle, 8 or more keep the circle round
+	 */
+	public static CameraPath orbit(Vector3f center, float radius, float height, int keyframes){
+		float pitch = (float) -Math.toDegrees(Math.atan2(height, radius));
+		float[] keys = new float[(keyframes + 1) * STRIDE];
+		//the last keyframe closes the circle
+		for(int i = 0; i <= keyframes; i++){
+			//yaw 0 looks down -Z, so the camera sits on +Z of the center at yaw 0
+			float yaw = 360f * i / keyframes;
+			double angle = Math.toRadians(yaw);
+			keys[i * STRIDE] = center.x + radius * (float) Math.sin(angle);
+			keys[i * STRIDE + 1] = center.y + height;
+			keys[i * STRIDE + 2] = center.z + radius * (float) Math.cos(angle);
+			keys[i * STRIDE + 3] = yaw;
+			keys[i * STRIDE + 4] = pitch;
+		}
+		return new CameraPath(keys);
+	}
+
+	/**
+	 * Moves the camera to a point of the path.  The view is recalculated by calculateView().
+	 * @param t 0 = first keyframe, 1 = last keyframe
+	 */
+	public void apply(BasicCamera camera, float t){
+		float segment = Math.max(0f, Math.min(1f, t)) * (count - 1);
+		int k = Math.min((int) segment, count - 2);
+		float s = segment - k;
+		camera.getPosition().x = interpolate(k, 0, s);
+		camera.getPosition().y = interpolate(k, 1, s);
+		camera.getPosition().z = interpolate(k, 2, s);
+		camera.setOrientation(interpolate(k, 3, s), interpolate(k, 4, s));
+	}
+
+	/**
+	 * Catmull-Rom between keyframe k and k+1, the end keyframes are repeated.
+	 */
+	private float interpolate(int k, int value, float s){
+		float p0 = keys[Math.max(k - 1, 0) * STRIDE + value];
+		float p1 = keys[k * STRIDE + value];
+		float p2 = keys[(k + 1) * STRIDE + value];
+		float p3 = keys[Math.min(k + 2, count - 1) * STRIDE + value];
+		float s2 = s * s;
+		float s3 = s2 * s;
+		return 0.5f * (2f * p1 + (p2 - p0) * s + (2f * p0 - 5f * p1 + 4f * p2 - p3) * s2 + (3f * p1 - p0 - 3f * p2 + p3) * s3);
+	}
+
+	/*
+	 * Getters
+	 */
+	public int getKeyframeCount() {
+		return count;
+	}
+}
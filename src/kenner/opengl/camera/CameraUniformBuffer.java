@@ -0,0 +1,77 @@
+package kenner.opengl.camera;
+
+import java.nio.FloatBuffer;
+
+import org.lwjgl.BufferUtils;
+
+//lwjgl static imports
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL31.*;
+
+/**
+ * The camera state of every shader in one uniform buffer, bound to a fixed binding point.
+ *
+ * ProgramManager connects the Camera block of every program it links to BINDING, so a shader only
+ * has to declare the block:
+ *
+ * layout(std140) uniform Camera {
+ *     mat4 view;
+ *     mat4 proj;
+ *     vec4 camera_position;
+ * };
+ *
+ * The buffer is only written when the camera changed since the last update().
+ * @author kenner
+ */
+public class CameraUniformBuffer {
+	public static final String BLOCK = "Camera";
+	public static final int BINDING = 0;
+	//std140: 2 mat4 + vec4
+	private static final int FLOATS = 16 + 16 + 4;
+
+	private int bufferId;
+	private FloatBuffer data = BufferUtils.createFloatBuffer(FLOATS);
+	//camera and version of the last upload
+	private BasicCamera camera;
+	private int version;
+
+	/**
+	 * Creates the buffer and binds it to BINDING.  Needs a current GL context.
+	 */
+	public CameraUniformBuffer(){
+		bufferId = glGenBuffers();
+		glBindBuffer(GL_UNIFORM_BUFFER, bufferId);
+		glBufferData(GL_UNIFORM_BUFFER, FLOATS * 4, GL_DYNAMIC_DRAW);
+		glBindBuffer(GL_UNIFORM_BUFFER, 0);
+		glBindBufferBase(GL_UNIFORM_BUFFER, BINDING, bufferId);
+	}
+
+	/**
+	 * Uploads the camera matrices if they changed, once per frame before drawing.
+	 * @return true if the buffer was written
+	 */
+	public boolean update(BasicCamera camera){
+		if(camera == this.camera && camera.getVersion() == version){
+			return false;
+		}
+		this.camera = camera;
+		version = camera.getVersion();
+		data.clear();
+		camera.getViewMatrix().get(data);
+		camera.getProjectionMatrix().get(data);
+		data.put(camera.getViewPosition().x).put(camera.getViewPosition().y).put(camera.getViewPosition().z).put(1f);
+		data.flip();
+		glBindBuffer(GL_UNIFORM_BUFFER, bufferId);
+		glBufferSubData(GL_UNIFORM_BUFFER, 0, data);
+		glBindBuffer(GL_UNIFORM_BUFFER, 0);
+		return true;
+	}
+
+	/**
+	 * OpenGL Cleanup
+	 */
+	public void dispose(){
+		glDeleteBuffers(bufferId);
+	}
+}
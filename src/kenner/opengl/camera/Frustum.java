@@ -0,0 +1,83 @@
+package kenner.opengl.camera;
+
+import silvertiger.tutorial.lwjgl.math.Matrix4f;
+
+/**
+ * View frustum made of 6 planes, extracted from a combined projection * view matrix.
+ * Planes are stored as (a, b, c, d) where a point is inside if ax + by + cz + d >= 0.
+ * @author kenner
+ */
+public class Frustum {
+	public static final int LEFT = 0, RIGHT = 1, BOTTOM = 2, TOP = 3, NEAR = 4, FAR = 5;
+	
+	//6 planes * (a,b,c,d)
+	private float[] planes = new float[24];
+	//scratch array for the combined matrix, column-major
+	private float[] m = new float[16];
+	//scratch matrix for projection * view
+	private Matrix4f viewProjection = new Matrix4f();
+	
+	/**
+	 * Recalculates the frustum planes.
+	 * @param projection
+	 * @param view
+	 */
+	public void update(Matrix4f projection, Matrix4f view){
+		update(projection.mulInto(view, viewProjection));
+	}
+	
+	/**
+	 * Recalculates the frustum planes from a combined projection * view matrix.
+	 * Source: Gribb & Hartmann, "Fast Extraction of Viewing Frustum Planes from the World-View-Projection Matrix"
+	 * @param viewProjection
+	 */
+	public void update(Matrix4f viewProjection){
+		viewProjection.get(m);
+		//m[col*4 + row]; each plane is row 3 +/- row n
+		for(int i = 0; i < 3; i++){
+			setPlane(i*2, m[3]+m[i], m[7]+m[4+i], m[11]+m[8+i], m[15]+m[12+i]);
+			setPlane(i*2+1, m[3]-m[i], m[7]-m[4+i], m[11]-m[8+i], m[15]-m[12+i]);
+		}
+	}
+	
+	private void setPlane(int plane, float a, float b, float c, float d){
+		//normalise so the distance functions return world units
+		float length = (float) Math.sqrt(a*a + b*b + c*c);
+		planes[plane*4] = a / length;
+		planes[plane*4+1] = b / length;
+		planes[plane*4+2] = c / length;
+		planes[plane*4+3] = d / length;
+	}
+	
+	/**
+	 * Checks an axis aligned bounding box against the frustum.
+	 * Conservative:  boxes near a frustum corner may be reported as visible.
+	 * @return false if the box is completely outside of at least one plane.
+	 */
+	public boolean intersects(float minX, float minY, float minZ, float maxX, float maxY, float maxZ){
+		for(int i = 0; i < 24; i += 4){
+			float a = planes[i], b = planes[i+1], c = planes[i+2], d = planes[i+3];
+			//test the box corner furthest along the plane normal
+			float x = a >= 0 ? maxX : minX;
+			float y = b >= 0 ? maxY : minY;
+			float z = c >= 0 ? maxZ : minZ;
+			if(a*x + b*y + c*z + d < 0){
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Signed distance from a point to one of the planes.  Positive is inside.
+	 * @param plane LEFT, RIGHT, BOTTOM, TOP, NEAR or FAR
+	 */
+	public float distance(int plane, float x, float y, float z){
+		int i = plane*4;
+		return planes[i]*x + planes[i+1]*y + planes[i+2]*z + planes[i+3];
+	}
+
+	public float[] getPlanes() {
+		return planes;
+	}
+}
@@ -0,0 +1,175 @@
+package kenner.opengl.shader;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.GL;
+
+import kenner.ko.util.Logger;
+
+//lwjgl static imports
+import static org.lwjgl.opengl.ARBGetProgramBinary.*;
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL20.*;
+
+/**
+ * On-disk cache of linked shader programs, so a launch doesn't have to compile every shader again.
+ *
+ * A program binary only works with the driver that produced it, so the key is the driver string
+ * (vendor, renderer, version) plus a SHA-256 of the vertex and fragment source.  There is one file
+ * per program name, a changed source or driver overwrites it.  If the driver rejects a binary
+ * anyway, load() returns 0 and the program is compiled from source.
+ *
+ * Needs GL 4.1 or ARB_get_program_binary, and a driver that offers at least one binary format.
+ * @author kenner
+ */
+public class ProgramBinaryCache {
+	private static final int MAGIC = 0x43424B50; //"PKBC"
+	private static final int VERSION = 1;
+	private static final String EXTENSION = ".bin";
+
+	private File directory;
+	private String driver;
+	private boolean supported;
+
+	/**
+	 * Reads the driver string, needs a current GL context.
+	 * @param directory created if it doesn't exist
+	 */
+	public ProgramBinaryCache(File directory){
+		this.directory = directory;
+		driver = glGetString(GL_VENDOR) + " | " + glGetString(GL_RENDERER) + " | " + glGetString(GL_VERSION);
+		supported = GL.getCapabilities().GL_ARB_get_program_binary && glGetInteger(GL_NUM_PROGRAM_BINARY_FORMATS) > 0;
+		if(!supported){
+			Logger.info("Shader program cache disabled, the driver has no program binary formats");
+		}
+	}
+
+	/**
+	 * @return driver string and source hash, stored in the cache file
+	 */
+	public String key(byte[] vertexSource, byte[] fragmentSource){
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(vertexSource);
+			//the boundary is part of the key, moving a line between the files changes it
+			digest.update((byte) 0);
+			digest.update(fragmentSource);
+			StringBuilder key = new StringBuilder(driver).append(" | ");
+			for(byte b : digest.digest()){
+				key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			}
+			return key.toString();
+		} catch (NoSuchAlgorithmException e) {
+			//every JRE has SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Call before glLinkProgram() on a program that will be stored.
+	 */
+	public void prepare(int program){
+		if(supported){
+			glProgramParameteri(program, GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GL_TRUE);
+		}
+	}
+
+	/**
+	 * Creates a program from the cached binary.
+	 * @param name program name
+	 * @param key see key()
+	 * @return the linked program, 0 on a miss or if the driver rejected the binary
+	 */
+	public int load(String name, String key){
+		if(!supported){
+			return 0;
+		}
+		File file = new File(directory, name + EXTENSION);
+		if(!file.isFile()){
+			Logger.info("Shader program cache miss: " + name);
+			return 0;
+		}
+		ByteBuffer data;
+		int format;
+		try {
+			ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+			if(in.getInt() != MAGIC || in.getInt() != VERSION){
+				Logger.info("Shader program cache miss (stale): " + name);
+				return 0;
+			}
+			byte[] stored = new byte[in.getInt()];
+			in.get(stored);
+			if(!key.equals(new String(stored, StandardCharsets.UTF_8))){
+				Logger.info("Shader program cache miss (stale): " + name);
+				return 0;
+			}
+			format = in.getInt();
+			data = BufferUtils.createByteBuffer(in.getInt());
+			in.limit(in.position() + data.capacity());
+			data.put(in).flip();
+		} catch (IOException | RuntimeException e) {
+			Logger.error("Failed to read shader program cache " + file.getName() + ": " + e.getMessage());
+			return 0;
+		}
+		int program = glCreateProgram();
+		glProgramBinary(program, format, data);
+		if(glGetProgrami(program, GL_LINK_STATUS) != GL_TRUE){
+			//e.g. the driver was updated without changing its version string
+			Logger.info("Shader program cache miss (rejected by the driver): " + name);
+			glDeleteProgram(program);
+			return 0;
+		}
+		return program;
+	}
+
+	/**
+	 * Writes the binary of a linked program, prepared with prepare().  Failures are logged, the
+	 * program works without the cache.
+	 * @param name program name
+	 * @param key see key()
+	 * @param program
+	 */
+	public void store(String name, String key, int program){
+		if(!supported){
+			return;
+		}
+		File file = new File(directory, name + EXTENSION);
+		File temp = new File(directory, file.getName() + ".tmp");
+		try {
+			IntBuffer format = BufferUtils.createIntBuffer(1);
+			ByteBuffer binary = glGetProgramBinary(program, format);
+			byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+			ByteBuffer out = ByteBuffer.allocate(20 + keyBytes.length + binary.remaining());
+			out.putInt(MAGIC).putInt(VERSION);
+			out.putInt(keyBytes.length).put(keyBytes);
+			out.putInt(format.get(0)).putInt(binary.remaining()).put(binary);
+			Files.createDirectories(directory.toPath());
+			Files.write(temp.toPath(), out.array());
+			//readers never see a half written file
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException | RuntimeException e) {
+			Logger.error("Failed to write shader program cache " + file.getName() + ": " + e.getMessage());
+			temp.delete();
+		}
+	}
+
+	/*
+	 * Getters
+	 */
+	public File getDirectory() {
+		return directory;
+	}
+
+	public boolean isSupported() {
+		return supported;
+	}
+}
@@ -2,6 +2,7 @@ package kenner.opengl.shader;
 
 import static org.lwjgl.opengl.GL11.*;
 import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL31.*;
 
 import java.io.File;
 import java.io.IOException;
@@ -13,6 +14,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import kenner.ko.util.FragFileNameFilter;
 import kenner.ko.util.Logger;
 import kenner.ko.util.VertFileNameFilter;
+import kenner.opengl.camera.CameraUniformBuffer;
 
 /**
  * Static class for the management of shader programs.
@@ -36,6 +38,26 @@ public class ProgramManager {
 	 */
 	private static String compilePath = "shader";
 	
+	/**
+	 * Linked program binaries of previous launches, null if disabled.
+	 */
+	private static ProgramBinaryCache cache;
+	
+	/**
+	 * Recompiles changed shader files, null unless watch() was called.
+	 */
+	private static ShaderWatcher watcher;
+	
+	/**
+	 * Incremented whenever update() replaced a program.
+	 */
+	private static int version;
+	
+	/**
+	 * A line #include "file" in a shader is replaced with that file from the compile path.
+	 */
+	private static final String INCLUDE = "#include";
+	
 	/**
 	 * Default constructor.  Polls isConstructed to check if the logic should be executed.
 	 */
@@ -53,8 +75,17 @@ public class ProgramManager {
 	 * Constructor that allows compilePath to be modified before loading available shaders.
 	 */
 	public ProgramManager(String compilePath){
+		this(compilePath, null);
+	}
+	
+	/**
+	 * Constructor that allows compilePath and the program binary cache to be set before loading available shaders.
+	 * @param cache null to always compile
+	 */
+	public ProgramManager(String compilePath, ProgramBinaryCache cache){
 		if(ProgramManager.isConstructed.compareAndSet(false, true)){
 			ProgramManager.compilePath = compilePath;
+			ProgramManager.cache = cache;
 			try {
 				loadAvailableShaders();
 			} catch (IOException e) {
@@ -71,6 +102,8 @@ public class ProgramManager {
 	 * @throws IOException 
 	 */
 	private static void loadAvailableShaders() throws IOException{
+		long start = System.nanoTime();
+		int cached = 0;
 		//grab the compile path directory
 		File shaderDir = new File(compilePath);
 		//grab the frag/vert files
@@ -89,47 +122,182 @@ public class ProgramManager {
 			//check to make sure there is a frag to link to the vert
 			String name = f.getName().replace(".vert", "");
 			if(fragments.containsKey(name)){
-				//load vertex shader
-				String vertexShader = new String(Files.readAllBytes(f.toPath()));
-				int vShader = glCreateShader(GL_VERTEX_SHADER);
-				glShaderSource(vShader, vertexShader);
-				glCompileShader(vShader);
-				if(glGetShaderi(vShader, GL_COMPILE_STATUS) != GL_TRUE){
-					Logger.error("Failed compiling Vertex Shader: " + name);
+				byte[] vertexSource, fragmentSource;
+				try {
+					vertexSource = resolveIncludes(Files.readAllBytes(f.toPath()));
+					fragmentSource = resolveIncludes(Files.readAllBytes(fragments.get(name).toPath()));
+				} catch (IOException e) {
+					Logger.error("Failed to read shader " + name + ": " + e.getMessage());
+					continue;
 				}
-				
-				//load fragment shader
-				String fragmentShader = new String(Files.readAllBytes(fragments.get(name).toPath()));
-				int fShader = glCreateShader(GL_FRAGMENT_SHADER);
-				glShaderSource(fShader, fragmentShader);
-				glCompileShader(fShader);
-				if(glGetShaderi(fShader, GL_COMPILE_STATUS) != GL_TRUE){
-					Logger.error("Failed compiling Fragment Shader: " + name);
+				String key = cache != null ? cache.key(vertexSource, fragmentSource) : null;
+				int shaderProgram = cache != null ? cache.load(name, key) : 0;
+				if(shaderProgram != 0){
+					cached++;
+				} else {
+					shaderProgram = build(name, vertexSource, fragmentSource, key);
 				}
-				
-				//create shader program
-				int shaderProgram = glCreateProgram();
-				glAttachShader(shaderProgram, vShader);
-				glAttachShader(shaderProgram, fShader);
-				glLinkProgram(shaderProgram);
-				if(glGetProgrami(shaderProgram, GL_LINK_STATUS) == GL_FALSE){
-					String linkError = glGetProgramInfoLog(shaderProgram);
-					Logger.error("Failed compiling Shader Program \"" + name + "\"");
-					Logger.error("Link error: " + linkError);
-					Logger.error("OpenGL Error Code: " + glGetError());
+				if(shaderProgram != 0){
+					bindBlocks(shaderProgram);
+					//add shader program id to list
+					shaders.put(name, shaderProgram);
 				}
-				
-				//add shader program id to list
-				shaders.put(name, shaderProgram);
-				
-				//delete shaders  - only need the compiled program
-				glDeleteShader(vShader);
-				glDeleteShader(fShader);
 			} else {
 				Logger.error("Fragment shader not found for : " + name);
 			}
 		}
+		Logger.info(String.format("Loaded %d shader programs (%d from the cache) in %.1f ms", shaders.size(), cached,
+				(System.nanoTime() - start) / 1e6));
+	}
+	
+	/**
+	 * Replaces every #include "file" line with the file, e.g. the color ramps both terrain vertex
+	 * shaders share.  GLSL has no includes of its own.  A #line after the included source keeps
+	 * compile errors on the line numbers of the shader file.
+	 * @return the source with the includes, the same array if there are none
+	 * @throws IOException if an included file can't be read
+	 */
+	private static byte[] resolveIncludes(byte[] source) throws IOException {
+		String text = new String(source);
+		if(!text.contains(INCLUDE)){
+			return source;
+		}
+		String[] lines = text.split("\n", -1);
+		StringBuilder resolved = new StringBuilder(text.length() * 2);
+		for(int i = 0; i < lines.length; i++){
+			String line = lines[i].trim();
+			if(line.startsWith(INCLUDE)){
+				String file = line.substring(INCLUDE.length()).trim().replace("\"", "");
+				resolved.append(new String(Files.readAllBytes(new File(compilePath, file).toPath()))).append('\n');
+				//the next line of the shader file
+				resolved.append("#line ").append(i + 2);
+			} else {
+				resolved.append(lines[i]);
+			}
+			if(i < lines.length - 1){
+				resolved.append('\n');
+			}
+		}
+		return resolved.toString().getBytes();
+	}
+	
+	/**
+	 * Compiles and links a program and stores it in the cache.
+	 * @param key cache key, null without a cache
+	 * @return the linked program, 0 if compiling or linking failed
+	 */
+	private static int build(String name, byte[] vertexSource, byte[] fragmentSource, String key){
+		//load vertex shader
+		int vShader = glCreateShader(GL_VERTEX_SHADER);
+		glShaderSource(vShader, new String(vertexSource));
+		glCompileShader(vShader);
+		if(glGetShaderi(vShader, GL_COMPILE_STATUS) != GL_TRUE){
+			Logger.error("Failed compiling Vertex Shader: " + name);
+			Logger.error("Compile error: " + glGetShaderInfoLog(vShader));
+		}
+		
+		//load fragment shader
+		int fShader = glCreateShader(GL_FRAGMENT_SHADER);
+		glShaderSource(fShader, new String(fragmentSource));
+		glCompileShader(fShader);
+		if(glGetShaderi(fShader, GL_COMPILE_STATUS) != GL_TRUE){
+			Logger.error("Failed compiling Fragment Shader: " + name);
+			Logger.error("Compile error: " + glGetShaderInfoLog(fShader));
+		}
 		
+		//create shader program
+		int shaderProgram = glCreateProgram();
+		glAttachShader(shaderProgram, vShader);
+		glAttachShader(shaderProgram, fShader);
+		if(cache != null){
+			cache.prepare(shaderProgram);
+		}
+		glLinkProgram(shaderProgram);
+		
+		//delete shaders  - only need the compiled program
+		glDeleteShader(vShader);
+		glDeleteShader(fShader);
+		
+		if(glGetProgrami(shaderProgram, GL_LINK_STATUS) == GL_FALSE){
+			String linkError = glGetProgramInfoLog(shaderProgram);
+			Logger.error("Failed compiling Shader Program \"" + name + "\"");
+			Logger.error("Link error: " + linkError);
+			Logger.error("OpenGL Error Code: " + glGetError());
+			glDeleteProgram(shaderProgram);
+			return 0;
+		}
+		if(cache != null){
+			cache.store(name, key, shaderProgram);
+		}
+		return shaderProgram;
+	}
+	
+	/**
+	 * Connects the uniform blocks of a program to their binding points.  Not part of a program
+	 * binary, so it's done after linking and after loading from the cache.
+	 */
+	private static void bindBlocks(int shaderProgram){
+		//programs with a camera block read it from the shared uniform buffer
+		int cameraBlock = glGetUniformBlockIndex(shaderProgram, CameraUniformBuffer.BLOCK);
+		if(cameraBlock != GL_INVALID_INDEX){
+			glUniformBlockBinding(shaderProgram, cameraBlock, CameraUniformBuffer.BINDING);
+		}
+	}
+	
+	/**
+	 * Recompiles the programs whose files changed, once per frame on the GL thread.  A program
+	 * that fails to compile keeps its old version.  Users of a program compare getVersion() and
+	 * look the id up again when it changed, their uniforms have to be set again.
+	 * @return true if a program was replaced
+	 */
+	public static boolean update(){
+		if(watcher == null){
+			return false;
+		}
+		boolean replaced = false;
+		ShaderWatcher.Sources sources;
+		while((sources = watcher.poll()) != null){
+			long start = System.nanoTime();
+			String name = sources.getName();
+			byte[] vertexSource, fragmentSource;
+			try {
+				vertexSource = resolveIncludes(sources.getVertex());
+				fragmentSource = resolveIncludes(sources.getFragment());
+			} catch (IOException e) {
+				Logger.error("Failed to read an include of shader " + name + ", keeping the previous version: " + e.getMessage());
+				continue;
+			}
+			String key = cache != null ? cache.key(vertexSource, fragmentSource) : null;
+			int shaderProgram = build(name, vertexSource, fragmentSource, key);
+			if(shaderProgram == 0){
+				Logger.error("Keeping the previous version of shader program \"" + name + "\"");
+				continue;
+			}
+			bindBlocks(shaderProgram);
+			Integer previous = shaders.put(name, shaderProgram);
+			if(previous != null){
+				glDeleteProgram(previous);
+			}
+			version++;
+			replaced = true;
+			Logger.info(String.format("Reloaded shader program \"%s\" in %.1f ms", name, (System.nanoTime() - start) / 1e6));
+		}
+		return replaced;
+	}
+	
+	/**
+	 * Starts recompiling changed shader files, see update().
+	 * @param listener called on the watcher thread when a file changed, e.g. to wake the render loop
+	 */
+	public static void watch(Runnable listener){
+		if(watcher != null){
+			return;
+		}
+		try {
+			watcher = new ShaderWatcher(new File(compilePath), listener);
+		} catch (IOException e) {
+			Logger.error("Failed to watch " + compilePath + ", shader hot reload disabled: " + e.getMessage());
+		}
 	}
 	
 	/**
@@ -156,10 +324,21 @@ public class ProgramManager {
 		}
 	}
 	
+	/**
+	 * @return changes whenever update() replaced a program
+	 */
+	public static int getVersion(){
+		return version;
+	}
+	
 	/**
 	 * Disposes shader programs.  Should be called at the end of the application
 	 */
 	public static void dispose(){
+		if(watcher != null){
+			watcher.close();
+			watcher = null;
+		}
 		for(int i : shaders.values()){
 			glDeleteProgram(i);
 		}
@@ -0,0 +1,173 @@
+package kenner.opengl.shader;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import kenner.ko.util.Logger;
+
+/**
+ * Watches the shader directory and reads changed .vert/.frag pairs on its own thread.  A changed
+ * .glsl file is a source the programs #include (see ProgramManager), it reloads every program.
+ *
+ * The sources wait in a map until the GL thread takes them with poll(), only the latest version
+ * of a program is kept.  Editors write a file in several steps, so events are collected until the
+ * directory was quiet for DEBOUNCE_MS before the files are read.
+ * @author kenner
+ */
+public class ShaderWatcher {
+	private static final long DEBOUNCE_MS = 100;
+
+	/**
+	 * Vertex and fragment source of a program, read from disk.
+	 */
+	public static class Sources {
+		private String name;
+		private byte[] vertex;
+		private byte[] fragment;
+
+		private Sources(String name, byte[] vertex, byte[] fragment){
+			this.name = name;
+			this.vertex = vertex;
+			this.fragment = fragment;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public byte[] getVertex() {
+			return vertex;
+		}
+
+		public byte[] getFragment() {
+			return fragment;
+		}
+	}
+
+	private File directory;
+	private WatchService service;
+	private Thread thread;
+	//read sources by program name, taken by the GL thread
+	private Map<String, Sources> changed = new ConcurrentHashMap<String, Sources>();
+	//called on the watcher thread after sources were read, e.g. to wake the render loop
+	private Runnable listener;
+
+	/**
+	 * Starts watching.
+	 * @param directory shader directory
+	 * @param listener called on the watcher thread whenever poll() has something, may be null
+	 * @throws IOException if the directory can't be watched
+	 */
+	public ShaderWatcher(File directory, Runnable listener) throws IOException {
+		this.directory = directory;
+		this.listener = listener;
+		service = FileSystems.getDefault().newWatchService();
+		directory.toPath().register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+		thread = new Thread(this::watch, "ShaderWatcher");
+		thread.setDaemon(true);
+		thread.start();
+		Logger.info("Watching " + directory.getPath() + " for shader changes");
+	}
+
+	private void watch(){
+		try {
+			while(true){
+				Set<String> names = new HashSet<String>();
+				WatchKey key = service.take();
+				//collect until the editor is done writing
+				while(key != null){
+					for(WatchEvent<?> event : key.pollEvents()){
+						if(event.context() instanceof Path){
+							String file = event.context().toString();
+							if(file.endsWith(".vert") || file.endsWith(".frag")){
+								names.add(file.substring(0, file.length() - 5));
+							} else if(file.endsWith(".glsl")){
+								names.addAll(programs());
+							}
+						}
+					}
+					key.reset();
+					key = service.poll(DEBOUNCE_MS, TimeUnit.MILLISECONDS);
+				}
+				for(String name : names){
+					read(name);
+				}
+				if(!names.isEmpty() && listener != null){
+					listener.run();
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			//stopped
+		}
+	}
+
+	/**
+	 * @return names of every complete .vert/.frag pair in the directory
+	 */
+	private Set<String> programs(){
+		Set<String> names = new HashSet<String>();
+		String[] files = directory.list();
+		if(files != null){
+			for(String file : files){
+				String name = file.substring(0, Math.max(0, file.length() - 5));
+				if(file.endsWith(".vert") && new File(directory, name + ".frag").isFile()){
+					names.add(name);
+				}
+			}
+		}
+		return names;
+	}
+
+	private void read(String name){
+		File vert = new File(directory, name + ".vert");
+		File frag = new File(directory, name + ".frag");
+		if(!vert.isFile() || !frag.isFile()){
+			Logger.error("Shader " + name + " changed, but the .vert/.frag pair is incomplete");
+			return;
+		}
+		try {
+			changed.put(name, new Sources(name, Files.readAllBytes(vert.toPath()), Files.readAllBytes(frag.toPath())));
+			Logger.info("Shader changed: " + name);
+		} catch (IOException e) {
+			Logger.error("Failed to read shader " + name + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Takes one changed program.
+	 * @return the sources, null if nothing changed
+	 */
+	public Sources poll(){
+		for(String name : changed.keySet()){
+			Sources sources = changed.remove(name);
+			if(sources != null){
+				return sources;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Stops the watcher thread.
+	 */
+	public void close(){
+		try {
+			service.close();
+		} catch (IOException e) {
+			Logger.error("Failed to close the shader watcher: " + e.getMessage());
+		}
+	}
+}
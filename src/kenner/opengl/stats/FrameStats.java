@@ -0,0 +1,381 @@
+package kenner.opengl.stats;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import kenner.ko.util.Logger;
+
+/**
+ * Frame time statistics of the last frames.
+ *
+ * Frame times, CPU stage times and GPU times are kept in ring buffers, percentiles are selected
+ * from a scratch copy.  Nothing is allocated per frame: the summary is appended to a caller's
+ * StringBuilder and CSV lines are formatted into a reused byte array.
+ *
+ * Usage per frame: beginFrame(), mark() after every stage and addDraws() for the draw calls.
+ * GPU times are added by addGpuTime() whenever a GpuTimer query finished.
+ * @author kenner
+ */
+public class FrameStats {
+	/**
+	 * CPU stages of a frame, in order.
+	 */
+	public enum Stage {
+		INPUT,
+		//fixed timestep simulation ticks
+		UPDATE,
+		CAMERA,
+		DRAW,
+		SWAP
+	}
+	private static final Stage[] STAGES = Stage.values();
+
+	private int capacity;
+	//ring buffers, ms
+	private float[] frameTimes;
+	private float[][] stageTimes;
+	private float[] gpuTimes;
+	//scratch for percentiles
+	private float[] sorted;
+	//frames recorded, the ring holds the last min(frames, capacity)
+	private long frames;
+	private int gpuSamples;
+	private int gpuIndex;
+
+	//current frame
+	private long frameStart = -1;
+	private long stageStart;
+	private int drawCalls;
+	private int triangles;
+	private float lastGpuMillis = -1f;
+
+	//CSV output, null if disabled
+	private OutputStream csv;
+	private byte[] csvLine = new byte[256];
+	private int csvLength;
+
+	/**
+	 * @param capacity frames kept for the statistics
+	 */
+	public FrameStats(int capacity){
+		this.capacity = capacity;
+		frameTimes = new float[capacity];
+		stageTimes = new float[STAGES.length][capacity];
+		gpuTimes = new float[capacity];
+		sorted = new float[capacity];
+	}
+
+	/**
+	 * Writes one line per frame to a CSV file, times in microseconds.
+	 * The GPU time is the latest finished query, which lags a few frames behind.
+	 * @param file overwritten
+	 * @throws IOException
+	 */
+	public void openCsv(File file) throws IOException {
+		csv = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+		csv.write("frame,frame_us,input_us,update_us,camera_us,draw_us,swap_us,gpu_us,draw_calls,triangles\n".getBytes("US-ASCII"));
+		Logger.info("Writing frame stats to " + file.getPath());
+	}
+
+	/**
+	 * Forgets every recorded frame, the current frame is timed from now.
+	 */
+	public void reset(){
+		frames = 0;
+		gpuSamples = 0;
+		gpuIndex = 0;
+		lastGpuMillis = -1f;
+		frameStart = System.nanoTime();
+		stageStart = frameStart;
+	}
+
+	/**
+	 * Drops the current frame, e.g. after the render loop was idle.  The next beginFrame() only starts timing.
+	 */
+	public void discardFrame(){
+		frameStart = -1;
+	}
+
+	/**
+	 * Starts a frame, the time since the last call is the frame time.
+	 */
+	public void beginFrame(){
+		long now = System.nanoTime();
+		if(frameStart >= 0){
+			frameTimes[(int) (frames % capacity)] = (now - frameStart) / 1e6f;
+			writeCsv();
+			frames++;
+		}
+		frameStart = now;
+		stageStart = now;
+		drawCalls = 0;
+		triangles = 0;
+	}
+
+	/**
+	 * Ends the current stage, stages have to be marked in order.
+	 * @param stage
+	 */
+	public void mark(Stage stage){
+		long now = System.nanoTime();
+		stageTimes[stage.ordinal()][(int) (frames % capacity)] = (now - stageStart) / 1e6f;
+		stageStart = now;
+	}
+
+	/**
+	 * Adds draw calls and triangles to the current frame.
+	 */
+	public void addDraws(int drawCalls, int triangles){
+		this.drawCalls += drawCalls;
+		this.triangles += triangles;
+	}
+
+	/**
+	 * Adds a finished GPU time, see GpuTimer.
+	 */
+	public void addGpuTime(float millis){
+		gpuTimes[gpuIndex] = millis;
+		gpuIndex = (gpuIndex + 1) % capacity;
+		gpuSamples = Math.min(gpuSamples + 1, capacity);
+		lastGpuMillis = millis;
+	}
+
+	/**
+	 * @return frames in the ring buffer
+	 */
+	public int getCount(){
+		return (int) Math.min(frames, capacity);
+	}
+
+	/**
+	 * @param p 0 to 1
+	 * @return frame time percentile in ms
+	 */
+	public float getFramePercentile(float p){
+		return percentile(frameTimes, getCount(), p);
+	}
+
+	/**
+	 * @param p 0 to 1
+	 * @return GPU time percentile in ms, -1 without GPU times
+	 */
+	public float getGpuPercentile(float p){
+		return gpuSamples == 0 ? -1f : percentile(gpuTimes, gpuSamples, p);
+	}
+
+	/**
+	 * @return average frame time in ms
+	 */
+	public float getFrameAverage(){
+		return average(frameTimes, getCount());
+	}
+
+	/**
+	 * @return average time of a stage in ms
+	 */
+	public float getStageAverage(Stage stage){
+		return average(stageTimes[stage.ordinal()], getCount());
+	}
+
+	private static float average(float[] values, int count){
+		if(count == 0){
+			return 0f;
+		}
+		float sum = 0;
+		for(int i = 0; i < count; i++){
+			sum += values[i];
+		}
+		return sum / count;
+	}
+
+	/**
+	 * Nearest rank percentile, selected in place from a copy.
+	 */
+	private float percentile(float[] values, int count, float p){
+		if(count == 0){
+			return 0f;
+		}
+		System.arraycopy(values, 0, sorted, 0, count);
+		int k = Math.min(count - 1, Math.max(0, (int) Math.ceil(p * count) - 1));
+		return select(sorted, count, k);
+	}
+
+	/**
+	 * Quickselect, k-th smallest of the first count values.  Reorders the array.
+	 */
+	private static float select(float[] a, int count, int k){
+		int left = 0, right = count - 1;
+		while(left < right){
+			float pivot = a[(left + right) >>> 1];
+			int i = left, j = right;
+			while(i <= j){
+				while(a[i] < pivot) i++;
+				while(a[j] > pivot) j--;
+				if(i <= j){
+					float t = a[i];
+					a[i] = a[j];
+					a[j] = t;
+					i++;
+					j--;
+				}
+			}
+			if(k <= j){
+				right = j;
+			} else if(k >= i){
+				left = i;
+			} else {
+				return a[k];
+			}
+		}
+		return a[k];
+	}
+
+	/**
+	 * Appends a few lines of statistics for an overlay.
+	 * @param text cleared first
+	 */
+	public void appendSummary(StringBuilder text){
+		text.setLength(0);
+		float average = getFrameAverage();
+		text.append("FPS ").append(average > 0 ? Math.round(1000f / average) : 0);
+		text.append("   frame ");
+		appendMillis(text, average);
+		text.append(" ms   p50 ");
+		appendMillis(text, getFramePercentile(0.5f));
+		text.append("  p95 ");
+		appendMillis(text, getFramePercentile(0.95f));
+		text.append("  p99 ");
+		appendMillis(text, getFramePercentile(0.99f));
+		text.append('\n');
+
+		text.append("CPU  input ");
+		appendMillis(text, getStageAverage(Stage.INPUT));
+		text.append("  update ");
+		appendMillis(text, getStageAverage(Stage.UPDATE));
+		text.append("  camera ");
+		appendMillis(text, getStageAverage(Stage.CAMERA));
+		text.append("  draw ");
+		appendMillis(text, getStageAverage(Stage.DRAW));
+		text.append("  swap ");
+		appendMillis(text, getStageAverage(Stage.SWAP));
+		text.append(" ms\n");
+
+		text.append("GPU  ");
+		if(gpuSamples == 0){
+			text.append("n/a");
+		} else {
+			appendMillis(text, lastGpuMillis);
+			text.append(" ms   p50 ");
+			appendMillis(text, getGpuPercentile(0.5f));
+			text.append("  p95 ");
+			appendMillis(text, getGpuPercentile(0.95f));
+			text.append("  p99 ");
+			appendMillis(text, getGpuPercentile(0.99f));
+		}
+		text.append('\n');
+
+		text.append("draw calls ").append(drawCalls).append("   triangles ").append(triangles);
+	}
+
+	/**
+	 * Appends ms with 2 decimals, StringBuilder.append(float) would allocate.
+	 */
+	private static void appendMillis(StringBuilder text, float millis){
+		int hundredths = Math.round(millis * 100f);
+		if(hundredths < 0){
+			text.append('-');
+			hundredths = -hundredths;
+		}
+		text.append(hundredths / 100).append('.');
+		int fraction = hundredths % 100;
+		if(fraction < 10){
+			text.append('0');
+		}
+		text.append(fraction);
+	}
+
+	private void writeCsv(){
+		if(csv == null){
+			return;
+		}
+		int index = (int) (frames % capacity);
+		csvLength = 0;
+		putLong(frames);
+		putMicros(frameTimes[index]);
+		for(int s = 0; s < STAGES.length; s++){
+			putMicros(stageTimes[s][index]);
+		}
+		putMicros(lastGpuMillis);
+		putLong(drawCalls);
+		putLong(triangles);
+		csvLine[csvLength-1] = '\n';
+		try {
+			csv.write(csvLine, 0, csvLength);
+		} catch (IOException e) {
+			Logger.error("Failed to write frame stats, CSV output disabled: " + e.getMessage());
+			closeCsv();
+		}
+	}
+
+	private void putMicros(float millis){
+		putLong(millis < 0 ? -1 : Math.round(millis * 1000f));
+	}
+
+	/**
+	 * Writes the digits and a comma into the line.
+	 */
+	private void putLong(long value){
+		if(value < 0){
+			csvLine[csvLength++] = '-';
+			value = -value;
+		}
+		int start = csvLength;
+		do {
+			csvLine[csvLength++] = (byte) ('0' + value % 10);
+			value /= 10;
+		} while(value > 0);
+		//digits were written backwards
+		for(int i = start, j = csvLength - 1; i < j; i++, j--){
+			byte t = csvLine[i];
+			csvLine[i] = csvLine[j];
+			csvLine[j] = t;
+		}
+		csvLine[csvLength++] = ',';
+	}
+
+	/**
+	 * Flushes and closes the CSV file.
+	 */
+	public void closeCsv(){
+		if(csv != null){
+			try {
+				csv.close();
+			} catch (IOException e) {
+				Logger.error("Failed to close frame stats: " + e.getMessage());
+			}
+			csv = null;
+		}
+	}
+
+	/*
+	 * Getters
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public long getFrames() {
+		return frames;
+	}
+
+	public int getDrawCalls() {
+		return drawCalls;
+	}
+
+	public int getTriangles() {
+		return triangles;
+	}
+}
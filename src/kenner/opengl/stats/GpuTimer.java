@@ -0,0 +1,95 @@
+package kenner.opengl.stats;
+
+//lwjgl static imports
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL33.*;
+
+/**
+ * Measures GPU time of a part of the frame with GL_TIME_ELAPSED queries.
+ *
+ * Results arrive a few frames late, so the queries are used round robin and only finished ones
+ * are read.  The render thread never waits for the GPU unless it is more than latency frames behind.
+ * @author kenner
+ */
+public class GpuTimer {
+	private int[] queries;
+	//query has been ended but not read yet
+	private boolean[] pending;
+	private int current;
+	//oldest query that may still be pending
+	private int oldest;
+	//last result, -1 until the first query finished
+	private float lastMillis = -1f;
+	//true when a new result was read since the last call to hasResult()
+	private boolean newResult;
+
+	/**
+	 * Needs a current GL context.
+	 * @param latency queries in flight, 3 or 4 covers the usual driver queue
+	 */
+	public GpuTimer(int latency){
+		queries = new int[Math.max(1, latency)];
+		pending = new boolean[queries.length];
+		for(int i = 0; i < queries.length; i++){
+			queries[i] = glGenQueries();
+		}
+	}
+
+	/**
+	 * Starts timing, only one timer can run at a time.
+	 */
+	public void begin(){
+		if(pending[current]){
+			//the GPU is latency frames behind, wait for the result instead of losing it.
+			//queries are used in order, so this is the oldest one
+			read(current);
+			oldest = (current + 1) % queries.length;
+		}
+		glBeginQuery(GL_TIME_ELAPSED, queries[current]);
+	}
+
+	/**
+	 * Stops timing and reads every finished query.
+	 */
+	public void end(){
+		glEndQuery(GL_TIME_ELAPSED);
+		pending[current] = true;
+		current = (current + 1) % queries.length;
+		while(pending[oldest] && glGetQueryObjecti(queries[oldest], GL_QUERY_RESULT_AVAILABLE) == GL_TRUE){
+			read(oldest);
+			oldest = (oldest + 1) % queries.length;
+		}
+	}
+
+	private void read(int index){
+		lastMillis = glGetQueryObjectui64(queries[index], GL_QUERY_RESULT) / 1e6f;
+		pending[index] = false;
+		newResult = true;
+	}
+
+	/**
+	 * @return true once per finished query
+	 */
+	public boolean hasResult(){
+		boolean result = newResult;
+		newResult = false;
+		return result;
+	}
+
+	/**
+	 * @return GPU time of the latest finished query in ms, -1 if none finished yet
+	 */
+	public float getLastMillis() {
+		return lastMillis;
+	}
+
+	/**
+	 * OpenGL Cleanup
+	 */
+	public void dispose(){
+		for(int query : queries){
+			glDeleteQueries(query);
+		}
+	}
+}
@@ -0,0 +1,176 @@
+package kenner.opengl.stats;
+
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.nio.IntBuffer;
+
+import org.lwjgl.BufferUtils;
+
+import kenner.opengl.shader.ProgramManager;
+
+//lwjgl static imports
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL12.*;
+import static org.lwjgl.opengl.GL13.*;
+import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL30.*;
+
+/**
+ * A text box drawn over the window, in the top left corner unless it's moved.
+ *
+ * The text is rasterized with Java2D into a fixed size image and uploaded to a texture, the quad
+ * is generated from gl_VertexID by the Overlay shader.  The image, pixel buffer and glyph array
+ * are reused, only Java2D itself allocates while the text is redrawn, so callers should limit
+ * setText() to a few times per second.
+ * @author kenner
+ */
+public class TextOverlay {
+	public static final String PROGRAM = "Overlay";
+	private static final int PADDING = 6;
+	private static final Color BACKGROUND = new Color(0, 0, 0, 160);
+
+	private int width, height;
+	private BufferedImage image;
+	private Graphics2D graphics;
+	//ARGB pixels of image
+	private int[] pixels;
+	private IntBuffer upload;
+	private char[] glyphs = new char[256];
+	private int lineHeight;
+
+	private int textureId;
+	private int vaoId;
+	private int program;
+	//ProgramManager.getVersion() the program was looked up at
+	private int programVersion;
+	private int rectLocation;
+	private int screenWidth, screenHeight;
+	//top left corner of the box, pixels from the top left of the window
+	private int x, y;
+
+	/**
+	 * Needs a current GL context.
+	 * @param width of the box in pixels
+	 * @param height of the box in pixels
+	 * @param screenWidth window width in pixels
+	 * @param screenHeight window height in pixels
+	 */
+	public TextOverlay(int width, int height, int screenWidth, int screenHeight){
+		this.width = width;
+		this.height = height;
+		image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+		upload = BufferUtils.createIntBuffer(width * height);
+		graphics = image.createGraphics();
+		graphics.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 13));
+		graphics.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+		lineHeight = graphics.getFontMetrics().getHeight();
+
+		textureId = glGenTextures();
+		glBindTexture(GL_TEXTURE_2D, textureId);
+		glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA8, width, height, 0, GL_BGRA, GL_UNSIGNED_INT_8_8_8_8_REV, (IntBuffer) null);
+		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
+		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+		glBindTexture(GL_TEXTURE_2D, 0);
+
+		//no attributes, but core profile draws need a vao
+		vaoId = glGenVertexArrays();
+		this.screenWidth = screenWidth;
+		this.screenHeight = screenHeight;
+		setupProgram();
+		glUseProgram(0);
+	}
+
+	/**
+	 * Looks the program up and sets its uniforms, again after ProgramManager reloaded it.  Leaves the program current.
+	 */
+	private void setupProgram(){
+		programVersion = ProgramManager.getVersion();
+		program = ProgramManager.getShaderId(PROGRAM);
+		rectLocation = glGetUniformLocation(program, "rect");
+		glUseProgram(program);
+		glUniform1i(glGetUniformLocation(program, "text"), 0);
+		//pixel exact box, in normalized device coordinates
+		glUniform4f(rectLocation, -1f + 2f * x / screenWidth, 1f - 2f * (y + height) / screenHeight,
+				-1f + 2f * (x + width) / screenWidth, 1f - 2f * y / screenHeight);
+	}
+
+	/**
+	 * Moves the box.
+	 * @param x pixels from the left edge of the window
+	 * @param y pixels from the top edge of the window
+	 */
+	public void setPosition(int x, int y){
+		this.x = x;
+		this.y = y;
+		//the rect uniform is set on the next draw
+		programVersion = -1;
+	}
+
+	/**
+	 * Redraws the text and uploads it.
+	 * @param text lines separated by '\n'
+	 */
+	public void setText(CharSequence text){
+		graphics.setComposite(AlphaComposite.Src);
+		graphics.setColor(BACKGROUND);
+		graphics.fillRect(0, 0, width, height);
+		graphics.setComposite(AlphaComposite.SrcOver);
+		graphics.setColor(Color.WHITE);
+		int y = PADDING + graphics.getFontMetrics().getAscent();
+		int count = 0;
+		for(int i = 0; i <= text.length(); i++){
+			char c = i < text.length() ? text.charAt(i) : '\n';
+			if(c == '\n'){
+				graphics.drawChars(glyphs, 0, count, PADDING, y);
+				y += lineHeight;
+				count = 0;
+			} else if(count < glyphs.length){
+				glyphs[count++] = c;
+			}
+		}
+		upload.clear();
+		upload.put(pixels).flip();
+		glBindTexture(GL_TEXTURE_2D, textureId);
+		glTexSubImage2D(GL_TEXTURE_2D, 0, 0, 0, width, height, GL_BGRA, GL_UNSIGNED_INT_8_8_8_8_REV, upload);
+		glBindTexture(GL_TEXTURE_2D, 0);
+	}
+
+	/**
+	 * Draws the box on top of everything, blended.  Leaves the depth test enabled and polygon mode filled.
+	 */
+	public void draw(){
+		glDisable(GL_DEPTH_TEST);
+		glEnable(GL_BLEND);
+		glBlendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
+		glPolygonMode(GL_FRONT_AND_BACK, GL_FILL);
+		if(programVersion != ProgramManager.getVersion()){
+			setupProgram();
+		} else {
+			glUseProgram(program);
+		}
+		glActiveTexture(GL_TEXTURE0);
+		glBindTexture(GL_TEXTURE_2D, textureId);
+		glBindVertexArray(vaoId);
+		glDrawArrays(GL_TRIANGLE_STRIP, 0, 4);
+		glBindVertexArray(0);
+		glDisable(GL_BLEND);
+		glEnable(GL_DEPTH_TEST);
+	}
+
+	/**
+	 * OpenGL Cleanup
+	 */
+	public void dispose(){
+		graphics.dispose();
+		glDeleteTextures(textureId);
+		glDeleteVertexArrays(vaoId);
+	}
+}
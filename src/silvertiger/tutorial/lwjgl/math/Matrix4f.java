@@ -38,7 +38,10 @@ public class Matrix4f {
     private float m20, m21, m22, m23;
     private float m30, m31, m32, m33;
     
-    private FloatBuffer buffer;
+    /**
+     * Scratch buffer of getBuffer(), one per thread instead of one per matrix.
+     */
+    private static final ThreadLocal<FloatBuffer> SCRATCH = ThreadLocal.withInitial(() -> BufferUtils.createFloatBuffer(16));
 
     /**
      * Creates a 4x4 identity matrix.
@@ -229,6 +232,141 @@ public class Matrix4f {
         return result;
     }
 
+    /**
+     * Multiplies this matrix to another matrix without allocating. The
+     * destination may be this or the other matrix.
+     *
+     * @param other The other matrix
+     * @param dest Matrix receiving this * other
+     * @return dest
+     */
+    public Matrix4f mulInto(Matrix4f other, Matrix4f dest) {
+        float r00 = this.m00 * other.m00 + this.m01 * other.m10 + this.m02 * other.m20 + this.m03 * other.m30;
+        float r10 = this.m10 * other.m00 + this.m11 * other.m10 + this.m12 * other.m20 + this.m13 * other.m30;
+        float r20 = this.m20 * other.m00 + this.m21 * other.m10 + this.m22 * other.m20 + this.m23 * other.m30;
+        float r30 = this.m30 * other.m00 + this.m31 * other.m10 + this.m32 * other.m20 + this.m33 * other.m30;
+
+        float r01 = this.m00 * other.m01 + this.m01 * other.m11 + this.m02 * other.m21 + this.m03 * other.m31;
+        float r11 = this.m10 * other.m01 + this.m11 * other.m11 + this.m12 * other.m21 + this.m13 * other.m31;
+        float r21 = this.m20 * other.m01 + this.m21 * other.m11 + this.m22 * other.m21 + this.m23 * other.m31;
+        float r31 = this.m30 * other.m01 + this.m31 * other.m11 + this.m32 * other.m21 + this.m33 * other.m31;
+
+        float r02 = this.m00 * other.m02 + this.m01 * other.m12 + this.m02 * other.m22 + this.m03 * other.m32;
+        float r12 = this.m10 * other.m02 + this.m11 * other.m12 + this.m12 * other.m22 + this.m13 * other.m32;
+        float r22 = this.m20 * other.m02 + this.m21 * other.m12 + this.m22 * other.m22 + this.m23 * other.m32;
+        float r32 = this.m30 * other.m02 + this.m31 * other.m12 + this.m32 * other.m22 + this.m33 * other.m32;
+
+        float r03 = this.m00 * other.m03 + this.m01 * other.m13 + this.m02 * other.m23 + this.m03 * other.m33;
+        float r13 = this.m10 * other.m03 + this.m11 * other.m13 + this.m12 * other.m23 + this.m13 * other.m33;
+        float r23 = this.m20 * other.m03 + this.m21 * other.m13 + this.m22 * other.m23 + this.m23 * other.m33;
+        float r33 = this.m30 * other.m03 + this.m31 * other.m13 + this.m32 * other.m23 + this.m33 * other.m33;
+
+        dest.m00 = r00;
+        dest.m10 = r10;
+        dest.m20 = r20;
+        dest.m30 = r30;
+        dest.m01 = r01;
+        dest.m11 = r11;
+        dest.m21 = r21;
+        dest.m31 = r31;
+        dest.m02 = r02;
+        dest.m12 = r12;
+        dest.m22 = r22;
+        dest.m32 = r32;
+        dest.m03 = r03;
+        dest.m13 = r13;
+        dest.m23 = r23;
+        dest.m33 = r33;
+        return dest;
+    }
+
+    /**
+     * Multiplies this matrix to a vector without allocating. The destination
+     * may be the vector itself.
+     *
+     * @param vector The vector
+     * @param dest Vector receiving this * vector
+     * @return dest
+     */
+    public Vector4f mulInto(Vector4f vector, Vector4f dest) {
+        float x = this.m00 * vector.x + this.m01 * vector.y + this.m02 * vector.z + this.m03 * vector.w;
+        float y = this.m10 * vector.x + this.m11 * vector.y + this.m12 * vector.z + this.m13 * vector.w;
+        float z = this.m20 * vector.x + this.m21 * vector.y + this.m22 * vector.z + this.m23 * vector.w;
+        float w = this.m30 * vector.x + this.m31 * vector.y + this.m32 * vector.z + this.m33 * vector.w;
+        return dest.set(x, y, z, w);
+    }
+
+    /**
+     * Copies another matrix into this matrix.
+     *
+     * @param other The other matrix
+     * @return this
+     */
+    public Matrix4f set(Matrix4f other) {
+        m00 = other.m00;
+        m10 = other.m10;
+        m20 = other.m20;
+        m30 = other.m30;
+        m01 = other.m01;
+        m11 = other.m11;
+        m21 = other.m21;
+        m31 = other.m31;
+        m02 = other.m02;
+        m12 = other.m12;
+        m22 = other.m22;
+        m32 = other.m32;
+        m03 = other.m03;
+        m13 = other.m13;
+        m23 = other.m23;
+        m33 = other.m33;
+        return this;
+    }
+
+    /**
+     * Sets all values of this matrix, row by row.
+     *
+     * @return this
+     */
+    public Matrix4f set(float m00, float m01, float m02, float m03,
+            float m10, float m11, float m12, float m13,
+            float m20, float m21, float m22, float m23,
+            float m30, float m31, float m32, float m33) {
+        this.m00 = m00;
+        this.m01 = m01;
+        this.m02 = m02;
+        this.m03 = m03;
+        this.m10 = m10;
+        this.m11 = m11;
+        this.m12 = m12;
+        this.m13 = m13;
+        this.m20 = m20;
+        this.m21 = m21;
+        this.m22 = m22;
+        this.m23 = m23;
+        this.m30 = m30;
+        this.m31 = m31;
+        this.m32 = m32;
+        this.m33 = m33;
+        return this;
+    }
+
+    /**
+     * Sets this matrix to a translation matrix, see
+     * {@link #translate(float, float, float)}.
+     *
+     * @param x x coordinate of translation vector
+     * @param y y coordinate of translation vector
+     * @param z z coordinate of translation vector
+     * @return this
+     */
+    public Matrix4f setTranslation(float x, float y, float z) {
+        setIdentity();
+        m03 = x;
+        m13 = y;
+        m23 = z;
+        return this;
+    }
+
     /**
      * Transposes this matrix.
      *
@@ -261,26 +399,61 @@ public class Matrix4f {
     }
 
     /**
-     * Returns the Buffer representation of this vector.
+     * Returns the Buffer representation of this matrix, e.g. for
+     * <code>glUniformMatrix4fv</code>. The buffer is a scratch buffer shared
+     * by all matrices of the calling thread, it is only valid until the next
+     * call and must not be kept.
      *
-     * @return Vector as FloatBuffer
+     * @return Matrix as FloatBuffer
      */
     public FloatBuffer getBuffer() {
-        if(buffer == null){
-        	generateBuffer();
-        }
+        FloatBuffer buffer = SCRATCH.get();
+        buffer.clear();
+        get(buffer);
+        buffer.flip();
         return buffer;
     }
     
-    public void generateBuffer(){
-    	buffer = BufferUtils.createFloatBuffer(16);
-        buffer.put(m00).put(m10).put(m20).put(m30);
-        buffer.put(m01).put(m11).put(m21).put(m31);
-        buffer.put(m02).put(m12).put(m22).put(m32);
-        buffer.put(m03).put(m13).put(m23).put(m33);
-        buffer.flip();
+    /**
+     * Stores this matrix into a buffer in column-major order, starting at
+     * its position.
+     *
+     * @param dest Buffer with at least 16 remaining elements
+     * @return dest, its position advanced by 16
+     */
+    public FloatBuffer get(FloatBuffer dest) {
+        dest.put(m00).put(m10).put(m20).put(m30);
+        dest.put(m01).put(m11).put(m21).put(m31);
+        dest.put(m02).put(m12).put(m22).put(m32);
+        dest.put(m03).put(m13).put(m23).put(m33);
+        return dest;
     }
-
+    
+    /**
+     * Stores this matrix into an array in column-major order, the same order
+     * as {@link #getBuffer()}.
+     *
+     * @param dest Array with at least 16 elements
+     */
+    public void get(float[] dest) {
+        dest[0] = m00;
+        dest[1] = m10;
+        dest[2] = m20;
+        dest[3] = m30;
+        dest[4] = m01;
+        dest[5] = m11;
+        dest[6] = m21;
+        dest[7] = m31;
+        dest[8] = m02;
+        dest[9] = m12;
+        dest[10] = m22;
+        dest[11] = m32;
+        dest[12] = m03;
+        dest[13] = m13;
+        dest[14] = m23;
+        dest[15] = m33;
+    }
+    
     /**
      * Creates a orthographic projection matrix. Similar to
      * <code>glOrtho(left, right, bottom, top, near, far)</code>.
@@ -443,7 +616,15 @@ public class Matrix4f {
     }
     
     public Matrix4f inverse(){
-    	Matrix4f i = new Matrix4f();
+    	return invertInto(new Matrix4f());
+    }
+    
+    /**
+     * Inverts this matrix without allocating.  The destination may be this matrix.
+     * @param dest matrix receiving the inverse, unchanged if there is none
+     * @return dest, null if the determinate is 0
+     */
+    public Matrix4f invertInto(Matrix4f dest){
     	float det = determinate();
     	//deteriminate cannot be 0.  Unlikely.
     	if(det == 0) 
@@ -451,24 +632,41 @@ public class Matrix4f {
     	
     	float invert_det = 1f / det;
     	
-    	i.m00 = invert_det * (m12*m23*m31 - m13*m22*m31 + m13*m21*m32 - m11*m23*m32 - m12*m21*m33 + m11*m22*m33);
-    	i.m01 = invert_det * (m03*m22*m31 - m02*m23*m31 - m03*m21*m32 + m01*m23*m32 + m02*m21*m33 - m01*m22*m33);
-    	i.m02 = invert_det * (m02*m13*m31 - m03*m12*m31 + m03*m11*m32 - m01*m13*m32 - m02*m11*m33 + m01*m12*m33);
-    	i.m03 = invert_det * (m03*m12*m21 - m02*m13*m21 - m03*m11*m22 + m01*m13*m22 + m02*m11*m23 - m01*m12*m23);
-    	i.m10 = invert_det * (m13*m22*m30 - m12*m23*m30 - m13*m20*m32 + m10*m23*m32 + m12*m20*m33 - m10*m22*m33);
-    	i.m11 = invert_det * (m02*m23*m30 - m03*m22*m30 + m03*m20*m32 - m00*m23*m32 - m02*m20*m33 + m00*m22*m33);
-    	i.m12 = invert_det * (m03*m12*m30 - m02*m13*m30 - m03*m10*m32 + m00*m13*m32 + m02*m10*m33 - m00*m12*m33);
-    	i.m13 = invert_det * (m02*m13*m20 - m03*m12*m20 + m03*m10*m22 - m00*m13*m22 - m02*m10*m23 + m00*m12*m23);
-    	i.m20 = invert_det * (m11*m23*m30 - m13*m21*m30 + m13*m20*m31 - m10*m23*m31 - m11*m20*m33 + m10*m21*m33);
-    	i.m21 = invert_det * (m03*m21*m30 - m01*m23*m30 - m03*m20*m31 + m00*m23*m31 + m01*m20*m33 - m00*m21*m33);
-    	i.m22 = invert_det * (m01*m13*m30 - m03*m11*m30 + m03*m10*m31 - m00*m13*m31 - m01*m10*m33 + m00*m11*m33);
-    	i.m23 = invert_det * (m03*m11*m20 - m01*m13*m20 - m03*m10*m21 + m00*m13*m21 + m01*m10*m23 - m00*m11*m23);
-    	i.m30 = invert_det * (m12*m21*m30 - m11*m22*m30 - m12*m20*m31 + m10*m22*m31 + m11*m20*m32 - m10*m21*m32);
-    	i.m31 = invert_det * (m01*m22*m30 - m02*m21*m30 + m02*m20*m31 - m00*m22*m31 - m01*m20*m32 + m00*m21*m32);
-    	i.m32 = invert_det * (m02*m11*m30 - m01*m12*m30 - m02*m10*m31 + m00*m12*m31 + m01*m10*m32 - m00*m11*m32);
-    	i.m33 = invert_det * (m01*m12*m20 - m02*m11*m20 + m02*m10*m21 - m00*m12*m21 - m01*m10*m22 + m00*m11*m22);
+    	float i00 = invert_det * (m12*m23*m31 - m13*m22*m31 + m13*m21*m32 - m11*m23*m32 - m12*m21*m33 + m11*m22*m33);
+    	float i01 = invert_det * (m03*m22*m31 - m02*m23*m31 - m03*m21*m32 + m01*m23*m32 + m02*m21*m33 - m01*m22*m33);
+    	float i02 = invert_det * (m02*m13*m31 - m03*m12*m31 + m03*m11*m32 - m01*m13*m32 - m02*m11*m33 + m01*m12*m33);
+    	float i03 = invert_det * (m03*m12*m21 - m02*m13*m21 - m03*m11*m22 + m01*m13*m22 + m02*m11*m23 - m01*m12*m23);
+    	float i10 = invert_det * (m13*m22*m30 - m12*m23*m30 - m13*m20*m32 + m10*m23*m32 + m12*m20*m33 - m10*m22*m33);
+    	float i11 = invert_det * (m02*m23*m30 - m03*m22*m30 + m03*m20*m32 - m00*m23*m32 - m02*m20*m33 + m00*m22*m33);
+    	float i12 = invert_det * (m03*m12*m30 - m02*m13*m30 - m03*m10*m32 + m00*m13*m32 + m02*m10*m33 - m00*m12*m33);
+    	float i13 = invert_det * (m02*m13*m20 - m03*m12*m20 + m03*m10*m22 - m00*m13*m22 - m02*m10*m23 + m00*m12*m23);
+    	float i20 = invert_det * (m11*m23*m30 - m13*m21*m30 + m13*m20*m31 - m10*m23*m31 - m11*m20*m33 + m10*m21*m33);
+    	float i21 = invert_det * (m03*m21*m30 - m01*m23*m30 - m03*m20*m31 + m00*m23*m31 + m01*m20*m33 - m00*m21*m33);
+    	float i22 = invert_det * (m01*m13*m30 - m03*m11*m30 + m03*m10*m31 - m00*m13*m31 - m01*m10*m33 + m00*m11*m33);
+    	float i23 = invert_det * (m03*m11*m20 - m01*m13*m20 - m03*m10*m21 + m00*m13*m21 + m01*m10*m23 - m00*m11*m23);
+    	float i30 = invert_det * (m12*m21*m30 - m11*m22*m30 - m12*m20*m31 + m10*m22*m31 + m11*m20*m32 - m10*m21*m32);
+    	float i31 = invert_det * (m01*m22*m30 - m02*m21*m30 + m02*m20*m31 - m00*m22*m31 - m01*m20*m32 + m00*m21*m32);
+    	float i32 = invert_det * (m02*m11*m30 - m01*m12*m30 - m02*m10*m31 + m00*m12*m31 + m01*m10*m32 - m00*m11*m32);
+    	float i33 = invert_det * (m01*m12*m20 - m02*m11*m20 + m02*m10*m21 - m00*m12*m21 - m01*m10*m22 + m00*m11*m22);
+    	
+    	dest.m00 = i00;
+    	dest.m01 = i01;
+    	dest.m02 = i02;
+    	dest.m03 = i03;
+    	dest.m10 = i10;
+    	dest.m11 = i11;
+    	dest.m12 = i12;
+    	dest.m13 = i13;
+    	dest.m20 = i20;
+    	dest.m21 = i21;
+    	dest.m22 = i22;
+    	dest.m23 = i23;
+    	dest.m30 = i30;
+    	dest.m31 = i31;
+    	dest.m32 = i32;
+    	dest.m33 = i33;
     	
-    	return i;
+    	return dest;
     }
     
     /**
@@ -59,6 +59,21 @@ public class Vector3f {
         this.z = z;
     }
 
+    /**
+     * Sets the values of this vector.
+     *
+     * @param x x value
+     * @param y y value
+     * @param z z value
+     * @return this
+     */
+    public Vector3f set(float x, float y, float z) {
+        this.x = x;
+        this.y = y;
+        this.z = z;
+        return this;
+    }
+
     /**
      * Calculates the squared length of the vector.
      *